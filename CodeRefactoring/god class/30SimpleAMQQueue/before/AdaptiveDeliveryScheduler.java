@@ -0,0 +1,178 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.qpid.server.queue;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.qpid.server.subscription.Subscription;
+
+/**
+ * Sizes the batch of deliveries each subscription is offered in a single pass of
+ * {@link SimpleAMQQueue#processQueue(QueueRunner)}.
+ *
+ * A subscription starts with its fair share of a pass.  One which used its whole batch in the last pass has its batch
+ * doubled, up to the maximum, even past its fair share, as the other subscriptions are evidently not using theirs;
+ * one which ran out of credit is offered only as much as it managed to take, and one which is not keeping up with
+ * its acknowledgements has its batch halved.  The total number of deliveries in a pass is still bounded by the queue
+ * runner.
+ *
+ * A subscription's unacknowledged deliveries are the entries it acquired which have not yet left the acquired state,
+ * whether by acknowledgement, release, requeue or rejection; each is watched through a state change listener of the
+ * subscription's own.
+ */
+class AdaptiveDeliveryScheduler
+{
+    private static final String DELIVERY_STATE = "ADAPTIVE_DELIVERY_STATE";
+
+    private final int _maxBatchSize;
+
+    AdaptiveDeliveryScheduler(int maxBatchSize)
+    {
+        _maxBatchSize = maxBatchSize;
+    }
+
+    /**
+     * Attaches the delivery state to a subscription.  Called when the subscription is registered, before any
+     * delivery or acknowledgement can be counted against it.
+     */
+    void subscriptionRegistered(Subscription sub)
+    {
+        getState(sub);
+    }
+
+    SubscriptionDeliveryState getState(Subscription sub)
+    {
+        SubscriptionDeliveryState state = (SubscriptionDeliveryState) sub.get(DELIVERY_STATE);
+        if(state == null)
+        {
+            // the subscription only offers get and set, so two threads must not both attach a new state
+            synchronized (this)
+            {
+                state = (SubscriptionDeliveryState) sub.get(DELIVERY_STATE);
+                if(state == null)
+                {
+                    state = new SubscriptionDeliveryState();
+                    sub.set(DELIVERY_STATE, state);
+                }
+            }
+        }
+        return state;
+    }
+
+    /**
+     * @param fairShare the subscription's share of the deliveries in a pass; the batch it starts with
+     * @param remaining the number of deliveries left in the current pass
+     */
+    int getBatchSize(Subscription sub, int fairShare, int remaining)
+    {
+        SubscriptionDeliveryState state = getState(sub);
+        int batchSize = state._batchSize;
+        if(batchSize == 0)
+        {
+            batchSize = state._batchSize = Math.max(Math.min(fairShare, _maxBatchSize), 1);
+        }
+        return Math.min(batchSize, remaining);
+    }
+
+    void passComplete(Subscription sub, int batchSize, int attempts, boolean suspended)
+    {
+        SubscriptionDeliveryState state = getState(sub);
+        state._batchSizes.record(attempts);
+
+        int newBatchSize = state._batchSize;
+        if(suspended)
+        {
+            // out of credit: only offer as much as the subscription could take this time
+            state._suspensions.incrementAndGet();
+            newBatchSize = Math.max(attempts, 1);
+        }
+        else if(attempts >= batchSize)
+        {
+            newBatchSize = Math.min(newBatchSize << 1, _maxBatchSize);
+        }
+
+        if(state._unacknowledged.get() > 2L * newBatchSize)
+        {
+            newBatchSize = Math.max(newBatchSize >> 1, 1);
+        }
+        state._batchSize = newBatchSize;
+    }
+
+    void recordLockWait(Subscription sub, long waitNanos)
+    {
+        getState(sub)._lockWaits.record(waitNanos);
+    }
+
+    /**
+     * Called when an entry the subscription has acquired is sent to it, before it can be acknowledged or released.
+     */
+    void onDelivery(Subscription sub, QueueEntry entry)
+    {
+        SubscriptionDeliveryState state = getState(sub);
+        state._unacknowledged.incrementAndGet();
+        entry.addStateChangeListener(state);
+    }
+
+    static final class SubscriptionDeliveryState implements QueueEntry.StateChangeListener
+    {
+        private volatile int _batchSize;
+        private final AtomicLong _unacknowledged = new AtomicLong();
+        private final AtomicLong _suspensions = new AtomicLong();
+        private final LatencyHistogram _batchSizes = new LatencyHistogram();
+        private final LatencyHistogram _lockWaits = new LatencyHistogram();
+
+        int getBatchSize()
+        {
+            return _batchSize;
+        }
+
+        long getUnacknowledgedCount()
+        {
+            return _unacknowledged.get();
+        }
+
+        long getSuspensionCount()
+        {
+            return _suspensions.get();
+        }
+
+        LatencyHistogram getBatchSizeHistogram()
+        {
+            return _batchSizes;
+        }
+
+        LatencyHistogram getLockWaitHistogram()
+        {
+            return _lockWaits;
+        }
+
+        /**
+         * Counts a delivered entry as no longer unacknowledged once it leaves the acquired state, whichever way it
+         * leaves.
+         */
+        public void stateChanged(QueueEntry entry, QueueEntry.State oldState, QueueEntry.State newState)
+        {
+            if(oldState == QueueEntry.State.ACQUIRED && newState != QueueEntry.State.ACQUIRED)
+            {
+                entry.removeStateChangeListener(this);
+                _unacknowledged.decrementAndGet();
+            }
+        }
+    }
+}
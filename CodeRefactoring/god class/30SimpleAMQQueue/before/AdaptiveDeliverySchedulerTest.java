@@ -0,0 +1,154 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.qpid.server.queue;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.apache.qpid.server.subscription.Subscription;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+public class AdaptiveDeliverySchedulerTest extends TestCase
+{
+    private static final int MAX_BATCH = 64;
+
+    private AdaptiveDeliveryScheduler _scheduler;
+    private Subscription _sub;
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        super.setUp();
+        _scheduler = new AdaptiveDeliveryScheduler(MAX_BATCH);
+        final Map<String, Object> properties = new HashMap<String, Object>();
+        _sub = mock(Subscription.class);
+        when(_sub.get(anyString())).thenAnswer(new Answer<Object>()
+        {
+            public Object answer(InvocationOnMock invocation)
+            {
+                return properties.get(invocation.getArguments()[0]);
+            }
+        });
+        when(_sub.set(anyString(), any())).thenAnswer(new Answer<Object>()
+        {
+            public Object answer(InvocationOnMock invocation)
+            {
+                return properties.put((String) invocation.getArguments()[0], invocation.getArguments()[1]);
+            }
+        });
+        _scheduler.subscriptionRegistered(_sub);
+    }
+
+    private List<QueueEntry> deliver(int count)
+    {
+        List<QueueEntry> entries = new ArrayList<QueueEntry>();
+        for(int i = 0; i < count; i++)
+        {
+            QueueEntry entry = mock(QueueEntry.class);
+            _scheduler.onDelivery(_sub, entry);
+            entries.add(entry);
+        }
+        return entries;
+    }
+
+    private void leaveAcquired(List<QueueEntry> entries, QueueEntry.State newState)
+    {
+        AdaptiveDeliveryScheduler.SubscriptionDeliveryState state = _scheduler.getState(_sub);
+        for(QueueEntry entry : entries)
+        {
+            verify(entry).addStateChangeListener(state);
+            state.stateChanged(entry, QueueEntry.State.ACQUIRED, newState);
+            verify(entry).removeStateChangeListener(state);
+        }
+    }
+
+    /** A pass in which the subscription took its whole batch and acknowledged all of it. */
+    private int drainingPass(int fairShare)
+    {
+        int batchSize = _scheduler.getBatchSize(_sub, fairShare, 1000);
+        leaveAcquired(deliver(batchSize), QueueEntry.State.DEQUEUED);
+        _scheduler.passComplete(_sub, batchSize, batchSize, false);
+        return batchSize;
+    }
+
+    public void testStartsAtFairShareAndGrowsPastItWhileDraining()
+    {
+        assertEquals(4, drainingPass(4));
+        assertEquals(8, drainingPass(4));
+        assertEquals(16, drainingPass(4));
+        assertEquals(32, drainingPass(4));
+        assertEquals(64, drainingPass(4));
+        assertEquals(MAX_BATCH, drainingPass(4));
+    }
+
+    public void testBatchBoundedByRemainingDeliveries()
+    {
+        assertEquals(3, _scheduler.getBatchSize(_sub, 10, 3));
+        assertEquals(10, _scheduler.getBatchSize(_sub, 10, 1000));
+    }
+
+    public void testOutOfCreditOffersOnlyWhatWasTaken()
+    {
+        int batchSize = _scheduler.getBatchSize(_sub, 16, 1000);
+        leaveAcquired(deliver(5), QueueEntry.State.DEQUEUED);
+        _scheduler.passComplete(_sub, batchSize, 5, true);
+        assertEquals(5, _scheduler.getBatchSize(_sub, 16, 1000));
+        assertEquals(1L, _scheduler.getState(_sub).getSuspensionCount());
+    }
+
+    public void testUnacknowledgedDeliveriesHalveTheBatch()
+    {
+        int batchSize = _scheduler.getBatchSize(_sub, 8, 1000);
+        deliver(batchSize);
+        _scheduler.passComplete(_sub, batchSize, batchSize, false);
+        // doubled to 16 for taking the whole batch; 8 unacknowledged is not yet more than twice that
+        assertEquals(16, _scheduler.getBatchSize(_sub, 8, 1000));
+
+        deliver(32);
+        _scheduler.passComplete(_sub, 16, 0, false);
+        assertEquals(40L, _scheduler.getState(_sub).getUnacknowledgedCount());
+        assertEquals(8, _scheduler.getBatchSize(_sub, 8, 1000));
+    }
+
+    public void testReleasedAndRequeuedDeliveriesAreNoLongerUnacknowledged()
+    {
+        List<QueueEntry> released = deliver(100);
+        List<QueueEntry> rejected = deliver(100);
+        assertEquals(200L, _scheduler.getState(_sub).getUnacknowledgedCount());
+
+        leaveAcquired(released, QueueEntry.State.AVAILABLE);
+        leaveAcquired(rejected, QueueEntry.State.DELETED);
+        assertEquals(0L, _scheduler.getState(_sub).getUnacknowledgedCount());
+
+        // with nothing outstanding the batch grows again rather than being halved for ever
+        assertEquals(4, drainingPass(4));
+        assertEquals(8, drainingPass(4));
+    }
+}
@@ -0,0 +1,216 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.qpid.server.queue;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.qpid.AMQException;
+import org.apache.qpid.server.message.AMQMessageHeader;
+import org.apache.qpid.server.message.MessageReference;
+import org.apache.qpid.server.message.ServerMessage;
+import org.apache.qpid.server.subscription.MockSubscription;
+import org.apache.qpid.server.util.InternalBrokerBaseCase;
+
+/**
+ * Several consumers take messages from one queue while acknowledging most of them and releasing the rest, so that
+ * the shared hint to the first available entry is moved forward by one subscription while another puts entries
+ * back behind it.  Every message must still be acknowledged in the end: an available entry left behind the hint
+ * would never be delivered again.
+ */
+public class AvailableHeadStressTest extends InternalBrokerBaseCase
+{
+    private static final int CONSUMERS = 4;
+    private static final int MESSAGES = 20000;
+    /** percentage of deliveries released rather than acknowledged */
+    private static final int RELEASE_PERCENT = 20;
+
+    private SimpleAMQQueue _queue;
+    private final AtomicInteger _acknowledged = new AtomicInteger();
+    private final AtomicInteger _released = new AtomicInteger();
+    private final AtomicReference<Throwable> _failure = new AtomicReference<Throwable>();
+    private volatile boolean _done;
+
+    @Override
+    public void setUp() throws Exception
+    {
+        super.setUp();
+        _queue = new SimpleAMQQueue(UUID.randomUUID(), getName(), false, null, false, false, getVirtualHost(),
+                                    Collections.<String, Object>emptyMap());
+    }
+
+    @Override
+    public void tearDown() throws Exception
+    {
+        _done = true;
+        try
+        {
+            _queue.stop();
+        }
+        finally
+        {
+            super.tearDown();
+        }
+    }
+
+    public void testNoAvailableEntryIsSkippedWithConcurrentReleases() throws Exception
+    {
+        List<Thread> consumers = new ArrayList<Thread>();
+        for(int i = 0; i < CONSUMERS; i++)
+        {
+            ConsumingSubscription sub = new ConsumingSubscription();
+            _queue.registerSubscription(sub, false);
+            consumers.add(startConsumer(sub, i));
+        }
+
+        for(long id = 0; id < MESSAGES; id++)
+        {
+            _queue.enqueue(createMessage(id));
+        }
+
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(60);
+        while(_acknowledged.get() < MESSAGES && _failure.get() == null && System.currentTimeMillis() < deadline)
+        {
+            Thread.sleep(10);
+        }
+        _done = true;
+        for(Thread consumer : consumers)
+        {
+            consumer.join();
+        }
+        if(_failure.get() != null)
+        {
+            throw new AssertionError(_failure.get());
+        }
+
+        assertTrue("nothing was released, so the hint was never reset", _released.get() > 0);
+        assertEquals("messages left on the queue; available entries behind the hint: "
+                     + countAvailableBehindHint(),
+                     MESSAGES, _acknowledged.get());
+        assertEquals(0, _queue.getMessageCount());
+    }
+
+    private int countAvailableBehindHint()
+    {
+        QueueEntry hint = _queue.getAvailableHead();
+        int count = 0;
+        QueueEntryIterator iterator = _queue.getEntries().iterator();
+        while(iterator.advance())
+        {
+            QueueEntry entry = iterator.getNode();
+            if(entry.isAvailable() && entry.compareTo(hint) <= 0)
+            {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private Thread startConsumer(final ConsumingSubscription sub, final int index)
+    {
+        Thread consumer = new Thread(new Runnable()
+        {
+            public void run()
+            {
+                Random random = new Random(index);
+                try
+                {
+                    while(!_done)
+                    {
+                        QueueEntry entry = sub._delivered.poll(10, TimeUnit.MILLISECONDS);
+                        if(entry == null)
+                        {
+                            continue;
+                        }
+                        if(random.nextInt(100) < RELEASE_PERCENT)
+                        {
+                            _released.incrementAndGet();
+                            entry.release();
+                        }
+                        else
+                        {
+                            entry.discard();
+                            _acknowledged.incrementAndGet();
+                        }
+                    }
+                }
+                catch(Throwable t)
+                {
+                    _failure.compareAndSet(null, t);
+                }
+            }
+        }, "consumer-" + index);
+        consumer.start();
+        return consumer;
+    }
+
+    private static ServerMessage createMessage(long id)
+    {
+        ServerMessage message = mock(ServerMessage.class);
+        MessageReference reference = mock(MessageReference.class);
+        when(message.newReference()).thenReturn(reference);
+        when(reference.getMessage()).thenReturn(message);
+        when(message.getMessageNumber()).thenReturn(id);
+        when(message.getSize()).thenReturn(10L);
+        when(message.getArrivalTime()).thenReturn(System.currentTimeMillis());
+        when(message.getMessageHeader()).thenReturn(mock(AMQMessageHeader.class));
+        return message;
+    }
+
+    /**
+     * Hands each delivery to a consumer thread rather than keeping it, and keeps its properties in a concurrent
+     * map, as deliveries and acknowledgements both reach them from different threads.
+     */
+    private static final class ConsumingSubscription extends MockSubscription
+    {
+        private final BlockingQueue<QueueEntry> _delivered = new LinkedBlockingQueue<QueueEntry>();
+        private final Map<String, Object> _properties = new ConcurrentHashMap<String, Object>();
+
+        @Override
+        public void send(QueueEntry entry, boolean batch) throws AMQException
+        {
+            _delivered.add(entry);
+        }
+
+        @Override
+        public Object get(String key)
+        {
+            return _properties.get(key);
+        }
+
+        @Override
+        public Object set(String key, Object value)
+        {
+            return _properties.put(key, value);
+        }
+    }
+}
@@ -0,0 +1,370 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.qpid.server.queue;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.qpid.server.message.ServerMessage;
+
+/**
+ * A priority queue entry list with one sub-list, and so one tail, per priority level, which can find the first
+ * available entry of the queue without walking the entries in front of it.
+ *
+ * A bitmap records the levels which may hold available entries, and each level keeps a hint of its first available
+ * entry, so the highest priority entry is found from the highest bit set and that level's hint.  A level's bit is
+ * set whenever an entry is added to it or released back onto it, and cleared only once a walk from its hint finds
+ * nothing available.  Entries of a higher priority order before all entries of a lower one.
+ *
+ * A level's hint only ever moves forward, so entries which are acquired and awaiting acknowledgement are walked over
+ * once.  Entries released behind the hint are kept in a sorted set of their own until they are acquired again.
+ *
+ * At most 64 priority levels are supported.  The list delivers out of arrival order, so it may only be used by an
+ * {@link OutOfOrderQueue}.
+ */
+public class BucketedPriorityQueueList implements QueueEntryList<SimpleQueueEntryImpl>
+{
+    static final int MAX_PRIORITIES = 64;
+
+    private final AMQQueue _queue;
+    private final PrioritySubList[] _levels;
+    private final int _priorities;
+    private final int _priorityOffset;
+
+    /** bit n is set if level n may hold an available entry */
+    private final AtomicLong _nonEmptyLevels = new AtomicLong();
+
+    public BucketedPriorityQueueList(AMQQueue queue, int priorities)
+    {
+        if(priorities < 1 || priorities > MAX_PRIORITIES)
+        {
+            throw new IllegalArgumentException("Priorities must be between 1 and " + MAX_PRIORITIES + ": " + priorities);
+        }
+        if(!(queue instanceof OutOfOrderQueue))
+        {
+            throw new IllegalArgumentException("A priority list can only be used by an out of order queue: " + queue);
+        }
+        _queue = queue;
+        _priorities = priorities;
+        _priorityOffset = 5 - ((priorities + 1) / 2);
+        _levels = new PrioritySubList[priorities];
+        for(int i = 0; i < priorities; i++)
+        {
+            _levels[i] = new PrioritySubList(queue, i);
+        }
+    }
+
+    public int getPriorities()
+    {
+        return _priorities;
+    }
+
+    public AMQQueue getQueue()
+    {
+        return _queue;
+    }
+
+    public SimpleQueueEntryImpl add(ServerMessage message)
+    {
+        int index = message.getMessageHeader().getPriority() - _priorityOffset;
+        if(index >= _priorities)
+        {
+            index = _priorities - 1;
+        }
+        else if(index < 0)
+        {
+            index = 0;
+        }
+        PrioritySubList level = _levels[index];
+        SimpleQueueEntryImpl entry = level.add(message);
+        level.changed();
+        setNonEmpty(index);
+        return entry;
+    }
+
+    public SimpleQueueEntryImpl next(SimpleQueueEntryImpl node)
+    {
+        int index;
+        for(index = _priorities - 1; index >= 0 && !_levels[index].isOwner(node); index--)
+        {
+        }
+
+        SimpleQueueEntryImpl next = _levels[index].next(node);
+        while(next == null && --index >= 0)
+        {
+            next = _levels[index].next(_levels[index].getHead());
+        }
+        return next;
+    }
+
+    public QueueEntryIterator<SimpleQueueEntryImpl> iterator()
+    {
+        return new BucketedPriorityQueueEntryListIterator();
+    }
+
+    public SimpleQueueEntryImpl getHead()
+    {
+        return _levels[_priorities - 1].getHead();
+    }
+
+    public void entryDeleted(SimpleQueueEntryImpl queueEntry)
+    {
+    }
+
+    /**
+     * @return the available entry of the highest priority which arrived first, or null if there is none
+     */
+    public QueueEntry firstAvailable()
+    {
+        long levels;
+        while((levels = _nonEmptyLevels.get()) != 0L)
+        {
+            final int index = 63 - Long.numberOfLeadingZeros(levels);
+            final PrioritySubList level = _levels[index];
+            final long changes = level.getChanges();
+            QueueEntry entry = level.firstAvailable();
+            if(entry != null)
+            {
+                return entry;
+            }
+
+            clearNonEmpty(index);
+            if(level.getChanges() != changes)
+            {
+                // an entry was added or released while the level was being found empty
+                setNonEmpty(index);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Called when an entry becomes available again.
+     */
+    public void entryReleased(QueueEntry entry)
+    {
+        PrioritySubList level = (PrioritySubList) ((SimpleQueueEntryImpl) entry).getQueueEntryList();
+        level.released((SimpleQueueEntryImpl) entry);
+        setNonEmpty(level.getListPriority());
+    }
+
+    private void setNonEmpty(int index)
+    {
+        final long bit = 1L << index;
+        long levels;
+        while(((levels = _nonEmptyLevels.get()) & bit) == 0L && !_nonEmptyLevels.compareAndSet(levels, levels | bit))
+        {
+        }
+    }
+
+    private void clearNonEmpty(int index)
+    {
+        final long bit = 1L << index;
+        long levels;
+        while(((levels = _nonEmptyLevels.get()) & bit) != 0L && !_nonEmptyLevels.compareAndSet(levels, levels & ~bit))
+        {
+        }
+    }
+
+    private final class BucketedPriorityQueueEntryListIterator implements QueueEntryIterator<SimpleQueueEntryImpl>
+    {
+        private final QueueEntryIterator<SimpleQueueEntryImpl>[] _iterators;
+        private SimpleQueueEntryImpl _lastNode;
+
+        @SuppressWarnings("unchecked")
+        BucketedPriorityQueueEntryListIterator()
+        {
+            _iterators = new QueueEntryIterator[_priorities];
+            for(int i = 0; i < _priorities; i++)
+            {
+                _iterators[i] = _levels[i].iterator();
+            }
+            _lastNode = _iterators[_priorities - 1].getNode();
+        }
+
+        public boolean atTail()
+        {
+            for(int i = 0; i < _iterators.length; i++)
+            {
+                if(!_iterators[i].atTail())
+                {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        public SimpleQueueEntryImpl getNode()
+        {
+            return _lastNode;
+        }
+
+        public boolean advance()
+        {
+            for(int i = _priorities - 1; i >= 0; i--)
+            {
+                QueueEntryIterator<SimpleQueueEntryImpl> iterator = _iterators[i];
+                if(iterator.advance())
+                {
+                    _lastNode = iterator.getNode();
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    private static final class PrioritySubList extends SimpleQueueEntryList
+    {
+        private final int _listPriority;
+
+        /**
+         * every entry of this level before the hint is either unavailable or in the released set; null to start from
+         * the head
+         */
+        private final AtomicReference<SimpleQueueEntryImpl> _availableHint = new AtomicReference<SimpleQueueEntryImpl>();
+        /** entries released back onto this level, which may be behind the hint */
+        private final ConcurrentSkipListSet<SimpleQueueEntryImpl> _released =
+                new ConcurrentSkipListSet<SimpleQueueEntryImpl>();
+        /** counts the adds and releases, so that a level is not marked empty while one is in progress */
+        private final AtomicLong _changes = new AtomicLong();
+
+        PrioritySubList(AMQQueue queue, int listPriority)
+        {
+            super(queue);
+            _listPriority = listPriority;
+        }
+
+        @Override
+        protected PriorityQueueEntryImpl createQueueEntry(ServerMessage<?> message)
+        {
+            return new PriorityQueueEntryImpl(this, message);
+        }
+
+        int getListPriority()
+        {
+            return _listPriority;
+        }
+
+        boolean isOwner(SimpleQueueEntryImpl node)
+        {
+            return node.getQueueEntryList() == this;
+        }
+
+        void changed()
+        {
+            _changes.incrementAndGet();
+        }
+
+        long getChanges()
+        {
+            return _changes.get();
+        }
+
+        SimpleQueueEntryImpl firstAvailable()
+        {
+            SimpleQueueEntryImpl released = firstReleased();
+
+            final SimpleQueueEntryImpl hint = _availableHint.get();
+            SimpleQueueEntryImpl last = hint;
+            SimpleQueueEntryImpl entry = hint == null ? next(getHead()) : hint;
+            while(entry != null && !entry.isAvailable())
+            {
+                last = entry;
+                entry = next(entry);
+            }
+            // entries passed by the walk which are released later are found in the released set
+            SimpleQueueEntryImpl newHint = entry == null ? last : entry;
+            if(newHint != hint && newHint != null)
+            {
+                SimpleQueueEntryImpl current;
+                while(((current = _availableHint.get()) == null || current.compareTo(newHint) < 0)
+                      && !_availableHint.compareAndSet(current, newHint))
+                {
+                }
+            }
+
+            if(released == null || (entry != null && entry.compareTo(released) < 0))
+            {
+                return entry;
+            }
+            return released;
+        }
+
+        private SimpleQueueEntryImpl firstReleased()
+        {
+            Iterator<SimpleQueueEntryImpl> iter = _released.iterator();
+            while(iter.hasNext())
+            {
+                SimpleQueueEntryImpl entry = iter.next();
+                if(entry.isAvailable())
+                {
+                    return entry;
+                }
+                iter.remove();
+                // released again after the check; keep it
+                if(entry.isAvailable())
+                {
+                    _released.add(entry);
+                    return entry;
+                }
+            }
+            return null;
+        }
+
+        void released(SimpleQueueEntryImpl entry)
+        {
+            changed();
+            _released.add(entry);
+        }
+    }
+
+    private static final class PriorityQueueEntryImpl extends SimpleQueueEntryImpl
+    {
+        PriorityQueueEntryImpl(PrioritySubList queueEntryList, ServerMessage<?> message)
+        {
+            super(queueEntryList, message);
+        }
+
+        @Override
+        public int compareTo(final QueueEntry o)
+        {
+            int otherPriority = ((PrioritySubList) ((SimpleQueueEntryImpl) o).getQueueEntryList()).getListPriority();
+            int thisPriority = ((PrioritySubList) getQueueEntryList()).getListPriority();
+            return otherPriority == thisPriority ? super.compareTo(o) : otherPriority - thisPriority;
+        }
+    }
+
+    static class Factory implements QueueEntryListFactory
+    {
+        private final int _priorities;
+
+        Factory(int priorities)
+        {
+            _priorities = priorities;
+        }
+
+        public QueueEntryList createQueueEntryList(AMQQueue queue)
+        {
+            return new BucketedPriorityQueueList(queue, _priorities);
+        }
+    }
+}
@@ -0,0 +1,369 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.qpid.server.queue;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.qpid.server.message.ServerMessage;
+
+/**
+ * Per-producer staging lists used by a queue in sharded enqueue mode.
+ *
+ * Producers append to the shard selected by their thread, so concurrent publishers do not contend on the tail of the
+ * queue's single {@link QueueEntryList}. The queue's delivery logic drains the shards into the entry list, either
+ * merging them in enqueue order or taking one message from each shard in turn.
+ *
+ * A single drainer at a time is enough: moving a staged message costs the drainer an append to the entry list and
+ * the index updates the producer would otherwise have made itself, under no lock the producers take, and it keeps
+ * the entry list to the one writer it was built for and the merge order intact.  A producer which needs its entry
+ * back, to run a post-enqueue action, does not spin for it; if another thread holds the drain, that thread will move
+ * the message before it lets go, and hands the entry over to the waiting producer.
+ *
+ * Each shard is a ring of the staged messages, so staging a message allocates nothing unless the producer needs its
+ * entry.  Each shard also keeps the count and size of the messages staged on it until they reach the entry list, so
+ * that the queue depth can include them without producers updating the queue's own counters.
+ */
+class EnqueueShards
+{
+    private final Shard[] _shards;
+    private final boolean _ordered;
+    private final AtomicBoolean _draining = new AtomicBoolean(false);
+
+    private int _nextShard;
+
+    /** the message last taken by {@link #poll()}; only touched by the drainer */
+    private Shard _polledShard;
+    private ServerMessage _polledMessage;
+    private boolean _polledTransactional;
+    private StagedEnqueue _polledHandOff;
+
+    EnqueueShards(int shardCount, boolean ordered)
+    {
+        if (shardCount < 1)
+        {
+            throw new IllegalArgumentException("Shard count must be positive: " + shardCount);
+        }
+        _ordered = ordered;
+        _shards = new Shard[shardCount];
+        for (int i = 0; i < shardCount; i++)
+        {
+            _shards[i] = new Shard();
+        }
+    }
+
+    int getShardCount()
+    {
+        return _shards.length;
+    }
+
+    boolean isOrdered()
+    {
+        return _ordered;
+    }
+
+    /**
+     * Stages a message whose entry the producer does not need.
+     */
+    void stage(ServerMessage message, boolean transactional)
+    {
+        getShard().append(message, transactional, null);
+    }
+
+    /**
+     * Stages a message whose entry the producer needs back, through {@link StagedEnqueue#awaitEntry()}.
+     */
+    StagedEnqueue stageForEntry(ServerMessage message, boolean transactional)
+    {
+        StagedEnqueue staged = new StagedEnqueue();
+        getShard().append(message, transactional, staged);
+        return staged;
+    }
+
+    private Shard getShard()
+    {
+        return _shards[(int) (Thread.currentThread().getId() % _shards.length)];
+    }
+
+    boolean isEmpty()
+    {
+        for (Shard shard : _shards)
+        {
+            if (!shard.isEmpty())
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** @return the number of messages staged but not yet on the entry list */
+    int getStagedCount()
+    {
+        int count = 0;
+        for (Shard shard : _shards)
+        {
+            count += shard._stagedCount.get();
+        }
+        return count;
+    }
+
+    /** @return the total size of the messages staged but not yet on the entry list */
+    long getStagedSize()
+    {
+        long size = 0L;
+        for (Shard shard : _shards)
+        {
+            size += shard._stagedSize.get();
+        }
+        return size;
+    }
+
+    /**
+     * Only one thread at a time may move staged messages into the entry list, otherwise the merge order would be
+     * lost.  Callers that fail to obtain the drain can rely on the current drainer picking up their messages, as
+     * long as they staged them before trying: the drainer checks the shards again after {@link #endDrain()}.
+     */
+    boolean tryStartDrain()
+    {
+        return _draining.compareAndSet(false, true);
+    }
+
+    void endDrain()
+    {
+        _draining.set(false);
+    }
+
+    /**
+     * Takes the next staged message, which is then given by {@link #getPolledMessage()} and {@link
+     * #isPolledTransactional()} until {@link #drained(QueueEntry)} is called for it.  Must only be called between
+     * {@link #tryStartDrain()} and {@link #endDrain()}.
+     *
+     * @return false if all shards are empty
+     */
+    boolean poll()
+    {
+        Shard shard = _ordered ? findOldest() : findRoundRobin();
+        if (shard == null)
+        {
+            return false;
+        }
+        shard.pollInto(this);
+        _polledShard = shard;
+        return true;
+    }
+
+    ServerMessage getPolledMessage()
+    {
+        return _polledMessage;
+    }
+
+    boolean isPolledTransactional()
+    {
+        return _polledTransactional;
+    }
+
+    /**
+     * Called once the polled message has been added to the entry list and counted by the queue.
+     */
+    void drained(QueueEntry entry)
+    {
+        _polledShard._stagedCount.decrementAndGet();
+        _polledShard._stagedSize.addAndGet(-_polledMessage.getSize());
+        if (_polledHandOff != null)
+        {
+            _polledHandOff.handOff(entry);
+        }
+        _polledShard = null;
+        _polledMessage = null;
+        _polledHandOff = null;
+    }
+
+    private Shard findOldest()
+    {
+        Shard oldestShard = null;
+        long oldest = 0L;
+        for (Shard shard : _shards)
+        {
+            // only the drainer removes from a shard, so one seen with a message keeps it
+            if (!shard.isEmpty())
+            {
+                long stagedAt = shard.getHeadStagedAt();
+                if (oldestShard == null || stagedAt - oldest < 0L)
+                {
+                    oldestShard = shard;
+                    oldest = stagedAt;
+                }
+            }
+        }
+        return oldestShard;
+    }
+
+    private Shard findRoundRobin()
+    {
+        for (int i = 0; i < _shards.length; i++)
+        {
+            Shard shard = _shards[_nextShard];
+            _nextShard = (_nextShard + 1) % _shards.length;
+            if (!shard.isEmpty())
+            {
+                return shard;
+            }
+        }
+        return null;
+    }
+
+    private static final class Shard
+    {
+        private static final int INITIAL_CAPACITY = 16;
+
+        /** a ring of the staged messages, from _head for _size slots; the capacity is a power of two */
+        private ServerMessage[] _messages = new ServerMessage[INITIAL_CAPACITY];
+        private boolean[] _transactional = new boolean[INITIAL_CAPACITY];
+        private long[] _stagedAt = new long[INITIAL_CAPACITY];
+        private StagedEnqueue[] _handOffs = new StagedEnqueue[INITIAL_CAPACITY];
+        private int _head;
+        private int _size;
+
+        private final AtomicInteger _stagedCount = new AtomicInteger();
+        private final AtomicLong _stagedSize = new AtomicLong();
+
+        /**
+         * The time is taken under the shard's lock, so the messages on each shard are always in time order and the
+         * heads of the shards can be compared when merging.
+         */
+        synchronized void append(ServerMessage message, boolean transactional, StagedEnqueue handOff)
+        {
+            _stagedCount.incrementAndGet();
+            _stagedSize.addAndGet(message.getSize());
+            if (_size == _messages.length)
+            {
+                grow();
+            }
+            int tail = (_head + _size) & (_messages.length - 1);
+            _messages[tail] = message;
+            _transactional[tail] = transactional;
+            _handOffs[tail] = handOff;
+            _stagedAt[tail] = System.nanoTime();
+            _size++;
+        }
+
+        /** must only be called when the shard is not empty */
+        synchronized long getHeadStagedAt()
+        {
+            return _stagedAt[_head];
+        }
+
+        /** must only be called when the shard is not empty */
+        synchronized void pollInto(EnqueueShards shards)
+        {
+            shards._polledMessage = _messages[_head];
+            shards._polledTransactional = _transactional[_head];
+            shards._polledHandOff = _handOffs[_head];
+            _messages[_head] = null;
+            _handOffs[_head] = null;
+            _head = (_head + 1) & (_messages.length - 1);
+            _size--;
+        }
+
+        synchronized boolean isEmpty()
+        {
+            return _size == 0;
+        }
+
+        private void grow()
+        {
+            int capacity = _messages.length << 1;
+            ServerMessage[] messages = new ServerMessage[capacity];
+            boolean[] transactional = new boolean[capacity];
+            long[] stagedAt = new long[capacity];
+            StagedEnqueue[] handOffs = new StagedEnqueue[capacity];
+            for (int i = 0; i < _size; i++)
+            {
+                int from = (_head + i) & (_messages.length - 1);
+                messages[i] = _messages[from];
+                transactional[i] = _transactional[from];
+                stagedAt[i] = _stagedAt[from];
+                handOffs[i] = _handOffs[from];
+            }
+            _messages = messages;
+            _transactional = transactional;
+            _stagedAt = stagedAt;
+            _handOffs = handOffs;
+            _head = 0;
+        }
+    }
+
+    /**
+     * The hand-off of the entry a staged message was added as, to a producer waiting for it.
+     */
+    static final class StagedEnqueue
+    {
+        private volatile QueueEntry _entry;
+        private volatile Thread _waiter;
+
+        /** @return the entry the message was added as, or null while it is still staged */
+        QueueEntry getEntry()
+        {
+            return _entry;
+        }
+
+        /**
+         * Waits until the message has been added to the entry list.  Must only be called once the caller has tried
+         * to drain the shards itself, so that either it has moved the message or the drainer which kept it from
+         * doing so will.  An interrupt does not end the wait, but is kept for the caller.
+         *
+         * @return the entry the message was added as
+         */
+        QueueEntry awaitEntry()
+        {
+            QueueEntry entry = _entry;
+            if (entry == null)
+            {
+                _waiter = Thread.currentThread();
+                boolean interrupted = false;
+                while ((entry = _entry) == null)
+                {
+                    LockSupport.park(this);
+                    if (Thread.interrupted())
+                    {
+                        interrupted = true;
+                    }
+                }
+                if (interrupted)
+                {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            return entry;
+        }
+
+        private void handOff(QueueEntry entry)
+        {
+            _entry = entry;
+            Thread waiter = _waiter;
+            if (waiter != null)
+            {
+                LockSupport.unpark(waiter);
+            }
+        }
+    }
+}
@@ -0,0 +1,251 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.qpid.server.queue;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import junit.framework.TestCase;
+
+import org.apache.qpid.server.message.ServerMessage;
+
+public class EnqueueShardsTest extends TestCase
+{
+    private static final int PRODUCERS = 8;
+    private static final int MESSAGES_PER_PRODUCER = 2000;
+
+    /** the producer and sequence number of each message */
+    private final Map<ServerMessage, int[]> _origins = new IdentityHashMap<ServerMessage, int[]>();
+    /** the messages in the order they reached the "entry list", and the entry each was drained as */
+    private final List<ServerMessage> _drained = new ArrayList<ServerMessage>();
+    private final Map<ServerMessage, QueueEntry> _entries = new IdentityHashMap<ServerMessage, QueueEntry>();
+
+    private ServerMessage[][] createMessages()
+    {
+        ServerMessage[][] messages = new ServerMessage[PRODUCERS][MESSAGES_PER_PRODUCER];
+        for(int producer = 0; producer < PRODUCERS; producer++)
+        {
+            for(int i = 0; i < MESSAGES_PER_PRODUCER; i++)
+            {
+                ServerMessage message = mock(ServerMessage.class);
+                when(message.getSize()).thenReturn(10L);
+                messages[producer][i] = message;
+                _origins.put(message, new int[] { producer, i });
+            }
+        }
+        return messages;
+    }
+
+    /**
+     * Moves the staged messages as the queue does, recording the order they arrive in.
+     */
+    private void drain(EnqueueShards shards)
+    {
+        while(!shards.isEmpty() && shards.tryStartDrain())
+        {
+            try
+            {
+                while(shards.poll())
+                {
+                    ServerMessage message = shards.getPolledMessage();
+                    QueueEntry entry = mock(QueueEntry.class);
+                    synchronized (_drained)
+                    {
+                        _drained.add(message);
+                        _entries.put(message, entry);
+                    }
+                    shards.drained(entry);
+                }
+            }
+            finally
+            {
+                shards.endDrain();
+            }
+        }
+    }
+
+    private void assertEveryMessageDrainedOnceInProducerOrder(EnqueueShards shards)
+    {
+        assertEquals(PRODUCERS * MESSAGES_PER_PRODUCER, _drained.size());
+        assertEquals(_drained.size(), _entries.size());
+        int[] next = new int[PRODUCERS];
+        for(ServerMessage message : _drained)
+        {
+            int[] origin = _origins.get(message);
+            assertEquals("message of producer " + origin[0] + " out of order", next[origin[0]], origin[1]);
+            next[origin[0]]++;
+        }
+        assertTrue(shards.isEmpty());
+        assertEquals(0, shards.getStagedCount());
+        assertEquals(0L, shards.getStagedSize());
+    }
+
+    public void testConcurrentProducersAndDrainersLoseNothing() throws Exception
+    {
+        runProducers(new EnqueueShards(4, false), false);
+    }
+
+    public void testConcurrentProducersAndDrainersOrdered() throws Exception
+    {
+        runProducers(new EnqueueShards(4, true), false);
+    }
+
+    /**
+     * Every producer needs its entry back, as one with a post-enqueue action does, and so takes part in the drain
+     * and waits for the entry when another thread holds the drain.
+     */
+    public void testProducersWaitingForTheirEntriesAreHandedThem() throws Exception
+    {
+        runProducers(new EnqueueShards(4, true), true);
+    }
+
+    private void runProducers(final EnqueueShards shards, final boolean awaitEntries) throws Exception
+    {
+        final ServerMessage[][] messages = createMessages();
+        final CyclicBarrier start = new CyclicBarrier(PRODUCERS + 1);
+        final CountDownLatch producersDone = new CountDownLatch(PRODUCERS);
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        List<Thread> threads = new ArrayList<Thread>();
+        for(int p = 0; p < PRODUCERS; p++)
+        {
+            final int producer = p;
+            threads.add(new Thread(new Runnable()
+            {
+                public void run()
+                {
+                    try
+                    {
+                        start.await();
+                        for(ServerMessage message : messages[producer])
+                        {
+                            if(awaitEntries)
+                            {
+                                EnqueueShards.StagedEnqueue staged = shards.stageForEntry(message, false);
+                                drain(shards);
+                                QueueEntry entry = staged.awaitEntry();
+                                synchronized (_drained)
+                                {
+                                    assertSame(_entries.get(message), entry);
+                                }
+                            }
+                            else
+                            {
+                                shards.stage(message, producer % 2 == 0);
+                            }
+                        }
+                    }
+                    catch(Throwable t)
+                    {
+                        failure.compareAndSet(null, t);
+                    }
+                    finally
+                    {
+                        producersDone.countDown();
+                    }
+                }
+            }, "producer-" + p));
+        }
+        // a delivery thread draining while the producers run
+        Thread drainer = new Thread(new Runnable()
+        {
+            public void run()
+            {
+                try
+                {
+                    start.await();
+                    while(producersDone.getCount() != 0)
+                    {
+                        drain(shards);
+                    }
+                }
+                catch(Throwable t)
+                {
+                    failure.compareAndSet(null, t);
+                }
+            }
+        }, "drainer");
+        threads.add(drainer);
+
+        for(Thread thread : threads)
+        {
+            thread.start();
+        }
+        start.await();
+        assertTrue("producers did not finish", producersDone.await(60, TimeUnit.SECONDS));
+        drainer.join();
+        if(failure.get() != null)
+        {
+            throw new AssertionError(failure.get());
+        }
+
+        drain(shards);
+        assertEveryMessageDrainedOnceInProducerOrder(shards);
+    }
+
+    public void testOrderedDrainMergesShardsInStagingOrder()
+    {
+        EnqueueShards shards = new EnqueueShards(1, true);
+        ServerMessage[][] messages = createMessages();
+        // one thread stages on one shard, so the order staged is the order drained, past the initial capacity
+        for(int i = 0; i < MESSAGES_PER_PRODUCER; i++)
+        {
+            for(int producer = 0; producer < PRODUCERS; producer++)
+            {
+                shards.stage(messages[producer][i], false);
+            }
+        }
+        assertEquals(PRODUCERS * MESSAGES_PER_PRODUCER, shards.getStagedCount());
+        assertEquals(10L * PRODUCERS * MESSAGES_PER_PRODUCER, shards.getStagedSize());
+
+        drain(shards);
+        assertEveryMessageDrainedOnceInProducerOrder(shards);
+        for(int i = 0; i < _drained.size(); i++)
+        {
+            assertSame(messages[i % PRODUCERS][i / PRODUCERS], _drained.get(i));
+        }
+    }
+
+    public void testEntryAlreadyDrainedIsReturnedWithoutWaiting()
+    {
+        EnqueueShards shards = new EnqueueShards(2, false);
+        ServerMessage message = mock(ServerMessage.class);
+        EnqueueShards.StagedEnqueue staged = shards.stageForEntry(message, true);
+        assertNull(staged.getEntry());
+
+        assertTrue(shards.tryStartDrain());
+        assertTrue(shards.poll());
+        assertSame(message, shards.getPolledMessage());
+        assertTrue(shards.isPolledTransactional());
+        QueueEntry entry = mock(QueueEntry.class);
+        shards.drained(entry);
+        assertFalse(shards.poll());
+        shards.endDrain();
+
+        assertSame(entry, staged.awaitEntry());
+    }
+}
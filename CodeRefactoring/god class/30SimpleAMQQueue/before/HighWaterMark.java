@@ -0,0 +1,51 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.qpid.server.queue;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The highest value seen of some statistic.
+ *
+ * The value sits alone on its cache lines, and an update only writes when it raises the mark, so the common case of
+ * a value below the mark is a plain read.
+ */
+final class HighWaterMark
+{
+    private static final int VALUE = StripedCounter.PADDING;
+
+    private final AtomicLongArray _value = new AtomicLongArray(2 * StripedCounter.PADDING);
+
+    void update(long value)
+    {
+        long high;
+        while(value > (high = _value.get(VALUE)))
+        {
+            if(_value.compareAndSet(VALUE, high, value))
+            {
+                break;
+            }
+        }
+    }
+
+    long get()
+    {
+        return _value.get(VALUE);
+    }
+}
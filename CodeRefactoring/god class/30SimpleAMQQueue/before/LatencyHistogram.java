@@ -0,0 +1,156 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.qpid.server.queue;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Histogram of non-negative values with a bounded relative error, in the manner of an HDR histogram.
+ *
+ * Values below 16 have a bucket each; above that each power of two is split into 16 linear sub-buckets, so a value
+ * is known to within 1/16 of itself.  The sub-buckets of each power of two are allocated when a value first falls in
+ * it, so a histogram only holds counts for the range of values it has actually seen.
+ */
+final class LatencyHistogram
+{
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int ROWS = Long.SIZE - SUB_BUCKET_BITS + 1;
+    private static final int BUCKETS = ROWS * SUB_BUCKETS;
+
+    private final AtomicReferenceArray<AtomicLongArray> _rows = new AtomicReferenceArray<AtomicLongArray>(ROWS);
+    private final HighWaterMark _max = new HighWaterMark();
+
+    void record(long value)
+    {
+        if(value < 0L)
+        {
+            value = 0L;
+        }
+        final int index = indexOf(value);
+        getRow(index / SUB_BUCKETS).incrementAndGet(index % SUB_BUCKETS);
+        _max.update(value);
+    }
+
+    long getCount()
+    {
+        long count = 0L;
+        for(int row = 0; row < ROWS; row++)
+        {
+            AtomicLongArray counts = _rows.get(row);
+            if(counts != null)
+            {
+                for(int i = 0; i < SUB_BUCKETS; i++)
+                {
+                    count += counts.get(i);
+                }
+            }
+        }
+        return count;
+    }
+
+    long getMax()
+    {
+        return _max.get();
+    }
+
+    /**
+     * @param percentile between 0 and 100
+     * @return the lowest value of the bucket holding the given percentile, or 0 if nothing has been recorded
+     */
+    long getValueAtPercentile(double percentile)
+    {
+        long[] counts = getCounts();
+        long total = 0L;
+        for(long count : counts)
+        {
+            total += count;
+        }
+        if(total == 0L)
+        {
+            return 0L;
+        }
+
+        long target = Math.max((long) Math.ceil(total * Math.min(percentile, 100.0) / 100.0), 1L);
+        long seen = 0L;
+        for(int i = 0; i < counts.length; i++)
+        {
+            seen += counts[i];
+            if(seen >= target)
+            {
+                return lowestValueOf(i);
+            }
+        }
+        return getMax();
+    }
+
+    /**
+     * @return the count of each bucket; see {@link #lowestValueOf(int)} for the values each bucket holds
+     */
+    long[] getCounts()
+    {
+        long[] counts = new long[BUCKETS];
+        for(int row = 0; row < ROWS; row++)
+        {
+            AtomicLongArray rowCounts = _rows.get(row);
+            if(rowCounts != null)
+            {
+                for(int i = 0; i < SUB_BUCKETS; i++)
+                {
+                    counts[row * SUB_BUCKETS + i] = rowCounts.get(i);
+                }
+            }
+        }
+        return counts;
+    }
+
+    private AtomicLongArray getRow(int row)
+    {
+        AtomicLongArray counts = _rows.get(row);
+        if(counts == null)
+        {
+            _rows.compareAndSet(row, null, new AtomicLongArray(SUB_BUCKETS));
+            counts = _rows.get(row);
+        }
+        return counts;
+    }
+
+    static int indexOf(long value)
+    {
+        if(value < SUB_BUCKETS)
+        {
+            return (int) value;
+        }
+        final int exponent = Long.SIZE - 1 - Long.numberOfLeadingZeros(value);
+        final int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    static long lowestValueOf(int index)
+    {
+        if(index < SUB_BUCKETS)
+        {
+            return index;
+        }
+        final int exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        final long subBucket = index % SUB_BUCKETS;
+        return (SUB_BUCKETS + subBucket) << (exponent - SUB_BUCKET_BITS);
+    }
+}
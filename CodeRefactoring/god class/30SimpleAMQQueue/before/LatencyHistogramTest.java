@@ -0,0 +1,239 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.qpid.server.queue;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import junit.framework.TestCase;
+
+import org.apache.qpid.server.message.ServerMessage;
+import org.apache.qpid.server.subscription.Subscription;
+import org.mockito.ArgumentCaptor;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+public class LatencyHistogramTest extends TestCase
+{
+    public void testSmallValuesHaveABucketEach()
+    {
+        for(long value = 0L; value < 16L; value++)
+        {
+            assertEquals((int) value, LatencyHistogram.indexOf(value));
+            assertEquals(value, LatencyHistogram.lowestValueOf((int) value));
+        }
+    }
+
+    public void testBucketsAreWithinASixteenthOfTheirValues()
+    {
+        long[] values = { 16L, 17L, 31L, 32L, 33L, 1000L, 123456789L, Long.MAX_VALUE };
+        for(long value : values)
+        {
+            long lowest = LatencyHistogram.lowestValueOf(LatencyHistogram.indexOf(value));
+            assertTrue("bucket of " + value + " starts above it at " + lowest, lowest <= value);
+            assertTrue("bucket of " + value + " starts too far below it at " + lowest, value - lowest <= value / 16L);
+        }
+    }
+
+    public void testEmptyHistogram()
+    {
+        LatencyHistogram histogram = new LatencyHistogram();
+
+        assertEquals(0L, histogram.getCount());
+        assertEquals(0L, histogram.getMax());
+        assertEquals(0L, histogram.getValueAtPercentile(99.0));
+        for(long count : histogram.getCounts())
+        {
+            assertEquals(0L, count);
+        }
+    }
+
+    public void testPercentiles()
+    {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for(int i = 0; i < 90; i++)
+        {
+            histogram.record(5L);
+        }
+        for(int i = 0; i < 9; i++)
+        {
+            histogram.record(100L);
+        }
+        histogram.record(10000L);
+
+        assertEquals(100L, histogram.getCount());
+        assertEquals(10000L, histogram.getMax());
+        assertEquals(5L, histogram.getValueAtPercentile(50.0));
+        assertEquals(5L, histogram.getValueAtPercentile(90.0));
+        assertEquals(LatencyHistogram.lowestValueOf(LatencyHistogram.indexOf(100L)),
+                     histogram.getValueAtPercentile(99.0));
+        assertEquals(LatencyHistogram.lowestValueOf(LatencyHistogram.indexOf(10000L)),
+                     histogram.getValueAtPercentile(100.0));
+    }
+
+    public void testNegativeValuesAreRecordedAsZero()
+    {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(-7L);
+
+        assertEquals(1L, histogram.getCounts()[0]);
+        assertEquals(0L, histogram.getMax());
+    }
+
+    public void testCountsAreKeptAcrossWidelySpreadValues()
+    {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for(int shift = 0; shift < 63; shift++)
+        {
+            histogram.record(1L << shift);
+        }
+
+        long[] counts = histogram.getCounts();
+        long total = 0L;
+        for(long count : counts)
+        {
+            total += count;
+        }
+        assertEquals(63L, total);
+        assertEquals(63L, histogram.getCount());
+        assertEquals(1L, counts[LatencyHistogram.indexOf(1L << 40)]);
+    }
+
+    public void testRecorderKeepsDeliveryTimeOnEntryUntilItLeavesAcquiredState()
+    {
+        QueueLatencyRecorder recorder = new QueueLatencyRecorder();
+        Subscription sub = subscription(true);
+
+        QueueEntry acknowledged = entry();
+        QueueEntry released = entry();
+        QueueEntry deleted = entry();
+        QueueEntry.StateChangeListener acknowledgedDelivery = deliver(recorder, sub, acknowledged);
+        QueueEntry.StateChangeListener releasedDelivery = deliver(recorder, sub, released);
+        QueueEntry.StateChangeListener deletedDelivery = deliver(recorder, sub, deleted);
+        assertEquals(3L, recorder.getDeliveryLatency().getCount());
+
+        acknowledgedDelivery.stateChanged(acknowledged, QueueEntry.State.ACQUIRED, QueueEntry.State.DEQUEUED);
+        verify(acknowledged).removeStateChangeListener(acknowledgedDelivery);
+        recorder.entryDequeued(sub, acknowledged);
+        assertEquals(1L, recorder.getAckLatency().getCount());
+        assertEquals(1L, recorder.getLatencies(sub).getAckLatency().getCount());
+        assertEquals(1L, recorder.getResidency().getCount());
+
+        releasedDelivery.stateChanged(released, QueueEntry.State.ACQUIRED, QueueEntry.State.AVAILABLE);
+        verify(released).removeStateChangeListener(releasedDelivery);
+
+        deletedDelivery.stateChanged(deleted, QueueEntry.State.ACQUIRED, QueueEntry.State.DELETED);
+        verify(deleted).removeStateChangeListener(deletedDelivery);
+
+        assertEquals(1L, recorder.getAckLatency().getCount());
+    }
+
+    public void testBrowsedEntriesAreNotTracked()
+    {
+        QueueLatencyRecorder recorder = new QueueLatencyRecorder();
+        Subscription browser = subscription(false);
+
+        QueueEntry entry = entry();
+        recorder.entryDelivered(browser, entry);
+
+        verify(entry, never()).addStateChangeListener(any(QueueEntry.StateChangeListener.class));
+        assertEquals(1L, recorder.getDeliveryLatency().getCount());
+    }
+
+    public void testConcurrentFirstUseAttachesOneSetOfLatencies() throws Exception
+    {
+        final QueueLatencyRecorder recorder = new QueueLatencyRecorder();
+        final Subscription sub = subscription(true);
+        final QueueLatencyRecorder.SubscriptionLatencies[] seen = new QueueLatencyRecorder.SubscriptionLatencies[8];
+        Thread[] threads = new Thread[seen.length];
+        for(int i = 0; i < threads.length; i++)
+        {
+            final int index = i;
+            threads[i] = new Thread(new Runnable()
+            {
+                public void run()
+                {
+                    seen[index] = recorder.getLatencies(sub);
+                }
+            });
+        }
+        for(Thread thread : threads)
+        {
+            thread.start();
+        }
+        for(Thread thread : threads)
+        {
+            thread.join();
+        }
+        for(QueueLatencyRecorder.SubscriptionLatencies latencies : seen)
+        {
+            assertSame(seen[0], latencies);
+        }
+    }
+
+    private static QueueEntry.StateChangeListener deliver(QueueLatencyRecorder recorder, Subscription sub,
+                                                          QueueEntry entry)
+    {
+        recorder.entryDelivered(sub, entry);
+        ArgumentCaptor<QueueEntry.StateChangeListener> listener =
+                ArgumentCaptor.forClass(QueueEntry.StateChangeListener.class);
+        verify(entry).addStateChangeListener(listener.capture());
+        return listener.getValue();
+    }
+
+    private static Subscription subscription(boolean acquires)
+    {
+        final Map<String, Object> properties = new ConcurrentHashMap<String, Object>();
+        Subscription sub = mock(Subscription.class);
+        when(sub.acquires()).thenReturn(acquires);
+        when(sub.get(anyString())).thenAnswer(new Answer<Object>()
+        {
+            public Object answer(InvocationOnMock invocation)
+            {
+                return properties.get(invocation.getArguments()[0]);
+            }
+        });
+        when(sub.set(anyString(), any())).thenAnswer(new Answer<Object>()
+        {
+            public Object answer(InvocationOnMock invocation)
+            {
+                // slow the attach down so that racing threads would each attach their own
+                Thread.yield();
+                return properties.put((String) invocation.getArguments()[0], invocation.getArguments()[1]);
+            }
+        });
+        return sub;
+    }
+
+    private static QueueEntry entry()
+    {
+        ServerMessage message = mock(ServerMessage.class);
+        when(message.getArrivalTime()).thenReturn(System.currentTimeMillis());
+        QueueEntry entry = mock(QueueEntry.class);
+        when(entry.getMessage()).thenReturn(message);
+        return entry;
+    }
+}
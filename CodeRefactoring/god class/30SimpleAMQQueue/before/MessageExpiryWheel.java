@@ -0,0 +1,308 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.qpid.server.queue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+import org.apache.qpid.server.message.ServerMessage;
+
+/**
+ * Hierarchical timing wheel of the queue entries which carry an expiration time.
+ *
+ * Entries are handed back by {@link #expire(long)} once their expiration has passed, so that the housekeeping thread
+ * only ever visits entries which are due rather than the whole queue.  Each level has 64 slots; a slot on level n
+ * spans 64^n ticks.  Entries too far in the future for the top level are parked in its furthest slot and filed again
+ * when that slot comes round.
+ *
+ * Enqueuing threads do not take the wheel's lock: new entries wait on a lock-free list until the housekeeping
+ * thread files them.  An entry removed from the queue before it expires is released at once, and the wheel drops
+ * its record of it once such records make up half of the wheel.
+ */
+class MessageExpiryWheel
+{
+    private static final int SLOT_BITS = 6;
+    private static final int SLOTS = 1 << SLOT_BITS;
+    private static final int SLOT_MASK = SLOTS - 1;
+    private static final int LEVELS = 4;
+
+    private final long _tickMillis;
+    private final List<TimedEntry>[][] _wheels;
+
+    private final ConcurrentLinkedQueue<TimedEntry> _incoming = new ConcurrentLinkedQueue<TimedEntry>();
+    private final ConcurrentHashMap<QueueEntry, TimedEntry> _timedEntries =
+            new ConcurrentHashMap<QueueEntry, TimedEntry>();
+
+    /** the records of removed entries still on the incoming list or in the wheel */
+    private final AtomicInteger _cancelled = new AtomicInteger();
+
+    // guarded by this
+    /** the next tick to be processed */
+    private long _currentTick;
+    /** the number of records in the wheel, including those of removed entries */
+    private int _filed;
+
+    @SuppressWarnings("unchecked")
+    MessageExpiryWheel(long tickMillis, long now)
+    {
+        if(tickMillis <= 0L)
+        {
+            throw new IllegalArgumentException("Tick must be positive: " + tickMillis);
+        }
+        _tickMillis = tickMillis;
+        _wheels = new List[LEVELS][SLOTS];
+        _currentTick = now / tickMillis;
+    }
+
+    void add(QueueEntry entry, long expiration)
+    {
+        TimedEntry timed = new TimedEntry(entry, expiration);
+        _timedEntries.put(entry, timed);
+        _incoming.add(timed);
+    }
+
+    /**
+     * Called when an entry leaves the queue before it expires.
+     */
+    void remove(QueueEntry entry)
+    {
+        ServerMessage message = entry.getMessage();
+        if(message == null || message.getExpiration() == 0L)
+        {
+            return;
+        }
+        TimedEntry timed = _timedEntries.remove(entry);
+        if(timed != null && timed.release(entry))
+        {
+            _cancelled.incrementAndGet();
+        }
+    }
+
+    /**
+     * @return the number of entries waiting to expire
+     */
+    int size()
+    {
+        return _timedEntries.size();
+    }
+
+    /**
+     * @return the entries whose expiration is at or before the given time
+     */
+    synchronized List<QueueEntry> expire(long now)
+    {
+        List<QueueEntry> expired = new ArrayList<QueueEntry>();
+        final long nowTick = now / _tickMillis;
+
+        TimedEntry incoming;
+        while((incoming = _incoming.poll()) != null)
+        {
+            _filed++;
+            fileOrDrop(incoming);
+        }
+
+        if(_cancelled.get() * 2 > _filed)
+        {
+            purge();
+        }
+
+        if(_filed == 0)
+        {
+            _currentTick = Math.max(_currentTick, nowTick);
+            return expired;
+        }
+
+        while(_currentTick <= nowTick)
+        {
+            cascade();
+
+            int slot = (int) (_currentTick & SLOT_MASK);
+            List<TimedEntry> due = _wheels[0][slot];
+            if(due != null)
+            {
+                _wheels[0][slot] = null;
+                for(TimedEntry timed : due)
+                {
+                    QueueEntry entry = timed._entry;
+                    if(entry == null)
+                    {
+                        drop();
+                    }
+                    else if(timed._expiration <= now)
+                    {
+                        _filed--;
+                        if(timed.release(entry))
+                        {
+                            _timedEntries.remove(entry, timed);
+                            expired.add(entry);
+                        }
+                        else
+                        {
+                            // removed from the queue in the meantime
+                            _cancelled.decrementAndGet();
+                        }
+                    }
+                    else
+                    {
+                        // expires later in the current tick; keep it for the next pass
+                        List<TimedEntry> pending = _wheels[0][slot];
+                        if(pending == null)
+                        {
+                            pending = _wheels[0][slot] = new ArrayList<TimedEntry>();
+                        }
+                        pending.add(timed);
+                    }
+                }
+            }
+
+            if(_currentTick == nowTick)
+            {
+                break;
+            }
+            _currentTick++;
+        }
+        return expired;
+    }
+
+    /**
+     * When the current tick crosses a slot boundary of an upper level, the entries of that slot are filed again so
+     * that they move down to the finer grained levels.
+     */
+    private void cascade()
+    {
+        for(int level = 1; level < LEVELS; level++)
+        {
+            if((_currentTick & ((1L << (SLOT_BITS * level)) - 1)) != 0L)
+            {
+                break;
+            }
+            int slot = (int) ((_currentTick >>> (SLOT_BITS * level)) & SLOT_MASK);
+            List<TimedEntry> entries = _wheels[level][slot];
+            if(entries != null)
+            {
+                _wheels[level][slot] = null;
+                for(TimedEntry timed : entries)
+                {
+                    fileOrDrop(timed);
+                }
+            }
+        }
+    }
+
+    /**
+     * Drops the records of removed entries from every slot.
+     */
+    private void purge()
+    {
+        for(List<TimedEntry>[] wheel : _wheels)
+        {
+            for(int slot = 0; slot < SLOTS; slot++)
+            {
+                List<TimedEntry> entries = wheel[slot];
+                if(entries != null)
+                {
+                    List<TimedEntry> live = new ArrayList<TimedEntry>(entries.size());
+                    for(TimedEntry timed : entries)
+                    {
+                        if(timed._entry == null)
+                        {
+                            drop();
+                        }
+                        else
+                        {
+                            live.add(timed);
+                        }
+                    }
+                    wheel[slot] = live.isEmpty() ? null : live;
+                }
+            }
+        }
+    }
+
+    private void drop()
+    {
+        _filed--;
+        _cancelled.decrementAndGet();
+    }
+
+    private void fileOrDrop(TimedEntry timed)
+    {
+        if(timed._entry == null)
+        {
+            drop();
+        }
+        else
+        {
+            file(timed);
+        }
+    }
+
+    private void file(TimedEntry timed)
+    {
+        long tick = Math.max(timed._expiration / _tickMillis, _currentTick);
+        long delta = tick - _currentTick;
+
+        int level = 0;
+        while(level < LEVELS - 1 && delta >= (1L << (SLOT_BITS * (level + 1))))
+        {
+            level++;
+        }
+        long span = 1L << (SLOT_BITS * (level + 1));
+        if(delta >= span)
+        {
+            tick = _currentTick + span - 1L;
+        }
+
+        int slot = (int) ((tick >>> (SLOT_BITS * level)) & SLOT_MASK);
+        List<TimedEntry> entries = _wheels[level][slot];
+        if(entries == null)
+        {
+            entries = _wheels[level][slot] = new ArrayList<TimedEntry>();
+        }
+        entries.add(timed);
+    }
+
+    private static final class TimedEntry
+    {
+        private static final AtomicReferenceFieldUpdater<TimedEntry, QueueEntry> _entryUpdater =
+                AtomicReferenceFieldUpdater.newUpdater(TimedEntry.class, QueueEntry.class, "_entry");
+
+        /** null once the entry has either expired or been removed from the queue */
+        private volatile QueueEntry _entry;
+        private final long _expiration;
+
+        private TimedEntry(QueueEntry entry, long expiration)
+        {
+            _entry = entry;
+            _expiration = expiration;
+        }
+
+        /**
+         * @return true if the caller, rather than a concurrent expiry or removal, released the entry
+         */
+        private boolean release(QueueEntry entry)
+        {
+            return _entryUpdater.compareAndSet(this, entry, null);
+        }
+    }
+}
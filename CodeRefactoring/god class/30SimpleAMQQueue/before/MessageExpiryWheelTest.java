@@ -0,0 +1,155 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.qpid.server.queue;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.apache.qpid.server.message.ServerMessage;
+
+public class MessageExpiryWheelTest extends TestCase
+{
+    private static final long TICK = 10L;
+    private static final long START = 1000000L;
+
+    private MessageExpiryWheel _wheel;
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        super.setUp();
+        _wheel = new MessageExpiryWheel(TICK, START);
+    }
+
+    private QueueEntry add(long expiration)
+    {
+        ServerMessage message = mock(ServerMessage.class);
+        when(message.getExpiration()).thenReturn(expiration);
+        QueueEntry entry = mock(QueueEntry.class);
+        when(entry.getMessage()).thenReturn(message);
+        _wheel.add(entry, expiration);
+        return entry;
+    }
+
+    public void testEntryIsReturnedOnceItsExpirationHasPassed()
+    {
+        QueueEntry entry = add(START + 55L);
+
+        assertTrue(_wheel.expire(START + 50L).isEmpty());
+        // due in the current tick, but not yet
+        assertTrue(_wheel.expire(START + 54L).isEmpty());
+
+        List<QueueEntry> expired = _wheel.expire(START + 55L);
+        assertEquals(1, expired.size());
+        assertSame(entry, expired.get(0));
+        assertEquals(0, _wheel.size());
+
+        assertTrue(_wheel.expire(START + 1000L).isEmpty());
+    }
+
+    public void testEntriesOnUpperLevelsCascadeDown()
+    {
+        // beyond the span of the first two levels
+        QueueEntry far = add(START + 5000L * TICK + 3L);
+        QueueEntry near = add(START + 2L * TICK);
+
+        assertEquals(1, _wheel.expire(START + 2L * TICK).size());
+        assertTrue(_wheel.expire(START + 4999L * TICK).isEmpty());
+
+        List<QueueEntry> expired = _wheel.expire(START + 5001L * TICK);
+        assertEquals(1, expired.size());
+        assertSame(far, expired.get(0));
+        assertNotSame(near, expired.get(0));
+    }
+
+    public void testEntryBeyondTheTopLevelIsParkedAndFiledAgain()
+    {
+        long horizon = 1L << 24;
+        QueueEntry entry = add(START + (horizon + 100L) * TICK);
+
+        assertTrue(_wheel.expire(START + horizon * TICK).isEmpty());
+        List<QueueEntry> expired = _wheel.expire(START + (horizon + 100L) * TICK);
+        assertEquals(1, expired.size());
+        assertSame(entry, expired.get(0));
+    }
+
+    public void testRemovedEntriesAreNotReturned()
+    {
+        List<QueueEntry> kept = new ArrayList<QueueEntry>();
+        for(int i = 0; i < 100; i++)
+        {
+            QueueEntry entry = add(START + 100L + i);
+            if(i % 5 == 0)
+            {
+                kept.add(entry);
+            }
+            else
+            {
+                _wheel.remove(entry);
+            }
+        }
+        assertEquals(kept.size(), _wheel.size());
+
+        // files the new entries and drops the removed ones before anything is due
+        assertTrue(_wheel.expire(START).isEmpty());
+
+        List<QueueEntry> expired = _wheel.expire(START + 1000L);
+        assertEquals(kept.size(), expired.size());
+        assertTrue(expired.containsAll(kept));
+        assertEquals(0, _wheel.size());
+    }
+
+    public void testRemovingAnExpiredEntryHasNoEffect()
+    {
+        QueueEntry entry = add(START + 5L);
+        assertEquals(1, _wheel.expire(START + 5L).size());
+
+        _wheel.remove(entry);
+        QueueEntry other = add(START + 20L);
+        List<QueueEntry> expired = _wheel.expire(START + 20L);
+        assertEquals(1, expired.size());
+        assertSame(other, expired.get(0));
+    }
+
+    public void testEntryAlreadyExpiredWhenAddedIsReturnedAtOnce()
+    {
+        QueueEntry entry = add(START - 500L);
+        List<QueueEntry> expired = _wheel.expire(START);
+        assertEquals(1, expired.size());
+        assertSame(entry, expired.get(0));
+    }
+
+    public void testTickMustBePositive()
+    {
+        try
+        {
+            new MessageExpiryWheel(0L, START);
+            fail("Expected IllegalArgumentException");
+        }
+        catch (IllegalArgumentException e)
+        {
+            // pass
+        }
+    }
+}
@@ -0,0 +1,267 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.qpid.server.queue;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.qpid.server.message.ServerMessage;
+import org.apache.qpid.server.subscription.Subscription;
+
+/**
+ * Tracks, for a queue with message groups, which subscription each group was last delivered to and which of the
+ * group's entries are still on the queue.
+ *
+ * When a subscription goes away, the earliest entry other subscriptions may have skipped over is found from the
+ * pending entries of that subscription's own groups, rather than by scanning the queue.  The {@link
+ * org.apache.qpid.server.subscription.MessageGroupManager} remains the authority on group assignment; this index
+ * only records what was delivered, keyed the same way as the manager: by group id for defined groups, or by hash
+ * bucket when groups are shared out over a fixed number of buckets.
+ *
+ * Entries leave the index when they leave the queue, and a group is dropped once it has no pending entries and no
+ * owner.  Each group is locked on its own, so enqueue and delivery only contend within a group.
+ */
+class MessageGroupIndex
+{
+    private static final String OWNED_GROUPS = "MESSAGE_GROUP_INDEX_OWNED_GROUPS";
+
+    private final String _groupHeaderKey;
+    private final Object _defaultGroup;
+    /** one less than the number of buckets when groups are shared out by hash, otherwise zero */
+    private final int _bucketMask;
+
+    private final ConcurrentHashMap<Object, Group> _groups = new ConcurrentHashMap<Object, Group>();
+
+    /**
+     * @param defaultGroup the group of messages which do not carry the group header, or null if they belong to no
+     *                     group
+     * @param maxGroups    the number of buckets groups are shared out over, as given to the group manager, or zero if
+     *                     each group id is a group of its own
+     */
+    MessageGroupIndex(String groupHeaderKey, Object defaultGroup, int maxGroups)
+    {
+        _groupHeaderKey = groupHeaderKey;
+        _defaultGroup = defaultGroup;
+        int buckets = 1;
+        while(buckets < maxGroups)
+        {
+            buckets <<= 1;
+        }
+        _bucketMask = maxGroups > 0 ? buckets - 1 : 0;
+    }
+
+    int getGroupCount()
+    {
+        return _groups.size();
+    }
+
+    void entryAdded(QueueEntry entry)
+    {
+        Object key = getGroupKey(entry);
+        if(key != null)
+        {
+            while(true)
+            {
+                Group group = _groups.get(key);
+                if(group == null)
+                {
+                    Group newGroup = new Group(key);
+                    group = _groups.putIfAbsent(key, newGroup);
+                    if(group == null)
+                    {
+                        group = newGroup;
+                    }
+                }
+                synchronized (group)
+                {
+                    // a group dropped concurrently is no longer in the table; retry with a new one
+                    if(!group._removed)
+                    {
+                        group._pending.add(entry);
+                        return;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Called when an entry leaves the queue.  Must be called before the entry's message is discarded.
+     */
+    void entryRemoved(QueueEntry entry)
+    {
+        Object key = getGroupKey(entry);
+        Group group = key == null ? null : _groups.get(key);
+        if(group != null)
+        {
+            synchronized (group)
+            {
+                group._pending.remove(entry);
+                if(group._pending.isEmpty())
+                {
+                    // nothing of the group is left for its owner to have skipped over, so release it; the next
+                    // delivery from the group records its owner afresh
+                    Subscription owner = group._owner;
+                    if(owner != null)
+                    {
+                        group._owner = null;
+                        Set<Group> owned = getOwnedGroups(owner);
+                        if(owned != null)
+                        {
+                            owned.remove(group);
+                        }
+                    }
+                    removeIfUnused(group);
+                }
+            }
+        }
+    }
+
+    /**
+     * Called with the subscription's send lock held.
+     */
+    void entryDelivered(Subscription sub, QueueEntry entry)
+    {
+        Object key = getGroupKey(entry);
+        Group group = key == null ? null : _groups.get(key);
+        if(group != null && group._owner != sub)
+        {
+            Set<Group> owned = getOwnedGroups(sub);
+            if(owned == null)
+            {
+                owned = Collections.newSetFromMap(new ConcurrentHashMap<Group, Boolean>());
+                sub.set(OWNED_GROUPS, owned);
+            }
+            synchronized (group)
+            {
+                if(!group._removed)
+                {
+                    group._owner = sub;
+                    owned.add(group);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the earliest entry still available on the queue from any group last delivered to the subscription
+     */
+    QueueEntry findEarliestAvailableEntry(Subscription sub)
+    {
+        Set<Group> owned = getOwnedGroups(sub);
+        if(owned == null)
+        {
+            return null;
+        }
+        QueueEntry earliest = null;
+        for(Group group : owned)
+        {
+            synchronized (group)
+            {
+                if(group._owner == sub)
+                {
+                    for(QueueEntry entry : group._pending)
+                    {
+                        if(entry.isAvailable())
+                        {
+                            if(earliest == null || entry.compareTo(earliest) < 0)
+                            {
+                                earliest = entry;
+                            }
+                            break;
+                        }
+                    }
+                }
+            }
+        }
+        return earliest;
+    }
+
+    void clearAssignments(Subscription sub)
+    {
+        Set<Group> owned = getOwnedGroups(sub);
+        if(owned == null)
+        {
+            return;
+        }
+        for(Group group : owned)
+        {
+            synchronized (group)
+            {
+                if(group._owner == sub)
+                {
+                    group._owner = null;
+                    removeIfUnused(group);
+                }
+            }
+        }
+        owned.clear();
+    }
+
+    // called holding the group's lock
+    private void removeIfUnused(Group group)
+    {
+        if(group._owner == null && group._pending.isEmpty())
+        {
+            group._removed = true;
+            _groups.remove(group._key, group);
+        }
+    }
+
+    /**
+     * @return the key of the entry's group: the group id, or its bucket when groups are shared out by hash
+     */
+    private Object getGroupKey(QueueEntry entry)
+    {
+        ServerMessage message = entry.getMessage();
+        if(message == null)
+        {
+            return null;
+        }
+        Object groupId = message.getMessageHeader().getHeader(_groupHeaderKey);
+        if(groupId == null)
+        {
+            return _defaultGroup;
+        }
+        return _bucketMask == 0 ? groupId : Integer.valueOf(groupId.hashCode() & _bucketMask);
+    }
+
+    @SuppressWarnings("unchecked")
+    private Set<Group> getOwnedGroups(Subscription sub)
+    {
+        return (Set<Group>) sub.get(OWNED_GROUPS);
+    }
+
+    private static final class Group
+    {
+        private final Object _key;
+        /** in queue order; guarded by the group */
+        private final TreeSet<QueueEntry> _pending = new TreeSet<QueueEntry>();
+        private volatile Subscription _owner;
+        /** guarded by the group */
+        private boolean _removed;
+
+        private Group(Object key)
+        {
+            _key = key;
+        }
+    }
+}
@@ -0,0 +1,207 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.qpid.server.queue;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+import org.apache.qpid.server.message.AMQMessageHeader;
+import org.apache.qpid.server.message.ServerMessage;
+import org.apache.qpid.server.subscription.Subscription;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+public class MessageGroupIndexTest extends TestCase
+{
+    private static final String GROUP_HEADER = "JMSXGroupID";
+
+    private MessageGroupIndex _index;
+    private long _nextMessageId;
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        super.setUp();
+        _index = new MessageGroupIndex(GROUP_HEADER, null, 0);
+    }
+
+    private QueueEntry entry(String group)
+    {
+        final long id = _nextMessageId++;
+        AMQMessageHeader header = mock(AMQMessageHeader.class);
+        when(header.getHeader(GROUP_HEADER)).thenReturn(group);
+        ServerMessage message = mock(ServerMessage.class);
+        when(message.getMessageHeader()).thenReturn(header);
+        when(message.getMessageNumber()).thenReturn(id);
+        QueueEntry entry = mock(QueueEntry.class);
+        when(entry.getMessage()).thenReturn(message);
+        when(entry.isAvailable()).thenReturn(true);
+        when(entry.compareTo(any(QueueEntry.class))).thenAnswer(new Answer<Integer>()
+        {
+            public Integer answer(InvocationOnMock invocation)
+            {
+                long other = ((QueueEntry) invocation.getArguments()[0]).getMessage().getMessageNumber();
+                return id < other ? -1 : id == other ? 0 : 1;
+            }
+        });
+        return entry;
+    }
+
+    private Subscription subscription()
+    {
+        final Map<String, Object> properties = new HashMap<String, Object>();
+        Subscription sub = mock(Subscription.class);
+        when(sub.get(anyString())).thenAnswer(new Answer<Object>()
+        {
+            public Object answer(InvocationOnMock invocation)
+            {
+                return properties.get(invocation.getArguments()[0]);
+            }
+        });
+        when(sub.set(anyString(), any())).thenAnswer(new Answer<Object>()
+        {
+            public Object answer(InvocationOnMock invocation)
+            {
+                return properties.put((String) invocation.getArguments()[0], invocation.getArguments()[1]);
+            }
+        });
+        return sub;
+    }
+
+    public void testFindsEarliestAvailableEntryOfOwnedGroups()
+    {
+        Subscription sub = subscription();
+        QueueEntry a1 = entry("a");
+        QueueEntry b1 = entry("b");
+        QueueEntry a2 = entry("a");
+        QueueEntry b2 = entry("b");
+        _index.entryAdded(a1);
+        _index.entryAdded(b1);
+        _index.entryAdded(a2);
+        _index.entryAdded(b2);
+
+        _index.entryDelivered(sub, a1);
+        assertSame(a1, _index.findEarliestAvailableEntry(sub));
+
+        when(a1.isAvailable()).thenReturn(false);
+        assertSame(a2, _index.findEarliestAvailableEntry(sub));
+
+        _index.entryDelivered(sub, b1);
+        assertSame(b1, _index.findEarliestAvailableEntry(sub));
+    }
+
+    public void testEntriesOfUnownedGroupsAreNotFound()
+    {
+        Subscription sub = subscription();
+        _index.entryAdded(entry("a"));
+        assertNull(_index.findEarliestAvailableEntry(sub));
+        assertEquals(1, _index.getGroupCount());
+    }
+
+    public void testGroupReleasedWhenItsLastEntryIsRemoved()
+    {
+        Subscription sub = subscription();
+        QueueEntry a1 = entry("a");
+        QueueEntry a2 = entry("a");
+        _index.entryAdded(a1);
+        _index.entryAdded(a2);
+        _index.entryDelivered(sub, a1);
+
+        _index.entryRemoved(a1);
+        assertEquals(1, _index.getGroupCount());
+        assertSame(a2, _index.findEarliestAvailableEntry(sub));
+
+        _index.entryRemoved(a2);
+        assertEquals(0, _index.getGroupCount());
+        assertNull(_index.findEarliestAvailableEntry(sub));
+        assertTrue(((Set<?>) sub.get("MESSAGE_GROUP_INDEX_OWNED_GROUPS")).isEmpty());
+
+        // a later entry of the group starts a group of its own, owned again once delivered
+        QueueEntry a3 = entry("a");
+        _index.entryAdded(a3);
+        assertEquals(1, _index.getGroupCount());
+        assertNull(_index.findEarliestAvailableEntry(sub));
+        _index.entryDelivered(sub, a3);
+        assertSame(a3, _index.findEarliestAvailableEntry(sub));
+    }
+
+    public void testOwnedGroupsDoNotGrowWithGroupsSeen()
+    {
+        Subscription sub = subscription();
+        for(int i = 0; i < 1000; i++)
+        {
+            QueueEntry entry = entry("group-" + i);
+            _index.entryAdded(entry);
+            _index.entryDelivered(sub, entry);
+            _index.entryRemoved(entry);
+        }
+        assertEquals(0, _index.getGroupCount());
+        assertTrue(((Set<?>) sub.get("MESSAGE_GROUP_INDEX_OWNED_GROUPS")).isEmpty());
+    }
+
+    public void testClearAssignmentsDropsGroupsWithNoEntries()
+    {
+        Subscription sub = subscription();
+        QueueEntry a1 = entry("a");
+        _index.entryAdded(a1);
+        _index.entryDelivered(sub, a1);
+        _index.entryAdded(entry("b"));
+
+        _index.clearAssignments(sub);
+        assertNull(_index.findEarliestAvailableEntry(sub));
+        // both groups still have an entry on the queue
+        assertEquals(2, _index.getGroupCount());
+
+        _index.entryRemoved(a1);
+        assertEquals(1, _index.getGroupCount());
+    }
+
+    public void testBucketedGroupsShareAnEntry()
+    {
+        _index = new MessageGroupIndex(GROUP_HEADER, null, 2);
+        Subscription sub = subscription();
+        // "a" and "c" hash to the same one of two buckets
+        QueueEntry a = entry("a");
+        QueueEntry b = entry("c");
+        _index.entryAdded(a);
+        _index.entryAdded(b);
+        assertEquals(1, _index.getGroupCount());
+
+        _index.entryDelivered(sub, b);
+        assertSame(a, _index.findEarliestAvailableEntry(sub));
+    }
+
+    public void testMessagesWithoutGroupGoToDefaultGroup()
+    {
+        _index = new MessageGroupIndex(GROUP_HEADER, "default", 0);
+        Subscription sub = subscription();
+        QueueEntry entry = entry(null);
+        _index.entryAdded(entry);
+        _index.entryDelivered(sub, entry);
+        assertSame(entry, _index.findEarliestAvailableEntry(sub));
+    }
+}
@@ -0,0 +1,49 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.qpid.server.queue;
+
+/**
+ * A stored message whose content can be released from the heap while it waits on a queue, and read back in before
+ * it is delivered.
+ *
+ * Implementations write the content to the message store, or for transient messages to a spill file, when it is
+ * released.  Reading the content of a released message must still succeed, reloading it on demand; paging in ahead
+ * of delivery only saves the delivering thread the wait.
+ */
+public interface PageableStoredMessage
+{
+    /**
+     * @return true if the content is held on the heap
+     */
+    boolean isResident();
+
+    /**
+     * Releases the content from the heap.
+     *
+     * @return true if the content was resident and has been released by this call
+     */
+    boolean flowToDisk();
+
+    /**
+     * Reads the content back onto the heap.
+     *
+     * @return true if the content was not resident and has been reloaded by this call
+     */
+    boolean reload();
+}
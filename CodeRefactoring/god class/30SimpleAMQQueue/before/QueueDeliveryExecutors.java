@@ -0,0 +1,192 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.qpid.server.queue;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.apache.log4j.Logger;
+import org.apache.qpid.pool.ReferenceCountingExecutorService;
+import org.apache.qpid.server.virtualhost.VirtualHost;
+
+/**
+ * Provides the Executor on which a queue runs its QueueRunner and SubFlushRunner tasks.
+ *
+ * The kind of executor is chosen in the configuration of each virtual host, by
+ * <code>queues.deliveryExecutor</code>:
+ * <ul>
+ * <li><code>shared</code> (the default) - the broker wide fixed size pool from ReferenceCountingExecutorService</li>
+ * <li><code>virtual-thread</code> - a new virtual thread per runner, so that idle queues cost nothing and a long
+ * running queue does not hold up others</li>
+ * <li><code>fork-join</code> - a work stealing pool of the virtual host's own, in async mode as the runners are
+ * never joined, of <code>queues.deliveryExecutor.parallelism</code> threads (by default one per processor)</li>
+ * </ul>
+ * The latter two are looked up reflectively, as they need a newer JVM than the broker is built for; where they are
+ * not available the shared pool is used instead.  Each queue holds its own executor and releases it when the queue
+ * stops.  The fork-join pool of a virtual host is reference counted by its queues in the same way as the shared
+ * pool, so it is shut down when the last of them stops, as the virtual host closes.
+ */
+final class QueueDeliveryExecutors
+{
+    private static final Logger _logger = Logger.getLogger(QueueDeliveryExecutors.class);
+
+    static final String SHARED = "shared";
+    static final String VIRTUAL_THREAD = "virtual-thread";
+    static final String FORK_JOIN = "fork-join";
+
+    static final String EXECUTOR_CONFIG = "queues.deliveryExecutor";
+    static final String PARALLELISM_CONFIG = "queues.deliveryExecutor.parallelism";
+
+    /** the fork-join pool of each virtual host using one; guarded by itself */
+    private static final Map<VirtualHost, ForkJoinPoolReference> _forkJoinPools =
+            new HashMap<VirtualHost, ForkJoinPoolReference>();
+
+    private QueueDeliveryExecutors()
+    {
+    }
+
+    static DeliveryExecutor acquire(VirtualHost virtualHost)
+    {
+        final String type = virtualHost.getConfiguration().getConfig().getString(EXECUTOR_CONFIG, SHARED);
+        try
+        {
+            if(VIRTUAL_THREAD.equals(type))
+            {
+                ExecutorService executor =
+                        (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+                return new DeliveryExecutor(executor, executor, false, null);
+            }
+            else if(FORK_JOIN.equals(type))
+            {
+                return new DeliveryExecutor(acquireForkJoinPool(virtualHost), null, false, virtualHost);
+            }
+            else if(!SHARED.equals(type))
+            {
+                _logger.warn("Unknown queue delivery executor '" + type + "' for virtual host "
+                             + virtualHost.getName() + ", using the shared pool");
+            }
+        }
+        catch (Exception e)
+        {
+            _logger.warn("Queue delivery executor '" + type + "' is not available on this JVM, virtual host "
+                         + virtualHost.getName() + " will use the shared pool", e);
+        }
+        return new DeliveryExecutor(ReferenceCountingExecutorService.getInstance().acquireExecutorService(), null, true,
+                                    null);
+    }
+
+    private static ExecutorService acquireForkJoinPool(VirtualHost virtualHost) throws Exception
+    {
+        synchronized (_forkJoinPools)
+        {
+            ForkJoinPoolReference reference = _forkJoinPools.get(virtualHost);
+            if(reference == null)
+            {
+                reference = new ForkJoinPoolReference(createForkJoinPool(virtualHost));
+                _forkJoinPools.put(virtualHost, reference);
+            }
+            reference._references++;
+            return reference._pool;
+        }
+    }
+
+    private static void releaseForkJoinPool(VirtualHost virtualHost)
+    {
+        synchronized (_forkJoinPools)
+        {
+            ForkJoinPoolReference reference = _forkJoinPools.get(virtualHost);
+            if(reference != null && --reference._references == 0)
+            {
+                _forkJoinPools.remove(virtualHost);
+                reference._pool.shutdown();
+            }
+        }
+    }
+
+    private static ExecutorService createForkJoinPool(VirtualHost virtualHost) throws Exception
+    {
+        Class<?> poolClass = Class.forName("java.util.concurrent.ForkJoinPool");
+        Class<?> factoryClass = Class.forName("java.util.concurrent.ForkJoinPool$ForkJoinWorkerThreadFactory");
+        int parallelism = virtualHost.getConfiguration().getConfig()
+                .getInt(PARALLELISM_CONFIG, Runtime.getRuntime().availableProcessors());
+        return (ExecutorService) poolClass
+                .getConstructor(int.class, factoryClass, Thread.UncaughtExceptionHandler.class, boolean.class)
+                .newInstance(parallelism, poolClass.getField("defaultForkJoinWorkerThreadFactory").get(null), null,
+                             true);
+    }
+
+    private static final class ForkJoinPoolReference
+    {
+        private final ExecutorService _pool;
+        /** the number of queues using the pool; guarded by the map of pools */
+        private int _references;
+
+        private ForkJoinPoolReference(ExecutorService pool)
+        {
+            _pool = pool;
+        }
+    }
+
+    static final class DeliveryExecutor implements Executor
+    {
+        private final Executor _executor;
+        /** the executor to shut down when the queue stops, if it belongs to the queue */
+        private final ExecutorService _ownedExecutor;
+        /** true for the shared pool, which is reference counted by ReferenceCountingExecutorService */
+        private final boolean _shared;
+        /** the virtual host whose fork-join pool this is, which is reference counted here, or null */
+        private final VirtualHost _forkJoinHost;
+
+        private DeliveryExecutor(Executor executor, ExecutorService ownedExecutor, boolean shared,
+                                 VirtualHost forkJoinHost)
+        {
+            _executor = executor;
+            _ownedExecutor = ownedExecutor;
+            _shared = shared;
+            _forkJoinHost = forkJoinHost;
+        }
+
+        public void execute(Runnable command)
+        {
+            _executor.execute(command);
+        }
+
+        /**
+         * Called once, when the queue stops.
+         */
+        void release()
+        {
+            if(_ownedExecutor != null)
+            {
+                _ownedExecutor.shutdown();
+            }
+            else if(_shared)
+            {
+                ReferenceCountingExecutorService.getInstance().releaseExecutorService();
+            }
+            else if(_forkJoinHost != null)
+            {
+                releaseForkJoinPool(_forkJoinHost);
+            }
+        }
+    }
+}
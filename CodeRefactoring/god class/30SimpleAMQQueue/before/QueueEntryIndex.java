@@ -0,0 +1,411 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.qpid.server.queue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Index over the entries of a queue used by the management lookups, so that they do not need to walk the whole
+ * entry list.
+ *
+ * For a queue which delivers in arrival order the index is built lazily: each lookup first indexes the entries
+ * added to the list since the previous one, so enqueueing costs nothing until the index is used.  Indexed entries
+ * are numbered in queue order and kept in fixed size blocks of slots.  Each segment of blocks keeps a Fenwick tree
+ * of the live entries per block, so finding the n-th entry skips to its block in logarithmic time and then walks
+ * at most that block.  Removals only clear a slot and update the counts, and never wait for a lookup.
+ *
+ * For other queues entries are indexed by message id as they are added, and lookups by position are not supported.
+ */
+class QueueEntryIndex
+{
+    private static final int BLOCK_SHIFT = 10;
+    private static final int BLOCK_SIZE = 1 << BLOCK_SHIFT;
+    private static final int SEGMENT_SHIFT = 10;
+    private static final int SEGMENT_BLOCKS = 1 << SEGMENT_SHIFT;
+
+    private static final Segments NO_SEGMENTS = new Segments(0L, new Segment[0]);
+
+    private final QueueEntryList<QueueEntry> _entries;
+    private final boolean _arrivalOrdered;
+
+    /** for queues in arrival order, the sequence number of each indexed entry by message id */
+    private final ConcurrentHashMap<Long, Long> _sequences = new ConcurrentHashMap<Long, Long>();
+
+    /** for other queues, each entry by message id */
+    private final ConcurrentHashMap<Long, QueueEntry> _byMessageId = new ConcurrentHashMap<Long, QueueEntry>();
+
+    private volatile Segments _segments = NO_SEGMENTS;
+
+    // guarded by this
+    private QueueEntry _lastIndexed;
+    private long _nextSequence;
+
+    QueueEntryIndex(QueueEntryList<QueueEntry> entries, boolean arrivalOrdered)
+    {
+        _entries = entries;
+        _arrivalOrdered = arrivalOrdered;
+        _lastIndexed = entries.getHead();
+    }
+
+    void add(QueueEntry entry)
+    {
+        if(!_arrivalOrdered)
+        {
+            _byMessageId.put(entry.getMessage().getMessageNumber(), entry);
+        }
+    }
+
+    void remove(QueueEntry entry)
+    {
+        if(entry.getMessage() == null)
+        {
+            return;
+        }
+        long messageId = entry.getMessage().getMessageNumber();
+        if(!_arrivalOrdered)
+        {
+            _byMessageId.remove(messageId, entry);
+            return;
+        }
+        Long sequence = _sequences.get(messageId);
+        if(sequence != null && slot(sequence) == entry)
+        {
+            unindex(messageId, sequence, entry);
+        }
+    }
+
+    synchronized void clear()
+    {
+        _byMessageId.clear();
+        _sequences.clear();
+        _segments = NO_SEGMENTS;
+        QueueEntry entry;
+        while((entry = _entries.next(_lastIndexed)) != null)
+        {
+            _lastIndexed = entry;
+        }
+    }
+
+    QueueEntry get(long messageId)
+    {
+        QueueEntry entry;
+        if(_arrivalOrdered)
+        {
+            catchUp();
+            Long sequence = _sequences.get(messageId);
+            entry = sequence == null ? null : slot(sequence);
+        }
+        else
+        {
+            entry = _byMessageId.get(messageId);
+        }
+        return entry == null || entry.isDispensed() ? null : entry;
+    }
+
+    /**
+     * @return the live entries whose message ids fall in the given (inclusive) range, in queue order
+     */
+    List<QueueEntry> getByMessageIdRange(long fromMessageId, long toMessageId)
+    {
+        List<QueueEntry> entries = new ArrayList<QueueEntry>();
+        if(toMessageId < fromMessageId)
+        {
+            return entries;
+        }
+
+        if(_arrivalOrdered)
+        {
+            catchUp();
+        }
+        int size = _arrivalOrdered ? _sequences.size() : _byMessageId.size();
+
+        // the span is negative if it does not fit in a long
+        long span = toMessageId - fromMessageId;
+        if(span >= 0L && span < size)
+        {
+            for(long id = fromMessageId; ; id++)
+            {
+                QueueEntry entry = get(id);
+                if(entry != null)
+                {
+                    entries.add(entry);
+                }
+                if(id == toMessageId)
+                {
+                    break;
+                }
+            }
+        }
+        else if(_arrivalOrdered)
+        {
+            for(Map.Entry<Long, Long> indexed : _sequences.entrySet())
+            {
+                long id = indexed.getKey();
+                if(id >= fromMessageId && id <= toMessageId)
+                {
+                    QueueEntry entry = slot(indexed.getValue());
+                    if(entry != null && !entry.isDispensed())
+                    {
+                        entries.add(entry);
+                    }
+                }
+            }
+        }
+        else
+        {
+            for(Map.Entry<Long, QueueEntry> indexed : _byMessageId.entrySet())
+            {
+                long id = indexed.getKey();
+                if(id >= fromMessageId && id <= toMessageId && !indexed.getValue().isDispensed())
+                {
+                    entries.add(indexed.getValue());
+                }
+            }
+        }
+        Collections.sort(entries);
+        return entries;
+    }
+
+    /**
+     * Returns the live entries at the given queue positions.  Positions start from 1; both bounds are inclusive.
+     * Only supported for queues in arrival order.
+     */
+    synchronized List<QueueEntry> getByPosition(long fromPosition, long toPosition)
+    {
+        if(!_arrivalOrdered)
+        {
+            throw new UnsupportedOperationException("Queue positions are only indexed for queues in arrival order");
+        }
+
+        List<QueueEntry> entries = new ArrayList<QueueEntry>();
+        long position = Math.max(fromPosition, 1L);
+        if(toPosition < position)
+        {
+            return entries;
+        }
+
+        catchUp();
+
+        // skip whole segments, then whole blocks, which end before the first requested position
+        Segments segments = _segments;
+        long skipped = 0L;
+        int segmentIndex = 0;
+        int block = -1;
+        for(; segmentIndex < segments._array.length; segmentIndex++)
+        {
+            Segment segment = segments._array[segmentIndex];
+            int live = segment._live.get();
+            if(skipped + live >= position)
+            {
+                block = segment.findBlock((int) (position - skipped));
+                skipped += segment.countBefore(block);
+                break;
+            }
+            skipped += live;
+        }
+        if(block < 0)
+        {
+            return entries;
+        }
+
+        long sequence = ((segments._first + segmentIndex) << (SEGMENT_SHIFT + BLOCK_SHIFT))
+                        + ((long) block << BLOCK_SHIFT);
+        for(; sequence < _nextSequence; sequence++)
+        {
+            QueueEntry entry = slot(sequence);
+            if(entry == null)
+            {
+                continue;
+            }
+            if(entry.isDispensed())
+            {
+                // dispensed but not yet removed; it no longer has a position
+                remove(entry);
+                continue;
+            }
+            skipped++;
+            if(skipped > toPosition)
+            {
+                break;
+            }
+            if(skipped >= position)
+            {
+                entries.add(entry);
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * Indexes the entries added to the list since the last lookup.
+     */
+    private synchronized void catchUp()
+    {
+        QueueEntry entry;
+        while((entry = _entries.next(_lastIndexed)) != null)
+        {
+            _lastIndexed = entry;
+            if(!entry.isDispensed() && entry.getMessage() != null)
+            {
+                index(entry);
+            }
+        }
+    }
+
+    // called holding the lock
+    private void index(QueueEntry entry)
+    {
+        long sequence = _nextSequence++;
+        long segmentNumber = sequence >>> (SEGMENT_SHIFT + BLOCK_SHIFT);
+        Segments segments = _segments;
+        if(segments._array.length == 0 || segmentNumber >= segments._first + segments._array.length)
+        {
+            segments = addSegment(segments, segmentNumber);
+        }
+        Segment segment = segments._array[(int) (segmentNumber - segments._first)];
+        int block = (int) (sequence >>> BLOCK_SHIFT) & (SEGMENT_BLOCKS - 1);
+        if(segment._blocks.get(block) == null)
+        {
+            segment._blocks.set(block, new AtomicReferenceArray<QueueEntry>(BLOCK_SIZE));
+        }
+        segment._blocks.get(block).set((int) sequence & (BLOCK_SIZE - 1), entry);
+        segment.adjust(block, 1);
+
+        long messageId = entry.getMessage().getMessageNumber();
+        _sequences.put(messageId, sequence);
+
+        // a dequeue which ran before the entry was published here would not have found it
+        if(entry.isDispensed())
+        {
+            unindex(messageId, sequence, entry);
+        }
+    }
+
+    // called holding the lock; also drops the segments at the head which have no live entries left
+    private Segments addSegment(Segments segments, long segmentNumber)
+    {
+        int drop = 0;
+        while(drop < segments._array.length && segments._array[drop]._live.get() == 0)
+        {
+            drop++;
+        }
+        int kept = segments._array.length - drop;
+        Segment[] array = new Segment[kept + 1];
+        System.arraycopy(segments._array, drop, array, 0, kept);
+        array[kept] = new Segment();
+        Segments updated = new Segments(segmentNumber - kept, array);
+        _segments = updated;
+        return updated;
+    }
+
+    private QueueEntry slot(long sequence)
+    {
+        Segments segments = _segments;
+        long index = (sequence >>> (SEGMENT_SHIFT + BLOCK_SHIFT)) - segments._first;
+        if(index < 0L || index >= segments._array.length)
+        {
+            return null;
+        }
+        AtomicReferenceArray<QueueEntry> slots =
+                segments._array[(int) index]._blocks.get((int) (sequence >>> BLOCK_SHIFT) & (SEGMENT_BLOCKS - 1));
+        return slots == null ? null : slots.get((int) sequence & (BLOCK_SIZE - 1));
+    }
+
+    private void unindex(long messageId, long sequence, QueueEntry entry)
+    {
+        // whichever caller removes the mapping updates the counts
+        if(!_sequences.remove(messageId, sequence))
+        {
+            return;
+        }
+        Segments segments = _segments;
+        Segment segment = segments._array[(int) ((sequence >>> (SEGMENT_SHIFT + BLOCK_SHIFT)) - segments._first)];
+        int block = (int) (sequence >>> BLOCK_SHIFT) & (SEGMENT_BLOCKS - 1);
+        segment._blocks.get(block).compareAndSet((int) sequence & (BLOCK_SIZE - 1), entry, null);
+        segment.adjust(block, -1);
+    }
+
+    private static final class Segments
+    {
+        private final long _first;
+        private final Segment[] _array;
+
+        private Segments(long first, Segment[] array)
+        {
+            _first = first;
+            _array = array;
+        }
+    }
+
+    private static final class Segment
+    {
+        private final AtomicReferenceArray<AtomicReferenceArray<QueueEntry>> _blocks =
+                new AtomicReferenceArray<AtomicReferenceArray<QueueEntry>>(SEGMENT_BLOCKS);
+        /** Fenwick tree of the live entries in each block, indexed from 1 */
+        private final AtomicIntegerArray _tree = new AtomicIntegerArray(SEGMENT_BLOCKS + 1);
+        private final AtomicInteger _live = new AtomicInteger();
+
+        void adjust(int block, int delta)
+        {
+            for(int i = block + 1; i <= SEGMENT_BLOCKS; i += i & -i)
+            {
+                _tree.addAndGet(i, delta);
+            }
+            _live.addAndGet(delta);
+        }
+
+        /** @return the number of live entries in the blocks before the given one */
+        int countBefore(int block)
+        {
+            int count = 0;
+            for(int i = block; i > 0; i -= i & -i)
+            {
+                count += _tree.get(i);
+            }
+            return count;
+        }
+
+        /** @return the block holding the live entry of the given rank within the segment, counting from 1 */
+        int findBlock(int rank)
+        {
+            int index = 0;
+            for(int step = SEGMENT_BLOCKS; step > 0; step >>= 1)
+            {
+                int next = index + step;
+                if(next <= SEGMENT_BLOCKS)
+                {
+                    int count = _tree.get(next);
+                    if(count < rank)
+                    {
+                        index = next;
+                        rank -= count;
+                    }
+                }
+            }
+            return Math.min(index, SEGMENT_BLOCKS - 1);
+        }
+    }
+}
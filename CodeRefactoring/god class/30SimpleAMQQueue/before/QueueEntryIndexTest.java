@@ -0,0 +1,167 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.qpid.server.queue;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.apache.qpid.server.message.ServerMessage;
+
+public class QueueEntryIndexTest extends TestCase
+{
+    private QueueEntryList<QueueEntry> _list;
+    private QueueEntry _tail;
+    private List<QueueEntry> _added;
+
+    @Override
+    @SuppressWarnings("unchecked")
+    protected void setUp() throws Exception
+    {
+        super.setUp();
+        _list = mock(QueueEntryList.class);
+        _tail = mock(QueueEntry.class);
+        when(_list.getHead()).thenReturn(_tail);
+        _added = new ArrayList<QueueEntry>();
+    }
+
+    private QueueEntry append(long messageId)
+    {
+        ServerMessage message = mock(ServerMessage.class);
+        when(message.getMessageNumber()).thenReturn(messageId);
+        QueueEntry entry = mock(QueueEntry.class);
+        when(entry.getMessage()).thenReturn(message);
+        when(_list.next(_tail)).thenReturn(entry);
+        _tail = entry;
+        _added.add(entry);
+        return entry;
+    }
+
+    private void dispense(QueueEntry entry)
+    {
+        when(entry.isDispensed()).thenReturn(true);
+    }
+
+    public void testLookupByMessageIdIndexesEntriesAddedSinceLastLookup()
+    {
+        QueueEntryIndex index = new QueueEntryIndex(_list, true);
+        QueueEntry first = append(10L);
+        assertSame(first, index.get(10L));
+
+        QueueEntry second = append(11L);
+        assertSame(second, index.get(11L));
+        assertNull(index.get(12L));
+    }
+
+    public void testPositionsSkipRemovedEntries()
+    {
+        QueueEntryIndex index = new QueueEntryIndex(_list, true);
+        for(long id = 0; id < 5000; id++)
+        {
+            append(id);
+        }
+        assertSame(_added.get(2999), index.getByPosition(3000L, 3000L).get(0));
+
+        for(int i = 0; i < 2000; i++)
+        {
+            dispense(_added.get(i));
+            index.remove(_added.get(i));
+        }
+
+        List<QueueEntry> entries = index.getByPosition(1L, 3L);
+        assertEquals(3, entries.size());
+        assertSame(_added.get(2000), entries.get(0));
+        assertSame(_added.get(2002), entries.get(2));
+        assertSame(_added.get(4999), index.getByPosition(3000L, 3000L).get(0));
+        assertTrue(index.getByPosition(3001L, 4000L).isEmpty());
+    }
+
+    public void testDispensedEntriesHaveNoPosition()
+    {
+        QueueEntryIndex index = new QueueEntryIndex(_list, true);
+        QueueEntry first = append(1L);
+        QueueEntry second = append(2L);
+        QueueEntry third = append(3L);
+        assertEquals(3, index.getByPosition(1L, 3L).size());
+
+        // dispensed, but the queue has not yet removed it from the index
+        dispense(second);
+
+        List<QueueEntry> entries = index.getByPosition(1L, 2L);
+        assertEquals(2, entries.size());
+        assertSame(first, entries.get(0));
+        assertSame(third, entries.get(1));
+        assertNull(index.get(2L));
+    }
+
+    public void testEntriesDispensedBeforeIndexingAreSkipped()
+    {
+        QueueEntryIndex index = new QueueEntryIndex(_list, true);
+        dispense(append(1L));
+        QueueEntry live = append(2L);
+
+        List<QueueEntry> entries = index.getByPosition(1L, 10L);
+        assertEquals(1, entries.size());
+        assertSame(live, entries.get(0));
+    }
+
+    public void testMessageIdRangeAtTheLimitsOfLong()
+    {
+        QueueEntryIndex index = new QueueEntryIndex(_list, true);
+        QueueEntry low = append(Long.MIN_VALUE);
+        QueueEntry high = append(Long.MAX_VALUE);
+
+        List<QueueEntry> entries = index.getByMessageIdRange(Long.MIN_VALUE, Long.MAX_VALUE);
+        assertEquals(2, entries.size());
+        assertTrue(entries.contains(low));
+        assertTrue(entries.contains(high));
+
+        entries = index.getByMessageIdRange(Long.MAX_VALUE - 1L, Long.MAX_VALUE);
+        assertEquals(1, entries.size());
+        assertSame(high, entries.get(0));
+    }
+
+    public void testUnorderedQueueIndexesOnAdd()
+    {
+        QueueEntryIndex index = new QueueEntryIndex(_list, false);
+        QueueEntry entry = append(7L);
+        assertNull(index.get(7L));
+
+        index.add(entry);
+        assertSame(entry, index.get(7L));
+
+        index.remove(entry);
+        assertNull(index.get(7L));
+    }
+
+    public void testClearForgetsEntries()
+    {
+        QueueEntryIndex index = new QueueEntryIndex(_list, true);
+        append(1L);
+        append(2L);
+        index.clear();
+
+        assertNull(index.get(1L));
+        assertTrue(index.getByPosition(1L, 2L).isEmpty());
+    }
+}
@@ -0,0 +1,285 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.qpid.server.queue;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import org.apache.qpid.server.message.ServerMessage;
+
+/**
+ * Keeps the heap held by the message content of a queue below a watermark when consumers fall behind.
+ *
+ * Once the content resident for the queue passes the watermark, each new entry beyond the read-ahead window has its
+ * content flowed to disk as it arrives, so the entries nearest the head of the queue stay resident and the newest
+ * are paged.  As the delivery pointer moves through the queue the next window of entries ahead of it is read back in
+ * a half window at a time.  The reads are made on the pager's own thread, so that neither the delivering thread nor
+ * the queue's delivery pool waits on the store.
+ *
+ * Only messages whose stored form implements {@link PageableStoredMessage} are paged; the rest always count as
+ * resident.  The pager records each entry it paged out, with its size, until the entry is read back in or leaves the
+ * queue.
+ */
+class QueueEntryPager
+{
+    private static final Logger _logger = Logger.getLogger(QueueEntryPager.class);
+
+    private final SimpleAMQQueue _queue;
+    private final QueueEntryList<QueueEntry> _entries;
+
+    /** bytes of resident content above which new entries are paged; 0 disables paging */
+    private volatile long _watermark;
+    /** entries ahead of the delivery pointer which are kept resident */
+    private volatile int _readAhead;
+
+    /** the entries whose content this pager flowed to disk, and the size of each */
+    private final ConcurrentHashMap<QueueEntry, Long> _paged = new ConcurrentHashMap<QueueEntry, Long>();
+    private final AtomicLong _pagedBytes = new AtomicLong();
+    private final AtomicLong _pageOuts = new AtomicLong();
+    private final AtomicLong _pageIns = new AtomicLong();
+
+    private final AtomicBoolean _readingAhead = new AtomicBoolean(false);
+    /** once the delivery pointer reaches this entry the next window is read in */
+    private volatile QueueEntry _refillPoint;
+
+    /** created when an entry is first paged out */
+    private ExecutorService _readAheadExecutor;
+    private boolean _closed;
+
+    QueueEntryPager(SimpleAMQQueue queue, QueueEntryList<QueueEntry> entries, long watermark, int readAhead)
+    {
+        _queue = queue;
+        _entries = entries;
+        _watermark = watermark;
+        _readAhead = readAhead;
+    }
+
+    void setWatermark(long watermark)
+    {
+        _watermark = watermark;
+    }
+
+    long getWatermark()
+    {
+        return _watermark;
+    }
+
+    void setReadAhead(int readAhead)
+    {
+        _readAhead = readAhead;
+    }
+
+    int getReadAhead()
+    {
+        return _readAhead;
+    }
+
+    /**
+     * @return the bytes of content on the queue which are held on the heap
+     */
+    long getResidentBytes()
+    {
+        return Math.max(_queue.getQueueDepth() - _pagedBytes.get(), 0L);
+    }
+
+    long getPagedBytes()
+    {
+        return _pagedBytes.get();
+    }
+
+    long getPagedCount()
+    {
+        return _paged.size();
+    }
+
+    long getPageOutCount()
+    {
+        return _pageOuts.get();
+    }
+
+    long getPageInCount()
+    {
+        return _pageIns.get();
+    }
+
+    void entryAdded(QueueEntry entry)
+    {
+        final long watermark = _watermark;
+        if(watermark != 0L
+           && getResidentBytes() > watermark
+           && _queue.getMessageCount() > _readAhead)
+        {
+            PageableStoredMessage stored = getPageable(entry);
+            if(stored != null && stored.flowToDisk())
+            {
+                final long size = entry.getSize();
+                _paged.put(entry, size);
+                _pagedBytes.addAndGet(size);
+                _pageOuts.incrementAndGet();
+            }
+        }
+    }
+
+    void entryRemoved(QueueEntry entry)
+    {
+        if(!_paged.isEmpty())
+        {
+            Long size = _paged.remove(entry);
+            if(size != null)
+            {
+                _pagedBytes.addAndGet(-size);
+            }
+        }
+    }
+
+    /**
+     * Called with the next entry a subscription will be offered.  Schedules the next window to be read in if the
+     * delivery pointer has reached the refill point; never waits for the reads.
+     */
+    void readAhead(final QueueEntry next)
+    {
+        if(_paged.isEmpty())
+        {
+            return;
+        }
+
+        QueueEntry refillPoint = _refillPoint;
+        if((refillPoint == null || next.compareTo(refillPoint) >= 0) && _readingAhead.compareAndSet(false, true))
+        {
+            ExecutorService executor = getReadAheadExecutor();
+            try
+            {
+                if(executor == null)
+                {
+                    _readingAhead.set(false);
+                    return;
+                }
+                executor.execute(new Runnable()
+                {
+                    public void run()
+                    {
+                        try
+                        {
+                            readWindow(next);
+                        }
+                        finally
+                        {
+                            _readingAhead.set(false);
+                        }
+                    }
+                });
+            }
+            catch (RejectedExecutionException e)
+            {
+                // the queue is stopping
+                _readingAhead.set(false);
+            }
+        }
+    }
+
+    /**
+     * Stops the read ahead thread.  Called when the queue stops.
+     */
+    synchronized void close()
+    {
+        _closed = true;
+        if(_readAheadExecutor != null)
+        {
+            _readAheadExecutor.shutdown();
+        }
+    }
+
+    private synchronized ExecutorService getReadAheadExecutor()
+    {
+        if(_readAheadExecutor == null && !_closed)
+        {
+            final String name = "QueueEntryPager-" + _queue.getNameShortString();
+            _readAheadExecutor = Executors.newSingleThreadExecutor(new ThreadFactory()
+            {
+                public Thread newThread(Runnable runnable)
+                {
+                    Thread thread = new Thread(runnable, name);
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return _closed ? null : _readAheadExecutor;
+    }
+
+    private void readWindow(QueueEntry next)
+    {
+        final int window = _readAhead;
+        QueueEntry entry = next;
+        QueueEntry newRefillPoint = null;
+        for(int i = 0; entry != null && i < window && !_paged.isEmpty(); i++)
+        {
+            if(i == window / 2)
+            {
+                newRefillPoint = entry;
+            }
+            pageIn(entry);
+            entry = _entries.next(entry);
+        }
+        _refillPoint = newRefillPoint;
+    }
+
+    private void pageIn(QueueEntry entry)
+    {
+        if(!entry.isDispensed() && _paged.containsKey(entry))
+        {
+            PageableStoredMessage stored = getPageable(entry);
+            try
+            {
+                if(stored != null && stored.reload())
+                {
+                    _pageIns.incrementAndGet();
+                }
+            }
+            catch (RuntimeException e)
+            {
+                // the delivering thread reloads the content itself when it reads it
+                _logger.warn("Failed to read ahead message content for queue " + _queue.getNameShortString(), e);
+                return;
+            }
+            Long size = _paged.remove(entry);
+            if(size != null)
+            {
+                _pagedBytes.addAndGet(-size);
+            }
+        }
+    }
+
+    private static PageableStoredMessage getPageable(QueueEntry entry)
+    {
+        ServerMessage message = entry.getMessage();
+        if(message != null && message.getStoredMessage() instanceof PageableStoredMessage)
+        {
+            return (PageableStoredMessage) message.getStoredMessage();
+        }
+        return null;
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.qpid.server.queue;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.apache.qpid.framing.AMQShortString;
+import org.apache.qpid.server.message.ServerMessage;
+import org.apache.qpid.server.store.StoredMessage;
+
+public class QueueEntryPagerTest extends TestCase
+{
+    private static final long SIZE = 100L;
+
+    private SimpleAMQQueue _queue;
+    private QueueEntryList<QueueEntry> _list;
+    private QueueEntry _tail;
+    private List<QueueEntry> _live;
+    private QueueEntryPager _pager;
+
+    @Override
+    @SuppressWarnings("unchecked")
+    protected void setUp() throws Exception
+    {
+        super.setUp();
+        _queue = mock(SimpleAMQQueue.class);
+        when(_queue.getNameShortString()).thenReturn(new AMQShortString("test"));
+        _list = mock(QueueEntryList.class);
+        _tail = mock(QueueEntry.class);
+        _live = new ArrayList<QueueEntry>();
+        // paged once more than 10 messages (1000 bytes) are resident, keeping 4 ahead of the delivery pointer
+        _pager = new QueueEntryPager(_queue, _list, 10L * SIZE, 4);
+    }
+
+    @Override
+    protected void tearDown() throws Exception
+    {
+        _pager.close();
+        super.tearDown();
+    }
+
+    private QueueEntry enqueue()
+    {
+        ServerMessage message = mock(ServerMessage.class);
+        StoredMessage<?> stored = mock(StoredMessage.class, withSettings().extraInterfaces(PageableStoredMessage.class));
+        when(((PageableStoredMessage) stored).flowToDisk()).thenReturn(true);
+        when(((PageableStoredMessage) stored).reload()).thenReturn(true);
+        when(message.getStoredMessage()).thenReturn((StoredMessage) stored);
+        QueueEntry entry = mock(QueueEntry.class);
+        when(entry.getMessage()).thenReturn(message);
+        when(entry.getSize()).thenReturn(SIZE);
+        when(_list.next(_tail)).thenReturn(entry);
+        _tail = entry;
+
+        _live.add(entry);
+        updateDepth();
+        _pager.entryAdded(entry);
+        return entry;
+    }
+
+    private void dequeue(QueueEntry entry)
+    {
+        when(entry.isDispensed()).thenReturn(true);
+        _live.remove(entry);
+        updateDepth();
+        _pager.entryRemoved(entry);
+    }
+
+    private void updateDepth()
+    {
+        when(_queue.getQueueDepth()).thenReturn(_live.size() * SIZE);
+        when(_queue.getMessageCount()).thenReturn(_live.size());
+    }
+
+    public void testEntriesArePagedOutOnlyAboveTheWatermark()
+    {
+        for(int i = 0; i < 10; i++)
+        {
+            enqueue();
+        }
+        assertEquals(0L, _pager.getPagedCount());
+
+        enqueue();
+        enqueue();
+        assertEquals(2L, _pager.getPagedCount());
+        assertEquals(2L * SIZE, _pager.getPagedBytes());
+        assertEquals(10L * SIZE, _pager.getResidentBytes());
+    }
+
+    public void testRemovingAPagedEntryReleasesItsBytes()
+    {
+        for(int i = 0; i < 10; i++)
+        {
+            enqueue();
+        }
+        QueueEntry paged = enqueue();
+        assertEquals(SIZE, _pager.getPagedBytes());
+
+        dequeue(paged);
+        assertEquals(0L, _pager.getPagedCount());
+        assertEquals(0L, _pager.getPagedBytes());
+
+        // removing it again, or removing a resident entry, changes nothing
+        _pager.entryRemoved(paged);
+        dequeue(_live.get(0));
+        assertEquals(0L, _pager.getPagedBytes());
+    }
+
+    public void testReadAheadReloadsTheWindowOffTheCallingThread() throws Exception
+    {
+        for(int i = 0; i < 20; i++)
+        {
+            enqueue();
+        }
+        final long paged = _pager.getPagedCount();
+        assertTrue(paged > 0L);
+
+        // the delivery pointer reaches the first paged entry
+        QueueEntry first = _live.get(_live.size() - (int) paged);
+        _pager.readAhead(first);
+
+        long deadline = System.currentTimeMillis() + 10000L;
+        while(_pager.getPageInCount() < Math.min(paged, 4L) && System.currentTimeMillis() < deadline)
+        {
+            Thread.sleep(10L);
+        }
+        assertEquals(Math.min(paged, 4L), _pager.getPageInCount());
+        assertEquals(paged - _pager.getPageInCount(), _pager.getPagedCount());
+        assertEquals(_pager.getPagedCount() * SIZE, _pager.getPagedBytes());
+    }
+
+    public void testAccountingStaysExactUnderChurn()
+    {
+        Random random = new Random(42L);
+        for(int round = 0; round < 2000; round++)
+        {
+            if(_live.isEmpty() || random.nextInt(3) != 0)
+            {
+                enqueue();
+            }
+            else
+            {
+                dequeue(_live.get(random.nextInt(_live.size())));
+            }
+            assertTrue(_pager.getPagedBytes() >= 0L);
+        }
+
+        while(!_live.isEmpty())
+        {
+            dequeue(_live.get(_live.size() - 1));
+        }
+        assertTrue(_pager.getPageOutCount() > 0L);
+        assertEquals(0L, _pager.getPagedCount());
+        assertEquals(0L, _pager.getPagedBytes());
+    }
+}
@@ -0,0 +1,278 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.qpid.server.queue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import org.apache.qpid.server.logging.messages.QueueMessages;
+import org.apache.qpid.server.protocol.AMQSessionModel;
+
+/**
+ * Blocks and releases the producing channels of a queue with a capacity.
+ *
+ * Producers are blocked once the queue depth passes the capacity and are only released, all together, when the depth
+ * has fallen to the flow resume capacity, so that channels do not flap between blocked and unblocked around a single
+ * threshold.  Where the two thresholds are closer than the configured minimum hysteresis, the band is widened
+ * downwards.  Optionally, producers are also blocked early once the depth is inside the band and, at the current rate
+ * of growth, would pass the capacity within the configured horizon.
+ *
+ * Blocking a channel and releasing the blocked channels are done under one lock, and each re-checks the depth under
+ * it, so a channel can never be blocked after the release that should have freed it.  Producers only take the lock
+ * once the queue is over its threshold.
+ *
+ * The time each producer spends blocked is recorded so that capacities can be sized from observed data.
+ */
+class QueueFlowController
+{
+    private static final Logger _logger = Logger.getLogger(QueueFlowController.class);
+
+    private static final long RATE_SAMPLE_INTERVAL = TimeUnit.MILLISECONDS.toNanos(100L);
+
+    private final SimpleAMQQueue _queue;
+
+    private final Object _blockLock = new Object();
+    /** true while producers are being blocked; only changed holding the block lock */
+    private volatile boolean _blocking;
+    /** true if the capacity itself was passed while blocking, so the queue was logged as overfull */
+    private boolean _overfullLogged;
+
+    /** blocked channels and the time (System.nanoTime()) at which each was blocked */
+    private final ConcurrentHashMap<AMQSessionModel, Long> _blockedChannels = new ConcurrentHashMap<AMQSessionModel, Long>();
+
+    /** percentage of the capacity which the flow resume capacity is held below */
+    private volatile int _minimumHysteresis;
+    /** milliseconds of growth at the current rate after which producers are blocked early; 0 disables */
+    private volatile long _earlyBlockHorizon;
+
+    /** the producer which moves this forward takes the next growth sample */
+    private final AtomicLong _lastSampleTime = new AtomicLong(System.nanoTime());
+    private volatile long _lastSampleDepth;
+    /** smoothed growth of the queue depth, in bytes per millisecond */
+    private volatile double _growthRate;
+
+    private final AtomicLong _totalBlockedTime = new AtomicLong();
+    private final LatencyHistogram _blockedTimes = new LatencyHistogram();
+    private final Map<AMQSessionModel, Long> _blockedTimeByChannel = new WeakHashMap<AMQSessionModel, Long>();
+
+    QueueFlowController(SimpleAMQQueue queue, int minimumHysteresis, long earlyBlockHorizon)
+    {
+        _queue = queue;
+        setMinimumHysteresis(minimumHysteresis);
+        setEarlyBlockHorizon(earlyBlockHorizon);
+    }
+
+    boolean isOverfull()
+    {
+        return _blocking;
+    }
+
+    void setMinimumHysteresis(int percent)
+    {
+        _minimumHysteresis = Math.max(Math.min(percent, 100), 0);
+    }
+
+    int getMinimumHysteresis()
+    {
+        return _minimumHysteresis;
+    }
+
+    void setEarlyBlockHorizon(long millis)
+    {
+        _earlyBlockHorizon = Math.max(millis, 0L);
+    }
+
+    long getEarlyBlockHorizon()
+    {
+        return _earlyBlockHorizon;
+    }
+
+    /**
+     * @return the depth at or below which blocked producers are released
+     */
+    long getResumeThreshold()
+    {
+        final long capacity = _queue.getCapacity();
+        final long widest = capacity - (capacity * _minimumHysteresis) / 100L;
+        return Math.min(_queue.getFlowResumeCapacity(), widest);
+    }
+
+    /**
+     * Called when the channel has enqueued to the queue.
+     */
+    void checkCapacity(AMQSessionModel channel)
+    {
+        final long capacity = _queue.getCapacity();
+        if(capacity != 0L)
+        {
+            final long depth = _queue.getQueueDepth();
+            sampleGrowth(depth);
+
+            if(shouldBlock(depth, capacity))
+            {
+                synchronized (_blockLock)
+                {
+                    // the blocked channels may have been released since the depth was read
+                    final long currentDepth = _queue.getQueueDepth();
+                    if(shouldBlock(currentDepth, capacity))
+                    {
+                        if(currentDepth > capacity && !_overfullLogged)
+                        {
+                            //Overfull log message
+                            _overfullLogged = true;
+                            _queue.getLogActor().message(_queue.getLogSubject(),
+                                                         QueueMessages.OVERFULL(currentDepth, capacity));
+                        }
+                        else if(!_blocking && _logger.isDebugEnabled())
+                        {
+                            _logger.debug("Blocking producers to queue " + _queue.getNameShortString()
+                                          + " early at depth " + currentDepth + " of capacity " + capacity);
+                        }
+                        _blocking = true;
+
+                        if(!_blockedChannels.containsKey(channel))
+                        {
+                            channel.block(_queue);
+                            _blockedChannels.put(channel, System.nanoTime());
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    private boolean shouldBlock(long depth, long capacity)
+    {
+        return depth > capacity || (depth > getResumeThreshold() && isGrowingPast(depth, capacity));
+    }
+
+    /**
+     * Called when the queue depth has decreased.
+     */
+    void checkCapacity()
+    {
+        if(_queue.getCapacity() != 0L)
+        {
+            final long resumeThreshold = getResumeThreshold();
+            if(_blocking && _queue.getQueueDepth() <= resumeThreshold)
+            {
+                synchronized (_blockLock)
+                {
+                    final long depth = _queue.getQueueDepth();
+                    if(_blocking && depth <= resumeThreshold)
+                    {
+                        _blocking = false;
+                        if(_overfullLogged)
+                        {
+                            _overfullLogged = false;
+                            //Underfull log message
+                            _queue.getLogActor().message(_queue.getLogSubject(),
+                                                         QueueMessages.UNDERFULL(depth, resumeThreshold));
+                        }
+
+                        List<AMQSessionModel> blocked = new ArrayList<AMQSessionModel>(_blockedChannels.keySet());
+                        for(AMQSessionModel channel : blocked)
+                        {
+                            release(channel);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    // called holding the block lock
+    private void release(AMQSessionModel channel)
+    {
+        Long blockedAt = _blockedChannels.remove(channel);
+        if(blockedAt != null)
+        {
+            channel.unblock(_queue);
+
+            final long blockedTime = System.nanoTime() - blockedAt;
+            _totalBlockedTime.addAndGet(blockedTime);
+            _blockedTimes.record(TimeUnit.NANOSECONDS.toMillis(blockedTime));
+            synchronized (_blockedTimeByChannel)
+            {
+                Long total = _blockedTimeByChannel.get(channel);
+                _blockedTimeByChannel.put(channel, total == null ? blockedTime : total + blockedTime);
+            }
+        }
+    }
+
+    private void sampleGrowth(long depth)
+    {
+        final long now = System.nanoTime();
+        final long lastSampleTime = _lastSampleTime.get();
+        final long elapsed = now - lastSampleTime;
+        // only the producer which wins the update takes the sample; the next one is not due for a whole interval
+        if(elapsed >= RATE_SAMPLE_INTERVAL && _lastSampleTime.compareAndSet(lastSampleTime, now))
+        {
+            double rate = (double) (depth - _lastSampleDepth) / TimeUnit.NANOSECONDS.toMillis(elapsed);
+            _growthRate = (_growthRate + rate) / 2.0;
+            _lastSampleDepth = depth;
+        }
+    }
+
+    private boolean isGrowingPast(long depth, long capacity)
+    {
+        final long horizon = _earlyBlockHorizon;
+        return horizon != 0L && depth + _growthRate * horizon > capacity;
+    }
+
+    int getBlockedChannelCount()
+    {
+        return _blockedChannels.size();
+    }
+
+    /**
+     * @return the total nanoseconds producers have spent blocked on the queue
+     */
+    long getTotalBlockedTime()
+    {
+        return _totalBlockedTime.get();
+    }
+
+    /**
+     * @return the nanoseconds the channel has spent blocked on the queue, not counting a block in progress
+     */
+    long getBlockedTime(AMQSessionModel channel)
+    {
+        synchronized (_blockedTimeByChannel)
+        {
+            Long total = _blockedTimeByChannel.get(channel);
+            return total == null ? 0L : total;
+        }
+    }
+
+    /**
+     * @return the lengths of completed blocks in milliseconds, bucketed as the queue's latency histograms
+     */
+    long[] getBlockedTimeHistogram()
+    {
+        return _blockedTimes.getCounts();
+    }
+}
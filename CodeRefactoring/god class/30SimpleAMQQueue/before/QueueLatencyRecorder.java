@@ -0,0 +1,163 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.qpid.server.queue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.qpid.server.message.ServerMessage;
+import org.apache.qpid.server.subscription.Subscription;
+
+/**
+ * Records, for a queue and for each of its subscriptions, how long messages wait to be delivered, how long they are
+ * held by the subscription before being acknowledged, and how long they are on the queue in all.
+ *
+ * Delivery latency and queue residency are measured from the arrival time the message was given on enqueue, and so
+ * have millisecond resolution.  Acknowledgement latency is measured from the delivery, whose time is kept on the
+ * entry, by a state change listener, until the entry leaves the acquired state.  All latencies are recorded in
+ * microseconds.
+ */
+class QueueLatencyRecorder
+{
+    private static final String SUBSCRIPTION_LATENCIES = "QUEUE_LATENCY_RECORDER_LATENCIES";
+
+    private final LatencyHistogram _residency = new LatencyHistogram();
+    private final LatencyHistogram _deliveryLatency = new LatencyHistogram();
+    private final LatencyHistogram _ackLatency = new LatencyHistogram();
+
+    void entryDelivered(Subscription sub, QueueEntry entry)
+    {
+        ServerMessage message = entry.getMessage();
+        if(message != null)
+        {
+            long latency = TimeUnit.MILLISECONDS.toMicros(System.currentTimeMillis() - message.getArrivalTime());
+            _deliveryLatency.record(latency);
+            getLatencies(sub)._deliveryLatency.record(latency);
+
+            if(sub.acquires())
+            {
+                entry.addStateChangeListener(new Delivery(getLatencies(sub), System.nanoTime()));
+            }
+        }
+    }
+
+    /**
+     * @param sub the subscription which acknowledged the entry, or null if it was removed from the queue otherwise
+     */
+    void entryDequeued(Subscription sub, QueueEntry entry)
+    {
+        ServerMessage message = entry.getMessage();
+        if(message != null)
+        {
+            long residency = TimeUnit.MILLISECONDS.toMicros(System.currentTimeMillis() - message.getArrivalTime());
+            _residency.record(residency);
+
+            if(sub != null)
+            {
+                getLatencies(sub)._residency.record(residency);
+            }
+        }
+    }
+
+    LatencyHistogram getResidency()
+    {
+        return _residency;
+    }
+
+    LatencyHistogram getDeliveryLatency()
+    {
+        return _deliveryLatency;
+    }
+
+    LatencyHistogram getAckLatency()
+    {
+        return _ackLatency;
+    }
+
+    SubscriptionLatencies getLatencies(Subscription sub)
+    {
+        SubscriptionLatencies latencies = (SubscriptionLatencies) sub.get(SUBSCRIPTION_LATENCIES);
+        if(latencies == null)
+        {
+            // the subscription only offers get and set, so two threads must not both attach new latencies
+            synchronized (this)
+            {
+                latencies = (SubscriptionLatencies) sub.get(SUBSCRIPTION_LATENCIES);
+                if(latencies == null)
+                {
+                    latencies = new SubscriptionLatencies();
+                    sub.set(SUBSCRIPTION_LATENCIES, latencies);
+                }
+            }
+        }
+        return latencies;
+    }
+
+    /**
+     * The time an entry was delivered to an acquiring subscription, kept on the entry until it leaves the acquired
+     * state.  Acknowledgement latency is recorded if it leaves by being dequeued; a release or rejection records
+     * nothing.
+     */
+    private final class Delivery implements QueueEntry.StateChangeListener
+    {
+        private final SubscriptionLatencies _latencies;
+        private final long _deliveredAt;
+
+        private Delivery(SubscriptionLatencies latencies, long deliveredAt)
+        {
+            _latencies = latencies;
+            _deliveredAt = deliveredAt;
+        }
+
+        public void stateChanged(QueueEntry entry, QueueEntry.State oldState, QueueEntry.State newState)
+        {
+            if(oldState == QueueEntry.State.ACQUIRED && newState != QueueEntry.State.ACQUIRED)
+            {
+                entry.removeStateChangeListener(this);
+                if(newState == QueueEntry.State.DEQUEUED)
+                {
+                    long ackLatency = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - _deliveredAt);
+                    _ackLatency.record(ackLatency);
+                    _latencies._ackLatency.record(ackLatency);
+                }
+            }
+        }
+    }
+
+    static final class SubscriptionLatencies
+    {
+        private final LatencyHistogram _residency = new LatencyHistogram();
+        private final LatencyHistogram _deliveryLatency = new LatencyHistogram();
+        private final LatencyHistogram _ackLatency = new LatencyHistogram();
+
+        LatencyHistogram getResidency()
+        {
+            return _residency;
+        }
+
+        LatencyHistogram getDeliveryLatency()
+        {
+            return _deliveryLatency;
+        }
+
+        LatencyHistogram getAckLatency()
+        {
+            return _ackLatency;
+        }
+    }
+}
@@ -27,19 +27,17 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
-import java.util.concurrent.ConcurrentSkipListSet;
 import java.util.concurrent.CopyOnWriteArrayList;
-import java.util.concurrent.Executor;
 import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.apache.log4j.Logger;
 import org.apache.qpid.AMQException;
 import org.apache.qpid.AMQSecurityException;
 import org.apache.qpid.framing.AMQShortString;
-import org.apache.qpid.pool.ReferenceCountingExecutorService;
 import org.apache.qpid.server.binding.Binding;
 import org.apache.qpid.server.configuration.ConfigStore;
 import org.apache.qpid.server.configuration.ConfiguredObject;
@@ -75,6 +73,16 @@ public class SimpleAMQQueue implements AMQQueue, Subscription.StateListener, Mes
     private static final String QPID_SHARED_MSG_GROUP = "qpid.shared_msg_group";
     private static final String QPID_DEFAULT_MESSAGE_GROUP = "qpid.default-message-group";
     private static final String QPID_NO_GROUP = "qpid.no-group";
+    private static final String QPID_ENQUEUE_SHARDS = "qpid.enqueue_shards";
+    private static final String QPID_ENQUEUE_SHARD_ORDERING = "qpid.enqueue_shard_ordering";
+    private static final String QPID_SHARD_ORDERING_ROUND_ROBIN = "round-robin";
+    private static final String QPID_EXPIRY_TICK = "qpid.expiry_tick";
+    private static final String QPID_FLOW_CONTROL_MIN_HYSTERESIS = "qpid.flow_control_min_hysteresis";
+    private static final String QPID_FLOW_CONTROL_HORIZON = "qpid.flow_control_horizon";
+    private static final String QPID_PAGING_WATERMARK = "qpid.paging_watermark";
+    private static final String QPID_PAGING_READ_AHEAD = "qpid.paging_read_ahead";
+    private static final String QPID_PRIORITY_LIST = "qpid.priority_list";
+    private static final String QPID_PRIORITY_LIST_BUCKETED = "bucketed";
     // TODO - should make this configurable at the vhost / broker level
     private static final int DEFAULT_MAX_GROUPS = 255;
 
@@ -101,6 +109,35 @@ public class SimpleAMQQueue implements AMQQueue, Subscription.StateListener, Mes
 
     private final QueueEntryList<QueueEntry> _entries;
 
+    /** null unless the queue was declared with more than one enqueue shard */
+    private final EnqueueShards _enqueueShards;
+
+    private final QueueEntryIndex _entryIndex;
+
+    private final MessageExpiryWheel _expiryWheel;
+
+    /** flows message content to disk once the content held for the queue passes a watermark */
+    private final QueueEntryPager _pager;
+
+    /** the first entry on the queue when last looked for; used to answer the oldest arrival time cheaply */
+    private volatile QueueEntry _oldestEntry;
+
+    /**
+     * true when entries are only ever added at the tail of the list.  Queue positions can only be served from the
+     * index, and the available entries hint only be used, when this holds.
+     */
+    private final boolean _arrivalOrdered;
+
+    /**
+     * Every entry up to and including this one was seen to be unavailable (acquired or deleted) by a competing
+     * subscription.  Acquiring subscriptions start their search here rather than from their own, possibly stale,
+     * last seen entry.
+     */
+    private final AtomicReference<QueueEntry> _availableHead;
+
+    /** the entry list, if it can find its first available entry directly; otherwise null */
+    private final BucketedPriorityQueueList _bucketedEntries;
+
     private final SubscriptionList _subscriptionList = new SubscriptionList();
 
     private volatile Subscription _exclusiveSubscriber;
@@ -113,24 +150,27 @@ public class SimpleAMQQueue implements AMQQueue, Subscription.StateListener, Mes
 
     private final AtomicInteger _activeSubscriberCount = new AtomicInteger();
 
-    private final AtomicLong _totalMessagesReceived = new AtomicLong();
-
-    private final AtomicLong _dequeueCount = new AtomicLong();
-    private final AtomicLong _dequeueSize = new AtomicLong();
-    private final AtomicLong _enqueueCount = new AtomicLong();
-    private final AtomicLong _enqueueSize = new AtomicLong();
-    private final AtomicLong _persistentMessageEnqueueSize = new AtomicLong();
-    private final AtomicLong _persistentMessageDequeueSize = new AtomicLong();
-    private final AtomicLong _persistentMessageEnqueueCount = new AtomicLong();
-    private final AtomicLong _persistentMessageDequeueCount = new AtomicLong();
+    // Statistics updated on every enqueue or dequeue are striped, so that producer and consumer threads do not
+    // contend on them
+    private final StripedCounter _totalMessagesReceived = new StripedCounter();
+
+    private final StripedCounter _dequeueCount = new StripedCounter();
+    private final StripedCounter _dequeueSize = new StripedCounter();
+    private final StripedCounter _enqueueCount = new StripedCounter();
+    private final StripedCounter _enqueueSize = new StripedCounter();
+    private final StripedCounter _persistentMessageEnqueueSize = new StripedCounter();
+    private final StripedCounter _persistentMessageDequeueSize = new StripedCounter();
+    private final StripedCounter _persistentMessageEnqueueCount = new StripedCounter();
+    private final StripedCounter _persistentMessageDequeueCount = new StripedCounter();
     private final AtomicInteger _counsumerCountHigh = new AtomicInteger(0);
-    private final AtomicLong _msgTxnEnqueues = new AtomicLong(0);
-    private final AtomicLong _byteTxnEnqueues = new AtomicLong(0);
-    private final AtomicLong _msgTxnDequeues = new AtomicLong(0);
-    private final AtomicLong _byteTxnDequeues = new AtomicLong(0);
+    private final StripedCounter _msgTxnEnqueues = new StripedCounter();
+    private final StripedCounter _byteTxnEnqueues = new StripedCounter();
+    private final StripedCounter _msgTxnDequeues = new StripedCounter();
+    private final StripedCounter _byteTxnDequeues = new StripedCounter();
+    // exact, as every increment is compared against the high water mark
     private final AtomicLong _unackedMsgCount = new AtomicLong(0);
-    private final AtomicLong _unackedMsgCountHigh = new AtomicLong(0);
-    private final AtomicLong _unackedMsgBytes = new AtomicLong();
+    private final HighWaterMark _unackedMsgCountHigh = new HighWaterMark();
+    private final StripedCounter _unackedMsgBytes = new StripedCounter();
 
     private final AtomicInteger _bindingCountHigh = new AtomicInteger();
 
@@ -158,14 +198,18 @@ public class SimpleAMQQueue implements AMQQueue, Subscription.StateListener, Mes
 
     static final int MAX_ASYNC_DELIVERIES = 80;
 
+    private final AdaptiveDeliveryScheduler _deliveryScheduler = new AdaptiveDeliveryScheduler(MAX_ASYNC_DELIVERIES);
+
 
     private final AtomicLong _stateChangeCount = new AtomicLong(Long.MIN_VALUE);
 
-    private final Executor _asyncDelivery;
-    private AtomicInteger _deliveredMessages = new AtomicInteger();
+    private final QueueDeliveryExecutors.DeliveryExecutor _asyncDelivery;
+    private final StripedCounter _deliveredMessages = new StripedCounter();
     private AtomicBoolean _stopped = new AtomicBoolean(false);
 
-    private final Set<AMQSessionModel> _blockedChannels = new ConcurrentSkipListSet<AMQSessionModel>();
+    private final QueueFlowController _flowController;
+
+    private final QueueLatencyRecorder _latencyRecorder = new QueueLatencyRecorder();
 
     private final AtomicBoolean _deleted = new AtomicBoolean(false);
     private final List<Task> _deleteTaskList = new CopyOnWriteArrayList<Task>();
@@ -177,7 +221,6 @@ public class SimpleAMQQueue implements AMQQueue, Subscription.StateListener, Mes
     private static final String SUB_FLUSH_RUNNER = "SUB_FLUSH_RUNNER";
     private boolean _nolocal;
 
-    private final AtomicBoolean _overfull = new AtomicBoolean(false);
     private boolean _deleteOnNoConsumers;
     private final CopyOnWriteArrayList<Binding> _bindings = new CopyOnWriteArrayList<Binding>();
     private UUID _id;
@@ -191,6 +234,7 @@ public class SimpleAMQQueue implements AMQQueue, Subscription.StateListener, Mes
     /** the maximum delivery count for each message on this queue or 0 if maximum delivery count is not to be enforced. */
     private int _maximumDeliveryCount = ApplicationRegistry.getInstance().getConfiguration().getMaxDeliveryCount();
     private final MessageGroupManager _messageGroupManager;
+    private final MessageGroupIndex _messageGroupIndex;
 
     private final Collection<SubscriptionRegistrationListener> _subscriptionListeners =
             new ArrayList<SubscriptionRegistrationListener>();
@@ -239,12 +283,17 @@ public class SimpleAMQQueue implements AMQQueue, Subscription.StateListener, Mes
         _autoDelete = autoDelete;
         _exclusive = exclusive;
         _virtualHost = virtualHost;
-        _entries = entryListFactory.createQueueEntryList(this);
+        _entries = createEntryList(entryListFactory, arguments);
+        _availableHead = new AtomicReference<QueueEntry>(_entries.getHead());
+        _bucketedEntries = _entries instanceof BucketedPriorityQueueList ? (BucketedPriorityQueueList) _entries : null;
         _arguments = arguments == null ? new HashMap<String, Object>() : new HashMap<String, Object>(arguments);
+        _pager = new QueueEntryPager(this, _entries,
+                                     getLongArgument(_arguments, QPID_PAGING_WATERMARK, 0L, 0L),
+                                     (int) getLongArgument(_arguments, QPID_PAGING_READ_AHEAD, 1L, 1000L));
 
         _id = id;
         _qmfId = getConfigStore().createId();
-        _asyncDelivery = ReferenceCountingExecutorService.getInstance().acquireExecutorService();
+        _asyncDelivery = QueueDeliveryExecutors.acquire(virtualHost);
 
         _logSubject = new QueueLogSubject(this);
         _logActor = new QueueActor(this, CurrentActor.get().getRootMessageLogger());
@@ -263,28 +312,109 @@ public class SimpleAMQQueue implements AMQQueue, Subscription.StateListener, Mes
 
         if(arguments != null && arguments.containsKey(QPID_GROUP_HEADER_KEY))
         {
+            final String groupHeaderKey = String.valueOf(arguments.get(QPID_GROUP_HEADER_KEY));
             if(arguments.containsKey(QPID_SHARED_MSG_GROUP) && String.valueOf(arguments.get(QPID_SHARED_MSG_GROUP)).equals("1"))
             {
                 Object defaultGroup = arguments.get(QPID_DEFAULT_MESSAGE_GROUP);
+                final String defaultGroupName = defaultGroup == null ? QPID_NO_GROUP : defaultGroup.toString();
                 _messageGroupManager =
-                        new DefinedGroupMessageGroupManager(String.valueOf(arguments.get(QPID_GROUP_HEADER_KEY)),
-                                defaultGroup == null ? QPID_NO_GROUP : defaultGroup.toString(),
+                        new DefinedGroupMessageGroupManager(groupHeaderKey,
+                                defaultGroupName,
                                 this);
+                _messageGroupIndex = new MessageGroupIndex(groupHeaderKey, defaultGroupName, 0);
             }
             else
             {
-                _messageGroupManager = new AssignedSubscriptionMessageGroupManager(String.valueOf(arguments.get(QPID_GROUP_HEADER_KEY)), DEFAULT_MAX_GROUPS);
+                _messageGroupManager = new AssignedSubscriptionMessageGroupManager(groupHeaderKey, DEFAULT_MAX_GROUPS);
+                _messageGroupIndex = new MessageGroupIndex(groupHeaderKey, null, DEFAULT_MAX_GROUPS);
             }
         }
         else
         {
             _messageGroupManager = null;
+            _messageGroupIndex = null;
         }
 
+        _enqueueShards = createEnqueueShards(_arguments);
+        // expiry is only checked by the housekeeping task, so by default the wheel need not be any finer than it
+        _expiryWheel = new MessageExpiryWheel(getLongArgument(_arguments, QPID_EXPIRY_TICK, 1L,
+                                                              virtualHost.getConfiguration().getHousekeepingCheckPeriod()),
+                                              System.currentTimeMillis());
+        _flowController = new QueueFlowController(this,
+                                                  (int) getLongArgument(_arguments, QPID_FLOW_CONTROL_MIN_HYSTERESIS, 0L, 0L),
+                                                  getLongArgument(_arguments, QPID_FLOW_CONTROL_HORIZON, 0L, 0L));
+        _arrivalOrdered = !(this instanceof OutOfOrderQueue);
+        _entryIndex = new QueueEntryIndex(_entries, _arrivalOrdered);
+
         resetNotifications();
 
     }
 
+    /**
+     * Creates the entry list from the factory, unless this is a priority queue declared to use the bucketed priority
+     * list, which can find its first available entry directly.
+     */
+    private QueueEntryList createEntryList(QueueEntryListFactory entryListFactory, Map<String, Object> arguments)
+    {
+        QueueEntryList entries = entryListFactory.createQueueEntryList(this);
+        if(entries.getPriorities() > 1
+           && this instanceof OutOfOrderQueue
+           && arguments != null
+           && QPID_PRIORITY_LIST_BUCKETED.equals(String.valueOf(arguments.get(QPID_PRIORITY_LIST))))
+        {
+            return new BucketedPriorityQueueList.Factory(entries.getPriorities()).createQueueEntryList(this);
+        }
+        return entries;
+    }
+
+    private static EnqueueShards createEnqueueShards(Map<String, Object> arguments)
+    {
+        Object shards = arguments.get(QPID_ENQUEUE_SHARDS);
+        int shardCount = 1;
+        if(shards != null)
+        {
+            try
+            {
+                shardCount = Integer.parseInt(String.valueOf(shards).trim());
+            }
+            catch (NumberFormatException e)
+            {
+                _logger.warn("Ignoring invalid value for " + QPID_ENQUEUE_SHARDS + ": " + shards);
+            }
+        }
+        if(shardCount <= 1)
+        {
+            return null;
+        }
+        // Message groups depend on the order in which entries reach the list, so grouped queues always merge in
+        // enqueue order
+        boolean ordered = arguments.containsKey(QPID_GROUP_HEADER_KEY)
+                          || !QPID_SHARD_ORDERING_ROUND_ROBIN.equals(String.valueOf(arguments.get(QPID_ENQUEUE_SHARD_ORDERING)));
+        return new EnqueueShards(shardCount, ordered);
+    }
+
+    private static long getLongArgument(Map<String, Object> arguments, String name, long minimum, long defaultValue)
+    {
+        Object value = arguments.get(name);
+        if(value != null)
+        {
+            try
+            {
+                long parsed = Long.parseLong(String.valueOf(value).trim());
+                if(parsed >= minimum)
+                {
+                    return parsed;
+                }
+            }
+            catch (NumberFormatException e)
+            {
+                // fall through to the warning
+            }
+            _logger.warn("Ignoring invalid value for " + name + ": " + value);
+        }
+        return defaultValue;
+    }
+
     public void resetNotifications()
     {
         // This ensure that the notification checks for the configured alerts are created.
@@ -455,6 +585,7 @@ public class SimpleAMQQueue implements AMQQueue, Subscription.StateListener, Mes
         }
         subscription.setStateListener(this);
         subscription.setQueueContext(new QueueContext(_entries.getHead()));
+        _deliveryScheduler.subscriptionRegistered(subscription);
 
         if (!isDeleted())
         {
@@ -573,10 +704,12 @@ public class SimpleAMQQueue implements AMQQueue, Subscription.StateListener, Mes
 
     public void resetSubPointersForGroups(Subscription subscription, boolean clearAssignments)
     {
-        QueueEntry entry = _messageGroupManager.findEarliestAssignedAvailableEntry(subscription);
+        // only the pending entries of the subscription's own groups are looked at, not the whole queue
+        QueueEntry entry = _messageGroupIndex.findEarliestAvailableEntry(subscription);
         if(clearAssignments)
         {
             _messageGroupManager.clearAssignments(subscription);
+            _messageGroupIndex.clearAssignments(subscription);
         }
 
         if(entry != null)
@@ -682,20 +815,61 @@ public class SimpleAMQQueue implements AMQQueue, Subscription.StateListener, Mes
     public void enqueue(ServerMessage message, boolean transactional, PostEnqueueAction action) throws AMQException
     {
 
-        if(transactional)
+        if(_enqueueShards != null)
         {
-            incrementTxnEnqueueStats(message);
+            enqueueSharded(message, transactional, action);
+            return;
         }
-        incrementQueueCount();
-        incrementQueueSize(message);
-
-        _totalMessagesReceived.incrementAndGet();
 
+        incrementEnqueueStats(message, transactional);
 
         QueueEntry entry;
         final Subscription exclusiveSub = _exclusiveSubscriber;
         entry = _entries.add(message);
+        entryAdded(entry);
+
+        deliverEnqueuedEntry(entry, exclusiveSub, action);
+    }
+
+    /**
+     * Stages the message on the producer's shard.  Without an action the delivery threads move it onto the entry
+     * list.  With an action the caller needs the entry, so it tries to drain the shards itself, and if another thread
+     * holds the drain waits for that thread to hand over the entry.  It then offers the entry to the subscriptions
+     * as an unsharded enqueue would.
+     */
+    private void enqueueSharded(ServerMessage message, boolean transactional, PostEnqueueAction action)
+            throws AMQException
+    {
+        final Subscription exclusiveSub = _exclusiveSubscriber;
+
+        if(action == null)
+        {
+            _enqueueShards.stage(message, transactional);
+            deliverAsync();
+            checkForNotification(message);
+            return;
+        }
+
+        final EnqueueShards.StagedEnqueue staged = _enqueueShards.stageForEntry(message, transactional);
+        drainEnqueueShards();
+        deliverEnqueuedEntry(staged.awaitEntry(), exclusiveSub, action);
+    }
+
+    private void incrementEnqueueStats(final ServerMessage message, final boolean transactional)
+    {
+        if(transactional)
+        {
+            incrementTxnEnqueueStats(message);
+        }
+        incrementQueueCount();
+        incrementQueueSize(message);
+
+        _totalMessagesReceived.increment();
+    }
 
+    private void deliverEnqueuedEntry(final QueueEntry entry, final Subscription exclusiveSub,
+                                      final PostEnqueueAction action) throws AMQException
+    {
         if(action != null || (exclusiveSub == null  && _queueRunner.isIdle()))
         {
             /*
@@ -772,6 +946,109 @@ public class SimpleAMQQueue implements AMQQueue, Subscription.StateListener, Mes
 
     }
 
+    /**
+     * Enqueues the messages of a committed transaction together.  Without an action, the entries are all added
+     * before a single asynchronous delivery pass is scheduled, rather than each message trying the subscriptions in
+     * turn.  With an action, each message is enqueued as by {@link #enqueue(ServerMessage, boolean,
+     * PostEnqueueAction)}, so that it is offered to the subscriptions before its action runs.
+     */
+    public void enqueueBatch(List<ServerMessage> messages, PostEnqueueAction action) throws AMQException
+    {
+        if(action != null || _enqueueShards != null)
+        {
+            for(ServerMessage message : messages)
+            {
+                enqueue(message, true, action);
+            }
+            return;
+        }
+
+        if(messages.isEmpty())
+        {
+            return;
+        }
+
+        final Subscription exclusiveSub = _exclusiveSubscriber;
+        final List<QueueEntry> entries = new ArrayList<QueueEntry>(messages.size());
+        for(ServerMessage message : messages)
+        {
+            incrementEnqueueStats(message, true);
+            QueueEntry entry = _entries.add(message);
+            entryAdded(entry);
+            entries.add(entry);
+        }
+
+        for(QueueEntry entry : entries)
+        {
+            if(entry.isAvailable())
+            {
+                checkSubscriptionsNotAheadOfDelivery(entry);
+            }
+        }
+
+        if (exclusiveSub != null)
+        {
+            deliverAsync(exclusiveSub);
+        }
+        else
+        {
+            deliverAsync();
+        }
+
+        for(QueueEntry entry : entries)
+        {
+            checkForNotification(entry.getMessage());
+        }
+    }
+
+    private void entryAdded(final QueueEntry entry)
+    {
+        _entryIndex.add(entry);
+        if(_messageGroupIndex != null)
+        {
+            _messageGroupIndex.entryAdded(entry);
+        }
+
+        final long expiration = entry.getMessage().getExpiration();
+        if(expiration != 0L)
+        {
+            _expiryWheel.add(entry, expiration);
+        }
+
+        _pager.entryAdded(entry);
+    }
+
+    /**
+     * Moves messages staged by producers in sharded enqueue mode onto the entry list.  This is called from the
+     * delivery threads so that the producers never contend on the tail of the list.  Staged messages are counted
+     * by their shard until they are moved, and by the queue from then on.
+     */
+    private void drainEnqueueShards()
+    {
+        if(_enqueueShards != null)
+        {
+            while(!_enqueueShards.isEmpty() && _enqueueShards.tryStartDrain())
+            {
+                try
+                {
+                    while(_enqueueShards.poll())
+                    {
+                        ServerMessage message = _enqueueShards.getPolledMessage();
+                        incrementEnqueueStats(message, _enqueueShards.isPolledTransactional());
+                        QueueEntry entry = _entries.add(message);
+                        entryAdded(entry);
+                        _enqueueShards.drained(entry);
+                        checkSubscriptionsNotAheadOfDelivery(entry);
+                    }
+                }
+                finally
+                {
+                    _enqueueShards.endDrain();
+                }
+            }
+        }
+    }
+
     private void deliverToSubscription(final Subscription sub, final QueueEntry entry)
             throws AMQException
     {
@@ -830,12 +1107,12 @@ public class SimpleAMQQueue implements AMQQueue, Subscription.StateListener, Mes
     {
         long size = message.getSize();
         getAtomicQueueSize().addAndGet(size);
-        _enqueueCount.incrementAndGet();
-        _enqueueSize.addAndGet(size);
+        _enqueueCount.increment();
+        _enqueueSize.add(size);
         if(message.isPersistent() && isDurable())
         {
-            _persistentMessageEnqueueSize.addAndGet(size);
-            _persistentMessageEnqueueCount.incrementAndGet();
+            _persistentMessageEnqueueSize.add(size);
+            _persistentMessageEnqueueCount.increment();
         }
     }
 
@@ -856,14 +1133,14 @@ public class SimpleAMQQueue implements AMQQueue, Subscription.StateListener, Mes
 
     private void incrementTxnEnqueueStats(final ServerMessage message)
     {
-        _msgTxnEnqueues.incrementAndGet();
-        _byteTxnEnqueues.addAndGet(message.getSize());
+        _msgTxnEnqueues.increment();
+        _byteTxnEnqueues.add(message.getSize());
     }
 
     private void incrementTxnDequeueStats(QueueEntry entry)
     {
-        _msgTxnDequeues.incrementAndGet();
-        _byteTxnDequeues.addAndGet(entry.getSize());
+        _msgTxnDequeues.increment();
+        _byteTxnDequeues.add(entry.getSize());
     }
 
     private void deliverMessage(final Subscription sub, final QueueEntry entry, boolean batch)
@@ -871,8 +1148,17 @@ public class SimpleAMQQueue implements AMQQueue, Subscription.StateListener, Mes
     {
         setLastSeenEntry(sub, entry);
 
-        _deliveredMessages.incrementAndGet();
+        _deliveredMessages.increment();
         incrementUnackedMsgCount(entry);
+        if(sub.acquires())
+        {
+            _deliveryScheduler.onDelivery(sub, entry);
+        }
+        _latencyRecorder.entryDelivered(sub, entry);
+        if(_messageGroupIndex != null && sub.acquires())
+        {
+            _messageGroupIndex.entryDelivered(sub, entry);
+        }
 
         sub.send(entry, batch);
     }
@@ -918,6 +1204,12 @@ public class SimpleAMQQueue implements AMQQueue, Subscription.StateListener, Mes
 
     public void requeue(QueueEntry entry)
     {
+        resetAvailableHead(entry);
+        if(_bucketedEntries != null)
+        {
+            _bucketedEntries.entryReleased(entry);
+        }
+
         SubscriptionList.SubscriptionNodeIterator subscriberIter = _subscriptionList.iterator();
         // iterate over all the subscribers, and if they are in advance of this queue entry then move them backwards
         while (subscriberIter.advance() && entry.isAvailable())
@@ -935,18 +1227,52 @@ public class SimpleAMQQueue implements AMQQueue, Subscription.StateListener, Mes
 
     }
 
+    /**
+     * @return the shared hint: no entry up to and including it was available when it was last moved forward
+     */
+    QueueEntry getAvailableHead()
+    {
+        return _availableHead.get();
+    }
+
+    /**
+     * Called when an entry becomes available again; the hint can no longer vouch for the entries before it.
+     */
+    private void resetAvailableHead(final QueueEntry entry)
+    {
+        QueueEntry head;
+        while((head = _availableHead.get()).compareTo(entry) >= 0)
+        {
+            if(_availableHead.compareAndSet(head, _entries.getHead()))
+            {
+                break;
+            }
+        }
+    }
+
     public void dequeue(QueueEntry entry, Subscription sub)
     {
+        _entryIndex.remove(entry);
+        _expiryWheel.remove(entry);
+        if(_messageGroupIndex != null)
+        {
+            _messageGroupIndex.entryRemoved(entry);
+        }
+        _pager.entryRemoved(entry);
+        _latencyRecorder.entryDequeued(sub, entry);
         decrementQueueCount();
         decrementQueueSize(entry);
         if (entry.acquiredBySubscription())
         {
-            _deliveredMessages.decrementAndGet();
+            _deliveredMessages.decrement();
         }
 
-        if(sub != null && sub.isSessionTransactional())
+        if(sub != null)
         {
-            incrementTxnDequeueStats(entry);
+            if(sub.isSessionTransactional())
+            {
+                incrementTxnDequeueStats(entry);
+            }
         }
 
         checkCapacity();
@@ -958,18 +1284,18 @@ public class SimpleAMQQueue implements AMQQueue, Subscription.StateListener, Mes
         final ServerMessage message = entry.getMessage();
         long size = message.getSize();
         getAtomicQueueSize().addAndGet(-size);
-        _dequeueSize.addAndGet(size);
+        _dequeueSize.add(size);
         if(message.isPersistent() && isDurable())
         {
-            _persistentMessageDequeueSize.addAndGet(size);
-            _persistentMessageDequeueCount.incrementAndGet();
+            _persistentMessageDequeueSize.add(size);
+            _persistentMessageDequeueCount.increment();
         }
     }
 
     void decrementQueueCount()
     {
         getAtomicQueueCount().decrementAndGet();
-        _dequeueCount.incrementAndGet();
+        _dequeueCount.increment();
     }
 
     public boolean resend(final QueueEntry entry, final Subscription subscription) throws AMQException
@@ -1025,17 +1351,25 @@ public class SimpleAMQQueue implements AMQQueue, Subscription.StateListener, Mes
 
     public int getMessageCount()
     {
+        if(_enqueueShards != null)
+        {
+            return getAtomicQueueCount().get() + _enqueueShards.getStagedCount();
+        }
         return getAtomicQueueCount().get();
     }
 
     public long getQueueDepth()
     {
+        if(_enqueueShards != null)
+        {
+            return getAtomicQueueSize().get() + _enqueueShards.getStagedSize();
+        }
         return getAtomicQueueSize().get();
     }
 
     public int getUndeliveredMessageCount()
     {
-        int count = getMessageCount() - _deliveredMessages.get();
+        int count = getMessageCount() - (int) _deliveredMessages.get();
         if (count < 0)
         {
             return 0;
@@ -1053,8 +1387,22 @@ public class SimpleAMQQueue implements AMQQueue, Subscription.StateListener, Mes
 
     public long getOldestMessageArrivalTime()
     {
-        QueueEntry entry = getOldestQueueEntry();
-        return entry == null ? Long.MAX_VALUE : entry.getMessage().getArrivalTime();
+        QueueEntry entry = trackOldestEntry();
+        final ServerMessage message = entry == null ? null : entry.getMessage();
+        return message == null ? Long.MAX_VALUE : message.getArrivalTime();
+    }
+
+    private QueueEntry trackOldestEntry()
+    {
+        QueueEntry entry = _oldestEntry;
+        // entries are only ever added behind the oldest one for arrival ordered queues, so the cached entry remains
+        // the oldest for as long as it is on the queue
+        if(entry == null || entry.isDispensed() || !_arrivalOrdered)
+        {
+            entry = getOldestQueueEntry();
+            _oldestEntry = entry;
+        }
+        return entry;
     }
 
     protected QueueEntry getOldestQueueEntry()
@@ -1154,40 +1502,12 @@ public class SimpleAMQQueue implements AMQQueue, Subscription.StateListener, Mes
 
     public List<QueueEntry> getMessagesOnTheQueue(final long fromMessageId, final long toMessageId)
     {
-        return getMessagesOnTheQueue(new QueueEntryFilter()
-        {
-
-            public boolean accept(QueueEntry entry)
-            {
-                final long messageId = entry.getMessage().getMessageNumber();
-                return messageId >= fromMessageId && messageId <= toMessageId;
-            }
-
-            public boolean filterComplete()
-            {
-                return false;
-            }
-        });
+        return _entryIndex.getByMessageIdRange(fromMessageId, toMessageId);
     }
 
     public QueueEntry getMessageOnTheQueue(final long messageId)
     {
-        List<QueueEntry> entries = getMessagesOnTheQueue(new QueueEntryFilter()
-        {
-            private boolean _complete;
-
-            public boolean accept(QueueEntry entry)
-            {
-                _complete = entry.getMessage().getMessageNumber() == messageId;
-                return _complete;
-            }
-
-            public boolean filterComplete()
-            {
-                return _complete;
-            }
-        });
-        return entries.isEmpty() ? null : entries.get(0);
+        return _entryIndex.get(messageId);
     }
 
     public List<QueueEntry> getMessagesOnTheQueue(QueueEntryFilter filter)
@@ -1235,6 +1555,11 @@ public class SimpleAMQQueue implements AMQQueue, Subscription.StateListener, Mes
      */
     public List<QueueEntry> getMessagesRangeOnTheQueue(final long fromPosition, final long toPosition)
     {
+        if(_arrivalOrdered)
+        {
+            return _entryIndex.getByPosition(fromPosition, toPosition);
+        }
+
         return getMessagesOnTheQueue(new QueueEntryFilter()
                                         {
                                             private long position = 0;
@@ -1263,6 +1588,14 @@ public class SimpleAMQQueue implements AMQQueue, Subscription.StateListener, Mes
         return _createTime;
     }
 
+    /**
+     * @return the number of enqueue shards, 1 if the queue is not sharded
+     */
+    public int getEnqueueShardCount()
+    {
+        return _enqueueShards == null ? 1 : _enqueueShards.getShardCount();
+    }
+
     // ------ Management functions
 
     // TODO - now only used by the tests
@@ -1296,6 +1629,8 @@ public class SimpleAMQQueue implements AMQQueue, Subscription.StateListener, Mes
             throw new AMQSecurityException("Permission denied: queue " + getName());
         }
 
+        drainEnqueueShards();
+
         QueueEntryIterator queueListIterator = _entries.iterator();
         long count = 0;
 
@@ -1385,6 +1720,8 @@ public class SimpleAMQQueue implements AMQQueue, Subscription.StateListener, Mes
             _virtualHost.getQueueRegistry().unregisterQueue(_name);
             getConfigStore().removeConfiguredObject(this);
 
+            drainEnqueueShards();
+
             List<QueueEntry> entries = getMessagesOnTheQueue(new QueueEntryFilter()
             {
 
@@ -1489,6 +1826,7 @@ public class SimpleAMQQueue implements AMQQueue, Subscription.StateListener, Mes
             }
 
             txn.commit();
+            _entryIndex.clear();
 
             for (Task task : _deleteTaskList)
             {
@@ -1510,60 +1848,19 @@ public class SimpleAMQQueue implements AMQQueue, Subscription.StateListener, Mes
     {
         if (!_stopped.getAndSet(true))
         {
-            ReferenceCountingExecutorService.getInstance().releaseExecutorService();
+            _asyncDelivery.release();
+            _pager.close();
         }
     }
 
     public void checkCapacity(AMQSessionModel channel)
     {
-        if(_capacity != 0l)
-        {
-            if(_atomicQueueSize.get() > _capacity)
-            {
-                _overfull.set(true);
-                //Overfull log message
-                _logActor.message(_logSubject, QueueMessages.OVERFULL(_atomicQueueSize.get(), _capacity));
-
-                _blockedChannels.add(channel);
-
-                channel.block(this);
-
-                if(_atomicQueueSize.get() <= _flowResumeCapacity)
-                {
-
-                    //Underfull log message
-                    _logActor.message(_logSubject, QueueMessages.UNDERFULL(_atomicQueueSize.get(), _flowResumeCapacity));
-
-                   channel.unblock(this);
-                   _blockedChannels.remove(channel);
-
-                }
-
-            }
-
-
-
-        }
+        _flowController.checkCapacity(channel);
     }
 
     private void checkCapacity()
     {
-        if(_capacity != 0L)
-        {
-            if(_overfull.get() && _atomicQueueSize.get() <= _flowResumeCapacity)
-            {
-                if(_overfull.compareAndSet(true,false))
-                {//Underfull log message
-                    _logActor.message(_logSubject, QueueMessages.UNDERFULL(_atomicQueueSize.get(), _flowResumeCapacity));
-                }
-
-                for(final AMQSessionModel blockedChannel : _blockedChannels)
-                {
-                    blockedChannel.unblock(this);
-                    _blockedChannels.remove(blockedChannel);
-                }
-            }
-        }
+        _flowController.checkCapacity();
     }
 
     private QueueRunner _queueRunner = new QueueRunner(this);
@@ -1611,6 +1908,8 @@ public class SimpleAMQQueue implements AMQQueue, Subscription.StateListener, Mes
         final boolean keepSendLockHeld = iterations <=  SimpleAMQQueue.MAX_ASYNC_DELIVERIES;
         boolean queueEmpty = false;
 
+        drainEnqueueShards();
+
         try
         {
             if(keepSendLockHeld)
@@ -1753,7 +2052,38 @@ public class SimpleAMQQueue implements AMQQueue, Subscription.StateListener, Mes
             QueueEntry lastSeen = context.getLastSeenEntry();
             QueueEntry releasedNode = context.getReleasedEntry();
 
-            QueueEntry node = (releasedNode != null && lastSeen.compareTo(releasedNode)>=0) ? releasedNode : _entries.next(lastSeen);
+            // the start of a run of unavailable entries which can be used to move the shared hint forward, or null
+            // if this walk did not start from the hint
+            QueueEntry unavailableRun = null;
+            if(_arrivalOrdered && sub.acquires() && releasedNode == null)
+            {
+                QueueEntry availableHead = _availableHead.get();
+                int compare = availableHead.compareTo(lastSeen);
+                if(compare > 0 && QueueContext._lastSeenUpdater.compareAndSet(context, lastSeen, availableHead))
+                {
+                    lastSeen = availableHead;
+                    unavailableRun = availableHead;
+                }
+                else if(compare == 0)
+                {
+                    unavailableRun = availableHead;
+                }
+            }
+
+            QueueEntry node = (releasedNode != null && lastSeen.compareTo(releasedNode)>=0) ? releasedNode : null;
+            if(node == null && _bucketedEntries != null && sub.acquires())
+            {
+                // every entry in front of the first available one is unavailable, so the walk can start there
+                QueueEntry firstAvailable = _bucketedEntries.firstAvailable();
+                if(firstAvailable != null && firstAvailable.compareTo(lastSeen) > 0)
+                {
+                    node = firstAvailable;
+                }
+            }
+            if(node == null)
+            {
+                node = _entries.next(lastSeen);
+            }
 
             boolean expired = false;
             while (node != null && (!node.isAvailable() || (expired = node.expired()) || !sub.hasInterest(node) ||
@@ -1768,6 +2098,19 @@ public class SimpleAMQQueue implements AMQQueue, Subscription.StateListener, Mes
                     }
                 }
 
+                if(unavailableRun != null)
+                {
+                    unavailableRun = (!node.isAvailable() && _availableHead.compareAndSet(unavailableRun, node))
+                                     ? node
+                                     : null;
+                    if(unavailableRun != null && node.isAvailable())
+                    {
+                        // released between the check and moving the hint past it
+                        resetAvailableHead(node);
+                        unavailableRun = null;
+                    }
+                }
+
                 if(QueueContext._lastSeenUpdater.compareAndSet(context, lastSeen, node))
                 {
                     QueueContext._releasedUpdater.compareAndSet(context, releasedNode, null);
@@ -1775,8 +2118,17 @@ public class SimpleAMQQueue implements AMQQueue, Subscription.StateListener, Mes
 
                 lastSeen = context.getLastSeenEntry();
                 releasedNode = context.getReleasedEntry();
+                if(releasedNode != null)
+                {
+                    unavailableRun = null;
+                }
                 node = (releasedNode != null && lastSeen.compareTo(releasedNode)>0) ? releasedNode : _entries.next(lastSeen);
             }
+
+            if(node != null)
+            {
+                _pager.readAhead(node);
+            }
             return node;
         }
         else
@@ -1859,25 +2211,43 @@ public class SimpleAMQQueue implements AMQQueue, Subscription.StateListener, Mes
             }
 
             previousStateChangeCount = stateChangeCount;
+            drainEnqueueShards();
+
             boolean allSubscriptionsDone = true;
             boolean subscriptionDone;
 
             SubscriptionList.SubscriptionNodeIterator subscriptionIter = _subscriptionList.iterator();
             //iterate over the subscribers and try to advance their pointer
-            while (subscriptionIter.advance())
+            while (subscriptionIter.advance() && iterations != 0)
             {
                 Subscription sub = subscriptionIter.getNode().getSubscription();
+                if (sub.isSuspended())
+                {
+                    // a suspended subscription cannot take a delivery, so don't contend for its send lock
+                    continue;
+                }
+
+                final int batchSize = _deliveryScheduler.getBatchSize(sub, perSub, iterations);
+                int attempts = 0;
+
+                final long lockRequested = System.nanoTime();
                 sub.getSendLock();
+                _deliveryScheduler.recordLockWait(sub, System.nanoTime() - lockRequested);
 
                     try
                     {
-                        for(int i = 0 ; i < perSub; i++)
+                        boolean flushed = false;
+                        for(int i = 0 ; i < batchSize; i++)
                         {
                             //attempt delivery. returns true if no further delivery currently possible to this sub
                             subscriptionDone = attemptDelivery(sub, true);
                             if (subscriptionDone)
                             {
-                                sub.flushBatched();
+                                if (attempts != 0)
+                                {
+                                    sub.flushBatched();
+                                    flushed = true;
+                                }
                                 if (lastLoop && !sub.isSuspended())
                                 {
                                     sub.queueEmpty();
@@ -1888,23 +2258,28 @@ public class SimpleAMQQueue implements AMQQueue, Subscription.StateListener, Mes
                             {
                                 //this subscription can accept additional deliveries, so we must
                                 //keep going after this (if iteration slicing allows it)
+                                attempts++;
                                 allSubscriptionsDone = false;
                                 lastLoop = false;
                                 if(--iterations == 0)
                                 {
-                                    sub.flushBatched();
                                     break;
                                 }
                             }
 
                         }
 
-                        sub.flushBatched();
+                        if (attempts != 0 && !flushed)
+                        {
+                            sub.flushBatched();
+                        }
                     }
                     finally
                     {
                         sub.releaseSendLock();
                     }
+
+                _deliveryScheduler.passComplete(sub, batchSize, attempts, sub.isSuspended());
             }
 
             if(allSubscriptionsDone && lastLoop)
@@ -1948,38 +2323,29 @@ public class SimpleAMQQueue implements AMQQueue, Subscription.StateListener, Mes
 
     public void checkMessageStatus() throws AMQException
     {
-        QueueEntryIterator queueListIterator = _entries.iterator();
-
-        while (queueListIterator.advance())
+        for(QueueEntry node : _expiryWheel.expire(System.currentTimeMillis()))
         {
-            QueueEntry node = queueListIterator.getNode();
-            // Only process nodes that are not currently deleted and not dequeued
-            if (!node.isDispensed())
+            // Only process nodes that are not currently deleted and not dequeued. If the node has expired then
+            // acquire it
+            if (!node.isDispensed() && node.expired() && node.acquire())
             {
-                // If the node has exired then acquire it
-                if (node.expired() && node.acquire())
+                if (_logger.isDebugEnabled())
                 {
-                    if (_logger.isDebugEnabled())
-                    {
-                        _logger.debug("Dequeuing expired node " + node);
-                    }
-                    // Then dequeue it.
-                    dequeueEntry(node);
-                }
-                else
-                {
-                    // There is a chance that the node could be deleted by
-                    // the time the check actually occurs. So verify we
-                    // can actually get the message to perform the check.
-                    ServerMessage msg = node.getMessage();
-                    if (msg != null)
-                    {
-                        checkForNotification(msg);
-                    }
+                    _logger.debug("Dequeuing expired node " + node);
                 }
+                // Then dequeue it.
+                dequeueEntry(node);
             }
         }
 
+        // Message specific checks were made when each message arrived, the remaining checks depend only on the
+        // state of the queue and so need only be made once.
+        QueueEntry oldest = trackOldestEntry();
+        ServerMessage msg = oldest == null ? null : oldest.getMessage();
+        if (msg != null)
+        {
+            checkForNotification(msg, false);
+        }
     }
 
     public long getMinimumAlertRepeatGap()
@@ -2091,7 +2457,116 @@ public class SimpleAMQQueue implements AMQQueue, Subscription.StateListener, Mes
 
     public boolean isOverfull()
     {
-        return _overfull.get();
+        return _flowController.isOverfull();
+    }
+
+    /**
+     * Sets the minimum gap, as a percentage of the capacity, between the capacity and the depth at which blocked
+     * producers are released.
+     */
+    public void setFlowControlMinimumHysteresis(int percent)
+    {
+        _flowController.setMinimumHysteresis(percent);
+    }
+
+    public int getFlowControlMinimumHysteresis()
+    {
+        return _flowController.getMinimumHysteresis();
+    }
+
+    /**
+     * Sets how far ahead, in milliseconds, the growth of the queue is projected when deciding whether to block
+     * producers before the capacity is reached.  0 blocks only once the capacity has been passed.
+     */
+    public void setFlowControlHorizon(long millis)
+    {
+        _flowController.setEarlyBlockHorizon(millis);
+    }
+
+    public long getFlowControlHorizon()
+    {
+        return _flowController.getEarlyBlockHorizon();
+    }
+
+    public int getBlockedProducerCount()
+    {
+        return _flowController.getBlockedChannelCount();
+    }
+
+    /**
+     * @return the total nanoseconds producers have spent blocked by this queue
+     */
+    public long getTotalProducerBlockedTime()
+    {
+        return _flowController.getTotalBlockedTime();
+    }
+
+    /**
+     * @return the nanoseconds the channel has spent blocked by this queue
+     */
+    public long getProducerBlockedTime(AMQSessionModel channel)
+    {
+        return _flowController.getBlockedTime(channel);
+    }
+
+    /**
+     * @return the lengths of producer blocks in milliseconds, bucketed as for {@link #getMessageResidencyHistogram()}
+     */
+    public long[] getProducerBlockedTimeHistogram()
+    {
+        return _flowController.getBlockedTimeHistogram();
+    }
+
+    /**
+     * Sets the bytes of message content which may be held on the heap for this queue before the content of newly
+     * arriving messages is flowed to disk.  0 disables paging.
+     */
+    public void setPagingWatermark(long watermark)
+    {
+        _pager.setWatermark(watermark);
+    }
+
+    public long getPagingWatermark()
+    {
+        return _pager.getWatermark();
+    }
+
+    /**
+     * Sets the number of entries ahead of the delivery pointer which are read back in before they are delivered.
+     */
+    public void setPagingReadAhead(int entries)
+    {
+        _pager.setReadAhead(entries);
+    }
+
+    public int getPagingReadAhead()
+    {
+        return _pager.getReadAhead();
+    }
+
+    public long getPagedMessageCount()
+    {
+        return _pager.getPagedCount();
+    }
+
+    public long getPagedMessageSize()
+    {
+        return _pager.getPagedBytes();
+    }
+
+    public long getResidentMessageSize()
+    {
+        return _pager.getResidentBytes();
+    }
+
+    public long getPageOutCount()
+    {
+        return _pager.getPageOutCount();
+    }
+
+    public long getPageInCount()
+    {
+        return _pager.getPageInCount();
     }
 
     public Set<NotificationCheck> getNotificationChecks()
@@ -2135,6 +2610,15 @@ public class SimpleAMQQueue implements AMQQueue, Subscription.StateListener, Mes
     public List<Long> getMessagesOnTheQueue(int num, int offset)
     {
         ArrayList<Long> ids = new ArrayList<Long>(num);
+        if(_arrivalOrdered)
+        {
+            for(QueueEntry entry : _entryIndex.getByPosition(offset + 1L, (long) offset + num))
+            {
+                ids.add(entry.getMessage().getMessageNumber());
+            }
+            return ids;
+        }
+
         QueueEntryIterator it = _entries.iterator();
         for (int i = 0; i < offset; i++)
         {
@@ -2274,22 +2758,15 @@ public class SimpleAMQQueue implements AMQQueue, Subscription.StateListener, Mes
     public void decrementUnackedMsgCount(QueueEntry queueEntry)
     {
         _unackedMsgCount.decrementAndGet();
-        _unackedMsgBytes.addAndGet(-queueEntry.getSize());
+        _unackedMsgBytes.add(-queueEntry.getSize());
     }
 
     private void incrementUnackedMsgCount(QueueEntry entry)
     {
         long unackedMsgCount = _unackedMsgCount.incrementAndGet();
-        _unackedMsgBytes.addAndGet(entry.getSize());
+        _unackedMsgBytes.add(entry.getSize());
 
-        long unackedMsgCountHigh;
-        while(unackedMsgCount > (unackedMsgCountHigh = _unackedMsgCountHigh.get()))
-        {
-            if(_unackedMsgCountHigh.compareAndSet(unackedMsgCountHigh, unackedMsgCount))
-            {
-                break;
-            }
-        }
+        _unackedMsgCountHigh.update(unackedMsgCount);
     }
 
     public LogActor getLogActor()
@@ -2297,6 +2774,96 @@ public class SimpleAMQQueue implements AMQQueue, Subscription.StateListener, Mes
         return _logActor;
     }
 
+    /**
+     * @return the current batch size offered to the subscription by processQueue
+     */
+    public int getDeliveryBatchSize(Subscription sub)
+    {
+        return _deliveryScheduler.getState(sub).getBatchSize();
+    }
+
+    /**
+     * @return the number of deliveries made to the subscription per processQueue pass, bucketed as for
+     *         {@link #getMessageResidencyHistogram()}
+     */
+    public long[] getDeliveryBatchSizeHistogram(Subscription sub)
+    {
+        return _deliveryScheduler.getState(sub).getBatchSizeHistogram().getCounts();
+    }
+
+    /**
+     * @return the nanoseconds processQueue waited for the subscription's send lock, bucketed as for
+     *         {@link #getMessageResidencyHistogram()}
+     */
+    public long[] getSendLockWaitHistogram(Subscription sub)
+    {
+        return _deliveryScheduler.getState(sub).getLockWaitHistogram().getCounts();
+    }
+
+    /**
+     * @return the microseconds messages spent on this queue, from arrival until dequeue, as the counts of a histogram
+     *         whose buckets start at the values given by {@link #getLatencyBucketLowerBound(int)}
+     */
+    public long[] getMessageResidencyHistogram()
+    {
+        return _latencyRecorder.getResidency().getCounts();
+    }
+
+    /**
+     * @return the microseconds from arrival until delivery, bucketed as for {@link #getMessageResidencyHistogram()}
+     */
+    public long[] getDeliveryLatencyHistogram()
+    {
+        return _latencyRecorder.getDeliveryLatency().getCounts();
+    }
+
+    /**
+     * @return the microseconds from delivery until acknowledgement, bucketed as for
+     *         {@link #getMessageResidencyHistogram()}
+     */
+    public long[] getAckLatencyHistogram()
+    {
+        return _latencyRecorder.getAckLatency().getCounts();
+    }
+
+    public long getMessageResidencyPercentile(double percentile)
+    {
+        return _latencyRecorder.getResidency().getValueAtPercentile(percentile);
+    }
+
+    public long getDeliveryLatencyPercentile(double percentile)
+    {
+        return _latencyRecorder.getDeliveryLatency().getValueAtPercentile(percentile);
+    }
+
+    public long getAckLatencyPercentile(double percentile)
+    {
+        return _latencyRecorder.getAckLatency().getValueAtPercentile(percentile);
+    }
+
+    public long[] getMessageResidencyHistogram(Subscription sub)
+    {
+        return _latencyRecorder.getLatencies(sub).getResidency().getCounts();
+    }
+
+    public long[] getDeliveryLatencyHistogram(Subscription sub)
+    {
+        return _latencyRecorder.getLatencies(sub).getDeliveryLatency().getCounts();
+    }
+
+    public long[] getAckLatencyHistogram(Subscription sub)
+    {
+        return _latencyRecorder.getLatencies(sub).getAckLatency().getCounts();
+    }
+
+    /**
+     * @return the lowest value, in microseconds, counted by the given bucket of the latency histograms
+     */
+    public static long getLatencyBucketLowerBound(int bucket)
+    {
+        return LatencyHistogram.lowestValueOf(bucket);
+    }
+
     public int getMaximumDeliveryCount()
     {
         return _maximumDeliveryCount;
@@ -2311,6 +2878,11 @@ public class SimpleAMQQueue implements AMQQueue, Subscription.StateListener, Mes
      * Checks if there is any notification to send to the listeners
      */
     private void checkForNotification(ServerMessage<?> msg) throws AMQException
+    {
+        checkForNotification(msg, true);
+    }
+
+    private void checkForNotification(ServerMessage<?> msg, boolean includeMessageSpecific) throws AMQException
     {
         final Set<NotificationCheck> notificationChecks = getNotificationChecks();
         final AMQQueue.NotificationListener listener = _notificationListener;
@@ -2322,7 +2894,8 @@ public class SimpleAMQQueue implements AMQQueue, Subscription.StateListener, Mes
 
             for (NotificationCheck check : notificationChecks)
             {
-                if (check.isMessageSpecific() || (_lastNotificationTimes[check.ordinal()] < thresholdTime))
+                if (check.isMessageSpecific() ? includeMessageSpecific
+                                              : (_lastNotificationTimes[check.ordinal()] < thresholdTime))
                 {
                     if (check.notifyIfNecessary(msg, this, listener))
                     {
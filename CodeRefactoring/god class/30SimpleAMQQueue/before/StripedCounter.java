@@ -0,0 +1,164 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.qpid.server.queue;
+
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+/**
+ * A statistics counter which is cheap to update from many threads at once.
+ *
+ * Updates are made to a single base value until two threads collide on it.  Only then are cells allocated, each
+ * padded onto its own cache lines, and each thread updates the cell chosen by its id.  The cells are doubled, up to
+ * twice the number of processors, whenever an update to a cell collides.  An uncontended counter therefore costs no
+ * more than an atomic long; in exchange, reading a contended counter has to sum all the cells and is only a snapshot
+ * while updates are in progress.
+ */
+final class StripedCounter
+{
+    /** longs in two 64 byte cache lines, so that adjacent line prefetch does not couple neighbouring values */
+    static final int PADDING = 16;
+
+    private static final int MAX_CELLS = stripesFor(Runtime.getRuntime().availableProcessors());
+
+    private static final AtomicLongFieldUpdater<StripedCounter> _baseUpdater =
+            AtomicLongFieldUpdater.newUpdater(StripedCounter.class, "_base");
+    private static final AtomicReferenceFieldUpdater<StripedCounter, Cell[]> _cellsUpdater =
+            AtomicReferenceFieldUpdater.newUpdater(StripedCounter.class, Cell[].class, "_cells");
+
+    private volatile long _base;
+    /** null until updates first collide; the length is always a power of two */
+    private volatile Cell[] _cells;
+
+    void increment()
+    {
+        add(1L);
+    }
+
+    void decrement()
+    {
+        add(-1L);
+    }
+
+    void add(long delta)
+    {
+        Cell[] cells = _cells;
+        if(cells == null)
+        {
+            long base = _base;
+            if(_baseUpdater.compareAndSet(this, base, base + delta))
+            {
+                return;
+            }
+            cells = expand(null);
+        }
+
+        Cell cell = cells[cellIndex(cells.length)];
+        long value = cell._value;
+        if(!cell.compareAndSet(value, value + delta))
+        {
+            if(cells.length < MAX_CELLS)
+            {
+                cells = expand(cells);
+                cell = cells[cellIndex(cells.length)];
+            }
+            cell.add(delta);
+        }
+    }
+
+    long get()
+    {
+        long sum = _base;
+        Cell[] cells = _cells;
+        if(cells != null)
+        {
+            for(Cell cell : cells)
+            {
+                sum += cell._value;
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * Replaces the given cells, or the missing cells, with twice as many.  Existing cells are carried over, so no
+     * update made to them is lost.
+     *
+     * @return the cells in use after the attempt, which may have been expanded by another thread instead
+     */
+    private Cell[] expand(Cell[] cells)
+    {
+        int length = cells == null ? 2 : cells.length << 1;
+        Cell[] expanded = new Cell[length];
+        int copied = 0;
+        if(cells != null)
+        {
+            System.arraycopy(cells, 0, expanded, 0, cells.length);
+            copied = cells.length;
+        }
+        for(int i = copied; i < length; i++)
+        {
+            expanded[i] = new Cell();
+        }
+        _cellsUpdater.compareAndSet(this, cells, expanded);
+        return _cells;
+    }
+
+    private static int cellIndex(int length)
+    {
+        long id = Thread.currentThread().getId();
+        int hash = (int) (id ^ (id >>> 32)) * 0x9E3779B9;
+        return (hash >>> 16) & (length - 1);
+    }
+
+    private static int stripesFor(int processors)
+    {
+        int stripes = 2;
+        while(stripes < processors * 2)
+        {
+            stripes <<= 1;
+        }
+        return stripes;
+    }
+
+    /**
+     * A single counter cell.  The unused fields pad the value out to two 64 byte cache lines, so that adjacent line
+     * prefetch does not couple neighbouring cells.
+     */
+    @SuppressWarnings("unused")
+    private static final class Cell
+    {
+        private static final AtomicLongFieldUpdater<Cell> _valueUpdater =
+                AtomicLongFieldUpdater.newUpdater(Cell.class, "_value");
+
+        private long _p0, _p1, _p2, _p3, _p4, _p5, _p6;
+        private volatile long _value;
+        private long _q0, _q1, _q2, _q3, _q4, _q5, _q6;
+
+        boolean compareAndSet(long expect, long update)
+        {
+            return _valueUpdater.compareAndSet(this, expect, update);
+        }
+
+        void add(long delta)
+        {
+            _valueUpdater.addAndGet(this, delta);
+        }
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.qpid.server.queue;
+
+import java.util.concurrent.CountDownLatch;
+
+import junit.framework.TestCase;
+
+public class StripedCounterTest extends TestCase
+{
+    public void testUncontendedUpdates()
+    {
+        StripedCounter counter = new StripedCounter();
+        assertEquals(0L, counter.get());
+
+        counter.increment();
+        counter.increment();
+        counter.add(40L);
+        counter.decrement();
+        counter.add(-11L);
+
+        assertEquals(30L, counter.get());
+    }
+
+    public void testConcurrentUpdatesAreNotLost() throws Exception
+    {
+        final StripedCounter counter = new StripedCounter();
+        final int threads = 8;
+        final int updates = 100000;
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] workers = new Thread[threads];
+        for(int i = 0; i < threads; i++)
+        {
+            final boolean adding = i % 2 == 0;
+            workers[i] = new Thread(new Runnable()
+            {
+                public void run()
+                {
+                    try
+                    {
+                        start.await();
+                    }
+                    catch (InterruptedException e)
+                    {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                    for(int j = 0; j < updates; j++)
+                    {
+                        if(adding)
+                        {
+                            counter.add(3L);
+                        }
+                        else
+                        {
+                            counter.decrement();
+                        }
+                    }
+                }
+            });
+            workers[i].start();
+        }
+        start.countDown();
+        for(Thread worker : workers)
+        {
+            worker.join();
+        }
+
+        assertEquals((threads / 2) * updates * 3L - (threads / 2) * (long) updates, counter.get());
+    }
+}
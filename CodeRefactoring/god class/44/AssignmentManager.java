@@ -40,9 +40,20 @@ public class AssignmentManager extends ZooKeeperListener {
   /** Plans for region movement. Key is the encoded version of a region name*/
   // TODO: When do plans get cleaned out?  Ever? In server open and in server
   // shutdown processing -- St.Ack
-  // All access to this Map must be synchronized.
+  // Read without locking; a get-then-put of a plan is done holding the lock
+  // of its region in regionLocks.
   final NavigableMap<String, RegionPlan> regionPlans =
-    new TreeMap<String, RegionPlan>();
+    new ConcurrentSkipListMap<String, RegionPlan>();
+
+  /**
+   * Per region locks.  Changes to the in-memory state of a region -- its entry
+   * in {@link #regionsInTransition}, {@link #regions} and {@link #servers} --
+   * are made holding the lock of that region so that ZooKeeper callbacks for
+   * different regions do not wait on each other.  Reads take no lock.
+   * {@link #regionsInTransition} and {@link #regions} are still used as
+   * monitors, but only to wait on and notify of changes.
+   */
+  private final RegionLocks regionLocks;
 
   private final ZKTable zkTable;
 
@@ -57,21 +68,33 @@ public class AssignmentManager extends ZooKeeperListener {
    * Server to regions assignment map.
    * Contains the set of regions currently assigned to a given server.
    * This Map and {@link #regions} are tied.  Always update this in tandem
-   * with the other under a lock on {@link #regions}.
+   * with the other holding the lock of the region in {@link #regionLocks}.
    * @see #regions
    */
-  private final NavigableMap<ServerName, Set<HRegionInfo>> servers =
-    new TreeMap<ServerName, Set<HRegionInfo>>();
+  private final ConcurrentNavigableMap<ServerName, Set<HRegionInfo>> servers =
+    new ConcurrentSkipListMap<ServerName, Set<HRegionInfo>>();
 
   /**
    * Region to server assignment map.
    * Contains the server a given region is currently assigned to.
    * This Map and {@link #servers} are tied.  Always update this in tandem
-   * with the other under a lock on {@link #regions}.
+   * with the other holding the lock of the region in {@link #regionLocks}.
    * @see #servers
    */
-  private final SortedMap<HRegionInfo, ServerName> regions =
-    new TreeMap<HRegionInfo, ServerName>();
+  private final ConcurrentNavigableMap<HRegionInfo, ServerName> regions =
+    new ConcurrentSkipListMap<HRegionInfo, ServerName>();
+
+  /**
+   * Table name to the regions of the table in {@link #regions}.
+   * Updated along with {@link #regions}, holding the lock of the region, so
+   * the regions of a table can be had without going through all regions.
+   * The set of a table is removed once it is empty.  Adds to and removals
+   * from a set hold its monitor, and an add only goes into the set still
+   * mapped to the table, so a region added concurrently with the removal of
+   * the last region of its table is not lost.
+   */
+  private final ConcurrentMap<String, Set<HRegionInfo>> regionsByTable =
+    new ConcurrentHashMap<String, Set<HRegionInfo>>();
 
   private final ExecutorService executorService;
 
@@ -90,7 +113,13 @@ public class AssignmentManager extends ZooKeeperListener {
   // Set holding all the regions which got processed while RIT was not 
   // populated during master failover. 
   private Map<String, HRegionInfo> failoverProcessedRegions =
-    new HashMap<String, HRegionInfo>();
+    new ConcurrentHashMap<String, HRegionInfo>();
+
+  // Regions to recover and regions recovered in the current run of
+  // processDeadServersAndRecoverLostRegions.
+  private final AtomicInteger regionsToRecover = new AtomicInteger(0);
+  private final AtomicInteger regionsRecovered = new AtomicInteger(0);
+  private final RecoveryMetrics recoveryMetrics;
 
   /**
    * Constructs a new assignment manager.
@@ -122,6 +151,9 @@ public class AssignmentManager extends ZooKeeperListener {
       this.master.getConfiguration().getInt("hbase.assignment.maximum.attempts", 10);
     this.balancer = LoadBalancerFactory.getLoadBalancer(conf);
     this.threadPoolExecutorService = Executors.newCachedThreadPool();
+    this.regionLocks = new RegionLocks(
+      conf.getInt("hbase.master.assignment.lock.stripes", 1024));
+    this.recoveryMetrics = new RecoveryMetrics(this);
   }
 
   void startTimeOutMonitor() {
@@ -138,13 +170,9 @@ public class AssignmentManager extends ZooKeeperListener {
   double getAverageLoad() {
     int totalLoad = 0;
     int numServers = 0;
-    // Sync on this.regions because access to this.servers always synchronizes
-    // in this order.
-    synchronized (this.regions) {
-      for (Map.Entry<ServerName, Set<HRegionInfo>> e: servers.entrySet()) {
-        numServers++;
-        totalLoad += e.getValue().size();
-      }
+    for (Map.Entry<ServerName, Set<HRegionInfo>> e: servers.entrySet()) {
+      numServers++;
+      totalLoad += e.getValue().size();
     }
     return (double)totalLoad / (double)numServers;
   }
@@ -165,9 +193,7 @@ public class AssignmentManager extends ZooKeeperListener {
    * @return HServerInfo The region server to which hri belongs
    */
   public ServerName getRegionServerOfRegion(HRegionInfo hri) {
-    synchronized (this.regions ) {
-      return regions.get(hri);
-    }
+    return regions.get(hri);
   }
 
   /**
@@ -186,18 +212,14 @@ public class AssignmentManager extends ZooKeeperListener {
    * @param plan 
    */
   public void addPlan(String encodedName, RegionPlan plan) {
-    synchronized (regionPlans) {
-      regionPlans.put(encodedName, plan);
-    }
+    regionPlans.put(encodedName, plan);
   }
 
   /**
    * Add a map of region plans.
    */
   public void addPlans(Map<String, RegionPlan> plans) {
-    synchronized (regionPlans) {
-      regionPlans.putAll(plans);
-    }
+    regionPlans.putAll(plans);
   }
 
   /**
@@ -256,9 +278,9 @@ public class AssignmentManager extends ZooKeeperListener {
   void joinCluster() throws IOException,
       KeeperException, InterruptedException {
     // Concurrency note: In the below the accesses on regionsInTransition are
-    // outside of a synchronization block where usually all accesses to RIT are
-    // synchronized.  The presumption is that in this case it is safe since this
-    // method is being played by a single thread on startup.
+    // made without the region locks where usually all changes to RIT are
+    // made holding them.  The presumption is that in this case it is safe
+    // since this method is being played by a single thread on startup.
 
     // TODO: Regions that have a null location and are not in regionsInTransitions
     // need to be handled.
@@ -313,27 +335,23 @@ public class AssignmentManager extends ZooKeeperListener {
     }
     // Run through all regions.  If they are not assigned and not in RIT, then
     // its a clean cluster startup, else its a failover.
-    synchronized (this.regions) {
-      for (Map.Entry<HRegionInfo, ServerName> e : this.regions.entrySet()) {
-        if (!e.getKey().isMetaTable() && e.getValue() != null) {
-          LOG.debug("Found " + e + " out on cluster");
-          this.failover = true;
-          break;
-        }
-        if (nodes.contains(e.getKey().getEncodedName())) {
-          LOG.debug("Found " + e.getKey().getRegionNameAsString() + " in RITs");
-          // Could be a meta region.
-          this.failover = true;
-          break;
-        }
+    for (Map.Entry<HRegionInfo, ServerName> e : this.regions.entrySet()) {
+      if (!e.getKey().isMetaTable() && e.getValue() != null) {
+        LOG.debug("Found " + e + " out on cluster");
+        this.failover = true;
+        break;
+      }
+      if (nodes.contains(e.getKey().getEncodedName())) {
+        LOG.debug("Found " + e.getKey().getRegionNameAsString() + " in RITs");
+        // Could be a meta region.
+        this.failover = true;
+        break;
       }
     }
 
     // Remove regions in RIT, they are possibly being processed by
     // ServerShutdownHandler.
-    synchronized (regionsInTransition) {
-      nodes.removeAll(regionsInTransition.keySet());
-    }
+    nodes.removeAll(regionsInTransition.keySet());
 
     // If we found user regions out on cluster, its a failover.
     if (this.failover) {
@@ -411,11 +429,24 @@ public class AssignmentManager extends ZooKeeperListener {
     String encodedRegionName = regionInfo.getEncodedName();
     LOG.info("Processing region " + regionInfo.getRegionNameAsString() +
       " in state " + data.getEventType());
-    List<HRegionInfo> hris = this.enablingTables.get(regionInfo.getTableNameAsString());
-    if (hris != null && !hris.isEmpty()) {
-      hris.remove(regionInfo);
-    }
-    synchronized (regionsInTransition) {
+    // Regions in transition may be processed by several threads at once
+    // during failover.
+    synchronized (this.enablingTables) {
+      List<HRegionInfo> hris =
+        this.enablingTables.get(regionInfo.getTableNameAsString());
+      if (hris != null && !hris.isEmpty()) {
+        hris.remove(regionInfo);
+      }
+    }
+    // The transition is decided and the in-memory state updated holding the
+    // lock of the region; znode writes and handlers, which may assign and so
+    // take the monitor of a RegionState, run once it is released.
+    boolean forceOffline = false;
+    boolean processOpening = false;
+    EventHandler handler = null;
+    Lock lock = this.regionLocks.getLock(encodedRegionName);
+    lock.lock();
+    try {
       RegionState regionState = regionsInTransition.get(encodedRegionName);
       if (regionState != null ||
           failoverProcessedRegions.containsKey(encodedRegionName)) {
@@ -430,11 +461,13 @@ public class AssignmentManager extends ZooKeeperListener {
             (data.getOrigin() == null || !serverManager.isServerOnline(data.getOrigin()))) {
           // If was on dead server, its closed now. Force to OFFLINE and this
           // will get it reassigned if appropriate
-          forceOffline(regionInfo, data);
+          handler = addToRITForClose(regionInfo, RegionState.State.OFFLINE,
+            data);
+          forceOffline = true;
         } else {
           // Just insert region into RIT.
           // If this never updates the timeout will trigger new assignment
-          regionsInTransition.put(encodedRegionName, new RegionState(
+          putRegionInTransition(encodedRegionName, new RegionState(
             regionInfo, RegionState.State.CLOSING,
             data.getStamp(), data.getOrigin()));
         }
@@ -444,7 +477,7 @@ public class AssignmentManager extends ZooKeeperListener {
       case RS_ZK_REGION_CLOSED:
       case RS_ZK_REGION_FAILED_OPEN:
         // Region is closed, insert into RIT and handle it
-        addToRITandCallClose(regionInfo, RegionState.State.CLOSED, data);
+        handler = addToRITForClose(regionInfo, RegionState.State.CLOSED, data);
         failoverProcessedRegions.put(encodedRegionName, regionInfo);
         break;
 
@@ -455,14 +488,16 @@ public class AssignmentManager extends ZooKeeperListener {
             (data.getOrigin() == null ||
               !serverManager.isServerOnline(data.getOrigin()))) {
           // Region is offline, insert into RIT and handle it like a closed
-          addToRITandCallClose(regionInfo, RegionState.State.OFFLINE, data);
+          handler = addToRITForClose(regionInfo, RegionState.State.OFFLINE,
+            data);
         } else if (data.getOrigin() != null &&
             !serverManager.isServerOnline(data.getOrigin())) {
           // to handle cases where offline node is created but sendRegionOpen
           // RPC is not yet sent
-          addToRITandCallClose(regionInfo, RegionState.State.OFFLINE, data);
+          handler = addToRITForClose(regionInfo, RegionState.State.OFFLINE,
+            data);
         } else {
-          regionsInTransition.put(encodedRegionName, new RegionState(
+          putRegionInTransition(encodedRegionName, new RegionState(
               regionInfo, RegionState.State.PENDING_OPEN, data.getStamp(), data
                   .getOrigin()));
         }
@@ -476,7 +511,7 @@ public class AssignmentManager extends ZooKeeperListener {
         // Just insert region into RIT
         // If this never updates the timeout will trigger new assignment
         if (regionInfo.isMetaTable()) {
-          regionsInTransition.put(encodedRegionName, new RegionState(
+          putRegionInTransition(encodedRegionName, new RegionState(
               regionInfo, RegionState.State.OPENING, data.getStamp(), data
                   .getOrigin()));
           // If ROOT or .META. table is waiting for timeout monitor to assign
@@ -484,17 +519,17 @@ public class AssignmentManager extends ZooKeeperListener {
           // the default value which may be very long.  We will not be able
           // to serve any request during this time.
           // So we will assign the ROOT and .META. region immediately.
-          processOpeningState(regionInfo);
+          processOpening = true;
           break;
         }
-        regionsInTransition.put(encodedRegionName, new RegionState(regionInfo,
+        putRegionInTransition(encodedRegionName, new RegionState(regionInfo,
             RegionState.State.OPENING, data.getStamp(), data.getOrigin()));
         failoverProcessedRegions.put(encodedRegionName, regionInfo);
         break;
 
       case RS_ZK_REGION_OPENED:
         // Region is opened, insert into RIT and handle it
-        regionsInTransition.put(encodedRegionName, new RegionState(
+        putRegionInTransition(encodedRegionName, new RegionState(
             regionInfo, RegionState.State.OPEN,
             data.getStamp(), data.getOrigin()));
         ServerName sn = data.getOrigin() == null? null: data.getOrigin();
@@ -508,20 +543,30 @@ public class AssignmentManager extends ZooKeeperListener {
         } else if (!serverManager.isServerOnline(sn)
             && (isOnDeadServer(regionInfo, deadServers)
                 || regionInfo.isMetaRegion() || regionInfo.isRootRegion())) {
-          forceOffline(regionInfo, data);
+          handler = addToRITForClose(regionInfo, RegionState.State.OFFLINE,
+            data);
+          forceOffline = true;
         } else {
-          new OpenedRegionHandler(master, this, regionInfo, sn, expectedVersion)
-              .process();
+          handler = new OpenedRegionHandler(master, this, regionInfo, sn,
+            expectedVersion);
         }
         failoverProcessedRegions.put(encodedRegionName, regionInfo);
         break;
       }
+    } finally {
+      lock.unlock();
     }
+    if (forceOffline) forceOffline(regionInfo, data);
+    if (processOpening) processOpeningState(regionInfo);
+    if (handler != null) handler.process();
   }
   
 
   /**
-   * Put the region <code>hri</code> into an offline state up in zk.
+   * Put the region <code>hri</code> into an offline state up in zk.  The
+   * region is to be in transition already, OFFLINE, and is then handled like
+   * a close; this will get it reassigned if appropriate.
+   * Caller must not hold the lock of the region.
    * @param hri
    * @param oldData
    * @throws KeeperException
@@ -529,27 +574,27 @@ public class AssignmentManager extends ZooKeeperListener {
   private void forceOffline(final HRegionInfo hri,
       final RegionTransitionData oldData)
   throws KeeperException {
-    // If was on dead server, its closed now.  Force to OFFLINE and then
-    // handle it like a close; this will get it reassigned if appropriate
+    // If was on dead server, its closed now.
     LOG.debug("RIT " + hri.getEncodedName() + " in state=" +
       oldData.getEventType() + " was on deadserver; forcing offline");
     ZKAssign.createOrForceNodeOffline(this.watcher, hri,
       this.master.getServerName());
-    addToRITandCallClose(hri, RegionState.State.OFFLINE, oldData);
   }
 
   /**
-   * Add to the in-memory copy of regions in transition and then call close
-   * handler on passed region <code>hri</code>
+   * Add to the in-memory copy of regions in transition.
+   * Caller must hold the lock of the region, and run the returned handler
+   * once it has released it.
    * @param hri
    * @param state
    * @param oldData
+   * @return The close handler to run on passed region <code>hri</code>.
    */
-  private void addToRITandCallClose(final HRegionInfo hri,
+  private EventHandler addToRITForClose(final HRegionInfo hri,
       final RegionState.State state, final RegionTransitionData oldData) {
-    this.regionsInTransition.put(hri.getEncodedName(),
+    putRegionInTransition(hri.getEncodedName(),
       new RegionState(hri, state, oldData.getStamp(), oldData.getOrigin()));
-    new ClosedRegionHandler(this.master, this, hri).process();
+    return new ClosedRegionHandler(this.master, this, hri);
   }
 
   /**
@@ -593,19 +638,33 @@ public class AssignmentManager extends ZooKeeperListener {
    * @param expectedVersion
    */
   private void handleRegion(final RegionTransitionData data, int expectedVersion) {
-    synchronized(regionsInTransition) {
+    if (data == null || data.getOrigin() == null) {
+      LOG.warn("Unexpected NULL input " + data);
+      return;
+    }
+    String encodedName = HRegionInfo.encodeRegionName(data.getRegionName());
+    ServerName sn = data.getOrigin();
+    // Check if this is a special HBCK transition; it assigns, so must not
+    // hold the lock of the region.
+    if (sn.equals(HConstants.HBCK_CODE_SERVERNAME)) {
+      handleHBCK(data);
+      return;
+    }
+    // A callback that came while regions in transition were not yet populated
+    // during failover needs the region from .META.; read it before taking the
+    // lock of the region rather than holding the lock across the read.
+    HRegionInfo failoverRegion = null;
+    if (isUnprocessedInFailover(encodedName)) {
+      failoverRegion = getHRegionInfo(data);
+    }
+    // Handlers found while failover is in progress run once the lock is
+    // released, as they may delete znodes and assign; the others are
+    // submitted to the executor.
+    EventHandler handler = null;
+    Lock lock = this.regionLocks.getLock(encodedName);
+    lock.lock();
+    try {
       HRegionInfo hri = null;
-      if (data == null || data.getOrigin() == null) {
-        LOG.warn("Unexpected NULL input " + data);
-        return;
-      }
-      ServerName sn = data.getOrigin();
-      // Check if this is a special HBCK transition
-      if (sn.equals(HConstants.HBCK_CODE_SERVERNAME)) {
-        handleHBCK(data);
-        return;
-      }
-      String encodedName = HRegionInfo.encodeRegionName(data.getRegionName());
       String prettyPrintedRegionName = HRegionInfo.prettyPrint(encodedName);
       // Verify this is a known server
       if (!serverManager.isServerOnline(sn) &&
@@ -672,11 +731,11 @@ public class AssignmentManager extends ZooKeeperListener {
           break;
 
         case M_ZK_REGION_CLOSING:
-          hri = checkIfInFailover(regionState, encodedName, data);
+          hri = checkIfInFailover(regionState, encodedName, failoverRegion);
           if (hri != null) {
             regionState = new RegionState(hri, RegionState.State.CLOSING, data
                .getStamp(), data.getOrigin());
-            regionsInTransition.put(encodedName, regionState);
+            putRegionInTransition(encodedName, regionState);
             failoverProcessedRegions.put(encodedName, hri);
             break;
           }
@@ -696,14 +755,14 @@ public class AssignmentManager extends ZooKeeperListener {
           break;
 
         case RS_ZK_REGION_CLOSED:
-          hri = checkIfInFailover(regionState, encodedName, data);
+          hri = checkIfInFailover(regionState, encodedName, failoverRegion);
           if (hri != null) {
             regionState = new RegionState(hri, RegionState.State.CLOSED, data
                 .getStamp(), data.getOrigin());
-            regionsInTransition.put(encodedName, regionState);
+            putRegionInTransition(encodedName, regionState);
             removeClosedRegion(regionState.getRegion());
-            new ClosedRegionHandler(master, this, regionState.getRegion())
-              .process();
+            handler = new ClosedRegionHandler(master, this,
+              regionState.getRegion());
             failoverProcessedRegions.put(encodedName, hri);
             break;
           }
@@ -727,13 +786,13 @@ public class AssignmentManager extends ZooKeeperListener {
           break;
           
         case RS_ZK_REGION_FAILED_OPEN:
-          hri = checkIfInFailover(regionState, encodedName, data);
+          hri = checkIfInFailover(regionState, encodedName, failoverRegion);
           if (hri != null) {
             regionState = new RegionState(hri, RegionState.State.CLOSED, data
                 .getStamp(), data.getOrigin());
-            regionsInTransition.put(encodedName, regionState);
-            new ClosedRegionHandler(master, this, regionState.getRegion())
-              .process();
+            putRegionInTransition(encodedName, regionState);
+            handler = new ClosedRegionHandler(master, this,
+              regionState.getRegion());
             failoverProcessedRegions.put(encodedName, hri);
             break;
           }
@@ -752,11 +811,11 @@ public class AssignmentManager extends ZooKeeperListener {
           break;
 
         case RS_ZK_REGION_OPENING:
-          hri = checkIfInFailover(regionState, encodedName, data);       
+          hri = checkIfInFailover(regionState, encodedName, failoverRegion);
           if (hri != null) {
             regionState = new RegionState(hri, RegionState.State.OPENING, data
                 .getStamp(), data.getOrigin());
-            regionsInTransition.put(encodedName, regionState);
+            putRegionInTransition(encodedName, regionState);
             failoverProcessedRegions.put(encodedName, hri);
             break;
           }
@@ -777,13 +836,13 @@ public class AssignmentManager extends ZooKeeperListener {
           break;
 
         case RS_ZK_REGION_OPENED:
-          hri = checkIfInFailover(regionState, encodedName, data);
+          hri = checkIfInFailover(regionState, encodedName, failoverRegion);
           if (hri != null) {
             regionState = new RegionState(hri, RegionState.State.OPEN, data
                 .getStamp(), data.getOrigin());
-            regionsInTransition.put(encodedName, regionState);
-            new OpenedRegionHandler(master, this, regionState.getRegion(), data
-              .getOrigin(), expectedVersion).process();
+            putRegionInTransition(encodedName, regionState);
+            handler = new OpenedRegionHandler(master, this,
+              regionState.getRegion(), data.getOrigin(), expectedVersion);
             failoverProcessedRegions.put(encodedName, hri);
             break;
           }
@@ -805,7 +864,10 @@ public class AssignmentManager extends ZooKeeperListener {
               data.getOrigin(), expectedVersion));
           break;
       }
+    } finally {
+      lock.unlock();
     }
+    if (handler != null) handler.process();
   }
 
   /**
@@ -813,20 +875,29 @@ public class AssignmentManager extends ZooKeeperListener {
    * master failover.
    * @param regionState
    * @param encodedName
-   * @param data
+   * @param failoverRegion The region as read from .META. before the lock of
+   * the region was taken; null if it was not read or not found.
    * @return hri
    */
   private HRegionInfo checkIfInFailover(RegionState regionState,
-      String encodedName, RegionTransitionData data) {
-    if (regionState == null && this.failover &&
-        (failoverProcessedRegions.containsKey(encodedName) == false ||
-          failoverProcessedRegions.get(encodedName) == null)) {
-      HRegionInfo hri = this.failoverProcessedRegions.get(encodedName);
-      if (hri == null) hri = getHRegionInfo(data);
-      return hri;
+      String encodedName, HRegionInfo failoverRegion) {
+    if (regionState == null && isUnprocessedInFailover(encodedName)) {
+      // A region only becomes unprocessed by leaving transition, and regions
+      // put in transition during failover are marked processed, so the region
+      // was read from .META. if it is needed here.
+      return failoverRegion;
     }
     return null;
   }
+
+  /**
+   * @param encodedName
+   * @return True if failover is in progress and has not processed the region.
+   */
+  private boolean isUnprocessedInFailover(final String encodedName) {
+    return this.failover &&
+      !this.failoverProcessedRegions.containsKey(encodedName);
+  }
   
   /**
    * Gets the HRegionInfo from the META table
@@ -886,19 +957,17 @@ public class AssignmentManager extends ZooKeeperListener {
    */
   private RegionState addSplittingToRIT(final ServerName serverName,
       final String encodedName) {
-    RegionState regionState = null;
-    synchronized (this.regions) {
-      regionState = findHRegionInfoThenAddToRIT(serverName, encodedName);
-      if (regionState != null) {
-        regionState.update(RegionState.State.SPLITTING,
-          System.currentTimeMillis(), serverName);
-      }
+    RegionState regionState =
+      findHRegionInfoThenAddToRIT(serverName, encodedName);
+    if (regionState != null) {
+      regionState.update(RegionState.State.SPLITTING,
+        System.currentTimeMillis(), serverName);
     }
     return regionState;
   }
 
   /**
-   * Caller must hold lock on <code>this.regions</code>.
+   * Caller must hold the lock of the region.
    * @param serverName
    * @param encodedName
    * @return The instance of RegionState that was added to RIT or null if error.
@@ -916,7 +985,6 @@ public class AssignmentManager extends ZooKeeperListener {
   }
 
   /**
-   * Caller must hold lock on <code>this.regions</code>.
    * @param serverName
    * @param encodedName
    * @return Found HRegionInfo or null.
@@ -925,6 +993,7 @@ public class AssignmentManager extends ZooKeeperListener {
       final String encodedName) {
     if (!this.serverManager.isServerOnline(sn)) return null;
     Set<HRegionInfo> hris = this.servers.get(sn);
+    if (hris == null) return null;
     HRegionInfo foundHri = null;
     for (HRegionInfo hri: hris) {
       if (hri.getEncodedName().equals(encodedName)) {
@@ -1103,27 +1172,34 @@ public class AssignmentManager extends ZooKeeperListener {
    * @param sn
    */
   void regionOnline(HRegionInfo regionInfo, ServerName sn) {
-    synchronized (this.regionsInTransition) {
-      RegionState rs =
-        this.regionsInTransition.remove(regionInfo.getEncodedName());
-      if (rs != null) {
-        this.regionsInTransition.notifyAll();
-      }
-    }
-    synchronized (this.regions) {
+    boolean online = false;
+    Lock lock = this.regionLocks.getLock(regionInfo.getEncodedName());
+    lock.lock();
+    try {
+      removeFromRegionsInTransition(regionInfo);
       // Add check
       ServerName oldSn = this.regions.get(regionInfo);
       if (oldSn != null) LOG.warn("Overwriting " + regionInfo.getEncodedName() +
         " on " + oldSn + " with " + sn);
       
       if (isServerOnline(sn)) {
-        this.regions.put(regionInfo, sn);
+        if (oldSn != null && !oldSn.equals(sn)) {
+          removeFromServers(oldSn, regionInfo);
+        }
+        addToRegions(regionInfo, sn);
         addToServers(sn, regionInfo);
-        this.regions.notifyAll();
+        online = true;
       } else {
         LOG.info("The server is not in online servers, ServerName=" + 
           sn.getServerName() + ", region=" + regionInfo.getEncodedName());
       }
+    } finally {
+      lock.unlock();
+    }
+    if (online) {
+      synchronized (this.regions) {
+        this.regions.notifyAll();
+      }
     }
     // Remove plan if one.
     clearRegionPlan(regionInfo);
@@ -1145,21 +1221,13 @@ public class AssignmentManager extends ZooKeeperListener {
    * @param sn
    */
   private void updateTimers(final ServerName sn) {
-    // This loop could be expensive.
-    // First make a copy of current regionPlan rather than hold sync while
-    // looping because holding sync can cause deadlock.  Its ok in this loop
-    // if the Map we're going against is a little stale
-    Map<String, RegionPlan> copy = new HashMap<String, RegionPlan>();
-    synchronized(this.regionPlans) {
-      copy.putAll(this.regionPlans);
-    }
-    for (Map.Entry<String, RegionPlan> e: copy.entrySet()) {
+    // This loop could be expensive.  Its ok in this loop if the Map we're
+    // going against is a little stale; the iterator of regionPlans does not
+    // throw on concurrent change.
+    for (Map.Entry<String, RegionPlan> e: this.regionPlans.entrySet()) {
       if (e.getValue() == null || e.getValue().getDestination() == null) continue;
       if (!e.getValue().getDestination().equals(sn)) continue;
-      RegionState rs = null;
-      synchronized (this.regionsInTransition) {
-        rs = this.regionsInTransition.get(e.getKey());
-      }
+      RegionState rs = this.regionsInTransition.get(e.getKey());
       if (rs == null) continue;
       rs.updateTimestampToNow();
     }
@@ -1173,14 +1241,16 @@ public class AssignmentManager extends ZooKeeperListener {
    * @param regionInfo
    */
   public void regionOffline(final HRegionInfo regionInfo) {
-    synchronized(this.regionsInTransition) {
-      if (this.regionsInTransition.remove(regionInfo.getEncodedName()) != null) {
-        this.regionsInTransition.notifyAll();
-      }
+    Lock lock = this.regionLocks.getLock(regionInfo.getEncodedName());
+    lock.lock();
+    try {
+      removeFromRegionsInTransition(regionInfo);
+      // remove the region plan as well just in case.
+      clearRegionPlan(regionInfo);
+      setOffline(regionInfo);
+    } finally {
+      lock.unlock();
     }
-    // remove the region plan as well just in case.
-    clearRegionPlan(regionInfo);
-    setOffline(regionInfo);
   }
 
   /**
@@ -1191,13 +1261,16 @@ public class AssignmentManager extends ZooKeeperListener {
    * @param regionInfo
    */
   public void setOffline(HRegionInfo regionInfo) {
-    synchronized (this.regions) {
-      ServerName sn = this.regions.remove(regionInfo);
+    Lock lock = this.regionLocks.getLock(regionInfo.getEncodedName());
+    lock.lock();
+    try {
+      ServerName sn = removeFromRegions(regionInfo);
       if (sn == null) return;
-      Set<HRegionInfo> serverRegions = this.servers.get(sn);
-      if (!serverRegions.remove(regionInfo)) {
+      if (!removeFromServers(sn, regionInfo)) {
         LOG.warn("No " + regionInfo + " on " + sn);
       }
+    } finally {
+      lock.unlock();
     }
   }
 
@@ -1268,8 +1341,10 @@ public class AssignmentManager extends ZooKeeperListener {
         region.getRegionNameAsString());
       return;
     }
-    RegionState state = addToRegionsInTransition(region,
-        hijack);
+    // The region lock is held only while the in-memory state is changed; the
+    // ZooKeeper writes and open RPC below run under the RegionState monitor
+    // alone, so regions sharing a lock stripe do not wait on them.
+    RegionState state = addToRegionsInTransition(region, hijack);
     synchronized (state) {
       assign(region, state, setOfflineInZK, forceNewPlan, hijack);
     }
@@ -1289,10 +1364,8 @@ public class AssignmentManager extends ZooKeeperListener {
       destination.toString());
 
     List<RegionState> states = new ArrayList<RegionState>(regions.size());
-    synchronized (this.regionsInTransition) {
-      for (HRegionInfo region: regions) {
-        states.add(forceRegionStateToOffline(region));
-      }
+    for (HRegionInfo region: regions) {
+      states.add(addToRegionsInTransition(region));
     }
     // Add region plans, so we can updateTimers when one region is opened so
     // that unnecessary timeout on RIT is reduced.
@@ -1306,12 +1379,9 @@ public class AssignmentManager extends ZooKeeperListener {
     // Presumption is that only this thread will be updating the state at this
     // time; i.e. handlers on backend won't be trying to set it to OPEN, etc.
     AtomicInteger counter = new AtomicInteger(0);
-    CreateUnassignedAsyncCallback cb =
-      new CreateUnassignedAsyncCallback(this.watcher, destination, counter);
-    for (RegionState state: states) {
-      if (!asyncSetOfflineInZooKeeper(state, cb, state)) {
-        return;
-      }
+    Set<HRegionInfo> skipped = new ConcurrentSkipListSet<HRegionInfo>();
+    if (!batchSetOfflineInZooKeeper(destination, states, counter, skipped)) {
+      return;
     }
     // Wait until all unassigned nodes have been put up and watchers set.
     int total = regions.size();
@@ -1325,6 +1395,20 @@ public class AssignmentManager extends ZooKeeperListener {
       if (count == total) break;
       Threads.sleep(1);
     }
+    // Regions whose znode could not be watched or was in another state are
+    // left in transition for the timeout monitor.
+    final List<HRegionInfo> toOpen;
+    if (skipped.isEmpty()) {
+      toOpen = regions;
+    } else {
+      toOpen = new ArrayList<HRegionInfo>(regions.size());
+      for (HRegionInfo region: regions) {
+        if (!skipped.contains(region)) toOpen.add(region);
+      }
+      LOG.warn("Not opening " + skipped.size() + " region(s) on " +
+        destination + " whose unassigned znode was not set OFFLINE");
+      if (toOpen.isEmpty()) return;
+    }
     // Move on to open regions.
     try {
       // Send OPEN RPC. If it fails on a IOE or RemoteException, the
@@ -1334,7 +1418,7 @@ public class AssignmentManager extends ZooKeeperListener {
           getLong("hbase.regionserver.rpc.startup.waittime", 60000);
       while (!this.master.isStopped()) {
         try {
-          this.serverManager.sendRegionOpen(destination, regions);
+          this.serverManager.sendRegionOpen(destination, toOpen);
           break;
         } catch (RemoteException e) {
           IOException decodedException = e.unwrapRemoteException();
@@ -1366,70 +1450,152 @@ public class AssignmentManager extends ZooKeeperListener {
   }
 
   /**
-   * Callback handler for create unassigned znodes used during bulk assign.
-   */
-  static class CreateUnassignedAsyncCallback implements AsyncCallback.StringCallback {
-    private final Log LOG = LogFactory.getLog(CreateUnassignedAsyncCallback.class);
-    private final ZooKeeperWatcher zkw;
-    private final ServerName destination;
-    private final AtomicInteger counter;
-
-    CreateUnassignedAsyncCallback(final ZooKeeperWatcher zkw,
-        final ServerName destination, final AtomicInteger counter) {
-      this.zkw = zkw;
-      this.destination = destination;
-      this.counter = counter;
-    }
-
-    @Override
-    public void processResult(int rc, String path, Object ctx, String name) {
-      if (rc != 0) {
-        // Thisis resultcode.  If non-zero, need to resubmit.
-        LOG.warn("rc != 0 for " + path + " -- retryable connectionloss -- " +
-          "FIX see http://wiki.apache.org/hadoop/ZooKeeper/FAQ#A2");
-        this.zkw.abort("Connectionloss writing unassigned at " + path +
-          ", rc=" + rc, null);
-        return;
+   * Set the regions of a bulk assign OFFLINE up in zookeeper.  The znodes are
+   * created <code>hbase.bulk.assignment.znode.batch</code> at a time in a
+   * single zookeeper multi (or one by one if
+   * <code>hbase.zookeeper.useMulti</code> is off), rather than with one round
+   * trip each.  A znode that is already there is left as it is.  The znodes
+   * are then read back and watched asynchronously with no more than
+   * <code>hbase.bulk.assignment.znode.inflight</code> requests outstanding;
+   * <code>counter</code> is incremented as each read completes.  A region
+   * whose znode turns out not to be OFFLINE, or could not be read, is added to
+   * <code>skipped</code> rather than moved to PENDING_OPEN.
+   * @param destination Server the regions are to be opened on.
+   * @param states States of the regions; each must be CLOSED or OFFLINE.
+   * @param counter Count of regions whose znode has been read and watched.
+   * @param skipped Regions not to open.
+   * @return True if we succeeded, false otherwise (State was incorrect or
+   * failed updating zk).
+   */
+  boolean batchSetOfflineInZooKeeper(final ServerName destination,
+      final List<RegionState> states, final AtomicInteger counter,
+      final Set<HRegionInfo> skipped) {
+    Configuration conf = this.master.getConfiguration();
+    int batchSize = conf.getInt("hbase.bulk.assignment.znode.batch", 100);
+    Semaphore inFlight =
+      new Semaphore(conf.getInt("hbase.bulk.assignment.znode.inflight", 1000));
+    GetDataUnassignedAsyncCallback cb = new GetDataUnassignedAsyncCallback(
+      this.watcher, counter, skipped, destination, inFlight,
+      conf.getInt("hbase.bulk.assignment.znode.retries", 3));
+    List<ZKUtilOp> ops = new ArrayList<ZKUtilOp>(batchSize);
+    List<RegionState> batch = new ArrayList<RegionState>(batchSize);
+    for (Iterator<RegionState> i = states.iterator(); i.hasNext();) {
+      RegionState state = i.next();
+      if (!state.isClosed() && !state.isOffline()) {
+        this.master.abort("Unexpected state trying to OFFLINE; " + state,
+          new IllegalStateException());
+        return false;
+      }
+      state.update(RegionState.State.OFFLINE);
+      RegionTransitionData data = new RegionTransitionData(
+        EventType.M_ZK_REGION_OFFLINE, state.getRegion().getRegionName(),
+        this.master.getServerName());
+      ops.add(ZKUtilOp.createAndFailSilent(ZKAssign.getNodeName(this.watcher,
+        state.getRegion().getEncodedName()), data.getBytes()));
+      batch.add(state);
+      if (batch.size() < batchSize && i.hasNext()) continue;
+      try {
+        // A multi fails as a whole if any znode is already there, whereas the
+        // sequential fallback creates the rest and leaves existing ones be.
+        ZKUtil.multiOrSequential(this.watcher, ops, true);
+      } catch (KeeperException e) {
+        master.abort("Unexpected ZK exception creating nodes OFFLINE", e);
+        return false;
       }
-      LOG.debug("rs=" + (RegionState)ctx + ", server=" + this.destination.toString());
-      // Async exists to set a watcher so we'll get triggered when
-      // unassigned node changes.
-      this.zkw.getRecoverableZooKeeper().getZooKeeper().exists(path, this.zkw,
-        new ExistsUnassignedAsyncCallback(this.counter, destination), ctx);
+      // Async getData to check the state of the znode and set a watcher so
+      // we'll get triggered when unassigned node changes.
+      for (RegionState created: batch) {
+        try {
+          inFlight.acquire();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          LOG.warn("Interrupted setting watchers on unassigned znodes", e);
+          return false;
+        }
+        this.watcher.getRecoverableZooKeeper().getZooKeeper().getData(
+          ZKAssign.getNodeName(this.watcher,
+            created.getRegion().getEncodedName()), this.watcher, cb, created);
+      }
+      ops.clear();
+      batch.clear();
     }
+    return true;
   }
 
   /**
-   * Callback handler for the exists call that sets watcher on unassigned znodes.
-   * Used during bulk assign on startup.
+   * Callback handler for the getData call that checks the state of an
+   * unassigned znode and sets a watcher on it.  Used during bulk assign.
    */
-  static class ExistsUnassignedAsyncCallback implements AsyncCallback.StatCallback {
-    private final Log LOG = LogFactory.getLog(ExistsUnassignedAsyncCallback.class);
+  static class GetDataUnassignedAsyncCallback
+  implements AsyncCallback.DataCallback {
+    private final Log LOG = LogFactory.getLog(GetDataUnassignedAsyncCallback.class);
+    private final ZooKeeperWatcher zkw;
     private final AtomicInteger counter;
+    private final Set<HRegionInfo> skipped;
     private ServerName destination;
-
-    ExistsUnassignedAsyncCallback(final AtomicInteger counter, ServerName destination) {
+    // Permits of outstanding requests, one per request until it completes.
+    private final Semaphore inFlight;
+    // Times a request may still be resubmitted after a connection loss.
+    private final int retries;
+
+    GetDataUnassignedAsyncCallback(final ZooKeeperWatcher zkw,
+        final AtomicInteger counter, final Set<HRegionInfo> skipped,
+        final ServerName destination, final Semaphore inFlight,
+        final int retries) {
+      this.zkw = zkw;
       this.counter = counter;
+      this.skipped = skipped;
       this.destination = destination;
+      this.inFlight = inFlight;
+      this.retries = retries;
     }
 
     @Override
-    public void processResult(int rc, String path, Object ctx, Stat stat) {
-      if (rc != 0) {
-        // Thisis resultcode.  If non-zero, need to resubmit.
-        LOG.warn("rc != 0 for " + path + " -- retryable connectionloss -- " +
-          "FIX see http://wiki.apache.org/hadoop/ZooKeeper/FAQ#A2");
+    public void processResult(int rc, String path, Object ctx, byte[] data,
+        Stat stat) {
+      if (rc == KeeperException.Code.CONNECTIONLOSS.intValue() &&
+          this.retries > 0) {
+        // The resubmitted request keeps the permit of this one, so the
+        // number outstanding stays bounded without blocking the event thread.
+        LOG.warn("Connection loss reading " + path + "; retrying");
+        this.zkw.getRecoverableZooKeeper().getZooKeeper().getData(path,
+          this.zkw, new GetDataUnassignedAsyncCallback(this.zkw, this.counter,
+            this.skipped, this.destination, this.inFlight, this.retries - 1),
+          ctx);
         return;
       }
+      this.inFlight.release();
       RegionState state = (RegionState)ctx;
-      LOG.debug("rs=" + state);
-      // Transition RegionState to PENDING_OPEN here in master; means we've
-      // sent the open.  We're a little ahead of ourselves here since we've not
-      // yet sent out the actual open but putting this state change after the
-      // call to open risks our writing PENDING_OPEN after state has been moved
-      // to OPENING by the regionserver.
-      state.update(RegionState.State.PENDING_OPEN, System.currentTimeMillis(), destination);
-      this.counter.addAndGet(1);
+      try {
+        if (rc != 0) {
+          LOG.warn("rc=" + rc + " reading " + path + "; leaving " + state +
+            " to the timeout monitor");
+          this.skipped.add(state.getRegion());
+          return;
+        }
+        RegionTransitionData rtd = RegionTransitionData.fromBytes(data);
+        if (rtd == null ||
+            rtd.getEventType() != EventType.M_ZK_REGION_OFFLINE) {
+          // The znode was already there, and is not OFFLINE; the master would
+          // abort here before bulk assign created the znodes in batches.
+          LOG.warn("Unassigned znode " + path + " was already there in state " +
+            (rtd == null? "null": rtd.getEventType() + " from " +
+              rtd.getOrigin()) + "; leaving " + state +
+            " to the timeout monitor");
+          this.skipped.add(state.getRegion());
+          return;
+        }
+        LOG.debug("rs=" + state);
+        // Transition RegionState to PENDING_OPEN here in master; means we've
+        // sent the open.  We're a little ahead of ourselves here since we've
+        // not yet sent out the actual open but putting this state change
+        // after the call to open risks our writing PENDING_OPEN after state
+        // has been moved to OPENING by the regionserver.
+        state.update(RegionState.State.PENDING_OPEN,
+          System.currentTimeMillis(), destination);
+      } finally {
+        this.counter.addAndGet(1);
+      }
     }
   }
 
@@ -1447,13 +1613,17 @@ public class AssignmentManager extends ZooKeeperListener {
    */
   private RegionState addToRegionsInTransition(final HRegionInfo region,
       boolean hijack) {
-    synchronized (regionsInTransition) {
+    Lock lock = this.regionLocks.getLock(region.getEncodedName());
+    lock.lock();
+    try {
       return forceRegionStateToOffline(region, hijack);
+    } finally {
+      lock.unlock();
     }
   }
   /**
    * Sets regions {@link RegionState} to {@link RegionState.State#OFFLINE}.
-   * Caller must hold lock on this.regionsInTransition.
+   * Caller must hold the lock of the region.
    * @param region
    * @return Amended RegionState.
    */
@@ -1463,7 +1633,7 @@ public class AssignmentManager extends ZooKeeperListener {
 
   /**
    * Sets regions {@link RegionState} to {@link RegionState.State#OFFLINE}.
-   * Caller must hold lock on this.regionsInTransition.
+   * Caller must hold the lock of the region.
    * @param region
    * @param hijack
    * @return Amended RegionState.
@@ -1474,7 +1644,7 @@ public class AssignmentManager extends ZooKeeperListener {
     RegionState state = this.regionsInTransition.get(encodedName);
     if (state == null) {
       state = new RegionState(region, RegionState.State.OFFLINE);
-      this.regionsInTransition.put(encodedName, state);
+      putRegionInTransition(encodedName, state);
     } else {
       // If we are reassigning the node do not force in-memory state to OFFLINE.
       // Based on the znode state we will decide if to change
@@ -1489,7 +1659,8 @@ public class AssignmentManager extends ZooKeeperListener {
   }
 
   /**
-   * Caller must hold lock on the passed <code>state</code> object.
+   * Caller must hold the monitor of the passed <code>state</code> object, and
+   * not the lock of the region.
    * @param state
    * @param setOfflineInZK
    * @param forceNewPlan
@@ -1556,12 +1727,13 @@ public class AssignmentManager extends ZooKeeperListener {
                 "Error deleting OFFLINED node in ZK for transition ZK node ("
                     + encodedRegionName + ")", e);
           }
-          synchronized (this.regionsInTransition) {
-            this.regionsInTransition.remove(plan.getRegionInfo()
-                .getEncodedName());
-          }
-          synchronized (this.regions) {
-            this.regions.put(plan.getRegionInfo(), plan.getDestination());
+          Lock lock = this.regionLocks.getLock(encodedRegionName);
+          lock.lock();
+          try {
+            removeFromRegionsInTransition(plan.getRegionInfo());
+            addToRegions(plan.getRegionInfo(), plan.getDestination());
+          } finally {
+            lock.unlock();
           }
         }
         break;
@@ -1686,31 +1858,6 @@ public class AssignmentManager extends ZooKeeperListener {
     return versionOfOfflineNode;
   }
 
-  /**
-   * Set region as OFFLINED up in zookeeper asynchronously.
-   * @param state
-   * @return True if we succeeded, false otherwise (State was incorrect or failed
-   * updating zk).
-   */
-  boolean asyncSetOfflineInZooKeeper(final RegionState state,
-      final AsyncCallback.StringCallback cb, final Object ctx) {
-    if (!state.isClosed() && !state.isOffline()) {
-        new RuntimeException("Unexpected state trying to OFFLINE; " + state);
-      this.master.abort("Unexpected state trying to OFFLINE; " + state,
-        new IllegalStateException());
-      return false;
-    }
-    state.update(RegionState.State.OFFLINE);
-    try {
-      ZKAssign.asyncCreateNodeOffline(master.getZooKeeper(), state.getRegion(),
-        this.master.getServerName(), cb, ctx);
-    } catch (KeeperException e) {
-      master.abort("Unexpected ZK exception creating/setting node OFFLINE", e);
-      return false;
-    }
-    return true;
-  }
-
   /**
    * @param state
    * @return Plan for passed <code>state</code> (If none currently, it creates one or
@@ -1762,7 +1909,9 @@ public class AssignmentManager extends ZooKeeperListener {
     boolean newPlan = false;
     RegionPlan existingPlan = null;
 
-    synchronized (this.regionPlans) {
+    Lock lock = this.regionLocks.getLock(encodedName);
+    lock.lock();
+    try {
       existingPlan = this.regionPlans.get(encodedName);
 
       if (existingPlan != null && existingPlan.getDestination() != null) {
@@ -1778,6 +1927,8 @@ public class AssignmentManager extends ZooKeeperListener {
         newPlan = true;
         this.regionPlans.put(encodedName, randomPlan);
       }
+    } finally {
+      lock.unlock();
     }
 
     if (newPlan) {
@@ -1877,62 +2028,28 @@ public class AssignmentManager extends ZooKeeperListener {
     // TODO: Method needs refactoring.  Ugly buried returns throughout.  Beware!
     LOG.debug("Starting unassignment of region " +
       region.getRegionNameAsString() + " (offlining)");
-    synchronized (this.regions) {
-      // Check if this region is currently assigned
-      if (!regions.containsKey(region)) {
-        LOG.debug("Attempted to unassign region " +
-          region.getRegionNameAsString() + " but it is not " +
-          "currently assigned anywhere");
-        return;
-      }
+    // Check if this region is currently assigned
+    if (!regions.containsKey(region)) {
+      LOG.debug("Attempted to unassign region " +
+        region.getRegionNameAsString() + " but it is not " +
+        "currently assigned anywhere");
+      return;
     }
     String encodedName = region.getEncodedName();
-    // Grab the state of this region and synchronize on it
+    // Grab the state of this region and lock the region
     RegionState state;
     int versionOfClosingNode = -1;
-    synchronized (regionsInTransition) {
+    boolean createClosingNode = false;
+    Lock lock = this.regionLocks.getLock(encodedName);
+    lock.lock();
+    try {
       state = regionsInTransition.get(encodedName);
       if (state == null) {
-         // Create the znode in CLOSING state
-        try {
-          versionOfClosingNode = ZKAssign.createNodeClosing(
-            master.getZooKeeper(), region, master.getServerName());
-          if (versionOfClosingNode == -1) {
-            LOG.debug("Attempting to unassign region " +
-                region.getRegionNameAsString() + " but ZK closing node "
-                + "can't be created.");
-            return;
-          }
-        } catch (KeeperException e) {
-          if (e instanceof NodeExistsException) {
-            // Handle race between master initiated close and regionserver
-            // orchestrated splitting. See if existing node is in a
-            // SPLITTING or SPLIT state.  If so, the regionserver started
-            // an op on node before we could get our CLOSING in.  Deal.
-            NodeExistsException nee = (NodeExistsException)e;
-            String path = nee.getPath();
-            try {
-              if (isSplitOrSplitting(path)) {
-                LOG.debug(path + " is SPLIT or SPLITTING; " +
-                  "skipping unassign because region no longer exists -- its split");
-                return;
-              }
-            } catch (KeeperException.NoNodeException ke) {
-              LOG.warn("Failed getData on SPLITTING/SPLIT at " + path +
-                "; presuming split and that the region to unassign, " +
-                encodedName + ", no longer exists -- confirm", ke);
-              return;
-            } catch (KeeperException ke) {
-              LOG.error("Unexpected zk state", ke);
-              ke = e;
-            }
-          }
-          // If we get here, don't understand whats going on -- abort.
-          master.abort("Unexpected ZK exception creating node CLOSING", e);
-          return;
-        }
+        // Claim the region now; the CLOSING znode is created once the lock is
+        // released, and the claim dropped if that fails.
         state = new RegionState(region, RegionState.State.PENDING_CLOSE);
-        regionsInTransition.put(encodedName, state);
+        putRegionInTransition(encodedName, state);
+        createClosingNode = true;
       } else if (force && (state.isPendingClose() || state.isClosing())) {
         LOG.debug("Attempting to unassign region " + region.getRegionNameAsString() + 
           " which is already " + state.getState()  + 
@@ -1944,12 +2061,15 @@ public class AssignmentManager extends ZooKeeperListener {
           "already in transition (" + state.getState() + ", force=" + force + ")");
         return;
       }
+    } finally {
+      lock.unlock();
     }
-    // Send CLOSE RPC
-    ServerName server = null;
-    synchronized (this.regions) {
-      server = regions.get(region);
+    if (createClosingNode) {
+      versionOfClosingNode = createClosingNode(region, state);
+      if (versionOfClosingNode == -1) return;
     }
+    // Send CLOSE RPC
+    ServerName server = regions.get(region);
     try {
       // TODO: We should consider making this look more like it does for the
       // region open where we catch all throwables and never abort
@@ -1978,12 +2098,14 @@ public class AssignmentManager extends ZooKeeperListener {
                 + region.getTableNameAsString()
                 + " to DISABLED state the region " + region
                 + " was offlined but the table was in DISABLING state");
-            synchronized (this.regionsInTransition) {
-              this.regionsInTransition.remove(region.getEncodedName());
-            }
-            // Remove from the regionsMap
-            synchronized (this.regions) {
-              this.regions.remove(region);
+            lock.lock();
+            try {
+              // Remove from the regionsinTransition map
+              removeFromRegionsInTransition(region);
+              // Remove from the regionsMap
+              removeFromRegions(region);
+            } finally {
+              lock.unlock();
             }
           }
         }
@@ -1999,6 +2121,73 @@ public class AssignmentManager extends ZooKeeperListener {
     }
   }
 
+  /**
+   * Creates the CLOSING znode of a region that {@link #unassign(HRegionInfo,
+   * boolean)} has put in transition as PENDING_CLOSE.  If the znode cannot be
+   * created, the region is taken out of transition again unless it has moved
+   * on, as it does when a split converts it to SPLITTING.
+   * Caller must not hold the lock of the region.
+   * @param region
+   * @param state The PENDING_CLOSE state put in transition for the region.
+   * @return Version of the CLOSING znode, or -1 if it was not created.
+   */
+  private int createClosingNode(final HRegionInfo region,
+      final RegionState state) {
+    String encodedName = region.getEncodedName();
+    int versionOfClosingNode = -1;
+    try {
+      versionOfClosingNode = ZKAssign.createNodeClosing(
+        master.getZooKeeper(), region, master.getServerName());
+      if (versionOfClosingNode == -1) {
+        LOG.debug("Attempting to unassign region " +
+            region.getRegionNameAsString() + " but ZK closing node "
+            + "can't be created.");
+      }
+    } catch (KeeperException e) {
+      boolean split = false;
+      if (e instanceof NodeExistsException) {
+        // Handle race between master initiated close and regionserver
+        // orchestrated splitting. See if existing node is in a
+        // SPLITTING or SPLIT state.  If so, the regionserver started
+        // an op on node before we could get our CLOSING in.  Deal.
+        NodeExistsException nee = (NodeExistsException)e;
+        String path = nee.getPath();
+        try {
+          if (isSplitOrSplitting(path)) {
+            LOG.debug(path + " is SPLIT or SPLITTING; " +
+              "skipping unassign because region no longer exists -- its split");
+            split = true;
+          }
+        } catch (KeeperException.NoNodeException ke) {
+          LOG.warn("Failed getData on SPLITTING/SPLIT at " + path +
+            "; presuming split and that the region to unassign, " +
+            encodedName + ", no longer exists -- confirm", ke);
+          split = true;
+        } catch (KeeperException ke) {
+          LOG.error("Unexpected zk state", ke);
+        }
+      }
+      if (!split) {
+        // If we get here, don't understand whats going on -- abort.
+        master.abort("Unexpected ZK exception creating node CLOSING", e);
+      }
+      versionOfClosingNode = -1;
+    }
+    if (versionOfClosingNode == -1) {
+      Lock lock = this.regionLocks.getLock(encodedName);
+      lock.lock();
+      try {
+        if (this.regionsInTransition.get(encodedName) == state &&
+            state.isPendingClose()) {
+          removeFromRegionsInTransition(region);
+        }
+      } finally {
+        lock.unlock();
+      }
+    }
+    return versionOfClosingNode;
+  }
+
   /**
    * @param path
    * @return True if znode is in SPLIT or SPLITTING state.
@@ -2383,9 +2572,13 @@ public class AssignmentManager extends ZooKeeperListener {
         // add only if region not in disabled and enabling table
         boolean enabling = checkIfRegionsBelongsToEnabling(regionInfo);
         if (!enabling && !checkIfRegionBelongsToDisabled(regionInfo)) {
-          synchronized (this.regions) {
-            regions.put(regionInfo, regionLocation);
-            addToServers(regionLocation, regionInfo);            
+          Lock lock = this.regionLocks.getLock(regionInfo.getEncodedName());
+          lock.lock();
+          try {
+            addToRegions(regionInfo, regionLocation);
+            addToServers(regionLocation, regionInfo);
+          } finally {
+            lock.unlock();
           }
         }
         addTheTablesInPartialState(regionInfo);
@@ -2503,6 +2696,13 @@ public class AssignmentManager extends ZooKeeperListener {
    * RegionServers which failed while there was no active master or regions 
    * that were in RIT.
    * <p>
+   * The regions of the dead servers are recovered first, those of a table in
+   * order by one thread, with the tables spread over a pool of
+   * <code>hbase.master.failover.recovery.threads</code> threads.  Then the
+   * regions in RIT, including those the first stage forced offline, are
+   * processed the same way, spread by encoded name.  A region is only ever
+   * handled by one thread in a stage, and its first stage work is done
+   * before its second stage starts.
    * 
    * @param deadServers
    *          The list of dead servers which failed while there was no active
@@ -2513,10 +2713,16 @@ public class AssignmentManager extends ZooKeeperListener {
    * @throws KeeperException
    */
   private void processDeadServersAndRecoverLostRegions(
-      Map<ServerName, List<Pair<HRegionInfo, Result>>> deadServers,
+      final Map<ServerName, List<Pair<HRegionInfo, Result>>> deadServers,
       List<String> nodes) throws IOException, KeeperException {
+    int threads = Math.max(1, this.master.getConfiguration().
+      getInt("hbase.master.failover.recovery.threads", 10));
+    final Set<String> ritNodes =
+      Collections.synchronizedSet(new LinkedHashSet<String>(nodes));
     if (null != deadServers) {
       Set<ServerName> actualDeadServers = this.serverManager.getDeadServers();
+      Map<String, List<Pair<HRegionInfo, Result>>> deadRegionsByTable =
+        new TreeMap<String, List<Pair<HRegionInfo, Result>>>();
       for (Map.Entry<ServerName, List<Pair<HRegionInfo, Result>>> deadServer : 
         deadServers.entrySet()) {
         // skip regions of dead servers because SSH will process regions during rs expiration.
@@ -2524,9 +2730,22 @@ public class AssignmentManager extends ZooKeeperListener {
         if (actualDeadServers.contains(deadServer.getKey())) {
           continue;
         }
-        
-        List<Pair<HRegionInfo, Result>> regions = deadServer.getValue();
-        for (Pair<HRegionInfo, Result> region : regions) {
+        for (Pair<HRegionInfo, Result> region : deadServer.getValue()) {
+          String tableName = region.getFirst().getTableNameAsString();
+          List<Pair<HRegionInfo, Result>> tableRegions =
+            deadRegionsByTable.get(tableName);
+          if (tableRegions == null) {
+            tableRegions = new ArrayList<Pair<HRegionInfo, Result>>();
+            deadRegionsByTable.put(tableName, tableRegions);
+          }
+          tableRegions.add(region);
+        }
+      }
+      recoverInParallel("dead server regions", deadRegionsByTable, threads,
+          new RegionRecovery<Pair<HRegionInfo, Result>>() {
+        @Override
+        void recover(Pair<HRegionInfo, Result> region)
+        throws IOException, KeeperException {
           HRegionInfo regionInfo = region.getFirst();
           Result result = region.getSecond();
           // If region was in transition (was in zk) force it offline for
@@ -2543,62 +2762,368 @@ public class AssignmentManager extends ZooKeeperListener {
                 serverManager.isServerOnline(data.getOrigin())) {
               LOG.info("The region " + regionInfo.getEncodedName()
                   + "is being handled on " + data.getOrigin());
-              continue;
+              return;
             }
             // Process with existing RS shutdown code
             boolean assign = ServerShutdownHandler.processDeadRegion(
-                regionInfo, result, this, this.catalogTracker);
+                regionInfo, result, AssignmentManager.this, catalogTracker);
             if (assign) {
               ZKAssign.createOrForceNodeOffline(watcher, regionInfo,
                   master.getServerName());
-              if (!nodes.contains(regionInfo.getEncodedName())) {
-                nodes.add(regionInfo.getEncodedName());
-              }
+              ritNodes.add(regionInfo.getEncodedName());
             }
           } catch (KeeperException.NoNodeException nne) {
             // This is fine
           }
         }
+      });
+    }
+
+    if (!ritNodes.isEmpty()) {
+      Map<Integer, List<String>> nodesByStripe =
+        new TreeMap<Integer, List<String>>();
+      for (String encodedRegionName : ritNodes) {
+        Integer stripe = Integer.valueOf(
+          (encodedRegionName.hashCode() & 0x7fffffff) % threads);
+        List<String> stripeNodes = nodesByStripe.get(stripe);
+        if (stripeNodes == null) {
+          stripeNodes = new ArrayList<String>();
+          nodesByStripe.put(stripe, stripeNodes);
+        }
+        stripeNodes.add(encodedRegionName);
+      }
+      recoverInParallel("regions in transition", nodesByStripe, threads,
+          new RegionRecovery<String>() {
+        @Override
+        void recover(String encodedRegionName)
+        throws IOException, KeeperException {
+          processRegionInTransition(encodedRegionName, null, deadServers);
+        }
+      });
+    }
+  }
+
+  /**
+   * Recovery of one region during failover.
+   * @see #recoverInParallel(String, Map, int, RegionRecovery)
+   */
+  abstract static class RegionRecovery<T> {
+    abstract void recover(T region) throws IOException, KeeperException;
+  }
+
+  /**
+   * Runs <code>recovery</code> over the regions of each partition, one
+   * partition per task, on a pool of at most <code>threads</code> threads.
+   * The regions of a partition are recovered in order.  Blocks until all
+   * are done, logging progress as it goes.
+   * @param stage Name of the stage for logging.
+   * @param partitions Regions to recover by partition.
+   * @param threads Maximum number of partitions to run at once.
+   * @param recovery What to do for each region.
+   * @throws IOException The first failure of a recovery, if any.
+   * @throws KeeperException The first failure of a recovery, if any.
+   */
+  <K, T> void recoverInParallel(final String stage,
+      final Map<K, List<T>> partitions, final int threads,
+      final RegionRecovery<T> recovery)
+  throws IOException, KeeperException {
+    if (partitions.isEmpty()) return;
+    int total = 0;
+    for (List<T> regions: partitions.values()) {
+      total += regions.size();
+    }
+    this.regionsToRecover.set(total);
+    this.regionsRecovered.set(0);
+    LOG.info("Recovering " + total + " " + stage + " in " +
+      partitions.size() + " partition(s)");
+    FailoverRecoverer<T> recoverer = new FailoverRecoverer<T>(this.master,
+      this, stage, new ArrayList<List<T>>(partitions.values()), threads,
+      recovery);
+    try {
+      recoverer.bulkAssign(true);
+    } catch (InterruptedException e) {
+      recoverer.failed(e);
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted recovering " + stage);
+    }
+    Throwable cause = recoverer.getFailure();
+    if (cause instanceof IOException) throw (IOException)cause;
+    if (cause instanceof KeeperException) throw (KeeperException)cause;
+    if (cause instanceof RuntimeException) throw (RuntimeException)cause;
+    if (cause instanceof Error) throw (Error)cause;
+    if (cause != null) {
+      throw new IOException("Failed recovering " + stage, cause);
+    }
+    LOG.info("Recovered " + this.regionsRecovered.get() + " of " + total +
+      " " + stage);
+  }
+
+  /**
+   * Recovers the partitions of a stage of failover on the pool of a
+   * {@link BulkAssigner}, one task per partition.  The first failure stops
+   * the other partitions at their next region and is kept for the caller.
+   */
+  static class FailoverRecoverer<T> extends BulkAssigner {
+    private final AssignmentManager assignmentManager;
+    private final String stage;
+    private final List<List<T>> partitions;
+    private final int threads;
+    private final RegionRecovery<T> recovery;
+    private final CountDownLatch done;
+    private final AtomicReference<Throwable> failure =
+      new AtomicReference<Throwable>();
+
+    FailoverRecoverer(final Server server, final AssignmentManager am,
+        final String stage, final List<List<T>> partitions, final int threads,
+        final RegionRecovery<T> recovery) {
+      super(server);
+      this.assignmentManager = am;
+      this.stage = stage;
+      this.partitions = partitions;
+      this.threads = threads;
+      this.recovery = recovery;
+      this.done = new CountDownLatch(partitions.size());
+    }
+
+    @Override
+    protected String getThreadNamePrefix() {
+      return this.server.getServerName() + "-FailoverRecoverer";
+    }
+
+    @Override
+    protected int getThreadCount() {
+      return Math.max(1, Math.min(this.threads, this.partitions.size()));
+    }
+
+    @Override
+    protected void populatePool(java.util.concurrent.ExecutorService pool) {
+      for (final List<T> regions: this.partitions) {
+        pool.execute(new Runnable() {
+          @Override
+          public void run() {
+            try {
+              for (T region: regions) {
+                if (server.isStopped() || failure.get() != null) break;
+                recovery.recover(region);
+                assignmentManager.regionsRecovered.incrementAndGet();
+              }
+            } catch (Throwable t) {
+              failed(t);
+            } finally {
+              done.countDown();
+            }
+          }
+        });
+      }
+    }
+
+    @Override
+    protected boolean waitUntilDone(final long timeout)
+    throws InterruptedException {
+      long deadline = System.currentTimeMillis() + timeout;
+      while (!this.done.await(Math.min(10000,
+          Math.max(deadline - System.currentTimeMillis(), 0)),
+          TimeUnit.MILLISECONDS)) {
+        if (System.currentTimeMillis() >= deadline) return false;
+        LOG.info("Recovered " + this.assignmentManager.regionsRecovered.get() +
+          " of " + this.assignmentManager.regionsToRecover.get() + " " +
+          this.stage);
       }
+      return true;
+    }
+
+    @Override
+    protected long getTimeoutOnRIT() {
+      // Recovery is not bounded by time; it ends when every partition is done
+      // or one has failed.
+      return Long.MAX_VALUE / 2;
+    }
+
+    void failed(final Throwable t) {
+      this.failure.compareAndSet(null, t);
+    }
+
+    Throwable getFailure() {
+      return this.failure.get();
     }
+  }
+
+  /**
+   * @return Regions recovered and regions to recover in the stage of failover
+   * recovery now running, or that last ran.
+   */
+  public Pair<Integer, Integer> getRecoveryProgress() {
+    return new Pair<Integer, Integer>(this.regionsRecovered.get(),
+      this.regionsToRecover.get());
+  }
 
-    if (!nodes.isEmpty()) {
-      for (String encodedRegionName : nodes) {
-        processRegionInTransition(encodedRegionName, null, deadServers);
+  /**
+   * Publishes the progress of failover recovery in the master's metrics
+   * record, as <code>regionsToRecover</code> and
+   * <code>regionsRecovered</code>.
+   */
+  static class RecoveryMetrics implements Updater {
+    private final AssignmentManager assignmentManager;
+    private final MetricsContext context;
+    private final MetricsRecord metricsRecord;
+    private final MetricsRegistry registry = new MetricsRegistry();
+    private final MetricsIntValue regionsToRecover =
+      new MetricsIntValue("regionsToRecover", registry);
+    private final MetricsIntValue regionsRecovered =
+      new MetricsIntValue("regionsRecovered", registry);
+
+    RecoveryMetrics(final AssignmentManager am) {
+      this.assignmentManager = am;
+      this.context = MetricsUtil.getContext("hbase");
+      this.metricsRecord = MetricsUtil.createRecord(this.context, "master");
+      this.metricsRecord.setTag("Master",
+        String.valueOf(am.master.getServerName()));
+      this.context.registerUpdater(this);
+    }
+
+    @Override
+    public void doUpdates(MetricsContext caller) {
+      synchronized (this) {
+        Pair<Integer, Integer> progress =
+          this.assignmentManager.getRecoveryProgress();
+        this.regionsRecovered.set(progress.getFirst().intValue());
+        this.regionsToRecover.set(progress.getSecond().intValue());
+        this.regionsRecovered.pushMetric(this.metricsRecord);
+        this.regionsToRecover.pushMetric(this.metricsRecord);
       }
+      this.metricsRecord.update();
+    }
+
+    void shutdown() {
+      this.context.unregisterUpdater(this);
     }
   }
 
   /*
-   * Presumes caller has taken care of necessary locking modifying servers Map.
+   * Presumes caller holds the lock of the region.
    * @param hsi
    * @param hri
    */
   private void addToServers(final ServerName sn, final HRegionInfo hri) {
+    while (true) {
+      Set<HRegionInfo> hris = servers.get(sn);
+      if (hris == null) {
+        Set<HRegionInfo> newHris = new ConcurrentSkipListSet<HRegionInfo>();
+        hris = servers.putIfAbsent(sn, newHris);
+        if (hris == null) hris = newHris;
+      }
+      hris.add(hri);
+      // processServerShutdown may have removed the set while we added to it;
+      // if so, add to the set that replaced it, which it will go through.
+      if (servers.get(sn) == hris) return;
+      hris.remove(hri);
+    }
+  }
+
+  /*
+   * Presumes caller holds the lock of the region.
+   */
+  private void addToRegions(final HRegionInfo hri, final ServerName sn) {
+    this.regions.put(hri, sn);
+    String tableName = hri.getTableNameAsString();
+    while (true) {
+      Set<HRegionInfo> hris = this.regionsByTable.get(tableName);
+      if (hris == null) {
+        Set<HRegionInfo> newHris = new ConcurrentSkipListSet<HRegionInfo>();
+        hris = this.regionsByTable.putIfAbsent(tableName, newHris);
+        if (hris == null) hris = newHris;
+      }
+      synchronized (hris) {
+        // removeFromTable may have removed the set once it was empty; if so,
+        // add to the set that replaced it.
+        if (this.regionsByTable.get(tableName) == hris) {
+          hris.add(hri);
+          return;
+        }
+      }
+    }
+  }
+
+  /*
+   * Presumes caller holds the lock of the region.
+   * @return The server the region was on or null if it was not online.
+   */
+  private ServerName removeFromRegions(final HRegionInfo hri) {
+    ServerName sn = this.regions.remove(hri);
+    if (sn != null) removeFromTable(hri);
+    return sn;
+  }
+
+  /*
+   * Presumes caller holds the lock of the region.
+   * @return True if the region was online on <code>sn</code> and removed.
+   */
+  private boolean removeFromRegions(final HRegionInfo hri,
+      final ServerName sn) {
+    if (!this.regions.remove(hri, sn)) return false;
+    removeFromTable(hri);
+    return true;
+  }
+
+  private void removeFromTable(final HRegionInfo hri) {
+    String tableName = hri.getTableNameAsString();
+    Set<HRegionInfo> hris = this.regionsByTable.get(tableName);
+    if (hris == null) return;
+    synchronized (hris) {
+      if (hris.remove(hri) && hris.isEmpty()) {
+        this.regionsByTable.remove(tableName, hris);
+      }
+    }
+  }
+
+  /*
+   * Presumes caller holds the lock of the region.
+   * @return True if <code>hri</code> was on <code>sn</code>.
+   */
+  private boolean removeFromServers(final ServerName sn,
+      final HRegionInfo hri) {
     Set<HRegionInfo> hris = servers.get(sn);
-    if (hris == null) {
-      hris = new ConcurrentSkipListSet<HRegionInfo>();
-      servers.put(sn, hris);
+    return hris != null && hris.remove(hri);
+  }
+
+  /*
+   * Puts the region into regions in transition and starts the clock on its
+   * transition timing out.  Presumes caller holds the lock of the region.
+   */
+  private void putRegionInTransition(final String encodedName,
+      final RegionState state) {
+    this.regionsInTransition.put(encodedName, state);
+    this.timeoutMonitor.schedule(state);
+  }
+
+  /*
+   * Removes the region from regions in transition and wakes anyone waiting
+   * on a change to regions in transition.  Presumes caller holds the lock of
+   * the region.
+   * @return The RegionState removed or null if region was not in transition.
+   */
+  private RegionState removeFromRegionsInTransition(final HRegionInfo hri) {
+    RegionState rs = this.regionsInTransition.remove(hri.getEncodedName());
+    if (rs != null) {
+      synchronized (this.regionsInTransition) {
+        this.regionsInTransition.notifyAll();
+      }
     }
-    if (!hris.contains(hri)) hris.add(hri);
+    return rs;
   }
 
   /**
    * @return A copy of the Map of regions currently in transition.
    */
   public NavigableMap<String, RegionState> getRegionsInTransition() {
-    synchronized (this.regionsInTransition) {
-      return new TreeMap<String, RegionState>(this.regionsInTransition);
-    }
+    return new TreeMap<String, RegionState>(this.regionsInTransition);
   }
 
   /**
    * @return True if regions in transition.
    */
   public boolean isRegionsInTransition() {
-    synchronized (this.regionsInTransition) {
-      return !this.regionsInTransition.isEmpty();
-    }
+    return !this.regionsInTransition.isEmpty();
   }
 
   /**
@@ -2607,9 +3132,7 @@ public class AssignmentManager extends ZooKeeperListener {
    * RegionState
    */
   public RegionState isRegionInTransition(final HRegionInfo hri) {
-    synchronized (this.regionsInTransition) {
-      return this.regionsInTransition.get(hri.getEncodedName());
-    }
+    return this.regionsInTransition.get(hri.getEncodedName());
   }
 
   /**
@@ -2620,14 +3143,16 @@ public class AssignmentManager extends ZooKeeperListener {
    *   Please use that method instead.
    */
   public void clearRegionFromTransition(HRegionInfo hri) {
-    synchronized (this.regionsInTransition) {
-      this.regionsInTransition.remove(hri.getEncodedName());
-    }
-    synchronized (this.regions) {
-      this.regions.remove(hri);
+    Lock lock = this.regionLocks.getLock(hri.getEncodedName());
+    lock.lock();
+    try {
+      removeFromRegionsInTransition(hri);
+      removeFromRegions(hri);
       for (Set<HRegionInfo> regions : this.servers.values()) {
         regions.remove(hri);
       }
+    } finally {
+      lock.unlock();
     }
     clearRegionPlan(hri);
   }
@@ -2636,9 +3161,7 @@ public class AssignmentManager extends ZooKeeperListener {
    * @param region Region whose plan we are to clear.
    */
   void clearRegionPlan(final HRegionInfo region) {
-    synchronized (this.regionPlans) {
-      this.regionPlans.remove(region.getEncodedName());
-    }
+    this.regionPlans.remove(region.getEncodedName());
   }
 
   /**
@@ -2674,31 +3197,24 @@ public class AssignmentManager extends ZooKeeperListener {
    * @return Online regions from <code>tableName</code>
    */
   public List<HRegionInfo> getRegionsOfTable(byte[] tableName) {
-    List<HRegionInfo> tableRegions = new ArrayList<HRegionInfo>();
-    // boundary needs to have table's name but regionID 0 so that it is sorted 
-    // before all table's regions.
-    HRegionInfo boundary =
-      new HRegionInfo(tableName, null, null, false, 0L);
-    synchronized (this.regions) {
-      for (HRegionInfo regionInfo: this.regions.tailMap(boundary).keySet()) {
-        if(Bytes.equals(regionInfo.getTableName(), tableName)) {
-          tableRegions.add(regionInfo);
-        } else {
-          break;
-        }
-      }
-    }
-    return tableRegions;
+    Set<HRegionInfo> hris = this.regionsByTable.get(Bytes.toString(tableName));
+    if (hris == null) return new ArrayList<HRegionInfo>();
+    return new ArrayList<HRegionInfo>(hris);
   }
 
   /**
-   * Monitor to check for time outs on region transition operations
+   * Monitor to check for time outs on region transition operations.
+   * <p>
+   * Regions are filed by deadline in a {@link RegionTimeoutWheel} as they
+   * enter transition, so each run only visits the regions whose deadline has
+   * come round rather than all regions in transition.
    */
   public class TimeoutMonitor extends Chore {
     private final int timeout;
     private boolean bulkAssign = false;
     private boolean allRegionServersOffline = false;
     private ServerManager serverManager;
+    private final RegionTimeoutWheel deadlines;
 
     /**
      * Creates a periodic monitor to check for time outs on region transition
@@ -2715,6 +3231,18 @@ public class AssignmentManager extends ZooKeeperListener {
       super("AssignmentTimeoutMonitor", period, stopper);
       this.timeout = timeout;
       this.serverManager = serverManager;
+      this.deadlines = new RegionTimeoutWheel(regionsInTransition, period,
+        timeout, System.currentTimeMillis());
+    }
+
+    /**
+     * Start the clock on a region that has entered transition.  Later
+     * updates of the stamp of the RegionState are picked up when its
+     * deadline comes round.
+     * @param regionState
+     */
+    void schedule(final RegionState regionState) {
+      this.deadlines.schedule(regionState);
     }
 
     /**
@@ -2740,18 +3268,17 @@ public class AssignmentManager extends ZooKeeperListener {
       boolean allRSsOffline = this.serverManager.getOnlineServersList().
         isEmpty();
 
-      synchronized (regionsInTransition) {
-        // Iterate all regions in transition checking for time outs
-        long now = System.currentTimeMillis();
+      long now = System.currentTimeMillis();
+      if (this.allRegionServersOffline && !allRSsOffline) {
+        // if some RSs just came back online, we can start the
+        // the assignment right away
         for (RegionState regionState : regionsInTransition.values()) {
-          if (regionState.getStamp() + timeout <= now) {
-           //decide on action upon timeout
-            actOnTimeOut(regionState);
-          } else if (this.allRegionServersOffline && !allRSsOffline) {
-            // if some RSs just came back online, we can start the
-            // the assignment right away
-            actOnTimeOut(regionState);
-          }
+          actOnTimeOut(regionState);
+        }
+      } else {
+        for (RegionState regionState : this.deadlines.expire(now)) {
+          //decide on action upon timeout
+          actOnTimeOut(regionState);
         }
       }
       setAllRegionServersOffline(allRSsOffline);
@@ -2900,42 +3427,51 @@ public class AssignmentManager extends ZooKeeperListener {
    */
   public List<RegionState> processServerShutdown(final ServerName sn) {
     // Clean out any existing assignment plans for this server
-    synchronized (this.regionPlans) {
-      for (Iterator <Map.Entry<String, RegionPlan>> i =
-          this.regionPlans.entrySet().iterator(); i.hasNext();) {
-        Map.Entry<String, RegionPlan> e = i.next();
-        ServerName otherSn = e.getValue().getDestination();
-        // The name will be null if the region is planned for a random assign.
-        if (otherSn != null && otherSn.equals(sn)) {
-          // Use iterator's remove else we'll get CME
-          i.remove();
-        }
+    for (Iterator <Map.Entry<String, RegionPlan>> i =
+        this.regionPlans.entrySet().iterator(); i.hasNext();) {
+      Map.Entry<String, RegionPlan> e = i.next();
+      ServerName otherSn = e.getValue().getDestination();
+      // The name will be null if the region is planned for a random assign.
+      if (otherSn != null && otherSn.equals(sn)) {
+        i.remove();
       }
     }
     // TODO: Do we want to sync on RIT here?
     // Remove this server from map of servers to regions, and remove all regions
     // of this server from online map of regions.
-    Set<HRegionInfo> deadRegions = null;
     List<RegionState> rits = new ArrayList<RegionState>();
-    synchronized (this.regions) {
-      Set<HRegionInfo> assignedRegions = this.servers.remove(sn);
-      if (assignedRegions == null || assignedRegions.isEmpty()) {
-        // No regions on this server, we are done, return empty list of RITs
-        return rits;
-      }
-      deadRegions = new TreeSet<HRegionInfo>(assignedRegions);
-      for (HRegionInfo region : deadRegions) {
-        this.regions.remove(region);
+    Set<HRegionInfo> deadRegions = new TreeSet<HRegionInfo>();
+    // A region added to the server concurrently either lands in a set removed
+    // here and is gone through, or, as addToServers checks its set is still
+    // the server's, in a new set removed on the next pass.  Either way the
+    // region leaves servers and regions together.  One added after the last
+    // pass is as if it came online after the shutdown was processed.
+    Set<HRegionInfo> assignedRegions;
+    while ((assignedRegions = this.servers.remove(sn)) != null) {
+      for (HRegionInfo region : assignedRegions) {
+        if (!deadRegions.add(region)) {
+          continue;
+        }
+        Lock lock = this.regionLocks.getLock(region.getEncodedName());
+        lock.lock();
+        try {
+          // Leave alone a region that has since come online elsewhere.
+          removeFromRegions(region, sn);
+        } finally {
+          lock.unlock();
+        }
       }
     }
+    if (deadRegions.isEmpty()) {
+      // No regions on this server, we are done, return empty list of RITs
+      return rits;
+    }
     // See if any of the regions that were online on this server were in RIT
     // If they are, normal timeouts will deal with them appropriately so
     // let's skip a manual re-assignment.
-    synchronized (regionsInTransition) {
-      for (RegionState region : this.regionsInTransition.values()) {
-        if (deadRegions.remove(region.getRegion())) {
-          rits.add(region);
-        }
+    for (RegionState region : this.regionsInTransition.values()) {
+      if (deadRegions.remove(region.getRegion())) {
+        rits.add(region);
       }
     }
     return rits;
@@ -2973,14 +3509,12 @@ public class AssignmentManager extends ZooKeeperListener {
   Map<ServerName, List<HRegionInfo>> getAssignments() {
     // This is an EXPENSIVE clone.  Cloning though is the safest thing to do.
     // Can't let out original since it can change and at least the loadbalancer
-    // wants to iterate this exported list.  We need to synchronize on regions
-    // since all access to this.servers is under a lock on this.regions.
-    Map<ServerName, List<HRegionInfo>> result = null;
-    synchronized (this.regions) {
-      result = new HashMap<ServerName, List<HRegionInfo>>(this.servers.size());
-      for (Map.Entry<ServerName, Set<HRegionInfo>> e: this.servers.entrySet()) {
-        result.put(e.getKey(), new ArrayList<HRegionInfo>(e.getValue()));
-      }
+    // wants to iterate this exported list.  The clone is not an atomic
+    // snapshot; regions may move while it is being taken.
+    Map<ServerName, List<HRegionInfo>> result =
+      new HashMap<ServerName, List<HRegionInfo>>(this.servers.size());
+    for (Map.Entry<ServerName, Set<HRegionInfo>> e: this.servers.entrySet()) {
+      result.put(e.getKey(), new ArrayList<HRegionInfo>(e.getValue()));
     }
     return result;
   }
@@ -2992,11 +3526,9 @@ public class AssignmentManager extends ZooKeeperListener {
    */
   Pair<HRegionInfo, ServerName> getAssignment(final byte [] encodedRegionName) {
     String name = Bytes.toString(encodedRegionName);
-    synchronized(this.regions) {
-      for (Map.Entry<HRegionInfo, ServerName> e: this.regions.entrySet()) {
-        if (e.getKey().getEncodedName().equals(name)) {
-          return new Pair<HRegionInfo, ServerName>(e.getKey(), e.getValue());
-        }
+    for (Map.Entry<HRegionInfo, ServerName> e: this.regions.entrySet()) {
+      if (e.getKey().getEncodedName().equals(name)) {
+        return new Pair<HRegionInfo, ServerName>(e.getKey(), e.getValue());
       }
     }
     return null;
@@ -3006,9 +3538,7 @@ public class AssignmentManager extends ZooKeeperListener {
    * @param plan Plan to execute.
    */
   void balance(final RegionPlan plan) {
-    synchronized (this.regionPlans) {
-      this.regionPlans.put(plan.getRegionName(), plan);
-    }
+    this.regionPlans.put(plan.getRegionName(), plan);
     unassign(plan.getRegionInfo());
   }
 
@@ -3016,16 +3546,148 @@ public class AssignmentManager extends ZooKeeperListener {
    * Run through remaining regionservers and unassign all catalog regions.
    */
   void unassignCatalogRegions() {
-    synchronized (this.regions) {
-      for (Map.Entry<ServerName, Set<HRegionInfo>> e: this.servers.entrySet()) {
-        Set<HRegionInfo> regions = e.getValue();
-        if (regions == null || regions.isEmpty()) continue;
-        for (HRegionInfo hri: regions) {
-          if (hri.isMetaRegion()) {
-            unassign(hri);
+    for (Map.Entry<ServerName, Set<HRegionInfo>> e: this.servers.entrySet()) {
+      Set<HRegionInfo> regions = e.getValue();
+      if (regions == null || regions.isEmpty()) continue;
+      for (HRegionInfo hri: regions) {
+        if (hri.isMetaRegion()) {
+          unassign(hri);
+        }
+      }
+    }
+  }
+
+  /**
+   * Hashed timing wheel of the deadlines of regions in transition.
+   * <p>
+   * A region is filed in the slot of the tick its transition times out in.
+   * The stamp of a RegionState changes often, so the wheel is not updated on
+   * each change; instead, when the slot of a region comes round, a region
+   * whose stamp has moved on is filed again at its new deadline and one that
+   * has left transition is dropped.  A region that has timed out is checked
+   * again a tick later, as it was when all regions were scanned each tick.
+   * <p>
+   * {@link #schedule(RegionState)} may be called from any thread;
+   * {@link #expire(long)} only from the one thread of the monitor.
+   */
+  static class RegionTimeoutWheel {
+    private final Map<String, RegionState> regionsInTransition;
+    private final long tickMillis;
+    private final long timeout;
+    private final ConcurrentLinkedQueue<Deadline> [] slots;
+    // Last tick expired; regions are never filed at or before it.
+    private volatile long lastTick;
+
+    @SuppressWarnings("unchecked")
+    RegionTimeoutWheel(final Map<String, RegionState> regionsInTransition,
+        final long tickMillis, final long timeout, final long now) {
+      this.regionsInTransition = regionsInTransition;
+      this.tickMillis = Math.max(tickMillis, 1);
+      this.timeout = timeout;
+      // Enough slots that a deadline is usually less than one turn away.
+      int n = (int)Math.min(timeout / this.tickMillis + 2, 1 << 16);
+      this.slots = new ConcurrentLinkedQueue[n];
+      for (int i = 0; i < n; i++) {
+        this.slots[i] = new ConcurrentLinkedQueue<Deadline>();
+      }
+      this.lastTick = now / this.tickMillis;
+    }
+
+    void schedule(final RegionState rs) {
+      file(rs, rs.getStamp() + this.timeout);
+    }
+
+    private void file(final RegionState rs, final long deadline) {
+      long tick = Math.max(deadline / this.tickMillis, this.lastTick + 1);
+      this.slots[(int)(tick % this.slots.length)].add(new Deadline(rs, tick));
+    }
+
+    /**
+     * @param now Current time.
+     * @return Regions still in transition whose transition has timed out.
+     */
+    Collection<RegionState> expire(final long now) {
+      Set<RegionState> expired = new LinkedHashSet<RegionState>();
+      final long first = this.lastTick + 1;
+      final long nowTick = now / this.tickMillis;
+      if (nowTick < first) return expired;
+      // Regions scheduled from here on go after nowTick.
+      this.lastTick = nowTick;
+      List<Deadline> later = new ArrayList<Deadline>();
+      long last = Math.min(nowTick, first + this.slots.length - 1);
+      for (long tick = first; tick <= last; tick++) {
+        Queue<Deadline> slot = this.slots[(int)(tick % this.slots.length)];
+        for (Deadline d; (d = slot.poll()) != null;) {
+          if (d.tick > nowTick) {
+            // Due on a later turn of the wheel.
+            later.add(d);
+            continue;
+          }
+          RegionState rs = d.regionState;
+          if (this.regionsInTransition.get(
+              rs.getRegion().getEncodedName()) != rs) {
+            // Out of transition, or replaced by a new RegionState which was
+            // filed itself.
+            continue;
+          }
+          if (rs.getStamp() + this.timeout <= now) {
+            expired.add(rs);
+            file(rs, now + this.tickMillis);
+          } else {
+            file(rs, rs.getStamp() + this.timeout);
           }
         }
       }
+      for (Deadline d: later) {
+        this.slots[(int)(d.tick % this.slots.length)].add(d);
+      }
+      return expired;
+    }
+
+    private static class Deadline {
+      private final RegionState regionState;
+      private final long tick;
+
+      Deadline(final RegionState regionState, final long tick) {
+        this.regionState = regionState;
+        this.tick = tick;
+      }
+    }
+  }
+
+  /**
+   * Striped locks keyed by encoded region name.  Regions whose names hash to
+   * the same stripe share a lock.  The locks are reentrant, so a thread holding
+   * the lock of a region may call back into methods that take it again; a
+   * thread must not take the lock of one region while holding that of another.
+   * The locks are only held around changes to in-memory state, never across
+   * ZooKeeper writes, reads of .META., RPCs or the running of a handler; a
+   * ZooKeeper callback decides the transition holding the lock and runs or
+   * submits its handler once it has released it.  An assignment holds the
+   * monitor of its RegionState across its writes and RPCs and takes the lock
+   * of the region within it, so the lock of a region must not be held when
+   * taking that monitor.
+   */
+  static class RegionLocks {
+    private final ReentrantLock [] locks;
+
+    RegionLocks(final int stripes) {
+      // Round up to a power of two so a stripe is picked with a mask.
+      int n = Integer.highestOneBit(Math.max(stripes, 1) * 2 - 1);
+      this.locks = new ReentrantLock[n];
+      for (int i = 0; i < n; i++) {
+        this.locks[i] = new ReentrantLock();
+      }
+    }
+
+    /**
+     * @param encodedName Encoded name of a region.
+     * @return The lock to hold while changing the state of the region.
+     */
+    Lock getLock(final String encodedName) {
+      int h = encodedName.hashCode();
+      h ^= (h >>> 16);
+      return this.locks[h & (this.locks.length - 1)];
     }
   }
 
@@ -3195,5 +3857,6 @@ public class AssignmentManager extends ZooKeeperListener {
     if (null != threadPoolExecutorService) {
       this.threadPoolExecutorService.shutdown();
     }
+    this.recoveryMetrics.shutdown();
   }
 }
@@ -0,0 +1,191 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hbase.master;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.hbase.HBaseTestingUtility;
+import org.apache.hadoop.hbase.HRegionInfo;
+import org.apache.hadoop.hbase.Server;
+import org.apache.hadoop.hbase.ServerName;
+import org.apache.hadoop.hbase.catalog.CatalogTracker;
+import org.apache.hadoop.hbase.executor.ExecutorService;
+import org.apache.hadoop.hbase.master.AssignmentManager.RegionState;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.hbase.zookeeper.ZKAssign;
+import org.apache.hadoop.hbase.zookeeper.ZKUtil;
+import org.apache.hadoop.hbase.zookeeper.ZooKeeperWatcher;
+import org.mockito.Mockito;
+
+/**
+ * Replays the ZooKeeper callbacks of region transitions against an
+ * {@link AssignmentManager} from several threads at once, and reports how
+ * many it handles a second.
+ * <p>
+ * Each thread owns its own regions and takes each of them through a cycle of
+ * open and close on one of a few servers.  It writes each unassigned znode
+ * transition a region server or the master would to a mini ZooKeeper cluster
+ * and then calls {@link AssignmentManager#nodeCreated(String)} or
+ * {@link AssignmentManager#nodeDataChanged(String)} for it, as the ZooKeeper
+ * event thread would.  So each cycle goes through
+ * <code>handleRegion</code> four times: OPENING, OPENED, CLOSING and CLOSED.
+ * The handlers it submits are dropped; the thread does what they would to
+ * the in-memory state and the znode in their place.  Meanwhile the threads
+ * read where the other threads' regions are.
+ * <p>
+ * Usage: RegionTransitionBenchmark [threads [cycles [regions]]]
+ */
+public class RegionTransitionBenchmark {
+  private static final Log LOG =
+    LogFactory.getLog(RegionTransitionBenchmark.class);
+
+  private static final int SERVERS = 10;
+  private static final int TABLES = 10;
+
+  public static void main(String[] args) throws Exception {
+    int threads = args.length > 0? Integer.parseInt(args[0]): 8;
+    int cycles = args.length > 1? Integer.parseInt(args[1]): 10000;
+    int regionCount = args.length > 2? Integer.parseInt(args[2]): 1000;
+
+    HBaseTestingUtility htu = new HBaseTestingUtility();
+    htu.startMiniZKCluster();
+    try {
+      Server server = Mockito.mock(Server.class);
+      Mockito.when(server.getConfiguration()).thenReturn(htu.getConfiguration());
+      ZooKeeperWatcher watcher = new ZooKeeperWatcher(htu.getConfiguration(),
+        "benchmark", server, true);
+      Mockito.when(server.getZooKeeper()).thenReturn(watcher);
+      Mockito.when(server.getServerName()).thenReturn(
+        new ServerName("master", 60000, 1L));
+      ServerManager serverManager = Mockito.mock(ServerManager.class);
+      Mockito.when(serverManager.isServerOnline(Mockito.any(ServerName.class)))
+        .thenReturn(true);
+      Mockito.when(serverManager.sendRegionClose(Mockito.any(ServerName.class),
+        Mockito.any(HRegionInfo.class), Mockito.anyInt())).thenReturn(true);
+      AssignmentManager am = new AssignmentManager(server, serverManager,
+        Mockito.mock(CatalogTracker.class), Mockito.mock(ExecutorService.class));
+      try {
+        run(am, watcher, threads, cycles, regionCount);
+      } finally {
+        am.shutdown();
+        watcher.close();
+      }
+    } finally {
+      htu.shutdownMiniZKCluster();
+    }
+  }
+
+  static void run(final AssignmentManager am, final ZooKeeperWatcher watcher,
+      final int threads, final int cycles, final int regionCount)
+  throws Exception {
+    if (regionCount < threads) {
+      throw new IllegalArgumentException("Need at least a region per thread");
+    }
+    final HRegionInfo [] regions = new HRegionInfo[regionCount];
+    for (int i = 0; i < regionCount; i++) {
+      regions[i] = new HRegionInfo(Bytes.toBytes("table" + (i % TABLES)),
+        Bytes.toBytes(i), Bytes.toBytes(i + 1));
+    }
+    final ServerName [] servers = new ServerName[SERVERS];
+    for (int i = 0; i < SERVERS; i++) {
+      servers[i] = new ServerName("server" + i, 60020, 1L);
+    }
+
+    final CountDownLatch start = new CountDownLatch(1);
+    final AtomicLong reads = new AtomicLong(0);
+    final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+    Thread [] workers = new Thread[threads];
+    for (int t = 0; t < threads; t++) {
+      final int thread = t;
+      workers[t] = new Thread("transitions-" + t) {
+        @Override
+        public void run() {
+          try {
+            start.await();
+            long found = 0;
+            // The regions of this thread are those whose index is the
+            // thread's modulo the number of threads, so the transitions of
+            // one region stay in order as ZooKeeper's would.
+            int own = (regionCount - thread + threads - 1) / threads;
+            int share = cycles / threads + (thread < cycles % threads? 1: 0);
+            for (int cycle = 0; cycle < share; cycle++) {
+              HRegionInfo region = regions[thread + (cycle % own) * threads];
+              cycle(am, watcher, region, servers[cycle % SERVERS]);
+              if (am.getRegionServerOfRegion(
+                  regions[(cycle * 31 + thread) % regionCount]) != null) {
+                found++;
+              }
+            }
+            reads.addAndGet(found);
+          } catch (Exception e) {
+            failure.compareAndSet(null, e);
+          }
+        }
+      };
+      workers[t].start();
+    }
+    long begin = System.nanoTime();
+    start.countDown();
+    for (Thread worker: workers) {
+      worker.join();
+    }
+    long millis = Math.max((System.nanoTime() - begin) / 1000000, 1);
+    if (failure.get() != null) throw failure.get();
+    long callbacks = cycles * 4L;
+    LOG.info(callbacks + " callbacks over " + regionCount + " regions on " +
+      threads + " threads in " + millis + "ms, " +
+      (callbacks * 1000L / millis) + " callbacks/s; " + reads.get() +
+      " regions found online while reading");
+  }
+
+  /**
+   * Takes <code>region</code> through open on <code>sn</code> and close,
+   * replaying the callback of each znode transition.
+   */
+  private static void cycle(final AssignmentManager am,
+      final ZooKeeperWatcher watcher, final HRegionInfo region,
+      final ServerName sn) throws Exception {
+    String encodedName = region.getEncodedName();
+    String path = ZKAssign.getNodeName(watcher, encodedName);
+    // As assign does once it has set the znode OFFLINE and sent the OPEN.
+    ZKAssign.createNodeOffline(watcher, region, sn);
+    am.regionsInTransition.put(encodedName, new RegionState(region,
+      RegionState.State.PENDING_OPEN, System.currentTimeMillis(), sn));
+    // The region server opens the region.
+    int version = ZKAssign.transitionNodeOpening(watcher, region, sn);
+    am.nodeDataChanged(path);
+    ZKAssign.transitionNodeOpened(watcher, region, sn, version);
+    am.nodeDataChanged(path);
+    // As OpenedRegionHandler does.
+    ZKAssign.deleteOpenedNode(watcher, encodedName);
+    am.regionOnline(region, sn);
+    // The master closes the region; its CLOSE RPC goes to a mock.
+    am.unassign(region);
+    am.nodeCreated(path);
+    ZKAssign.transitionNodeClosed(watcher, region, sn,
+      ZKUtil.checkExists(watcher, path));
+    am.nodeDataChanged(path);
+    // As ClosedRegionHandler does when the region is not to be reassigned.
+    ZKAssign.deleteClosedNode(watcher, encodedName);
+    am.regionOffline(region);
+  }
+}
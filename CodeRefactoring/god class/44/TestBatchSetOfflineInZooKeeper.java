@@ -0,0 +1,241 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hbase.master;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.HBaseTestingUtility;
+import org.apache.hadoop.hbase.HRegionInfo;
+import org.apache.hadoop.hbase.MediumTests;
+import org.apache.hadoop.hbase.Server;
+import org.apache.hadoop.hbase.ServerName;
+import org.apache.hadoop.hbase.catalog.CatalogTracker;
+import org.apache.hadoop.hbase.executor.EventHandler.EventType;
+import org.apache.hadoop.hbase.executor.ExecutorService;
+import org.apache.hadoop.hbase.executor.RegionTransitionData;
+import org.apache.hadoop.hbase.master.AssignmentManager.GetDataUnassignedAsyncCallback;
+import org.apache.hadoop.hbase.master.AssignmentManager.RegionState;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.hbase.zookeeper.RecoverableZooKeeper;
+import org.apache.hadoop.hbase.zookeeper.ZKAssign;
+import org.apache.hadoop.hbase.zookeeper.ZKUtil;
+import org.apache.hadoop.hbase.zookeeper.ZooKeeperWatcher;
+import org.apache.zookeeper.AsyncCallback;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.data.Stat;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+
+/**
+ * Tests the OFFLINE znodes bulk assign creates in batches, on a mini
+ * ZooKeeper cluster, and the retries of the reads that watch them.
+ */
+@Category(MediumTests.class)
+public class TestBatchSetOfflineInZooKeeper {
+  private static final HBaseTestingUtility TEST_UTIL = new HBaseTestingUtility();
+  private static final ServerName MASTER = new ServerName("master", 60000, 1L);
+  private static final ServerName DESTINATION =
+    new ServerName("server", 60020, 1L);
+
+  private ZooKeeperWatcher watcher;
+  private AssignmentManager am;
+
+  @BeforeClass
+  public static void beforeClass() throws Exception {
+    Configuration conf = TEST_UTIL.getConfiguration();
+    conf.setBoolean("hbase.zookeeper.useMulti", true);
+    conf.setInt("hbase.bulk.assignment.znode.batch", 3);
+    conf.setInt("hbase.bulk.assignment.znode.inflight", 2);
+    TEST_UTIL.startMiniZKCluster();
+  }
+
+  @AfterClass
+  public static void afterClass() throws Exception {
+    TEST_UTIL.shutdownMiniZKCluster();
+  }
+
+  @Before
+  public void setUp() throws Exception {
+    Server server = Mockito.mock(Server.class);
+    Mockito.when(server.getConfiguration()).thenReturn(TEST_UTIL.getConfiguration());
+    this.watcher = new ZooKeeperWatcher(TEST_UTIL.getConfiguration(),
+      "batch", server, true);
+    Mockito.when(server.getZooKeeper()).thenReturn(this.watcher);
+    Mockito.when(server.getServerName()).thenReturn(MASTER);
+    this.am = new AssignmentManager(server, Mockito.mock(ServerManager.class),
+      Mockito.mock(CatalogTracker.class), Mockito.mock(ExecutorService.class));
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    this.am.shutdown();
+    ZKUtil.deleteChildrenRecursively(this.watcher, this.watcher.assignmentZNode);
+    this.watcher.close();
+  }
+
+  private static List<RegionState> states(final String table, final int count) {
+    List<RegionState> states = new ArrayList<RegionState>(count);
+    for (int i = 0; i < count; i++) {
+      HRegionInfo hri = new HRegionInfo(Bytes.toBytes(table),
+        Bytes.toBytes(i), Bytes.toBytes(i + 1));
+      states.add(new RegionState(hri, RegionState.State.OFFLINE));
+    }
+    return states;
+  }
+
+  private Set<HRegionInfo> setOffline(final List<RegionState> states)
+  throws Exception {
+    AtomicInteger counter = new AtomicInteger(0);
+    Set<HRegionInfo> skipped = new ConcurrentSkipListSet<HRegionInfo>();
+    assertTrue(this.am.batchSetOfflineInZooKeeper(DESTINATION, states, counter,
+      skipped));
+    long deadline = System.currentTimeMillis() + 30000;
+    while (counter.get() < states.size()) {
+      assertTrue("Timed out with " + counter.get() + " of " + states.size(),
+        System.currentTimeMillis() < deadline);
+      Thread.sleep(10);
+    }
+    assertEquals(states.size(), counter.get());
+    return skipped;
+  }
+
+  private RegionTransitionData znode(final HRegionInfo hri) throws Exception {
+    return ZKAssign.getData(this.watcher, hri.getEncodedName());
+  }
+
+  @Test
+  public void testRegionsAreSetOfflineInBatches() throws Exception {
+    // Seven regions in batches of three, the last of them short.
+    List<RegionState> states = states("batches", 7);
+    Set<HRegionInfo> skipped = setOffline(states);
+    assertTrue(skipped.isEmpty());
+    for (RegionState state: states) {
+      RegionTransitionData data = znode(state.getRegion());
+      assertEquals(EventType.M_ZK_REGION_OFFLINE, data.getEventType());
+      assertEquals(MASTER, data.getOrigin());
+      assertTrue(state.isPendingOpen());
+      assertEquals(DESTINATION, state.getServerName());
+    }
+  }
+
+  @Test
+  public void testExistingZNodesFallBackToSequentialCreates() throws Exception {
+    List<RegionState> states = states("existing", 6);
+    // An OFFLINE znode left by an earlier attempt, and a stale OPENING one,
+    // each in the middle of a batch, which makes the multi fail.
+    HRegionInfo offline = states.get(1).getRegion();
+    ZKAssign.createNodeOffline(this.watcher, offline, MASTER);
+    HRegionInfo opening = states.get(4).getRegion();
+    ZKAssign.createNodeOffline(this.watcher, opening, MASTER);
+    ZKAssign.transitionNodeOpening(this.watcher, opening, DESTINATION);
+
+    Set<HRegionInfo> skipped = setOffline(states);
+
+    // The rest of each batch is still created.
+    for (RegionState state: states) {
+      if (state.getRegion().equals(opening)) continue;
+      assertEquals(EventType.M_ZK_REGION_OFFLINE,
+        znode(state.getRegion()).getEventType());
+      assertTrue(state.isPendingOpen());
+    }
+    // The OPENING znode is left as it is and its region not opened.
+    assertEquals(1, skipped.size());
+    assertTrue(skipped.contains(opening));
+    assertEquals(EventType.RS_ZK_REGION_OPENING, znode(opening).getEventType());
+    assertTrue(states.get(4).isOffline());
+  }
+
+  private static ZooKeeper mockZooKeeper(final ZooKeeperWatcher zkw) {
+    RecoverableZooKeeper rzk = Mockito.mock(RecoverableZooKeeper.class);
+    ZooKeeper zk = Mockito.mock(ZooKeeper.class);
+    Mockito.when(zkw.getRecoverableZooKeeper()).thenReturn(rzk);
+    Mockito.when(rzk.getZooKeeper()).thenReturn(zk);
+    return zk;
+  }
+
+  @Test
+  public void testRetriesKeepTheirPermit() throws Exception {
+    ZooKeeperWatcher zkw = Mockito.mock(ZooKeeperWatcher.class);
+    ZooKeeper zk = mockZooKeeper(zkw);
+    Semaphore inFlight = new Semaphore(2);
+    AtomicInteger counter = new AtomicInteger(0);
+    Set<HRegionInfo> skipped = new ConcurrentSkipListSet<HRegionInfo>();
+    RegionState state = states("retry", 1).get(0);
+    String path = "/hbase/unassigned/" + state.getRegion().getEncodedName();
+    int loss = KeeperException.Code.CONNECTIONLOSS.intValue();
+
+    // As batchSetOfflineInZooKeeper does before each read.
+    inFlight.acquire();
+    GetDataUnassignedAsyncCallback cb = new GetDataUnassignedAsyncCallback(
+      zkw, counter, skipped, DESTINATION, inFlight, 2);
+    cb.processResult(loss, path, state, null, null);
+    ArgumentCaptor<AsyncCallback.DataCallback> retry =
+      ArgumentCaptor.forClass(AsyncCallback.DataCallback.class);
+    Mockito.verify(zk).getData(Mockito.eq(path), Mockito.any(Watcher.class),
+      retry.capture(), Mockito.eq(state));
+    // The resubmitted read still holds the permit.
+    assertEquals(1, inFlight.availablePermits());
+    assertEquals(0, counter.get());
+
+    byte [] data = new RegionTransitionData(EventType.M_ZK_REGION_OFFLINE,
+      state.getRegion().getRegionName(), MASTER).getBytes();
+    retry.getValue().processResult(0, path, state, data, new Stat());
+    assertEquals(2, inFlight.availablePermits());
+    assertEquals(1, counter.get());
+    assertTrue(skipped.isEmpty());
+    assertTrue(state.isPendingOpen());
+  }
+
+  @Test
+  public void testExhaustedRetriesReleaseThePermitAndSkip() throws Exception {
+    ZooKeeperWatcher zkw = Mockito.mock(ZooKeeperWatcher.class);
+    ZooKeeper zk = mockZooKeeper(zkw);
+    Semaphore inFlight = new Semaphore(1);
+    AtomicInteger counter = new AtomicInteger(0);
+    Set<HRegionInfo> skipped = new ConcurrentSkipListSet<HRegionInfo>();
+    RegionState state = states("exhausted", 1).get(0);
+    String path = "/hbase/unassigned/" + state.getRegion().getEncodedName();
+
+    inFlight.acquire();
+    new GetDataUnassignedAsyncCallback(zkw, counter, skipped, DESTINATION,
+      inFlight, 0).processResult(KeeperException.Code.CONNECTIONLOSS.intValue(),
+        path, state, null, null);
+    Mockito.verifyZeroInteractions(zk);
+    assertEquals(1, inFlight.availablePermits());
+    assertEquals(1, counter.get());
+    assertTrue(skipped.contains(state.getRegion()));
+    assertTrue(state.isOffline());
+  }
+}
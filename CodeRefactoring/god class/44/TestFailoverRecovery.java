@@ -0,0 +1,196 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hbase.master;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.hadoop.hbase.HBaseTestingUtility;
+import org.apache.hadoop.hbase.MediumTests;
+import org.apache.hadoop.hbase.Server;
+import org.apache.hadoop.hbase.ServerName;
+import org.apache.hadoop.hbase.catalog.CatalogTracker;
+import org.apache.hadoop.hbase.executor.ExecutorService;
+import org.apache.hadoop.hbase.master.AssignmentManager.RegionRecovery;
+import org.apache.hadoop.hbase.util.Pair;
+import org.apache.hadoop.hbase.zookeeper.ZooKeeperWatcher;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.mockito.Mockito;
+
+/**
+ * Tests {@link AssignmentManager#recoverInParallel(String, Map, int,
+ * RegionRecovery)}, which runs the stages of failover recovery.
+ */
+@Category(MediumTests.class)
+public class TestFailoverRecovery {
+  private static final HBaseTestingUtility TEST_UTIL = new HBaseTestingUtility();
+
+  private ZooKeeperWatcher watcher;
+  private AssignmentManager am;
+
+  @BeforeClass
+  public static void beforeClass() throws Exception {
+    TEST_UTIL.startMiniZKCluster();
+  }
+
+  @AfterClass
+  public static void afterClass() throws Exception {
+    TEST_UTIL.shutdownMiniZKCluster();
+  }
+
+  @Before
+  public void setUp() throws Exception {
+    Server server = Mockito.mock(Server.class);
+    Mockito.when(server.getConfiguration()).thenReturn(TEST_UTIL.getConfiguration());
+    this.watcher = new ZooKeeperWatcher(TEST_UTIL.getConfiguration(),
+      "recovery", server, true);
+    Mockito.when(server.getZooKeeper()).thenReturn(this.watcher);
+    Mockito.when(server.getServerName()).thenReturn(
+      new ServerName("master", 60000, 1L));
+    this.am = new AssignmentManager(server, Mockito.mock(ServerManager.class),
+      Mockito.mock(CatalogTracker.class), Mockito.mock(ExecutorService.class));
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    this.am.shutdown();
+    this.watcher.close();
+  }
+
+  /**
+   * Records the regions recovered by partition, a region being the number of
+   * its partition times 1000 plus its place in the partition.
+   */
+  private static class Recorder extends RegionRecovery<Integer> {
+    private final Map<Integer, List<Integer>> recovered =
+      Collections.synchronizedMap(new TreeMap<Integer, List<Integer>>());
+    private final IOException failure;
+    private final int failAt;
+
+    Recorder(final IOException failure, final int failAt) {
+      this.failure = failure;
+      this.failAt = failAt;
+    }
+
+    @Override
+    void recover(Integer region) throws IOException {
+      if (region.intValue() == this.failAt) throw this.failure;
+      Integer partition = Integer.valueOf(region.intValue() / 1000);
+      synchronized (this.recovered) {
+        List<Integer> regions = this.recovered.get(partition);
+        if (regions == null) {
+          regions = new ArrayList<Integer>();
+          this.recovered.put(partition, regions);
+        }
+        regions.add(region);
+      }
+    }
+  }
+
+  private static Map<Integer, List<Integer>> partitions(final int count,
+      final int size) {
+    Map<Integer, List<Integer>> partitions =
+      new TreeMap<Integer, List<Integer>>();
+    for (int p = 0; p < count; p++) {
+      List<Integer> regions = new ArrayList<Integer>(size);
+      for (int i = 0; i < size; i++) {
+        regions.add(Integer.valueOf(p * 1000 + i));
+      }
+      partitions.put(Integer.valueOf(p), regions);
+    }
+    return partitions;
+  }
+
+  @Test
+  public void testEachPartitionIsRecoveredInOrder() throws Exception {
+    Map<Integer, List<Integer>> partitions = partitions(8, 200);
+    Recorder recorder = new Recorder(null, -1);
+    this.am.recoverInParallel("test", partitions, 4, recorder);
+    assertEquals(partitions, recorder.recovered);
+    Pair<Integer, Integer> progress = this.am.getRecoveryProgress();
+    assertEquals(1600, progress.getFirst().intValue());
+    assertEquals(1600, progress.getSecond().intValue());
+  }
+
+  @Test
+  public void testFirstFailureStopsTheRest() throws Exception {
+    // One thread, so the partitions run one after the other: the failure in
+    // the first partition is at its third region, and the second partition
+    // never starts.
+    Map<Integer, List<Integer>> partitions = partitions(2, 10);
+    IOException failure = new IOException("injected");
+    Recorder recorder = new Recorder(failure, 2);
+    try {
+      this.am.recoverInParallel("test", partitions, 1, recorder);
+      fail("Expected the failure of the first partition");
+    } catch (IOException e) {
+      assertSame(failure, e);
+    }
+    assertEquals(1, recorder.recovered.size());
+    assertEquals(partitions.get(Integer.valueOf(0)).subList(0, 2),
+      recorder.recovered.get(Integer.valueOf(0)));
+    Pair<Integer, Integer> progress = this.am.getRecoveryProgress();
+    assertEquals(2, progress.getFirst().intValue());
+    assertEquals(20, progress.getSecond().intValue());
+  }
+
+  @Test
+  public void testFailureLeavesOtherPartitionsInOrder() throws Exception {
+    Map<Integer, List<Integer>> partitions = partitions(4, 500);
+    IOException failure = new IOException("injected");
+    Recorder recorder = new Recorder(failure, 2250);
+    try {
+      this.am.recoverInParallel("test", partitions, 4, recorder);
+      fail("Expected the failure of the third partition");
+    } catch (IOException e) {
+      assertSame(failure, e);
+    }
+    // Whatever the other partitions got done before they stopped is a prefix
+    // of each, and the progress counts exactly that.
+    int recovered = 0;
+    for (Map.Entry<Integer, List<Integer>> e: recorder.recovered.entrySet()) {
+      List<Integer> regions = e.getValue();
+      assertEquals(partitions.get(e.getKey()).subList(0, regions.size()),
+        regions);
+      recovered += regions.size();
+    }
+    // The failing partition got as far as the region that failed.
+    assertEquals(250, recorder.recovered.get(Integer.valueOf(2)).size());
+    assertEquals(recovered, this.am.getRecoveryProgress().getFirst().intValue());
+    assertEquals(2000, this.am.getRecoveryProgress().getSecond().intValue());
+  }
+
+  @Test
+  public void testNothingToRecover() throws Exception {
+    this.am.recoverInParallel("test", new TreeMap<Integer, List<Integer>>(),
+      4, new Recorder(null, -1));
+  }
+}
@@ -0,0 +1,116 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hbase.master;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Lock;
+
+import org.apache.hadoop.hbase.SmallTests;
+import org.apache.hadoop.hbase.master.AssignmentManager.RegionLocks;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+@Category(SmallTests.class)
+public class TestRegionLocks {
+
+  @Test
+  public void testSameRegionGetsSameLock() {
+    RegionLocks locks = new RegionLocks(64);
+    assertSame(locks.getLock("1588230740"), locks.getLock(new String("1588230740")));
+  }
+
+  @Test
+  public void testStripesAreRoundedUpToAPowerOfTwo() {
+    RegionLocks locks = new RegionLocks(100);
+    Map<Lock, Boolean> distinct = new IdentityHashMap<Lock, Boolean>();
+    for (int i = 0; i < 100000; i++) {
+      distinct.put(locks.getLock("region" + i), Boolean.TRUE);
+    }
+    // 100 is rounded up to 128 stripes, all of which get used.
+    assertEquals(128, distinct.size());
+  }
+
+  @Test
+  public void testSingleStripeIsOneLock() {
+    RegionLocks locks = new RegionLocks(0);
+    Lock lock = locks.getLock("a");
+    for (int i = 0; i < 1000; i++) {
+      assertSame(lock, locks.getLock("region" + i));
+    }
+  }
+
+  @Test
+  public void testLocksAreReentrant() {
+    RegionLocks locks = new RegionLocks(16);
+    Lock lock = locks.getLock("region");
+    lock.lock();
+    try {
+      assertTrue(locks.getLock("region").tryLock());
+      locks.getLock("region").unlock();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Test
+  public void testRegionIsExcludedAndOtherStripesAreNot() throws Exception {
+    final RegionLocks locks = new RegionLocks(16);
+    final String held = "held";
+    String other = null;
+    for (int i = 0; other == null; i++) {
+      if (locks.getLock("other" + i) != locks.getLock(held)) {
+        other = "other" + i;
+      }
+    }
+    final String free = other;
+    final AtomicBoolean heldAvailable = new AtomicBoolean(true);
+    final AtomicBoolean freeAvailable = new AtomicBoolean(false);
+    locks.getLock(held).lock();
+    try {
+      Thread t = new Thread() {
+        @Override
+        public void run() {
+          Lock lock = locks.getLock(held);
+          if (lock.tryLock()) {
+            lock.unlock();
+          } else {
+            heldAvailable.set(false);
+          }
+          lock = locks.getLock(free);
+          if (lock.tryLock()) {
+            lock.unlock();
+            freeAvailable.set(true);
+          }
+        }
+      };
+      t.start();
+      t.join();
+    } finally {
+      locks.getLock(held).unlock();
+    }
+    assertFalse(heldAvailable.get());
+    assertTrue(freeAvailable.get());
+  }
+}
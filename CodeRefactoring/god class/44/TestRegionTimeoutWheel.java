@@ -0,0 +1,132 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hbase.master;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.hadoop.hbase.HRegionInfo;
+import org.apache.hadoop.hbase.SmallTests;
+import org.apache.hadoop.hbase.master.AssignmentManager.RegionState;
+import org.apache.hadoop.hbase.master.AssignmentManager.RegionTimeoutWheel;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+@Category(SmallTests.class)
+public class TestRegionTimeoutWheel {
+  private static final long TICK = 100;
+  private static final long TIMEOUT = 1000;
+  private static final long START = 1000000;
+
+  private Map<String, RegionState> regionsInTransition;
+  private RegionTimeoutWheel wheel;
+
+  @Before
+  public void setUp() {
+    this.regionsInTransition = new ConcurrentHashMap<String, RegionState>();
+    this.wheel = new RegionTimeoutWheel(this.regionsInTransition, TICK,
+      TIMEOUT, START);
+  }
+
+  private RegionState inTransition(final String name, final long stamp) {
+    HRegionInfo hri = new HRegionInfo(Bytes.toBytes("t"), Bytes.toBytes(name),
+      Bytes.toBytes(name + "z"));
+    RegionState rs = new RegionState(hri, RegionState.State.PENDING_OPEN,
+      stamp, null);
+    this.regionsInTransition.put(hri.getEncodedName(), rs);
+    this.wheel.schedule(rs);
+    return rs;
+  }
+
+  @Test
+  public void testExpiresAtDeadlineOnly() {
+    RegionState rs = inTransition("a", START);
+    for (long now = START + TICK; now < START + TIMEOUT; now += TICK / 2) {
+      assertTrue(this.wheel.expire(now).isEmpty());
+    }
+    Collection<RegionState> expired = this.wheel.expire(START + TIMEOUT);
+    assertEquals(1, expired.size());
+    assertTrue(expired.contains(rs));
+  }
+
+  @Test
+  public void testTimedOutRegionIsCheckedAgainNextTick() {
+    RegionState rs = inTransition("a", START);
+    assertEquals(1, this.wheel.expire(START + TIMEOUT).size());
+    // Not again within the same tick, but again on the next one.
+    assertTrue(this.wheel.expire(START + TIMEOUT + TICK / 2).isEmpty());
+    assertTrue(this.wheel.expire(START + TIMEOUT + TICK).contains(rs));
+  }
+
+  @Test
+  public void testMovedStampIsFiledAgain() {
+    RegionState rs = inTransition("a", START);
+    // Several turns of the wheel beyond the first deadline.
+    long stamp = START + 5 * TIMEOUT;
+    rs.updateTimestamp(stamp);
+    for (long now = START + TICK; now < stamp + TIMEOUT; now += TICK) {
+      assertTrue("Expired at " + now, this.wheel.expire(now).isEmpty());
+    }
+    assertTrue(this.wheel.expire(stamp + TIMEOUT).contains(rs));
+  }
+
+  @Test
+  public void testRegionOutOfTransitionIsDropped() {
+    RegionState rs = inTransition("a", START);
+    this.regionsInTransition.remove(rs.getRegion().getEncodedName());
+    assertTrue(this.wheel.expire(START + TIMEOUT).isEmpty());
+    // Dropped for good, even if it were to come back with the same state.
+    this.regionsInTransition.put(rs.getRegion().getEncodedName(), rs);
+    assertTrue(this.wheel.expire(START + 10 * TIMEOUT).isEmpty());
+  }
+
+  @Test
+  public void testReplacedStateIsOnlyReportedOnce() {
+    RegionState old = inTransition("a", START);
+    RegionState replacement = inTransition("a", START + TICK);
+    assertTrue(this.wheel.expire(START + TIMEOUT).isEmpty());
+    Collection<RegionState> expired = this.wheel.expire(START + TIMEOUT + TICK);
+    assertEquals(1, expired.size());
+    assertTrue(expired.contains(replacement));
+    assertTrue(!expired.contains(old));
+  }
+
+  @Test
+  public void testLongPauseExpiresEveryRegion() {
+    for (int i = 0; i < 50; i++) {
+      inTransition("r" + i, START + i * TICK);
+    }
+    // Far more ticks than the wheel has slots.
+    assertEquals(50, this.wheel.expire(START + 100 * TIMEOUT).size());
+  }
+
+  @Test
+  public void testScheduleBeforeLastTickIsNotLost() {
+    this.wheel.expire(START + 3 * TIMEOUT);
+    // A stamp that timed out before the last expiry is due on the next tick.
+    RegionState rs = inTransition("a", START);
+    assertTrue(this.wheel.expire(START + 3 * TIMEOUT).isEmpty());
+    assertTrue(this.wheel.expire(START + 3 * TIMEOUT + TICK).contains(rs));
+  }
+}
@@ -0,0 +1,122 @@
+/**
+ * Copyright 2008 The Apache Software Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hbase;
+
+import java.io.IOException;
+import java.util.Random;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.Text;
+
+/**
+ * Times major compactions of a store holding from 2 up to 64 files, and
+ * reports how many cells a second each merges.
+ * <p>
+ * For each file count it opens a store on the local file system, flushes
+ * that many files into it, each holding the same number of cells over rows
+ * that overlap those of the other files, and then compacts them into one.
+ * As the merge finds the reader with the lowest key through a heap, the cost
+ * per cell should grow with the log of the file count rather than with the
+ * count itself.
+ * <p>
+ * Usage: CompactionBenchmark [cells per file [max files]]
+ */
+public class CompactionBenchmark {
+  private static final Log LOG = LogFactory.getLog(CompactionBenchmark.class);
+
+  private static final Text FAMILY = new Text("info:");
+  private static final Text COLUMN = new Text("info:data");
+
+  private final HBaseConfiguration conf;
+  private final FileSystem fs;
+  private final Path dir;
+  private final int cellsPerFile;
+  private final byte [] value = new byte[100];
+  private final Random rand = new Random(42L);
+
+  CompactionBenchmark(final HBaseConfiguration conf, final Path dir,
+      final int cellsPerFile)
+  throws IOException {
+    this.conf = conf;
+    this.fs = FileSystem.getLocal(conf);
+    this.dir = dir;
+    this.cellsPerFile = cellsPerFile;
+    this.rand.nextBytes(this.value);
+  }
+
+  /*
+   * Flushes <code>files</code> files into a new store and compacts them.
+   * @return Milliseconds the compaction took.
+   */
+  long run(final int files) throws IOException {
+    Path basedir = new Path(this.dir, "files" + files);
+    this.fs.delete(basedir);
+    HTableDescriptor htd = new HTableDescriptor("benchmark");
+    HColumnDescriptor family = new HColumnDescriptor(FAMILY.toString());
+    htd.addFamily(family);
+    HRegionInfo info = new HRegionInfo(htd, null, null);
+    HStore store =
+      new HStore(basedir, info, family, this.fs, null, this.conf, null);
+    try {
+      // Rows are drawn from a range twice the size of one file so most rows
+      // turn up in several files.
+      int rows = this.cellsPerFile * 2;
+      for (int i = 0; i < files; i++) {
+        long timestamp = i + 1;
+        for (int j = 0; j < this.cellsPerFile; j++) {
+          Text row = new Text(String.format("row%010d", this.rand.nextInt(rows)));
+          store.add(new HStoreKey(row, COLUMN, timestamp), this.value);
+        }
+        store.snapshotMemcache();
+        store.flushCache(timestamp);
+      }
+      long start = System.currentTimeMillis();
+      if (!store.compact(true)) {
+        throw new IOException("No compaction of " + files + " files");
+      }
+      return System.currentTimeMillis() - start;
+    } finally {
+      store.close();
+      this.fs.delete(basedir);
+    }
+  }
+
+  public static void main(String[] args) throws Exception {
+    int cellsPerFile = args.length > 0? Integer.parseInt(args[0]): 20000;
+    int maxFiles = args.length > 1? Integer.parseInt(args[1]): 64;
+    HBaseConfiguration conf = new HBaseConfiguration();
+    Path dir = new Path(System.getProperty("java.io.tmpdir"),
+      "CompactionBenchmark");
+    CompactionBenchmark benchmark =
+      new CompactionBenchmark(conf, dir, cellsPerFile);
+    // Warm up so the first row is not mostly class loading and JIT.
+    benchmark.run(2);
+    for (int files = 2; files <= maxFiles; files *= 2) {
+      long ms = benchmark.run(files);
+      long cells = (long)files * cellsPerFile;
+      LOG.info(files + " files, " + cells + " cells: " + ms + " ms, " +
+        (cells * 1000 / Math.max(ms, 1)) + " cells/s");
+    }
+    FileSystem.getLocal(conf).delete(dir);
+  }
+}
@@ -15,52 +15,63 @@ public class HStore implements HConstants {
    * to snapshot and is cleared.  We continue to serve edits out of new map
    * and backing snapshot until flusher reports in that the flush succeeded. At
    * this point we let the snapshot go.
+   *
+   * <p>The maps are concurrent skip lists, so reads take no lock at all.  The
+   * current map and snapshot are swapped together as one {@link Maps}, so a
+   * reader always sees a consistent pair.  Writers do not wait on the swap;
+   * instead the flusher, having made the swap, waits out any writer still
+   * adding to the map it has just moved to snapshot.
    */
   static class Memcache {
-    // Note that since these structures are always accessed with a lock held,
-    // so no additional synchronization is required.
-
-    // The currently active sorted map of edits.
-    private volatile SortedMap<HStoreKey, byte[]> mc =
-      createSynchronizedSortedMap();
- 
-    // Snapshot of memcache.  Made for flusher.
-    private volatile SortedMap<HStoreKey, byte[]> snapshot =
-      createSynchronizedSortedMap();
-
-    private final ReentrantReadWriteLock mc_lock = new ReentrantReadWriteLock();
+    // The currently active map of edits and the snapshot made for the flusher.
+    private volatile Maps maps = new Maps(createMap(), new AtomicInteger(),
+      createMap());
 
     /*
      * Utility method.
-     * @return sycnhronized sorted map of HStoreKey to byte arrays.
+     * @return concurrent sorted map of HStoreKey to byte arrays.
+     */
+    private static ConcurrentSkipListMap<HStoreKey, byte[]> createMap() {
+      return new ConcurrentSkipListMap<HStoreKey, byte []>();
+    }
+
+    /*
+     * The active map and snapshot as of some instant.  Never modified once
+     * published; snapshot and clearSnapshot publish a new instance.
      */
-    private static SortedMap<HStoreKey, byte[]> createSynchronizedSortedMap() {
-      return Collections.synchronizedSortedMap(new TreeMap<HStoreKey, byte []>());
+    private static class Maps {
+      final ConcurrentSkipListMap<HStoreKey, byte []> mc;
+      // Count of writers adding to mc.  Shared by every Maps with the same mc.
+      final AtomicInteger mcWriters;
+      final ConcurrentSkipListMap<HStoreKey, byte []> snapshot;
+
+      Maps(final ConcurrentSkipListMap<HStoreKey, byte []> mc,
+          final AtomicInteger mcWriters,
+          final ConcurrentSkipListMap<HStoreKey, byte []> snapshot) {
+        this.mc = mc;
+        this.mcWriters = mcWriters;
+        this.snapshot = snapshot;
+      }
     }
 
     /**
      * Creates a snapshot of the current Memcache.
      * Snapshot must be cleared by call to {@link #clearSnapshot(SortedMap)}
      */
-    void snapshot() {
-      this.mc_lock.writeLock().lock();
-      try {
-        // If snapshot currently has entries, then flusher failed or didn't call
-        // cleanup.  Log a warning.
-        if (this.snapshot.size() > 0) {
-          LOG.debug("Snapshot called again without clearing previous. " +
-            "Doing nothing. Another ongoing flush or did we fail last attempt?");
-        } else {
-          // We used to synchronize on the memcache here but we're inside a
-          // write lock so removed it. Comment is left in case removal was a
-          // mistake. St.Ack
-          if (this.mc.size() != 0) {
-            this.snapshot = this.mc;
-            this.mc = createSynchronizedSortedMap();
-          }
+    synchronized void snapshot() {
+      Maps current = this.maps;
+      // If snapshot currently has entries, then flusher failed or didn't call
+      // cleanup.  Log a warning.
+      if (!current.snapshot.isEmpty()) {
+        LOG.debug("Snapshot called again without clearing previous. " +
+          "Doing nothing. Another ongoing flush or did we fail last attempt?");
+      } else if (!current.mc.isEmpty()) {
+        this.maps = new Maps(createMap(), new AtomicInteger(), current.mc);
+        // Writers that got in before the swap may still be adding to what is
+        // now the snapshot.  Let them finish before the flusher reads it.
+        while (current.mcWriters.get() != 0) {
+          Thread.yield();
         }
-      } finally {
-        this.mc_lock.writeLock().unlock();
       }
     }
 
@@ -73,7 +84,7 @@ public class HStore implements HConstants {
     * @see {@link #clearSnapshot(SortedMap)}
     */
    SortedMap<HStoreKey, byte[]> getSnapshot() {
-     return this.snapshot;
+     return this.maps.snapshot;
    }
 
    /**
@@ -82,21 +93,17 @@ public class HStore implements HConstants {
     * @throws UnexpectedException
     * @see {@link #snapshot()}
     */
-   void clearSnapshot(final SortedMap<HStoreKey, byte []> ss)
+   synchronized void clearSnapshot(final SortedMap<HStoreKey, byte []> ss)
    throws UnexpectedException {
-     this.mc_lock.writeLock().lock();
-     try {
-       if (this.snapshot != ss) {
-         throw new UnexpectedException("Current snapshot is " +
-           this.snapshot + ", was passed " + ss);
-       }
-       // OK. Passed in snapshot is same as current snapshot.  If not-empty,
-       // create a new snapshot and let the old one go.
-       if (ss.size() != 0) {
-         this.snapshot = createSynchronizedSortedMap();
-       }
-     } finally {
-       this.mc_lock.writeLock().unlock();
+     Maps current = this.maps;
+     if (current.snapshot != ss) {
+       throw new UnexpectedException("Current snapshot is " +
+         current.snapshot + ", was passed " + ss);
+     }
+     // OK. Passed in snapshot is same as current snapshot.  If not-empty,
+     // create a new snapshot and let the old one go.
+     if (!ss.isEmpty()) {
+       this.maps = new Maps(current.mc, current.mcWriters, createMap());
      }
    }
     
@@ -106,11 +113,19 @@ public class HStore implements HConstants {
      * @param value
      */
     void add(final HStoreKey key, final byte[] value) {
-      this.mc_lock.readLock().lock();
-      try {
-        mc.put(key, value);
-      } finally {
-        this.mc_lock.readLock().unlock();
+      while (true) {
+        Maps current = this.maps;
+        current.mcWriters.incrementAndGet();
+        try {
+          // If a snapshot was made since we read maps, the flusher may not
+          // have seen us come in; go round again and add to the new map.
+          if (current.mc == this.maps.mc) {
+            current.mc.put(key, value);
+            return;
+          }
+        } finally {
+          current.mcWriters.decrementAndGet();
+        }
       }
     }
   
@@ -121,21 +136,11 @@ public class HStore implements HConstants {
      * @return An array of byte arrays ordered by timestamp.
      */
     List<byte[]> get(final HStoreKey key, final int numVersions) {
-      this.mc_lock.readLock().lock();
-      try {
-        List<byte []> results;
-        // The synchronizations here are because internalGet iterates
-       synchronized (this.mc) {
-         results = internalGet(this.mc, key, numVersions);
-        }
-        synchronized (snapshot) {
-          results.addAll(results.size(),
-              internalGet(snapshot, key, numVersions - results.size()));
-        }
-        return results;
-      } finally {
-        this.mc_lock.readLock().unlock();
-      }
+      Maps current = this.maps;
+      List<byte []> results = internalGet(current.mc, key, numVersions);
+      results.addAll(results.size(),
+        internalGet(current.snapshot, key, numVersions - results.size()));
+      return results;
     }
    
    
@@ -161,40 +166,32 @@ public class HStore implements HConstants {
     * @return Next row or null if none found
     */
    Text getNextRow(final Text row) {
-     this.mc_lock.readLock().lock();
-     try {
-       return (Text)getLowest(getNextRow(row, this.mc),
-         getNextRow(row, this.snapshot));
-     } finally {
-       this.mc_lock.readLock().unlock();
-     }
+     Maps current = this.maps;
+     return (Text)getLowest(getNextRow(row, current.mc),
+       getNextRow(row, current.snapshot));
    }
    
    /*
     * @param row Find row that follows this one.
     * @param map Map to look in for a row beyond <code>row</code>.
-    * This method synchronizes on passed map while iterating it.
     * @return Next row or null if none found.
     */
    private Text getNextRow(final Text row,
        final SortedMap<HStoreKey, byte []> map) {
      Text result = null;
-     // Synchronize on the map to make the tailMap making 'safe'.
-     synchronized (map) {
-       // Make an HSK with maximum timestamp so we get past most of the current
-       // rows cell entries.
-       HStoreKey hsk = new HStoreKey(row, HConstants.LATEST_TIMESTAMP);
-       SortedMap<HStoreKey, byte []> tailMap = map.tailMap(hsk);
-       // Iterate until we fall into the next row; i.e. move off current row
-       for (Map.Entry<HStoreKey, byte []> es: tailMap.entrySet()) {
-         HStoreKey itKey = es.getKey();
-         if (itKey.getRow().compareTo(row) <= 0) {
-           continue;
-         }
-         // Note: Not suppressing deletes.
-         result = itKey.getRow();
-         break;
+     // Make an HSK with maximum timestamp so we get past most of the current
+     // rows cell entries.
+     HStoreKey hsk = new HStoreKey(row, HConstants.LATEST_TIMESTAMP);
+     SortedMap<HStoreKey, byte []> tailMap = map.tailMap(hsk);
+     // Iterate until we fall into the next row; i.e. move off current row
+     for (Map.Entry<HStoreKey, byte []> es: tailMap.entrySet()) {
+       HStoreKey itKey = es.getKey();
+       if (itKey.getRow().compareTo(row) <= 0) {
+         continue;
        }
+       // Note: Not suppressing deletes.
+       result = itKey.getRow();
+       break;
      }
      return result;
    }
@@ -210,30 +207,34 @@ public class HStore implements HConstants {
      */
     long getFull(HStoreKey key, Map<Text, Long> deletes, 
       SortedMap<Text, byte[]> results) {
+      return getFull(key, deletes, results, null);
+    }
+
+    /*
+     * As {@link #getFull(HStoreKey, Map, SortedMap)}, also putting the
+     * timestamp of each cell put in <code>results</code> in
+     * <code>timestamps</code> if not null.
+     */
+    private long getFull(HStoreKey key, Map<Text, Long> deletes,
+      SortedMap<Text, byte[]> results, Map<Text, Long> timestamps) {
       long rowtime = -1L;
       
-      this.mc_lock.readLock().lock();
-      try {
-        synchronized (mc) {
-          long ts = internalGetFull(mc, key, deletes, results);
-          if (ts != HConstants.LATEST_TIMESTAMP && ts > rowtime) {
-            rowtime = ts;
-          }
-        }
-        synchronized (snapshot) {
-          long ts = internalGetFull(snapshot, key, deletes, results);
-          if (ts != HConstants.LATEST_TIMESTAMP && ts > rowtime) {
-            rowtime = ts;
-          }
-        }
-        return rowtime;
-      } finally {
-        this.mc_lock.readLock().unlock();
+      Maps current = this.maps;
+      long ts = internalGetFull(current.mc, key, deletes, results, timestamps);
+      if (ts != HConstants.LATEST_TIMESTAMP && ts > rowtime) {
+        rowtime = ts;
       }
+      ts = internalGetFull(current.snapshot, key, deletes, results,
+        timestamps);
+      if (ts != HConstants.LATEST_TIMESTAMP && ts > rowtime) {
+        rowtime = ts;
+      }
+      return rowtime;
     }
 
     private long internalGetFull(SortedMap<HStoreKey, byte []> map, HStoreKey key, 
-      Map<Text, Long> deletes, SortedMap<Text, byte []> results) {
+      Map<Text, Long> deletes, SortedMap<Text, byte []> results,
+      Map<Text, Long> timestamps) {
 
       if (map.isEmpty() || key == null) {
         return -1L;
@@ -249,7 +250,7 @@ public class HStore implements HConstants {
               itKey.getTimestamp() > rowtime) {
             rowtime = itKey.getTimestamp();
           }
-          byte [] val = tailMap.get(itKey);
+          byte [] val = es.getValue();
 
           if (HLogEdit.isDeleted(val)) {
             if (!deletes.containsKey(itCol) 
@@ -258,7 +259,11 @@ public class HStore implements HConstants {
             }
           } else if (!(deletes.containsKey(itCol) 
             && deletes.get(itCol).longValue() >= itKey.getTimestamp())) {
-            results.put(new Text(itCol), val);
+            Text column = new Text(itCol);
+            results.put(column, val);
+            if (timestamps != null) {
+              timestamps.put(column, Long.valueOf(itKey.getTimestamp()));
+            }
           }
         } else if (key.getRow().compareTo(itKey.getRow()) < 0) {
           break;
@@ -403,8 +408,9 @@ public class HStore implements HConstants {
       for (Map.Entry<HStoreKey, byte []> es: tailMap.entrySet()) {
         HStoreKey itKey = es.getKey();
         if (itKey.matchesRowCol(key)) {
-          if (!HLogEdit.isDeleted(es.getValue())) { 
-            result.add(tailMap.get(itKey));
+          byte [] val = es.getValue();
+          if (!HLogEdit.isDeleted(val)) { 
+            result.add(val);
           }
           if (numVersions > 0 && result.size() >= numVersions) {
             break;
@@ -428,22 +434,12 @@ public class HStore implements HConstants {
      * @throws IOException
      */
     List<HStoreKey> getKeys(final HStoreKey origin, final int versions) {
-      this.mc_lock.readLock().lock();
-      try {
-        List<HStoreKey> results;
-        synchronized (mc) {
-          results = internalGetKeys(this.mc, origin, versions);
-        }
-        synchronized (snapshot) {
-          results.addAll(results.size(), internalGetKeys(snapshot, origin,
-              versions == HConstants.ALL_VERSIONS ? versions :
-                (versions - results.size())));
-        }
-        return results;
-        
-      } finally {
-        this.mc_lock.readLock().unlock();
-      }
+      Maps current = this.maps;
+      List<HStoreKey> results = internalGetKeys(current.mc, origin, versions);
+      results.addAll(results.size(), internalGetKeys(current.snapshot, origin,
+          versions == HConstants.ALL_VERSIONS ? versions :
+            (versions - results.size())));
+      return results;
     }
 
     /*
@@ -503,7 +499,7 @@ public class HStore implements HConstants {
      * the cell has been deleted.
      */
     boolean isDeleted(final HStoreKey key) {
-      return HLogEdit.isDeleted(this.mc.get(key));
+      return HLogEdit.isDeleted(this.maps.mc.get(key));
     }
 
     /**
@@ -512,12 +508,7 @@ public class HStore implements HConstants {
     HInternalScannerInterface getScanner(long timestamp,
        Text targetCols[], Text firstRow)
     throws IOException {
-      this.mc_lock.readLock().lock();
-      try {
-        return new MemcacheScanner(timestamp, targetCols, firstRow);
-      } finally {
-        this.mc_lock.readLock().unlock();
-      }
+      return new MemcacheScanner(timestamp, targetCols, firstRow);
     }
 
     //////////////////////////////////////////////////////////////////////////////
@@ -525,9 +516,12 @@ public class HStore implements HConstants {
     // It lets the caller scan the contents of the Memcache.
     //////////////////////////////////////////////////////////////////////////////
 
-    private class MemcacheScanner extends HAbstractScanner {
+    private class MemcacheScanner extends HAbstractScanner
+    implements CellTimestamps {
        private Text currentRow;
        private Set<Text> columns = null;
+       // Timestamps of the cells of the last row returned.
+       private final Map<Text, Long> timestamps = new HashMap<Text, Long>();
         
       MemcacheScanner(final long timestamp, final Text targetCols[],
         final Text firstRow)
@@ -559,6 +553,7 @@ public class HStore implements HConstants {
        if (results.size() > 0) {
          results.clear();
        }
+       this.timestamps.clear();
        long ts = -1L;
        while (results.size() <= 0 && this.currentRow != null) {
          if (deletes.size() > 0) {
@@ -569,9 +564,10 @@ public class HStore implements HConstants {
          }
          key.setRow(this.currentRow);
          key.setVersion(this.timestamp);
-         ts = getFull(key, deletes, rowResults);
-         for (Text column: deletes.keySet()) {
-           rowResults.put(column, HLogEdit.deleteBytes.get());
+         ts = getFull(key, deletes, rowResults, this.timestamps);
+         for (Map.Entry<Text, Long> e: deletes.entrySet()) {
+           rowResults.put(e.getKey(), HLogEdit.deleteBytes.get());
+           this.timestamps.put(e.getKey(), e.getValue());
          }
          for (Map.Entry<Text, byte[]> e: rowResults.entrySet()) {
            Text column = e.getKey();
@@ -599,6 +595,12 @@ public class HStore implements HConstants {
        }
        return results.size() > 0;
      }
+
+    /** {@inheritDoc} */
+    public long getTimestamp(final Text column) {
+      Long ts = this.timestamps.get(column);
+      return ts == null? HConstants.LATEST_TIMESTAMP: ts.longValue();
+    }
       
     /** {@inheritDoc} */
     public void close() {
@@ -608,6 +610,20 @@ public class HStore implements HConstants {
      }
     }
   }
+
+  /*
+   * Implemented by the memcache and store file scanners.  The key their
+   * next(HStoreKey, SortedMap) fills in carries one timestamp for the row,
+   * while a wildcard or multiple match scan returns cells of the row written
+   * at different times; this says when each was.
+   */
+  interface CellTimestamps {
+    /*
+     * @param column Column of a cell returned by the last call to next.
+     * @return Timestamp of that cell.
+     */
+    long getTimestamp(Text column);
+  }
   
   /*
    * Regex that will work for straight filenames and for reference names.
@@ -618,6 +634,8 @@ public class HStore implements HConstants {
     Pattern.compile("^(\\d+)(?:\\.(.+))?$");
   
   private static final String BLOOMFILTER_FILE_NAME = "filter";
+  // Compactions account their output to the rate limit in chunks this size.
+  private static final int COMPACTION_THROTTLE_BYTES = 64 * 1024;
 
   final Memcache memcache = new Memcache();
   private final Path basedir;
@@ -626,12 +644,42 @@ public class HStore implements HConstants {
   private final SequenceFile.CompressionType compression;
   final FileSystem fs;
   private final HBaseConfiguration conf;
+  // Directory of the per-store-file bloom filters, or null if the family has
+  // no bloom filter.
   private final Path filterDir;
-  final Filter bloomFilter;
+  // Store-wide filter from before filters were kept per store file, or null
+  // if there is none.  Serves the store files that have no filter of their
+  // own until a compaction replaces them all.
+  private volatile Filter storeWideFilter = null;
+  private final BloomFilterCache bloomFilterCache;
+  // File system the store's own readers open their files through; reads
+  // through the block cache if one is configured.
+  private final FileSystem readerFs;
   private final Path compactionDir;
 
   private final Integer compactLock = new Integer(0);
+  // Null if the store was opened without the region server's services, in
+  // which case compactions are left to the region.
+  private final CompactionScheduler compactionScheduler;
+  // True while a compaction of this store is waiting in the scheduler queue.
+  private final AtomicBoolean compactionQueued = new AtomicBoolean(false);
+  // Set by close; no compaction is queued or started after.
+  private volatile boolean closed = false;
+  // After a queued compaction fails no other is queued before this time, so
+  // a store that cannot compact is not retried after every flush.  The wait
+  // doubles with each failure in a row, from compactionBackoffMin up to
+  // compactionBackoffMax.  Guarded by compactLock.
+  private volatile long compactionRetryTime = 0L;
+  private long compactionBackoff = 0L;
+  private final long compactionBackoffMin;
+  private final long compactionBackoffMax;
   private final Integer flushLock = new Integer(0);
+  // Pool of the region server's flushers, or null if the store was opened
+  // without its services.
+  private final ExecutorService flushPool;
+  // Pool reading ahead for scanners that prefetch, or null if the store was
+  // opened without the region server's services.
+  private final ExecutorService prefetchPool;
 
   private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
 
@@ -694,6 +742,26 @@ public class HStore implements HConstants {
   HStore(Path basedir, HRegionInfo info, HColumnDescriptor family,
       FileSystem fs, Path reconstructionLog, HBaseConfiguration conf,
       final Progressable reporter)
+      throws IOException {
+    this(basedir, info, family, fs, reconstructionLog, conf, reporter, null);
+  }
+
+  /**
+   * @param basedir qualified path under which the region directory lives
+   * @param info HRegionInfo for this region
+   * @param family HColumnDescriptor for this column
+   * @param fs file system object
+   * @param reconstructionLog existing log file to apply if any
+   * @param conf configuration object
+   * @param reporter Call on a period so hosting server can report we're
+   * making progress to master.  Can be null.
+   * @param services Services shared by all stores of the hosting region
+   * server.  Can be null.
+   * @throws IOException
+   */
+  HStore(Path basedir, HRegionInfo info, HColumnDescriptor family,
+      FileSystem fs, Path reconstructionLog, HBaseConfiguration conf,
+      final Progressable reporter, final StoreServices services)
       throws IOException {  
     
     this.basedir = basedir;
@@ -726,16 +794,22 @@ public class HStore implements HConstants {
       fs.mkdirs(infodir);
     }
     
+    // A store opened without the region server's services keeps its filters
+    // in a cache of its own.
+    this.bloomFilterCache = services == null?
+      BloomFilterCache.create(conf): services.getBloomFilterCache();
+    BlockCache blockCache = services == null? null: services.getBlockCache();
+    this.readerFs = blockCache == null? fs:
+      new BlockCachingFileSystem(fs, blockCache);
     if(family.getBloomFilter() == null) {
       this.filterDir = null;
-      this.bloomFilter = null;
     } else {
       this.filterDir = HStoreFile.getFilterDir(basedir, info.getEncodedName(),
           family.getFamilyName());
       if (!fs.exists(filterDir)) {
         fs.mkdirs(filterDir);
       }
-      this.bloomFilter = loadOrCreateBloomFilter();
+      this.storeWideFilter = loadStoreWideBloomFilter();
     }
 
     // Go through the 'mapdir' and 'infodir' together, make sure that all 
@@ -785,6 +859,14 @@ public class HStore implements HConstants {
     // MIN_COMMITS_FOR_COMPACTION map files
     this.compactionThreshold =
       conf.getInt("hbase.hstore.compactionThreshold", 3);
+    this.compactionScheduler =
+      services == null? null: services.getCompactionScheduler();
+    this.compactionBackoffMin =
+      conf.getLong("hbase.hstore.compaction.backoff", 10 * 1000L);
+    this.compactionBackoffMax =
+      conf.getLong("hbase.hstore.compaction.backoff.max", 10 * 60 * 1000L);
+    this.flushPool = services == null? null: services.getFlushPool();
+    this.prefetchPool = services == null? null: services.getPrefetchPool();
     
     // We used to compact in here before bringing the store online.  Instead
     // get it online quick even if it needs compactions so we can start
@@ -794,11 +876,87 @@ public class HStore implements HConstants {
     // Finally, start up all the map readers! (There could be more than one
     // since we haven't compacted yet.)
     for(Map.Entry<Long, HStoreFile> e: this.storefiles.entrySet()) {
-      this.readers.put(e.getKey(),
-        e.getValue().getReader(this.fs, this.bloomFilter));
+      this.readers.put(e.getKey(), e.getValue().getReader(this.readerFs,
+        hasOwnBloomFilter(e.getValue())? null: this.storeWideFilter));
     }
   }
   
+  /**
+   * Services shared by all the stores of a region server.  The region server
+   * makes one when it starts, hands it to each store it opens, and shuts it
+   * down when it stops.
+   */
+  static class StoreServices {
+    private final CompactionScheduler compactionScheduler;
+    // Null if no block cache is configured.
+    private final BlockCache blockCache;
+    private final BloomFilterCache bloomFilterCache;
+
+    private final ThreadPoolExecutor flushPool;
+    private final ThreadPoolExecutor prefetchPool;
+
+    StoreServices(final HBaseConfiguration conf) {
+      this.compactionScheduler = new CompactionScheduler(
+        conf.getInt("hbase.hstore.compaction.threads", 1),
+        conf.getLong("hbase.hstore.compaction.throughput", 0L));
+      this.blockCache = BlockCache.create(conf);
+      this.bloomFilterCache = BloomFilterCache.create(conf);
+      this.prefetchPool = PrefetchingFileSystem.createPool(conf);
+      final AtomicInteger threadNumber = new AtomicInteger(0);
+      this.flushPool = new ThreadPoolExecutor(0,
+        conf.getInt("hbase.hstore.flush.threads",
+          Runtime.getRuntime().availableProcessors()),
+        60, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(),
+        new ThreadFactory() {
+          public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "flusher-" + threadNumber.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+          }
+        },
+        // If every flusher is busy, or the pool is shut down, the caller
+        // writes the store itself.  CallerRunsPolicy would drop the flush
+        // after shutdown and leave the caller waiting on it for ever.
+        new RejectedExecutionHandler() {
+          public void rejectedExecution(Runnable r, ThreadPoolExecutor e) {
+            r.run();
+          }
+        });
+    }
+
+    CompactionScheduler getCompactionScheduler() {
+      return this.compactionScheduler;
+    }
+
+    BlockCache getBlockCache() {
+      return this.blockCache;
+    }
+
+    BloomFilterCache getBloomFilterCache() {
+      return this.bloomFilterCache;
+    }
+
+    ExecutorService getFlushPool() {
+      return this.flushPool;
+    }
+
+    ExecutorService getPrefetchPool() {
+      return this.prefetchPool;
+    }
+
+    /**
+     * Stop the background threads.  Stores must not be used after.
+     */
+    void shutdown() {
+      this.compactionScheduler.shutdown();
+      // Flushes under way are left to finish; their callers wait on them.
+      this.flushPool.shutdown();
+      // Read aheads already queued still run, as readers may be waiting on
+      // them; later ones are refused and read in the reader's thread.
+      this.prefetchPool.shutdown();
+    }
+  }
+
   /* 
    * @param hstoreFiles
    * @return Maximum sequence number found or -1.
@@ -1043,183 +1201,1152 @@ public class HStore implements HConstants {
   // Bloom filters
   //////////////////////////////////////////////////////////////////////////////
 
-  /**
-   * Called by constructor if a bloom filter is enabled for this column family.
-   * If the HStore already exists, it will read in the bloom filter saved
-   * previously. Otherwise, it will create a new bloom filter.
-   */
-  private Filter loadOrCreateBloomFilter() throws IOException {
-    Path filterFile = new Path(filterDir, BLOOMFILTER_FILE_NAME);
-    Filter bloomFilter = null;
-    if(fs.exists(filterFile)) {
-      if (LOG.isDebugEnabled()) {
-        LOG.debug("loading bloom filter for " + this.storeName);
-      }
-      
-      BloomFilterDescriptor.BloomFilterType type =
-        family.getBloomFilter().filterType;
-
-      switch(type) {
+  /*
+   * @param rows Number of rows the filter is to hold.
+   * @return A new, empty bloom filter of the type the family asks for, sized
+   * for <code>rows</code>, or null if the family has no bloom filter.
+   */
+  private Filter createBloomFilter(final int rows) {
+    if (this.filterDir == null) {
+      return null;
+    }
+    BloomFilterDescriptor descriptor = family.getBloomFilter();
+    int vectorSize = getBloomFilterVectorSize(rows);
+    switch(descriptor.filterType) {
+    
+    case BLOOMFILTER:
+      return new BloomFilter(vectorSize, descriptor.nbHash);
       
-      case BLOOMFILTER:
-        bloomFilter = new BloomFilter();
-        break;
-        
-      case COUNTING_BLOOMFILTER:
-        bloomFilter = new CountingBloomFilter();
-        break;
-        
-      case RETOUCHED_BLOOMFILTER:
-        bloomFilter = new RetouchedBloomFilter();
-        break;
+    case COUNTING_BLOOMFILTER:
+      return new CountingBloomFilter(vectorSize, descriptor.nbHash);
       
-      default:
-        throw new IllegalArgumentException("unknown bloom filter type: " +
-            type);
+    case RETOUCHED_BLOOMFILTER:
+      return new RetouchedBloomFilter(vectorSize, descriptor.nbHash);
+    
+    default:
+      throw new IllegalArgumentException("unknown bloom filter type: " +
+          descriptor.filterType);
+    }
+  }
+
+  /*
+   * @param rows
+   * @return Bits needed to hold <code>rows</code> at the family's number of
+   * hash functions with the false positive rate the descriptor is built for.
+   */
+  private int getBloomFilterVectorSize(final int rows) {
+    BloomFilterDescriptor descriptor = family.getBloomFilter();
+    return (int)Math.min(Integer.MAX_VALUE,
+      Math.ceil(descriptor.nbHash * (double)Math.max(rows, 1) / Math.log(2.0)));
+  }
+
+  /*
+   * @return Number of rows the family's descriptor sizes a filter for.  Used
+   * for store files whose own row count is not known.
+   */
+  private int getBloomFilterDefaultRows() {
+    BloomFilterDescriptor descriptor = family.getBloomFilter();
+    return (int)(descriptor.vectorSize * Math.log(2.0) / descriptor.nbHash);
+  }
+
+  /*
+   * @param files Store files about to be compacted.
+   * @return Upper bound on the rows of the file compacted from
+   * <code>files</code>: the sum of their row counts.
+   * @throws IOException
+   */
+  private int getBloomFilterRows(final List<HStoreFile> files)
+  throws IOException {
+    if (this.filterDir == null) {
+      return 0;
+    }
+    long rows = 0;
+    for (HStoreFile hsf: files) {
+      Path filterFile = getBloomFilterPath(hsf);
+      if (!fs.exists(filterFile)) {
+        rows += getBloomFilterDefaultRows();
+        continue;
       }
       FSDataInputStream in = fs.open(filterFile);
       try {
-        bloomFilter.readFields(in);
+        rows += in.readInt();
       } finally {
-        fs.close();
-      }
-    } else {
-      if (LOG.isDebugEnabled()) {
-        LOG.debug("creating bloom filter for " + this.storeName);
+        in.close();
       }
+    }
+    return (int)Math.min(Integer.MAX_VALUE, rows);
+  }
 
-      BloomFilterDescriptor.BloomFilterType type =
-        family.getBloomFilter().filterType;
+  /*
+   * @param hsf
+   * @return Path of the bloom filter of the passed store file.
+   */
+  private Path getBloomFilterPath(final HStoreFile hsf) {
+    return new Path(this.filterDir, hsf.getMapFilePath().getName());
+  }
 
-      switch(type) {
-      
-      case BLOOMFILTER:
-        bloomFilter = new BloomFilter(family.getBloomFilter().vectorSize,
-            family.getBloomFilter().nbHash);
-        break;
-        
-      case COUNTING_BLOOMFILTER:
-        bloomFilter =
-          new CountingBloomFilter(family.getBloomFilter().vectorSize,
-            family.getBloomFilter().nbHash);
-        break;
-        
-      case RETOUCHED_BLOOMFILTER:
-        bloomFilter =
-          new RetouchedBloomFilter(family.getBloomFilter().vectorSize,
-            family.getBloomFilter().nbHash);
-      }
-    }
-    return bloomFilter;
+  /*
+   * @param row
+   * @return Key under which <code>row</code> is kept in the bloom filters.
+   * Filters are keyed by row alone so they serve getFull as well as get.
+   */
+  private static Key getBloomFilterKey(final Text row) {
+    byte [] bytes = new byte[row.getLength()];
+    System.arraycopy(row.getBytes(), 0, bytes, 0, bytes.length);
+    return new Key(bytes);
   }
 
-  /**
-   * Flushes bloom filter to disk
-   * 
+  /*
+   * Writes the bloom filter of a newly written store file, preceded by the
+   * number of rows it was sized for so later compactions can size theirs.
+   * @param hsf
+   * @param filter Filter of the rows in <code>hsf</code>.  If null, does
+   * nothing.
+   * @param rows Number of rows <code>filter</code> was sized for.
    * @throws IOException
    */
-  private void flushBloomFilter() throws IOException {
-    if (LOG.isDebugEnabled()) {
-      LOG.debug("flushing bloom filter for " + this.storeName);
+  private void writeBloomFilter(final HStoreFile hsf, final Filter filter,
+      final int rows)
+  throws IOException {
+    if (filter == null) {
+      return;
     }
-    FSDataOutputStream out =
-      fs.create(new Path(filterDir, BLOOMFILTER_FILE_NAME));
+    Path filterFile = getBloomFilterPath(hsf);
+    FSDataOutputStream out = fs.create(filterFile);
     try {
-      bloomFilter.write(out);
+      out.writeInt(rows);
+      filter.write(out);
     } finally {
       out.close();
     }
+    this.bloomFilterCache.put(filterFile, filter, getBloomFilterHeapSize(rows));
     if (LOG.isDebugEnabled()) {
-      LOG.debug("flushed bloom filter for " + this.storeName);
+      LOG.debug("flushed bloom filter " + filterFile + " for " +
+        this.storeName);
     }
   }
-  
-  //////////////////////////////////////////////////////////////////////////////
-  // End bloom filters
-  //////////////////////////////////////////////////////////////////////////////
 
-  /**
-   * Adds a value to the memcache
-   * 
-   * @param key
-   * @param value
+  /*
+   * Reads the bloom filter of a store file and adds it to the cache.
+   * @param filterFile
+   * @return The filter or null if the store file has none, as store files
+   * written before filters were kept per file do not.
+   * @throws IOException
    */
-  void add(HStoreKey key, byte[] value) {
-    lock.readLock().lock();
+  private Filter loadBloomFilter(final Path filterFile) throws IOException {
+    if (!fs.exists(filterFile)) {
+      return null;
+    }
+    if (LOG.isDebugEnabled()) {
+      LOG.debug("loading bloom filter " + filterFile + " for " +
+        this.storeName);
+    }
+    Filter filter = newBloomFilter();
+    int rows;
+    FSDataInputStream in = fs.open(filterFile);
     try {
-      this.memcache.add(key, value);
+      rows = in.readInt();
+      filter.readFields(in);
     } finally {
-      lock.readLock().unlock();
+      in.close();
     }
+    this.bloomFilterCache.put(filterFile, filter, getBloomFilterHeapSize(rows));
+    return filter;
   }
-  
-  /**
-   * Close all the MapFile readers
-   * 
-   * We don't need to worry about subsequent requests because the HRegion holds
-   * a write lock that will prevent any more reads or writes.
-   * 
+
+  /*
+   * Reads the store-wide bloom filter kept before filters were kept per store
+   * file.  It is left in place until a compaction has replaced every store
+   * file it covers.
+   * @return The filter or null if there is none.
    * @throws IOException
    */
-  List<HStoreFile> close() throws IOException {
-    ArrayList<HStoreFile> result = null;
-    this.lock.writeLock().lock();
+  private Filter loadStoreWideBloomFilter() throws IOException {
+    Path filterFile = new Path(this.filterDir, BLOOMFILTER_FILE_NAME);
+    if (!fs.exists(filterFile)) {
+      return null;
+    }
+    if (LOG.isDebugEnabled()) {
+      LOG.debug("loading store-wide bloom filter of " + this.storeName);
+    }
+    Filter filter = newBloomFilter();
+    FSDataInputStream in = fs.open(filterFile);
     try {
-      for (MapFile.Reader reader: this.readers.values()) {
-        reader.close();
-      }
-      synchronized (this.storefiles) {
-        result = new ArrayList<HStoreFile>(storefiles.values());
-      }
-      LOG.debug("closed " + this.storeName);
-      return result;
+      filter.readFields(in);
     } finally {
-      this.lock.writeLock().unlock();
+      in.close();
     }
+    return filter;
   }
 
+  /*
+   * Deletes the store-wide bloom filter once no store file needs it.
+   * @throws IOException
+   */
+  private void deleteStoreWideBloomFilter() throws IOException {
+    if (this.storeWideFilter == null) {
+      return;
+    }
+    this.storeWideFilter = null;
+    if (LOG.isDebugEnabled()) {
+      LOG.debug("removing store-wide bloom filter of " + this.storeName);
+    }
+    fs.delete(new Path(this.filterDir, BLOOMFILTER_FILE_NAME), false);
+  }
 
-  //////////////////////////////////////////////////////////////////////////////
-  // Flush changes to disk
-  //////////////////////////////////////////////////////////////////////////////
-  /**
-   * Prior to doing a cache flush, we need to snapshot the memcache.
-   * TODO: This method is ugly.  Why let client of HStore run snapshots.  How
-   * do we know they'll be cleaned up?
+  /*
+   * @param hsf
+   * @return True if <code>hsf</code> has a bloom filter of its own.
+   * @throws IOException
    */
-  void snapshotMemcache() {
-    this.memcache.snapshot();
+  private boolean hasOwnBloomFilter(final HStoreFile hsf) throws IOException {
+    return this.filterDir != null && fs.exists(getBloomFilterPath(hsf));
   }
+
+  /*
+   * @return A bloom filter of the type the family asks for, to be read into.
+   */
+  private Filter newBloomFilter() {
+    BloomFilterDescriptor.BloomFilterType type =
+      family.getBloomFilter().filterType;
+    switch(type) {
     
-  /**
-   * Write out current snapshot.  Presumes {@link #snapshot()} has been called
-   * previously.
-   * @param logCacheFlushId flush sequence number
-   * @return count of bytes flushed
+    case BLOOMFILTER:
+      return new BloomFilter();
+      
+    case COUNTING_BLOOMFILTER:
+      return new CountingBloomFilter();
+      
+    case RETOUCHED_BLOOMFILTER:
+      return new RetouchedBloomFilter();
+    
+    default:
+      throw new IllegalArgumentException("unknown bloom filter type: " +
+          type);
+    }
+  }
+
+  /*
+   * Deletes the bloom filter of a store file no longer in use.
+   * @param hsf
    * @throws IOException
    */
-  long flushCache(final long logCacheFlushId) throws IOException {
-    // Get the snapshot to flush.  Presumes that a call to
-    // this.memcache.snapshot() has happened earlier up in the chain.
-    SortedMap<HStoreKey, byte []> cache = this.memcache.getSnapshot();
-    long flushed = internalFlushCache(cache, logCacheFlushId);
-    // If an exception happens flushing, we let it out without clearing
-    // the memcache snapshot.  The old snapshot will be returned when we say
-    // 'snapshot', the next time flush comes around.
-    this.memcache.clearSnapshot(cache);
-    return flushed;
-  }
-  
-  private long internalFlushCache(SortedMap<HStoreKey, byte []> cache,
-      long logCacheFlushId)
-  throws IOException {
-    long flushed = 0;
-    // Don't flush if there are no entries.
-    if (cache.size() == 0) {
-      return flushed;
+  private void deleteBloomFilter(final HStoreFile hsf) throws IOException {
+    if (this.filterDir == null) {
+      return;
+    }
+    Path filterFile = getBloomFilterPath(hsf);
+    this.bloomFilterCache.remove(filterFile);
+    if (fs.exists(filterFile)) {
+      fs.delete(filterFile, false);
     }
+  }
 
-    // TODO: We can fail in the below block before we complete adding this
+  /*
+   * @param rows Number of rows the filter was sized for.
+   * @return Approximate bytes of heap used by the filter.
+   */
+  private long getBloomFilterHeapSize(final int rows) {
+    long vectorSize = getBloomFilterVectorSize(rows);
+    // Counting filters keep four bits per position rather than one.
+    return family.getBloomFilter().filterType ==
+      BloomFilterDescriptor.BloomFilterType.COUNTING_BLOOMFILTER?
+        vectorSize / 2: vectorSize / 8;
+  }
+
+  /*
+   * Consults the bloom filter of the store file with the passed sequence id,
+   * loading it if it is not cached.
+   * @param seqId Sequence id of the store file.
+   * @param row
+   * @return False if the store file certainly has no cells of
+   * <code>row</code>.
+   */
+  private boolean mayContainRow(final Long seqId, final Text row) {
+    if (this.filterDir == null) {
+      return true;
+    }
+    HStoreFile hsf = this.storefiles.get(seqId);
+    if (hsf == null) {
+      return true;
+    }
+    Path filterFile = getBloomFilterPath(hsf);
+    Filter filter = this.bloomFilterCache.get(filterFile);
+    if (filter == null) {
+      if (this.bloomFilterCache.isKnownMissing(filterFile)) {
+        return true;
+      }
+      try {
+        filter = loadBloomFilter(filterFile);
+      } catch (IOException e) {
+        LOG.warn("Failed loading bloom filter " + filterFile, e);
+        return true;
+      }
+      if (filter == null) {
+        this.bloomFilterCache.putMissing(filterFile);
+        return true;
+      }
+    }
+    return filter.membershipTest(getBloomFilterKey(row));
+  }
+
+  /**
+   * The bloom filters of the store files of all stores of a region server
+   * that have been read or written recently, up to a bound on their total
+   * size.  Filters are loaded when first needed rather than when a store
+   * opens.
+   *
+   * <p>The bound is <code>hbase.hstore.bloomfilter.cache.size</code> bytes.
+   */
+  static class BloomFilterCache {
+    // Marks a store file known to have no filter.
+    private static final Filter MISSING = new BloomFilter();
+
+    private final long maxSize;
+    private long size = 0;
+    private final LinkedHashMap<Path, Filter> filters =
+      new LinkedHashMap<Path, Filter>(16, 0.75f, true);
+    private final Map<Path, Long> sizes = new HashMap<Path, Long>();
+
+    /*
+     * @param conf
+     * @return A bloom filter cache as configured.
+     */
+    static BloomFilterCache create(final HBaseConfiguration conf) {
+      return new BloomFilterCache(
+        conf.getLong("hbase.hstore.bloomfilter.cache.size", 64 * 1024 * 1024));
+    }
+
+    BloomFilterCache(final long maxSize) {
+      this.maxSize = maxSize;
+    }
+
+    synchronized Filter get(final Path filterFile) {
+      Filter filter = this.filters.get(filterFile);
+      return filter == MISSING? null: filter;
+    }
+
+    synchronized boolean isKnownMissing(final Path filterFile) {
+      return this.filters.get(filterFile) == MISSING;
+    }
+
+    synchronized void putMissing(final Path filterFile) {
+      put(filterFile, MISSING, 0);
+    }
+
+    synchronized void put(final Path filterFile, final Filter filter,
+        final long heapSize) {
+      remove(filterFile);
+      this.filters.put(filterFile, filter);
+      this.sizes.put(filterFile, Long.valueOf(heapSize));
+      this.size += heapSize;
+      // Evict least recently used filters, but never the one just added.
+      Iterator<Map.Entry<Path, Filter>> i = this.filters.entrySet().iterator();
+      while (this.size > this.maxSize && this.filters.size() > 1) {
+        Path evicted = i.next().getKey();
+        i.remove();
+        this.size -= this.sizes.remove(evicted).longValue();
+      }
+    }
+
+    synchronized void remove(final Path filterFile) {
+      if (this.filters.remove(filterFile) != null) {
+        this.size -= this.sizes.remove(filterFile).longValue();
+      }
+    }
+  }
+  
+  //////////////////////////////////////////////////////////////////////////////
+  // End bloom filters
+  //////////////////////////////////////////////////////////////////////////////
+
+  //////////////////////////////////////////////////////////////////////////////
+  // Block cache
+  //////////////////////////////////////////////////////////////////////////////
+
+  /**
+   * Blocks of store files recently read by the MapFile.Readers of all stores
+   * of a region server, least recently used evicted first.  Blocks are keyed
+   * by store file path and block offset.  Store files are never modified once
+   * written so cached blocks never go stale; those of deleted files age out.
+   *
+   * <p>The cache is split into segments by key, each a least recently used
+   * map with its share of the bytes under its own lock, so concurrent reads
+   * of different blocks rarely wait on one another.
+   *
+   * <p>Configured by <code>hbase.hstore.blockcache.size</code>, the bytes
+   * the cache may hold (0, the default, for no cache),
+   * <code>hbase.hstore.blockcache.blocksize</code>, and
+   * <code>hbase.hstore.blockcache.offheap</code>, true to keep blocks in
+   * direct buffers outside the Java heap.
+   *
+   * <p>Only the readers a store keeps for gets go through the cache.
+   * Compactions and scanners read whole files and would only push hot blocks
+   * out.
+   */
+  static class BlockCache {
+    private static final int SEGMENTS = 16;
+
+    private final int blockSize;
+    private final boolean offHeap;
+    private final Segment [] segments = new Segment[SEGMENTS];
+
+    private final AtomicLong hits = new AtomicLong(0);
+    private final AtomicLong misses = new AtomicLong(0);
+    private final AtomicLong evictions = new AtomicLong(0);
+
+    /*
+     * @param conf
+     * @return A block cache as configured, or null if none is.
+     */
+    static BlockCache create(final HBaseConfiguration conf) {
+      long maxSize = conf.getLong("hbase.hstore.blockcache.size", 0L);
+      if (maxSize <= 0) {
+        return null;
+      }
+      return new BlockCache(maxSize,
+        conf.getInt("hbase.hstore.blockcache.blocksize", 64 * 1024),
+        conf.getBoolean("hbase.hstore.blockcache.offheap", false));
+    }
+
+    BlockCache(final long maxSize, final int blockSize, final boolean offHeap) {
+      this.blockSize = blockSize;
+      this.offHeap = offHeap;
+      for (int i = 0; i < SEGMENTS; i++) {
+        this.segments[i] = new Segment(Math.max(maxSize / SEGMENTS, 1));
+      }
+    }
+
+    int getBlockSize() {
+      return this.blockSize;
+    }
+
+    private Segment getSegment(final BlockKey key) {
+      int h = key.hashCode();
+      return this.segments[(h ^ (h >>> 16)) & (SEGMENTS - 1)];
+    }
+
+    /*
+     * @return The cached block, positioned at zero, or null if not cached.
+     */
+    ByteBuffer get(final BlockKey key) {
+      ByteBuffer block = getSegment(key).get(key);
+      if (block == null) {
+        this.misses.incrementAndGet();
+        return null;
+      }
+      this.hits.incrementAndGet();
+      return block.duplicate();
+    }
+
+    void put(final BlockKey key, final byte [] data, final int length) {
+      ByteBuffer block = this.offHeap?
+        ByteBuffer.allocateDirect(length): ByteBuffer.allocate(length);
+      block.put(data, 0, length);
+      block.flip();
+      this.evictions.addAndGet(getSegment(key).put(key, block));
+    }
+
+    /** @return Bytes of blocks held. */
+    long getSize() {
+      long size = 0;
+      for (Segment segment: this.segments) {
+        size += segment.getSize();
+      }
+      return size;
+    }
+
+    /** @return Number of blocks held. */
+    int getBlockCount() {
+      int count = 0;
+      for (Segment segment: this.segments) {
+        count += segment.getBlockCount();
+      }
+      return count;
+    }
+
+    /** @return Number of reads served from the cache. */
+    long getHitCount() {
+      return this.hits.get();
+    }
+
+    /** @return Number of reads that went to the file system. */
+    long getMissCount() {
+      return this.misses.get();
+    }
+
+    /** @return Number of blocks evicted to make room. */
+    long getEvictionCount() {
+      return this.evictions.get();
+    }
+
+    /*
+     * One least recently used share of the cache.
+     */
+    private static class Segment {
+      private final long maxSize;
+      private long size = 0;
+      private final LinkedHashMap<BlockKey, ByteBuffer> blocks =
+        new LinkedHashMap<BlockKey, ByteBuffer>(64, 0.75f, true);
+
+      Segment(final long maxSize) {
+        this.maxSize = maxSize;
+      }
+
+      synchronized ByteBuffer get(final BlockKey key) {
+        return this.blocks.get(key);
+      }
+
+      /*
+       * @return Number of blocks evicted to make room.
+       */
+      synchronized int put(final BlockKey key, final ByteBuffer block) {
+        ByteBuffer old = this.blocks.put(key, block);
+        this.size += block.capacity() - (old == null? 0: old.capacity());
+        int evicted = 0;
+        Iterator<ByteBuffer> i = this.blocks.values().iterator();
+        while (this.size > this.maxSize && this.blocks.size() > 1) {
+          this.size -= i.next().capacity();
+          i.remove();
+          evicted++;
+        }
+        return evicted;
+      }
+
+      synchronized long getSize() {
+        return this.size;
+      }
+
+      synchronized int getBlockCount() {
+        return this.blocks.size();
+      }
+    }
+  }
+
+  /*
+   * Key of a cached block: the path of its store file, whose hash is taken
+   * once per stream, and the block's offset.
+   */
+  static final class BlockKey {
+    private final Path file;
+    private final int fileHash;
+    private final long offset;
+
+    BlockKey(final Path file, final int fileHash, final long offset) {
+      this.file = file;
+      this.fileHash = fileHash;
+      this.offset = offset;
+    }
+
+    @Override
+    public int hashCode() {
+      return this.fileHash * 31 + (int)(this.offset ^ (this.offset >>> 32));
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+      if (this == o) {
+        return true;
+      }
+      if (!(o instanceof BlockKey)) {
+        return false;
+      }
+      BlockKey other = (BlockKey)o;
+      return this.offset == other.offset && this.fileHash == other.fileHash &&
+        this.file.equals(other.file);
+    }
+  }
+
+  /*
+   * File system whose input streams read through a {@link BlockCache}.
+   * Everything else is passed straight to the wrapped file system.
+   */
+  static class BlockCachingFileSystem extends FilterFileSystem {
+    private final BlockCache cache;
+
+    BlockCachingFileSystem(final FileSystem fs, final BlockCache cache) {
+      super(fs);
+      this.cache = cache;
+    }
+
+    @Override
+    public FSDataInputStream open(final Path f, final int bufferSize)
+    throws IOException {
+      return new FSDataInputStream(new BlockCachingInputStream(f,
+        this.fs.open(f, bufferSize), this.fs.getFileStatus(f).getLen(),
+        this.cache));
+    }
+  }
+
+  /*
+   * Input stream over a store file that reads whole blocks, from the
+   * {@link BlockCache} if there and otherwise from the file, which it then
+   * caches.
+   */
+  static class BlockCachingInputStream extends InputStream
+  implements Seekable, PositionedReadable {
+    private final Path file;
+    private final FSDataInputStream in;
+    private final long length;
+    private final BlockCache cache;
+    private final int fileHash;
+    private final byte [] buffer;
+    private long pos = 0;
+    // Block holding pos, or null if not yet fetched.
+    private ByteBuffer block = null;
+    private long blockOffset = -1;
+
+    BlockCachingInputStream(final Path file, final FSDataInputStream in,
+        final long length, final BlockCache cache) {
+      this.file = file;
+      this.in = in;
+      this.length = length;
+      this.cache = cache;
+      this.fileHash = file.hashCode();
+      this.buffer = new byte[cache.getBlockSize()];
+    }
+
+    /*
+     * Makes the block holding <code>position</code> the current block.
+     * @return False if <code>position</code> is at or past the end of file.
+     */
+    private boolean fetchBlock(final long position) throws IOException {
+      if (position >= this.length) {
+        return false;
+      }
+      long offset = position - (position % this.buffer.length);
+      if (offset != this.blockOffset) {
+        BlockKey key = new BlockKey(this.file, this.fileHash, offset);
+        ByteBuffer b = this.cache.get(key);
+        if (b == null) {
+          int len = (int)Math.min(this.buffer.length, this.length - offset);
+          this.in.readFully(offset, this.buffer, 0, len);
+          this.cache.put(key, this.buffer, len);
+          b = ByteBuffer.wrap(this.buffer, 0, len).slice();
+        }
+        this.block = b;
+        this.blockOffset = offset;
+      }
+      this.block.position((int)(position - offset));
+      return true;
+    }
+
+    @Override
+    public synchronized int read() throws IOException {
+      if (!fetchBlock(this.pos)) {
+        return -1;
+      }
+      this.pos++;
+      return this.block.get() & 0xff;
+    }
+
+    @Override
+    public synchronized int read(final byte [] b, final int off, final int len)
+    throws IOException {
+      int n = read(this.pos, b, off, len);
+      if (n > 0) {
+        this.pos += n;
+      }
+      return n;
+    }
+
+    public synchronized int read(final long position, final byte [] b,
+        final int off, final int len)
+    throws IOException {
+      if (len == 0) {
+        return 0;
+      }
+      if (!fetchBlock(position)) {
+        return -1;
+      }
+      // Don't read past the current block; callers go round again.
+      int n = Math.min(len, this.block.remaining());
+      this.block.get(b, off, n);
+      return n;
+    }
+
+    public void readFully(final long position, final byte [] b, final int off,
+        final int len)
+    throws IOException {
+      int done = 0;
+      while (done < len) {
+        int n = read(position + done, b, off + done, len - done);
+        if (n < 0) {
+          throw new EOFException("End of file reading " + this.file);
+        }
+        done += n;
+      }
+    }
+
+    public void readFully(final long position, final byte [] b)
+    throws IOException {
+      readFully(position, b, 0, b.length);
+    }
+
+    public synchronized void seek(final long position) throws IOException {
+      if (position > this.length) {
+        throw new EOFException("Seek past end of " + this.file);
+      }
+      this.pos = position;
+    }
+
+    public synchronized long getPos() {
+      return this.pos;
+    }
+
+    public boolean seekToNewSource(final long targetPos) throws IOException {
+      return this.in.seekToNewSource(targetPos);
+    }
+
+    @Override
+    public synchronized int available() {
+      return (int)Math.min(Integer.MAX_VALUE, this.length - this.pos);
+    }
+
+    @Override
+    public void close() throws IOException {
+      this.in.close();
+    }
+  }
+
+  //////////////////////////////////////////////////////////////////////////////
+  // End block cache
+  //////////////////////////////////////////////////////////////////////////////
+
+  /*
+   * File system whose input streams read a file in blocks and, as each block
+   * is taken, read the one after it in the background.  Used by scanners,
+   * which read their files front to back.
+   *
+   * Configured by <code>hbase.hstore.scanner.prefetch.size</code>, the
+   * block size, and <code>hbase.hstore.scanner.prefetch.threads</code>, the
+   * threads shared by all prefetching streams of a region server.
+   */
+  static class PrefetchingFileSystem extends FilterFileSystem {
+    private final int blockSize;
+    private final ExecutorService pool;
+
+    /*
+     * @param fs
+     * @param conf
+     * @param pool Threads that read the blocks ahead.
+     */
+    PrefetchingFileSystem(final FileSystem fs, final HBaseConfiguration conf,
+        final ExecutorService pool) {
+      this(fs, conf.getInt("hbase.hstore.scanner.prefetch.size", 64 * 1024),
+        pool);
+    }
+
+    PrefetchingFileSystem(final FileSystem fs, final int blockSize,
+        final ExecutorService pool) {
+      super(fs);
+      this.blockSize = blockSize;
+      this.pool = pool;
+    }
+
+    /*
+     * @param conf
+     * @return A pool for the prefetching streams of a region server.
+     */
+    static ThreadPoolExecutor createPool(final HBaseConfiguration conf) {
+      final AtomicInteger threadNumber = new AtomicInteger(0);
+      int threads = conf.getInt("hbase.hstore.scanner.prefetch.threads", 4);
+      ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60,
+        TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+        new ThreadFactory() {
+          public Thread newThread(Runnable r) {
+            Thread t = new Thread(r,
+              "prefetcher-" + threadNumber.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+          }
+        });
+      pool.allowCoreThreadTimeOut(true);
+      return pool;
+    }
+
+    @Override
+    public FSDataInputStream open(final Path f, final int bufferSize)
+    throws IOException {
+      return new FSDataInputStream(new PrefetchingInputStream(f,
+        this.fs.open(f, bufferSize), this.fs.getFileStatus(f).getLen(),
+        this.blockSize, this.pool));
+    }
+  }
+
+  /*
+   * Input stream that reads a file a block at a time, with the read of the
+   * block following the current one already under way in the background.
+   * Seeks elsewhere in the file read their block directly.
+   *
+   * <p>The stream keeps two buffers, the current block and the one being
+   * read ahead into, and swaps them as it moves on, so a front to back read
+   * allocates nothing per block.
+   */
+  static class PrefetchingInputStream extends InputStream
+  implements Seekable, PositionedReadable {
+    private final Path file;
+    private final FSDataInputStream in;
+    private final long length;
+    private final int blockSize;
+    private final ExecutorService pool;
+    private long pos = 0;
+    private byte [] block = null;
+    private int blockLength = 0;
+    private long blockOffset = -1;
+    // Buffer the next block is read into; owned by nextBlock while it runs.
+    private byte [] spare = null;
+    private Future<Integer> nextBlock = null;
+    private long nextBlockOffset = -1;
+
+    PrefetchingInputStream(final Path file, final FSDataInputStream in,
+        final long length, final int blockSize, final ExecutorService pool) {
+      this.file = file;
+      this.in = in;
+      this.length = length;
+      this.blockSize = blockSize;
+      this.pool = pool;
+    }
+
+    /*
+     * @return Number of bytes read into <code>b</code>.
+     */
+    private int readBlock(final long offset, final byte [] b)
+    throws IOException {
+      int len = (int)Math.min(this.blockSize, this.length - offset);
+      // Positioned reads of the same stream may come from the prefetcher and
+      // the reader at once.
+      synchronized (this.in) {
+        this.in.readFully(offset, b, 0, len);
+      }
+      return len;
+    }
+
+    /*
+     * Makes the block holding <code>position</code> the current block and
+     * starts the read of the block after it.
+     * @return False if <code>position</code> is at or past the end of file.
+     */
+    private boolean fetchBlock(final long position) throws IOException {
+      if (position >= this.length) {
+        return false;
+      }
+      long offset = position - (position % this.blockSize);
+      if (offset == this.blockOffset) {
+        return true;
+      }
+      if (this.nextBlock != null && this.nextBlockOffset == offset) {
+        int len;
+        try {
+          len = this.nextBlock.get().intValue();
+        } catch (ExecutionException e) {
+          this.nextBlock = null;
+          LOG.warn("Failed reading ahead block at " + offset + " of " +
+            this.file, e.getCause());
+          if (e.getCause() instanceof IOException) {
+            throw (IOException)e.getCause();
+          }
+          IOException ioe = new IOException("Failed reading " + this.file);
+          ioe.initCause(e.getCause());
+          throw ioe;
+        } catch (InterruptedException e) {
+          // The read ahead is left to finish; a retry picks it up.
+          Thread.currentThread().interrupt();
+          throw new InterruptedIOException("Interrupted reading " + this.file);
+        }
+        this.nextBlock = null;
+        byte [] b = this.block;
+        this.block = this.spare;
+        this.spare = b;
+        this.blockLength = len;
+      } else {
+        if (this.nextBlock != null && !this.nextBlock.cancel(false)) {
+          // Already reading into the spare buffer; leave it that one.
+          this.spare = null;
+        }
+        this.nextBlock = null;
+        if (this.block == null) {
+          this.block = new byte[this.blockSize];
+        }
+        this.blockLength = readBlock(offset, this.block);
+      }
+      this.blockOffset = offset;
+
+      final long next = offset + this.blockSize;
+      if (next < this.length) {
+        if (this.spare == null) {
+          this.spare = new byte[this.blockSize];
+        }
+        final byte [] b = this.spare;
+        try {
+          this.nextBlock = this.pool.submit(new Callable<Integer>() {
+            public Integer call() throws IOException {
+              return Integer.valueOf(readBlock(next, b));
+            }
+          });
+          this.nextBlockOffset = next;
+        } catch (RejectedExecutionException e) {
+          // Pool shut down; the next block is read when it is needed.
+          this.nextBlock = null;
+        }
+      }
+      return true;
+    }
+
+    @Override
+    public synchronized int read() throws IOException {
+      if (!fetchBlock(this.pos)) {
+        return -1;
+      }
+      int b = this.block[(int)(this.pos - this.blockOffset)] & 0xff;
+      this.pos++;
+      return b;
+    }
+
+    @Override
+    public synchronized int read(final byte [] b, final int off, final int len)
+    throws IOException {
+      int n = read(this.pos, b, off, len);
+      if (n > 0) {
+        this.pos += n;
+      }
+      return n;
+    }
+
+    public synchronized int read(final long position, final byte [] b,
+        final int off, final int len)
+    throws IOException {
+      if (len == 0) {
+        return 0;
+      }
+      if (!fetchBlock(position)) {
+        return -1;
+      }
+      int start = (int)(position - this.blockOffset);
+      // Don't read past the current block; callers go round again.
+      int n = Math.min(len, this.blockLength - start);
+      System.arraycopy(this.block, start, b, off, n);
+      return n;
+    }
+
+    public void readFully(final long position, final byte [] b, final int off,
+        final int len)
+    throws IOException {
+      int done = 0;
+      while (done < len) {
+        int n = read(position + done, b, off + done, len - done);
+        if (n < 0) {
+          throw new EOFException("End of file reading " + this.file);
+        }
+        done += n;
+      }
+    }
+
+    public void readFully(final long position, final byte [] b)
+    throws IOException {
+      readFully(position, b, 0, b.length);
+    }
+
+    public synchronized void seek(final long position) throws IOException {
+      if (position > this.length) {
+        throw new EOFException("Seek past end of " + this.file);
+      }
+      this.pos = position;
+    }
+
+    public synchronized long getPos() {
+      return this.pos;
+    }
+
+    public boolean seekToNewSource(final long targetPos) throws IOException {
+      return this.in.seekToNewSource(targetPos);
+    }
+
+    @Override
+    public synchronized int available() {
+      return (int)Math.min(Integer.MAX_VALUE, this.length - this.pos);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+      if (this.nextBlock != null) {
+        this.nextBlock.cancel(false);
+        this.nextBlock = null;
+      }
+      this.in.close();
+    }
+  }
+
+  /**
+   * Adds a value to the memcache
+   * 
+   * @param key
+   * @param value
+   */
+  void add(HStoreKey key, byte[] value) {
+    lock.readLock().lock();
+    try {
+      this.memcache.add(key, value);
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+  
+  /**
+   * Close all the MapFile readers
+   * 
+   * We don't need to worry about subsequent requests because the HRegion holds
+   * a write lock that will prevent any more reads or writes.  Compactions are
+   * run by the region server's scheduler instead, so close waits out one
+   * under way, and none is queued or started after.
+   * 
+   * @throws IOException
+   */
+  List<HStoreFile> close() throws IOException {
+    this.closed = true;
+    synchronized (this.compactLock) {
+      ArrayList<HStoreFile> result = null;
+      this.lock.writeLock().lock();
+      try {
+        for (MapFile.Reader reader: this.readers.values()) {
+          reader.close();
+        }
+        synchronized (this.storefiles) {
+          result = new ArrayList<HStoreFile>(storefiles.values());
+        }
+        LOG.debug("closed " + this.storeName);
+        return result;
+      } finally {
+        this.lock.writeLock().unlock();
+      }
+    }
+  }
+
+
+  //////////////////////////////////////////////////////////////////////////////
+  // Flush changes to disk
+  //////////////////////////////////////////////////////////////////////////////
+  /**
+   * Prior to doing a cache flush, we need to snapshot the memcache.
+   * TODO: This method is ugly.  Why let client of HStore run snapshots.  How
+   * do we know they'll be cleaned up?
+   */
+  void snapshotMemcache() {
+    this.memcache.snapshot();
+  }
+    
+  /**
+   * Write out current snapshot.  Presumes {@link #snapshot()} has been called
+   * previously.
+   * @param logCacheFlushId flush sequence number
+   * @return count of bytes flushed
+   * @throws IOException
+   */
+  long flushCache(final long logCacheFlushId) throws IOException {
+    // Get the snapshot to flush.  Presumes that a call to
+    // this.memcache.snapshot() has happened earlier up in the chain.
+    SortedMap<HStoreKey, byte []> cache = this.memcache.getSnapshot();
+    long flushed = internalFlushCache(cache, logCacheFlushId);
+    // If an exception happens flushing, we let it out without clearing
+    // the memcache snapshot.  The old snapshot will be returned when we say
+    // 'snapshot', the next time flush comes around.
+    this.memcache.clearSnapshot(cache);
+    if (flushed > 0) {
+      // The new file may have taken the store over its threshold.
+      requestCompaction();
+    }
+    return flushed;
+  }
+
+  /**
+   * Write out the current snapshots of several stores, typically all the
+   * families of a region, in parallel on the region server's flush pool.
+   * Stores opened without the region server's services are written one after
+   * the other.  Presumes {@link #snapshotMemcache()} has been called on each
+   * of them.  For the region's cache flush to call in place of
+   * {@link #flushCache(long)} on each store in turn.
+   *
+   * <p>Returns only once every store has finished, so the caller can then
+   * record that the region is flushed up to <code>logCacheFlushId</code>.
+   * If any store fails, the others still finish, and the first failure is
+   * thrown once they have; the stores that failed keep their snapshots for
+   * the next attempt.  If interrupted while waiting, it still waits for the
+   * flushes under way, then restores the interrupt and throws
+   * InterruptedIOException.
+   * @param stores
+   * @param logCacheFlushId flush sequence number
+   * @return count of bytes flushed by all stores
+   * @throws IOException
+   */
+  static long flushCaches(final Collection<HStore> stores,
+      final long logCacheFlushId)
+  throws IOException {
+    if (stores.isEmpty()) {
+      return 0;
+    }
+    ExecutorService pool = stores.iterator().next().flushPool;
+    if (stores.size() == 1 || pool == null) {
+      long flushed = 0;
+      for (HStore store: stores) {
+        flushed += store.flushCache(logCacheFlushId);
+      }
+      return flushed;
+    }
+    List<Future<Long>> flushes = new ArrayList<Future<Long>>(stores.size());
+    for (final HStore store: stores) {
+      flushes.add(pool.submit(new Callable<Long>() {
+        public Long call() throws IOException {
+          return Long.valueOf(store.flushCache(logCacheFlushId));
+        }
+      }));
+    }
+    long flushed = 0;
+    IOException failure = null;
+    boolean interrupted = false;
+    for (Future<Long> flush: flushes) {
+      while (true) {
+        try {
+          flushed += flush.get().longValue();
+        } catch (ExecutionException e) {
+          if (failure == null) {
+            if (e.getCause() instanceof IOException) {
+              failure = (IOException)e.getCause();
+            } else {
+              failure = new IOException("Flush failed");
+              failure.initCause(e.getCause());
+            }
+          }
+        } catch (InterruptedException e) {
+          // The flush is still writing its store; wait it out so no store is
+          // left half flushed, and pass the interrupt on after.
+          interrupted = true;
+          continue;
+        }
+        break;
+      }
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+      if (failure == null) {
+        failure = new InterruptedIOException("Interrupted waiting on flush");
+      }
+    }
+    if (failure != null) {
+      throw failure;
+    }
+    return flushed;
+  }
+  
+  private long internalFlushCache(SortedMap<HStoreKey, byte []> cache,
+      long logCacheFlushId)
+  throws IOException {
+    long flushed = 0;
+    // Don't flush if there are no entries.
+    if (cache.isEmpty()) {
+      return flushed;
+    }
+
+    // TODO: We can fail in the below block before we complete adding this
     // flush to list of store files. Add cleanup of anything put on filesystem
     // if we fail.
     synchronized (flushLock) {
@@ -1227,7 +2354,9 @@ public class HStore implements HConstants {
       HStoreFile flushedFile = new HStoreFile(conf, fs, basedir,
           info.getEncodedName(), family.getFamilyName(), -1L, null);
       MapFile.Writer out = flushedFile.getWriter(this.fs, this.compression,
-          this.bloomFilter);
+          null);
+      int rows = this.filterDir == null? 0: countRows(cache);
+      Filter filter = createBloomFilter(rows);
 
       // Here we tried picking up an existing HStoreFile from disk and
       // interlacing the memcache flush compacting as we go. The notion was
@@ -1248,6 +2377,9 @@ public class HStore implements HConstants {
           if (f.equals(this.family.getFamilyName())) {
             entries++;
             out.append(curkey, new ImmutableBytesWritable(es.getValue()));
+            if (filter != null) {
+              filter.add(getBloomFilterKey(curkey.getRow()));
+            }
             flushed += HRegion.getEntrySize(curkey, es.getValue());
           }
         }
@@ -1259,10 +2391,8 @@ public class HStore implements HConstants {
       // MapFile. The MapFile is current up to and including the log seq num.
       flushedFile.writeInfo(fs, logCacheFlushId);
 
-      // C. Flush the bloom filter if any
-      if (bloomFilter != null) {
-        flushBloomFilter();
-      }
+      // C. Write the bloom filter of the new MapFile, if any
+      writeBloomFilter(flushedFile, filter, rows);
 
       // D. Finally, make the new MapFile available.
       updateReaders(logCacheFlushId, flushedFile);
@@ -1276,6 +2406,27 @@ public class HStore implements HConstants {
     return flushed;
   }
 
+  /*
+   * @param cache Snapshot about to be flushed.
+   * @return Number of distinct rows of this store's family in
+   * <code>cache</code>, which is sorted by row.
+   */
+  private int countRows(final SortedMap<HStoreKey, byte []> cache) {
+    int rows = 0;
+    Text lastRow = null;
+    for (HStoreKey key: cache.keySet()) {
+      if (!HStoreKey.extractFamily(key.getColumn()).equals(
+          this.family.getFamilyName())) {
+        continue;
+      }
+      if (lastRow == null || !lastRow.equals(key.getRow())) {
+        rows++;
+        lastRow = key.getRow();
+      }
+    }
+    return rows;
+  }
+
   /*
    * Change readers adding into place the Reader produced by this new flush.
    * @param logCacheFlushId
@@ -1290,7 +2441,7 @@ public class HStore implements HConstants {
       Long flushid = Long.valueOf(logCacheFlushId);
       // Open the map file reader.
       this.readers.put(flushid,
-        flushedFile.getReader(this.fs, this.bloomFilter));
+        flushedFile.getReader(this.readerFs, null));
       this.storefiles.put(flushid, flushedFile);
       // Tell listeners of the change in readers.
       notifyChangedReadersObservers();
@@ -1309,57 +2460,289 @@ public class HStore implements HConstants {
         o.updateReaders();
       }
     }
-  }
-  
-  /*
-   * @param o Observer who wants to know about changes in set of Readers
-   */
-  void addChangedReaderObserver(ChangedReadersObserver o) {
-    this.changedReaderObservers.add(o);
-  }
-  
-  /*
-   * @param o Observer no longer interested in changes in set of Readers.
-   */
-  void deleteChangedReaderObserver(ChangedReadersObserver o) {
-    if (!this.changedReaderObservers.remove(o)) {
-      LOG.warn("Not in set" + o);
+  }
+  
+  /*
+   * @param o Observer who wants to know about changes in set of Readers
+   */
+  void addChangedReaderObserver(ChangedReadersObserver o) {
+    this.changedReaderObservers.add(o);
+  }
+  
+  /*
+   * @param o Observer no longer interested in changes in set of Readers.
+   */
+  void deleteChangedReaderObserver(ChangedReadersObserver o) {
+    if (!this.changedReaderObservers.remove(o)) {
+      LOG.warn("Not in set" + o);
+    }
+  }
+
+  //////////////////////////////////////////////////////////////////////////////
+  // Compaction
+  //////////////////////////////////////////////////////////////////////////////
+  
+  /**
+   * @return True if this store needs compaction.
+   */
+  boolean needsCompaction() {
+    return this.storefiles != null &&
+      (this.storefiles.size() >= this.compactionThreshold || hasReferences());
+  }
+  
+  /*
+   * @return True if this store has references.
+   */
+  private boolean hasReferences() {
+    return this.storefiles != null && this.storefiles.size() > 0 &&
+      hasReferences(this.storefiles.values());
+  }
+  
+  /*
+   * @param files
+   * @return True if any of the files in <code>files</code> are References.
+   */
+  private boolean hasReferences(Collection<HStoreFile> files) {
+    if (files != null && files.size() > 0) {
+      for (HStoreFile hsf: files) {
+        if (hsf.isReference()) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Queue a compaction of this store with the region server's
+   * {@link CompactionScheduler} if it needs one and one is not already queued.
+   * Called after each flush.  Nothing is queued once the store is closed, nor
+   * for a while after a queued compaction of the store has failed.
+   * @return True if a compaction was queued.
+   */
+  boolean requestCompaction() {
+    if (this.closed || this.compactionScheduler == null ||
+        System.currentTimeMillis() < this.compactionRetryTime ||
+        !needsCompaction() ||
+        !this.compactionQueued.compareAndSet(false, true)) {
+      return false;
+    }
+    long aggregate = 0L;
+    for (HStoreFile hsf: getStorefiles().values()) {
+      try {
+        aggregate += hsf.length();
+      } catch (IOException e) {
+        LOG.warn("Failed getting length of " + hsf + " in " + this.storeName, e);
+      }
+    }
+    this.compactionScheduler.schedule(new CompactionRequest(this,
+      this.storefiles.size(), aggregate));
+    return true;
+  }
+
+  private void compactionSucceeded() {
+    synchronized (this.compactLock) {
+      this.compactionBackoff = 0L;
+      this.compactionRetryTime = 0L;
+    }
+  }
+
+  /*
+   * Puts off queueing the next compaction, for twice as long as last time if
+   * the last one failed too.
+   * @return Milliseconds the next compaction is put off for.
+   */
+  private long compactionFailed() {
+    synchronized (this.compactLock) {
+      this.compactionBackoff = this.compactionBackoff == 0L?
+        this.compactionBackoffMin:
+        Math.min(this.compactionBackoff * 2, this.compactionBackoffMax);
+      this.compactionRetryTime =
+        System.currentTimeMillis() + this.compactionBackoff;
+      return this.compactionBackoff;
+    }
+  }
+
+  /*
+   * A queued compaction of one store.  Stores with more files come first, as
+   * they cost reads the most; among those with as many files, the smaller
+   * store comes first as it will be done sooner.
+   */
+  static class CompactionRequest
+  implements Runnable, Comparable<CompactionRequest> {
+    private final HStore store;
+    private final int fileCount;
+    private final long aggregateSize;
+
+    CompactionRequest(final HStore store, final int fileCount,
+        final long aggregateSize) {
+      this.store = store;
+      this.fileCount = fileCount;
+      this.aggregateSize = aggregateSize;
+    }
+
+    /** {@inheritDoc} */
+    public int compareTo(final CompactionRequest o) {
+      if (this.fileCount != o.fileCount) {
+        return this.fileCount > o.fileCount? -1: 1;
+      }
+      return this.aggregateSize < o.aggregateSize? -1:
+        this.aggregateSize == o.aggregateSize? 0: 1;
+    }
+
+    /** {@inheritDoc} */
+    public void run() {
+      this.store.compactionQueued.set(false);
+      if (this.store.closed) {
+        return;
+      }
+      long start = System.currentTimeMillis();
+      try {
+        if (this.store.compact(false)) {
+          this.store.compactionScheduler.compactionDone(this.aggregateSize,
+            System.currentTimeMillis() - start);
+        }
+        this.store.compactionSucceeded();
+      } catch (IOException e) {
+        long backoff = this.store.compactionFailed();
+        LOG.error("Compaction failed for " + this.store.storeName +
+          "; not queueing another for " + backoff + "ms", e);
+      }
+    }
+
+    @Override
+    public String toString() {
+      return this.store.storeName + " (" + this.fileCount + " files, " +
+        this.aggregateSize + " bytes)";
     }
   }
 
-  //////////////////////////////////////////////////////////////////////////////
-  // Compaction
-  //////////////////////////////////////////////////////////////////////////////
-  
   /**
-   * @return True if this store needs compaction.
-   */
-  boolean needsCompaction() {
-    return this.storefiles != null &&
-      (this.storefiles.size() >= this.compactionThreshold || hasReferences());
-  }
-  
-  /*
-   * @return True if this store has references.
-   */
-  private boolean hasReferences() {
-    return this.storefiles != null && this.storefiles.size() > 0 &&
-      hasReferences(this.storefiles.values());
-  }
-  
-  /*
-   * @param files
-   * @return True if any of the files in <code>files</code> are References.
+   * Runs the compactions of all stores of a region server on a bounded pool
+   * of background threads, most needed first, and limits the rate at which
+   * they write so flushes are left some disk bandwidth.
+   *
+   * <p>Configured by <code>hbase.hstore.compaction.threads</code>, the
+   * number of compactions run at once, and
+   * <code>hbase.hstore.compaction.throughput</code>, the bytes per second
+   * all compactions together may write (0, the default, for no limit).
    */
-  private boolean hasReferences(Collection<HStoreFile> files) {
-    if (files != null && files.size() > 0) {
-      for (HStoreFile hsf: files) {
-        if (hsf.isReference()) {
-          return true;
+  static class CompactionScheduler {
+    private final ThreadPoolExecutor pool;
+    // Token bucket.  Holds at most a second's worth of bytes.  Goes negative
+    // when writers run ahead of the rate; they then sleep off the debt.
+    private final long bytesPerSecond;
+    private double tokens;
+    private long lastRefill = System.nanoTime();
+
+    private final AtomicLong compactionsCompleted = new AtomicLong(0);
+    private final AtomicLong bytesCompacted = new AtomicLong(0);
+    private final AtomicLong compactionMillis = new AtomicLong(0);
+    private final AtomicLong throttledMillis = new AtomicLong(0);
+
+    CompactionScheduler(final int threads, final long bytesPerSecond) {
+      final AtomicInteger threadNumber = new AtomicInteger(0);
+      this.pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+        new PriorityBlockingQueue<Runnable>(), new ThreadFactory() {
+          public Thread newThread(Runnable r) {
+            Thread t = new Thread(r,
+              "compactor-" + threadNumber.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+          }
+        });
+      this.pool.allowCoreThreadTimeOut(true);
+      this.bytesPerSecond = bytesPerSecond;
+      this.tokens = bytesPerSecond;
+    }
+
+    void schedule(final CompactionRequest request) {
+      if (LOG.isDebugEnabled()) {
+        LOG.debug("Queueing compaction of " + request + "; " +
+          getQueueLength() + " already queued");
+      }
+      this.pool.execute(request);
+    }
+
+    /*
+     * Drop queued compactions and interrupt running ones.  A compaction
+     * interrupted while throttled gives up before replacing any store files.
+     */
+    void shutdown() {
+      this.pool.shutdownNow();
+    }
+
+    /*
+     * Called by a compaction each time it has written about a block, with
+     * the bytes written since it last called.  Sleeps long enough to hold
+     * all compactions to the configured rate.
+     * @param bytes
+     * @throws InterruptedIOException
+     */
+    void throttle(final long bytes) throws InterruptedIOException {
+      if (this.bytesPerSecond <= 0) {
+        return;
+      }
+      long sleepMillis;
+      synchronized (this) {
+        long now = System.nanoTime();
+        this.tokens = Math.min(this.tokens +
+          (now - this.lastRefill) * this.bytesPerSecond / 1e9,
+          this.bytesPerSecond);
+        this.lastRefill = now;
+        this.tokens -= bytes;
+        sleepMillis = this.tokens >= 0? 0:
+          (long)(-this.tokens * 1000 / this.bytesPerSecond);
+      }
+      if (sleepMillis > 0) {
+        this.throttledMillis.addAndGet(sleepMillis);
+        try {
+          Thread.sleep(sleepMillis);
+        } catch (InterruptedException e) {
+          throw new InterruptedIOException("Interrupted throttling compaction");
         }
       }
     }
-    return false;
+
+    void compactionDone(final long bytes, final long millis) {
+      this.compactionsCompleted.incrementAndGet();
+      this.bytesCompacted.addAndGet(bytes);
+      this.compactionMillis.addAndGet(millis);
+    }
+
+    /** @return Number of compactions waiting to run. */
+    int getQueueLength() {
+      return this.pool.getQueue().size();
+    }
+
+    /** @return Number of compactions running now. */
+    int getActiveCount() {
+      return this.pool.getActiveCount();
+    }
+
+    /** @return Number of compactions completed. */
+    long getCompactionsCompleted() {
+      return this.compactionsCompleted.get();
+    }
+
+    /** @return Store file bytes read by completed compactions. */
+    long getBytesCompacted() {
+      return this.bytesCompacted.get();
+    }
+
+    /**
+     * @return Store file bytes compacted per second of compaction time, or 0
+     * if none have completed.
+     */
+    long getThroughput() {
+      long millis = this.compactionMillis.get();
+      return millis == 0? 0: this.bytesCompacted.get() * 1000 / millis;
+    }
+
+    /** @return Milliseconds compactions have slept to keep to the rate. */
+    long getThrottledMillis() {
+      return this.throttledMillis.get();
+    }
   }
 
   /**
@@ -1384,6 +2767,10 @@ public class HStore implements HConstants {
    */
   boolean compact(final boolean force) throws IOException {
     synchronized (compactLock) {
+      if (this.closed) {
+        // The readers are closed; the region will compact when reopened.
+        return false;
+      }
       // Storefiles are keyed by sequence id. The oldest file comes first.
       // We need to return out of here a List that has the newest file first.
       List<HStoreFile> filesToCompact =
@@ -1411,9 +2798,11 @@ public class HStore implements HConstants {
           FSUtils.getPath(compactedOutputFile.getMapFilePath()));
       }
       MapFile.Writer compactedOut = compactedOutputFile.getWriter(this.fs,
-        this.compression, this.bloomFilter);
+        this.compression, null);
+      int rows = getBloomFilterRows(filesToCompact);
+      Filter filter = createBloomFilter(rows);
       try {
-        compactHStoreFiles(compactedOut, filesToCompact);
+        compactHStoreFiles(compactedOut, filter, filesToCompact);
       } finally {
         compactedOut.close();
       }
@@ -1424,7 +2813,7 @@ public class HStore implements HConstants {
       compactedOutputFile.writeInfo(fs, maxId);
 
       // Move the compaction into place.
-      completeCompaction(filesToCompact, compactedOutputFile);
+      completeCompaction(filesToCompact, compactedOutputFile, filter, rows);
       return true;
     }
   }
@@ -1436,13 +2825,17 @@ public class HStore implements HConstants {
    * access pattern is practically designed to ruin the cache.
    * 
    * We work by opening a single MapFile.Reader for each file, and iterating
-   * through them in parallel. We always increment the lowest-ranked one.
+   * through them in parallel. We always increment the lowest-ranked one, which
+   * is kept at the top of a {@link MergeHeap} so that finding it costs
+   * log(files) rather than a look at every file.
    * Updates to a single row/column will appear ranked by timestamp. This allows
    * us to throw out deleted values or obsolete versions. @param compactedOut
+   * @param filter Bloom filter to add the rows written to, or null.
    * @param toCompactFiles @throws IOException
    */
   private void compactHStoreFiles(final MapFile.Writer compactedOut,
-      final List<HStoreFile> toCompactFiles) throws IOException {
+      final Filter filter, final List<HStoreFile> toCompactFiles)
+  throws IOException {
     
     int size = toCompactFiles.size();
     CompactionReader[] rdrs = new CompactionReader[size];
@@ -1450,7 +2843,7 @@ public class HStore implements HConstants {
     for (HStoreFile hsf: toCompactFiles) {
       try {
         rdrs[index++] =
-          new MapFileCompactionReader(hsf.getReader(fs, bloomFilter));
+          new MapFileCompactionReader(hsf.getReader(fs, null));
       } catch (IOException e) {
         // Add info about which file threw exception. It may not be in the
         // exception message so output a message here where we know the
@@ -1472,39 +2865,30 @@ public class HStore implements HConstants {
 
       // Now, advance through the readers in order.  This will have the
       // effect of a run-time sort of the entire dataset.
-      int numDone = 0;
+      MergeHeap heap = new MergeHeap(keys);
       for(int i = 0; i < rdrs.length; i++) {
         rdrs[i].reset();
         done[i] = ! rdrs[i].next(keys[i], vals[i]);
-        if(done[i]) {
-          numDone++;
+        if(!done[i]) {
+          heap.add(i);
         }
       }
 
       int timesSeen = 0;
       Text lastRow = new Text();
       Text lastColumn = new Text();
-      // Map of a row deletes keyed by column with a list of timestamps for value
-      Map<Text, List<Long>> deletes = null;
-      while (numDone < done.length) {
-        // Find the reader with the smallest key.  If two files have same key
+      // Map of a row deletes keyed by column with a list of timestamps for
+      // value.  Cleared rather than recreated as we move on.
+      Map<Text, List<Long>> deletes = new HashMap<Text, List<Long>>();
+      // Bytes written since the compaction scheduler was last told.
+      long unthrottled = 0;
+      while (!heap.isEmpty()) {
+        // The reader with the smallest key.  If two files have same key
         // but different values -- i.e. one is delete and other is non-delete
-        // value -- we will find the first, the one that was written later and
-        // therefore the one whose value should make it out to the compacted
-        // store file.
-        int smallestKey = -1;
-        for(int i = 0; i < rdrs.length; i++) {
-          if(done[i]) {
-            continue;
-          }
-          if(smallestKey < 0) {
-            smallestKey = i;
-          } else {
-            if(keys[i].compareTo(keys[smallestKey]) < 0) {
-              smallestKey = i;
-            }
-          }
-        }
+        // value -- the heap gives us the first, the one that was written later
+        // and therefore the one whose value should make it out to the
+        // compacted store file.
+        int smallestKey = heap.peek();
 
         // Reflect the current key/val in the output
         HStoreKey sk = keys[smallestKey];
@@ -1513,8 +2897,10 @@ public class HStore implements HConstants {
           timesSeen++;
         } else {
           timesSeen = 1;
-          // We are on to a new row.  Create a new deletes list.
-          deletes = new HashMap<Text, List<Long>>();
+          // We are on to a new row.  Start a new deletes list.
+          if (!deletes.isEmpty()) {
+            deletes.clear();
+          }
         }
 
         byte [] value = (vals[smallestKey] == null)?
@@ -1527,6 +2913,16 @@ public class HStore implements HConstants {
             // Only write out objects which have a non-zero length key and
             // value
             compactedOut.append(sk, vals[smallestKey]);
+            if (filter != null) {
+              filter.add(getBloomFilterKey(sk.getRow()));
+            }
+            unthrottled += sk.getRow().getLength() +
+              sk.getColumn().getLength() + Long.SIZE / Byte.SIZE +
+              (value == null? 0: value.length);
+            if (unthrottled >= COMPACTION_THROTTLE_BYTES) {
+              throttle(unthrottled);
+              unthrottled = 0;
+            }
           }
         }
 
@@ -1536,18 +2932,123 @@ public class HStore implements HConstants {
 
         // Advance the smallest key.  If that reader's all finished, then 
         // mark it as done.
-        if(!rdrs[smallestKey].next(keys[smallestKey],
-            vals[smallestKey])) {
+        if(rdrs[smallestKey].next(keys[smallestKey], vals[smallestKey])) {
+          heap.topChanged();
+        } else {
+          heap.poll();
           done[smallestKey] = true;
           rdrs[smallestKey].close();
           rdrs[smallestKey] = null;
-          numDone++;
         }
       }
+      throttle(unthrottled);
     } finally {
       closeCompactionReaders(rdrs);
     }
   }
+
+  /*
+   * Account compaction output against the region server's rate limit.
+   * @param bytes written since last called
+   * @throws InterruptedIOException
+   */
+  private void throttle(final long bytes) throws InterruptedIOException {
+    if (this.compactionScheduler != null && bytes > 0) {
+      this.compactionScheduler.throttle(bytes);
+    }
+  }
+
+  /*
+   * Min-heap of the indices of readers being merged, ordered by the current
+   * key of each reader.  Ties go to the lower index -- the newer file -- so of
+   * two cells with the same key the one written later comes out first.
+   */
+  static class MergeHeap {
+    private final HStoreKey [] keys;
+    private final int [] heap;
+    private int size = 0;
+
+    /*
+     * @param keys Current key of each reader, by reader index.  Read by the
+     * heap; the caller advances them.
+     */
+    MergeHeap(final HStoreKey [] keys) {
+      this.keys = keys;
+      this.heap = new int[keys.length];
+    }
+
+    boolean isEmpty() {
+      return this.size == 0;
+    }
+
+    void add(final int index) {
+      this.heap[this.size] = index;
+      siftUp(this.size++);
+    }
+
+    /*
+     * @return Index of the reader with the smallest key.
+     */
+    int peek() {
+      return this.heap[0];
+    }
+
+    /*
+     * Removes the reader at the top of the heap.
+     * @return Its index.
+     */
+    int poll() {
+      int top = this.heap[0];
+      this.heap[0] = this.heap[--this.size];
+      if (this.size > 0) {
+        siftDown(0);
+      }
+      return top;
+    }
+
+    /*
+     * Call after the key of the reader at the top of the heap has been moved
+     * on.
+     */
+    void topChanged() {
+      siftDown(0);
+    }
+
+    private boolean less(final int a, final int b) {
+      int c = this.keys[a].compareTo(this.keys[b]);
+      return c < 0 || (c == 0 && a < b);
+    }
+
+    private void siftUp(int pos) {
+      int index = this.heap[pos];
+      while (pos > 0) {
+        int parent = (pos - 1) >>> 1;
+        if (!less(index, this.heap[parent])) {
+          break;
+        }
+        this.heap[pos] = this.heap[parent];
+        pos = parent;
+      }
+      this.heap[pos] = index;
+    }
+
+    private void siftDown(int pos) {
+      int index = this.heap[pos];
+      int half = this.size >>> 1;
+      while (pos < half) {
+        int child = 2 * pos + 1;
+        if (child + 1 < this.size && less(this.heap[child + 1], this.heap[child])) {
+          child++;
+        }
+        if (!less(this.heap[child], index)) {
+          break;
+        }
+        this.heap[pos] = this.heap[child];
+        pos = child;
+      }
+      this.heap[pos] = index;
+    }
+  }
   
   private void closeCompactionReaders(final CompactionReader [] rdrs) {
     for (int i = 0; i < rdrs.length; i++) {
@@ -1677,10 +3178,12 @@ public class HStore implements HConstants {
    * 
    * @param compactedFiles list of files that were compacted
    * @param compactedFile HStoreFile that is the result of the compaction
+   * @param filter Bloom filter of <code>compactedFile</code> or null if none.
+   * @param rows Number of rows <code>filter</code> was sized for.
    * @throws IOException
    */
   private void completeCompaction(final List<HStoreFile> compactedFiles,
-    final HStoreFile compactedFile)
+    final HStoreFile compactedFile, final Filter filter, final int rows)
   throws IOException {
     this.lock.writeLock().lock();
     try {
@@ -1696,6 +3199,7 @@ public class HStore implements HConstants {
           finalCompactedFile.getMapFilePath().toString());
         return;
       }
+      writeBloomFilter(finalCompactedFile, filter, rows);
 
       // 2. Unload all replaced MapFiles, close and collect list to delete.
       synchronized (storefiles) {
@@ -1726,14 +3230,19 @@ public class HStore implements HConstants {
           this.readers.put(orderVal,
           // Use a block cache (if configured) for this reader since
           // it is the only one.
-          finalCompactedFile.getReader(this.fs, this.bloomFilter));
+          finalCompactedFile.getReader(this.readerFs, null));
           this.storefiles.put(orderVal, finalCompactedFile);
           // Tell observers that list of Readers has changed.
           notifyChangedReadersObservers();
           // Finally, delete old store files.
           for (HStoreFile hsf : toDelete.values()) {
             hsf.delete();
+            deleteBloomFilter(hsf);
           }
+          // Files flushed since the store opened have filters of their own,
+          // so once the older ones are compacted away nothing needs the
+          // store-wide filter.
+          deleteStoreWideBloomFilter();
         } catch (IOException e) {
           e = RemoteExceptionHandler.checkIOException(e);
           LOG.error("Failed replacing compacted files for " + this.storeName +
@@ -1769,9 +3278,12 @@ public class HStore implements HConstants {
     this.lock.readLock().lock();
     memcache.getFull(key, deletes, results);
     try {
-      MapFile.Reader[] maparray = getReaders();
-      for (int i = maparray.length - 1; i >= 0; i--) {
-        MapFile.Reader map = maparray[i];
+      Long [] seqIds = getReaderSequenceIds();
+      for (int i = seqIds.length - 1; i >= 0; i--) {
+        if (!mayContainRow(seqIds[i], key.getRow())) {
+          continue;
+        }
+        MapFile.Reader map = this.readers.get(seqIds[i]);
         getFullFromMapFile(map, key, deletes, results);
       }
     } finally {
@@ -1833,6 +3345,14 @@ public class HStore implements HConstants {
       toArray(new MapFile.Reader[this.readers.size()]);
   }
 
+  /*
+   * @return Sequence ids of the readers, oldest first.  Caller must hold the
+   * read lock.
+   */
+  private Long [] getReaderSequenceIds() {
+    return this.readers.keySet().toArray(new Long[this.readers.size()]);
+  }
+
   /**
    * Get the value for the indicated HStoreKey.  Grab the target value and the 
    * previous 'numVersions-1' values, as well.
@@ -1867,9 +3387,12 @@ public class HStore implements HConstants {
       // values.  If memory usage becomes an issue, could redo as bloom filter.
       Map<Text, List<Long>> deletes = new HashMap<Text, List<Long>>();
       // This code below is very close to the body of the getKeys method.
-      MapFile.Reader[] maparray = getReaders();
-      for(int i = maparray.length - 1; i >= 0; i--) {
-        MapFile.Reader map = maparray[i];
+      Long [] seqIds = getReaderSequenceIds();
+      for(int i = seqIds.length - 1; i >= 0; i--) {
+        if (!mayContainRow(seqIds[i], key.getRow())) {
+          continue;
+        }
+        MapFile.Reader map = this.readers.get(seqIds[i]);
         synchronized(map) {
           map.reset();
           ImmutableBytesWritable readval = new ImmutableBytesWritable();
@@ -2339,15 +3862,87 @@ public class HStore implements HConstants {
    */
   HInternalScannerInterface getScanner(long timestamp, Text targetCols[],
       Text firstRow, RowFilterInterface filter)
+  throws IOException {
+    return getScanner(timestamp, targetCols, firstRow, filter, false);
+  }
+
+  /**
+   * Return a scanner for both the memcache and the HStore files
+   * @param prefetch True to have the store file readers read the next block
+   * of their file in the background while the current one is consumed.  Worth
+   * it for long scans; the cost is a block of memory per store file.
+   */
+  HInternalScannerInterface getScanner(long timestamp, Text targetCols[],
+      Text firstRow, RowFilterInterface filter, boolean prefetch)
   throws IOException {
     lock.readLock().lock();
     try {
-      return new HStoreScanner(targetCols, firstRow, timestamp, filter);
+      return new HStoreScanner(targetCols, firstRow, timestamp, filter,
+        prefetch);
     } finally {
       lock.readLock().unlock();
     }
   }
 
+  /**
+   * A reusable batch of cells returned by
+   * {@link HStoreScanner#next(CellBatch)}.  Holds at most a given number of
+   * cells and, past the first cell, a given number of value bytes.  The keys
+   * are reused from batch to batch; copy any that must outlive the next call.
+   */
+  static class CellBatch {
+    private final HStoreKey [] keys;
+    private final byte [][] values;
+    private final long maxBytes;
+    private int size = 0;
+    private long bytes = 0;
+
+    CellBatch(final int maxCells, final long maxBytes) {
+      this.keys = new HStoreKey[maxCells];
+      this.values = new byte[maxCells][];
+      this.maxBytes = maxBytes;
+      for (int i = 0; i < maxCells; i++) {
+        this.keys[i] = new HStoreKey();
+      }
+    }
+
+    void clear() {
+      for (int i = 0; i < this.size; i++) {
+        this.values[i] = null;
+      }
+      this.size = 0;
+      this.bytes = 0;
+    }
+
+    boolean isFull() {
+      return this.size == this.keys.length ||
+        (this.size > 0 && this.bytes >= this.maxBytes);
+    }
+
+    void add(final Text row, final Text column, final long timestamp,
+        final byte [] value) {
+      HStoreKey key = this.keys[this.size];
+      key.setRow(row);
+      key.setColumn(column);
+      key.setVersion(timestamp);
+      this.values[this.size++] = value;
+      this.bytes += value == null? 0: value.length;
+    }
+
+    /** @return Number of cells in the batch. */
+    int size() {
+      return this.size;
+    }
+
+    HStoreKey getKey(final int i) {
+      return this.keys[i];
+    }
+
+    byte [] getValue(final int i) {
+      return this.values[i];
+    }
+  }
+
   /** {@inheritDoc} */
   @Override
   public String toString() {
@@ -2390,7 +3985,7 @@ public class HStore implements HConstants {
    * A scanner that iterates through HStore files
    */
   private class StoreFileScanner extends HAbstractScanner
-  implements ChangedReadersObserver {
+  implements ChangedReadersObserver, CellTimestamps {
     // Keys retrieved from the sources
     private HStoreKey keys[];
     
@@ -2403,9 +3998,19 @@ public class HStore implements HConstants {
     @SuppressWarnings("hiding")
     private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
     
-    StoreFileScanner(long timestamp, Text[] targetCols, Text firstRow)
+    // File system the readers are opened through.
+    private final FileSystem scannerFs;
+
+    // Timestamps of the cells of the last row returned.
+    private final Map<Text, Long> timestamps = new HashMap<Text, Long>();
+
+    StoreFileScanner(long timestamp, Text[] targetCols, Text firstRow,
+        boolean prefetch)
     throws IOException {
       super(timestamp, targetCols);
+      this.scannerFs =
+        prefetch && prefetchPool != null?
+          new PrefetchingFileSystem(fs, conf, prefetchPool): fs;
       addChangedReaderObserver(this);
       try {
         openReaders(firstRow);
@@ -2438,7 +4043,7 @@ public class HStore implements HConstants {
      // Most recent map file should be first
      int i = sfsReaders.length - 1;
      for(HStoreFile curHSF: getStorefiles().values()) {
-       sfsReaders[i--] = curHSF.getReader(fs, bloomFilter);
+       sfsReaders[i--] = curHSF.getReader(this.scannerFs, null);
      }
      
      this.keys = new HStoreKey[sfsReaders.length];
@@ -2488,6 +4093,7 @@ public class HStore implements HConstants {
      }
      this.lock.readLock().lock();
      try {
+       this.timestamps.clear();
        // Find the next viable row label (and timestamp).
        ViableRow viableRow = getNextViableRow();
        
@@ -2512,7 +4118,10 @@ public class HStore implements HConstants {
              if(columnMatch(i)) {              
                // We only want the first result for any specific family member
                if(!results.containsKey(keys[i].getColumn())) {
-                 results.put(new Text(keys[i].getColumn()), vals[i]);
+                 Text column = new Text(keys[i].getColumn());
+                 results.put(column, vals[i]);
+                 this.timestamps.put(column,
+                   Long.valueOf(keys[i].getTimestamp()));
                  insertedItem = true;
                }
              }
@@ -2537,6 +4146,12 @@ public class HStore implements HConstants {
      }
    }
 
+   /** {@inheritDoc} */
+   public long getTimestamp(final Text column) {
+     Long ts = this.timestamps.get(column);
+     return ts == null? HConstants.LATEST_TIMESTAMP: ts.longValue();
+   }
+
    /*
     * @return An instance of <code>ViableRow</code>
     * @throws IOException
@@ -2711,11 +4326,21 @@ public class HStore implements HConstants {
     private boolean wildcardMatch = false;
     private boolean multipleMatchers = false;
     private RowFilterInterface dataFilter;
+    // Deleted cell keys within the current row.  Cleared for each row.
+    private final Set<HStoreKey> deletes = new HashSet<HStoreKey>();
+    // Row being handed out by next(CellBatch), its cells, and the index of
+    // the first of them not yet handed out.
+    private final HStoreKey batchRow = new HStoreKey();
+    private final RowCells batchRowCells = new RowCells();
+    private int batchRowNext = 0;
+    // Puts the cells of the rows next(HStoreKey, SortedMap) returns in the
+    // caller's map.
+    private final MapRow mapRow = new MapRow();
 
     /** Create an Scanner with a handle on the memcache and HStore files. */
     @SuppressWarnings("unchecked")
     HStoreScanner(Text[] targetCols, Text firstRow, long timestamp,
-        RowFilterInterface filter) throws IOException {
+        RowFilterInterface filter, boolean prefetch) throws IOException {
       
       this.dataFilter = filter;
       if (null != dataFilter) {
@@ -2727,7 +4352,8 @@ public class HStore implements HConstants {
 
       try {
         scanners[0] = memcache.getScanner(timestamp, targetCols, firstRow);
-        scanners[1] = new StoreFileScanner(timestamp, targetCols, firstRow);
+        scanners[1] = new StoreFileScanner(timestamp, targetCols, firstRow,
+          prefetch);
         
         for (int i = 0; i < scanners.length; i++) {
           if (scanners[i].isWildcardScanner()) {
@@ -2772,6 +4398,23 @@ public class HStore implements HConstants {
     /** {@inheritDoc} */
     public boolean next(HStoreKey key, SortedMap<Text, byte[]> results)
       throws IOException {
+      this.mapRow.results = results;
+      try {
+        return nextRow(key, this.mapRow);
+      } finally {
+        this.mapRow.results = null;
+      }
+    }
+
+    /*
+     * Merge the next row of the sub-scanners into <code>results</code>.
+     * @param key Set to the row and its newest timestamp.
+     * @param results
+     * @return True if a row was found.
+     * @throws IOException
+     */
+    private boolean nextRow(final HStoreKey key, final ScannedRow results)
+    throws IOException {
 
       // Filtered flag is set by filters.  If a cell has been 'filtered out'
       // -- i.e. it is not to be returned to the caller -- the flag is 'true'.
@@ -2810,7 +4453,9 @@ public class HStore implements HConstants {
           // are only keeping rows and columns that match those set on the
           // scanner and which have delete values.  If memory usage becomes a
           // problem, could redo as bloom filter.
-          List<HStoreKey> deletes = new ArrayList<HStoreKey>();
+          if (!deletes.isEmpty()) {
+            deletes.clear();
+          }
           for (int i = 0; i < scanners.length && !filtered; i++) {
             while ((scanners[i] != null
                 && !filtered
@@ -2852,7 +4497,8 @@ public class HStore implements HConstants {
                       break;
                     }
                   }
-                  results.put(e.getKey(), e.getValue());
+                  results.put(e.getKey(), getTimestamp(i, e.getKey()),
+                    e.getValue());
                 }
               }
               resultSets[i].clear();
@@ -2891,7 +4537,7 @@ public class HStore implements HConstants {
       }
       
       // If we got no results, then there is no more to follow.
-      if (results == null || results.size() <= 0) {
+      if (results.size() <= 0) {
         moreToFollow = false;
       }
       
@@ -2907,6 +4553,45 @@ public class HStore implements HConstants {
       return moreToFollow;
     }
 
+
+    /**
+     * Fill <code>batch</code> with the next cells of the scan, in row and
+     * then column order.  A row wider than the batch is handed out over
+     * several calls.
+     * @param batch Cleared, then filled.
+     * @return True if any cells were returned.
+     * @throws IOException
+     */
+    public boolean next(final CellBatch batch) throws IOException {
+      batch.clear();
+      while (!batch.isFull()) {
+        if (this.batchRowNext == this.batchRowCells.size()) {
+          this.batchRowCells.clear();
+          this.batchRowNext = 0;
+          if (!nextRow(this.batchRow, this.batchRowCells)) {
+            break;
+          }
+        }
+        while (!batch.isFull() &&
+            this.batchRowNext < this.batchRowCells.size()) {
+          int i = this.batchRowNext++;
+          batch.add(this.batchRow.getRow(), this.batchRowCells.getColumn(i),
+            this.batchRowCells.getTimestamp(i), this.batchRowCells.getValue(i));
+        }
+      }
+      return batch.size() > 0;
+    }
+
+    /*
+     * @param i Index of a sub-scanner.
+     * @param column Column of a cell of the sub-scanner's current row.
+     * @return Timestamp of the cell.
+     */
+    private long getTimestamp(final int i, final Text column) {
+      return this.scanners[i] instanceof CellTimestamps?
+        ((CellTimestamps)this.scanners[i]).getTimestamp(column):
+        this.keys[i].getTimestamp();
+    }
     
     /** Shut down a single scanner */
     void closeScanner(int i) {
@@ -2939,6 +4624,139 @@ public class HStore implements HConstants {
     }
   }
 
+  /*
+   * Where {@link HStoreScanner} puts the cells of the row it is merging.
+   */
+  private static abstract class ScannedRow {
+    abstract boolean containsKey(Text column);
+
+    /*
+     * Put a cell, replacing any of the same column.
+     */
+    abstract void put(Text column, long timestamp, byte [] value);
+
+    abstract void clear();
+
+    abstract int size();
+  }
+
+  /*
+   * Puts the cells of a row in a map of column to value.
+   */
+  private static class MapRow extends ScannedRow {
+    SortedMap<Text, byte []> results;
+
+    @Override
+    boolean containsKey(final Text column) {
+      return this.results.containsKey(column);
+    }
+
+    @Override
+    void put(final Text column, final long timestamp, final byte [] value) {
+      this.results.put(column, value);
+    }
+
+    @Override
+    void clear() {
+      this.results.clear();
+    }
+
+    @Override
+    int size() {
+      return this.results.size();
+    }
+  }
+
+  /*
+   * The cells of a row, each with its own timestamp, in column order.  The
+   * arrays are kept from row to row and only grow.
+   */
+  private static class RowCells extends ScannedRow {
+    private Text [] columns = new Text[16];
+    private long [] timestamps = new long[16];
+    private byte [][] values = new byte[16][];
+    private int size = 0;
+
+    /*
+     * @return Index of <code>column</code>, or -(insertion point + 1).
+     */
+    private int find(final Text column) {
+      int low = 0;
+      int high = this.size - 1;
+      while (low <= high) {
+        int mid = (low + high) >>> 1;
+        int c = this.columns[mid].compareTo(column);
+        if (c < 0) {
+          low = mid + 1;
+        } else if (c > 0) {
+          high = mid - 1;
+        } else {
+          return mid;
+        }
+      }
+      return -(low + 1);
+    }
+
+    @Override
+    boolean containsKey(final Text column) {
+      return find(column) >= 0;
+    }
+
+    @Override
+    void put(final Text column, final long timestamp, final byte [] value) {
+      int i = find(column);
+      if (i < 0) {
+        i = -(i + 1);
+        if (this.size == this.columns.length) {
+          int capacity = this.size * 2;
+          Text [] c = new Text[capacity];
+          long [] t = new long[capacity];
+          byte [][] v = new byte[capacity][];
+          System.arraycopy(this.columns, 0, c, 0, this.size);
+          System.arraycopy(this.timestamps, 0, t, 0, this.size);
+          System.arraycopy(this.values, 0, v, 0, this.size);
+          this.columns = c;
+          this.timestamps = t;
+          this.values = v;
+        }
+        System.arraycopy(this.columns, i, this.columns, i + 1, this.size - i);
+        System.arraycopy(this.timestamps, i, this.timestamps, i + 1,
+          this.size - i);
+        System.arraycopy(this.values, i, this.values, i + 1, this.size - i);
+        this.size++;
+      }
+      this.columns[i] = column;
+      this.timestamps[i] = timestamp;
+      this.values[i] = value;
+    }
+
+    @Override
+    void clear() {
+      for (int i = 0; i < this.size; i++) {
+        this.columns[i] = null;
+        this.values[i] = null;
+      }
+      this.size = 0;
+    }
+
+    @Override
+    int size() {
+      return this.size;
+    }
+
+    Text getColumn(final int i) {
+      return this.columns[i];
+    }
+
+    long getTimestamp(final int i) {
+      return this.timestamps[i];
+    }
+
+    byte [] getValue(final int i) {
+      return this.values[i];
+    }
+  }
+
   /**
    * @return Current list of store files.
    */
@@ -0,0 +1,235 @@
+/**
+ * Copyright 2008 The Apache Software Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hbase;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+/**
+ * Tests {@link HStore#flushCaches(java.util.Collection, long)} writing the
+ * stores of a region on the region server's flush pool.
+ */
+public class TestFlushCaches extends TestCase {
+  private HBaseConfiguration conf;
+  private FileSystem fs;
+  private Path dir;
+  private HStore.StoreServices services;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    this.conf = new HBaseConfiguration();
+    this.fs = FileSystem.getLocal(this.conf);
+    this.dir = new Path(System.getProperty("test.build.data", "."),
+      getName());
+    this.fs.delete(this.dir);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    if (this.services != null) {
+      this.services.shutdown();
+    }
+    this.fs.delete(this.dir);
+    super.tearDown();
+  }
+
+  /**
+   * A store that fails must not stop the others; the failure is only thrown
+   * once every store has finished.
+   */
+  public void testFailureThrownAfterAllStoresFinish() throws Exception {
+    startServices(3);
+    final IOException failure = new IOException("injected");
+    final List<String> done = new ArrayList<String>();
+    List<HStore> stores = new ArrayList<HStore>();
+    stores.add(new FakeStore("failing", this.services) {
+      @Override
+      long flushCache(final long logCacheFlushId) throws IOException {
+        throw failure;
+      }
+    });
+    for (int i = 0; i < 2; i++) {
+      final String name = "slow" + i;
+      stores.add(new FakeStore(name, this.services) {
+        @Override
+        long flushCache(final long logCacheFlushId) throws IOException {
+          sleep(200);
+          synchronized (done) {
+            done.add(name);
+          }
+          return 1;
+        }
+      });
+    }
+    try {
+      HStore.flushCaches(stores, 1L);
+      fail("Expected the injected failure");
+    } catch (IOException e) {
+      assertSame(failure, e);
+    }
+    synchronized (done) {
+      assertEquals(2, done.size());
+    }
+  }
+
+  /**
+   * An interrupt while waiting still waits for the flushes under way, then
+   * is passed on to the caller.
+   */
+  public void testInterruptRestored() throws Exception {
+    startServices(2);
+    final List<String> done = new ArrayList<String>();
+    List<HStore> stores = new ArrayList<HStore>();
+    for (int i = 0; i < 2; i++) {
+      final String name = "slow" + i;
+      stores.add(new FakeStore(name, this.services) {
+        @Override
+        long flushCache(final long logCacheFlushId) throws IOException {
+          sleep(200);
+          synchronized (done) {
+            done.add(name);
+          }
+          return 1;
+        }
+      });
+    }
+    Thread.currentThread().interrupt();
+    try {
+      HStore.flushCaches(stores, 1L);
+      fail("Expected InterruptedIOException");
+    } catch (InterruptedIOException e) {
+      // Expected.
+    } finally {
+      // Clears the interrupt so it does not leak into the next test.
+      assertTrue(Thread.interrupted());
+    }
+    synchronized (done) {
+      assertEquals(2, done.size());
+    }
+  }
+
+  /**
+   * With every flusher busy the stores left over are written by the caller;
+   * after the pool is shut down all of them are.
+   */
+  public void testRejectedFlushRunsOnCaller() throws Exception {
+    startServices(1);
+    final CountDownLatch othersDone = new CountDownLatch(2);
+    final List<Thread> threads = new ArrayList<Thread>();
+    List<HStore> stores = new ArrayList<HStore>();
+    // Holds the only flusher until the other two stores are written, so
+    // they can only be written by the caller.
+    stores.add(new FakeStore("blocking", this.services) {
+      @Override
+      long flushCache(final long logCacheFlushId) throws IOException {
+        try {
+          assertTrue(othersDone.await(10, TimeUnit.SECONDS));
+        } catch (InterruptedException e) {
+          throw new InterruptedIOException();
+        }
+        return 1;
+      }
+    });
+    for (int i = 0; i < 2; i++) {
+      stores.add(new FakeStore("other" + i, this.services) {
+        @Override
+        long flushCache(final long logCacheFlushId) throws IOException {
+          synchronized (threads) {
+            threads.add(Thread.currentThread());
+          }
+          othersDone.countDown();
+          return 1;
+        }
+      });
+    }
+    assertEquals(3, HStore.flushCaches(stores, 1L));
+    assertEquals(2, threads.size());
+    for (Thread t: threads) {
+      assertSame(Thread.currentThread(), t);
+    }
+
+    this.services.shutdown();
+    threads.clear();
+    List<HStore> after = new ArrayList<HStore>();
+    for (int i = 0; i < 3; i++) {
+      after.add(new FakeStore("after" + i, this.services) {
+        @Override
+        long flushCache(final long logCacheFlushId) throws IOException {
+          synchronized (threads) {
+            threads.add(Thread.currentThread());
+          }
+          return 1;
+        }
+      });
+    }
+    assertEquals(3, HStore.flushCaches(after, 1L));
+    assertEquals(3, threads.size());
+    for (Thread t: threads) {
+      assertSame(Thread.currentThread(), t);
+    }
+  }
+
+  private void startServices(final int flushThreads) {
+    this.conf.setInt("hbase.hstore.flush.threads", flushThreads);
+    this.services = new HStore.StoreServices(this.conf);
+  }
+
+  private static void sleep(final long ms) throws InterruptedIOException {
+    try {
+      Thread.sleep(ms);
+    } catch (InterruptedException e) {
+      throw new InterruptedIOException();
+    }
+  }
+
+  /*
+   * An empty store of its own family on the local file system, whose flush
+   * the tests replace.
+   */
+  private class FakeStore extends HStore {
+    FakeStore(final String name, final HStore.StoreServices services)
+    throws IOException {
+      this(name, new HColumnDescriptor(name + ":"), services);
+    }
+
+    private FakeStore(final String name, final HColumnDescriptor family,
+        final HStore.StoreServices services)
+    throws IOException {
+      super(dir, new HRegionInfo(table(family), null, null), family, fs, null,
+        conf, null, services);
+    }
+  }
+
+  private static HTableDescriptor table(final HColumnDescriptor family) {
+    HTableDescriptor htd = new HTableDescriptor("testFlushCaches");
+    htd.addFamily(family);
+    return htd;
+  }
+}
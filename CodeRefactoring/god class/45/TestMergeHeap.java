@@ -0,0 +1,171 @@
+/**
+ * Copyright 2008 The Apache Software Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hbase;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.apache.hadoop.io.Text;
+
+/**
+ * Tests the heap that orders the readers of a compaction.
+ */
+public class TestMergeHeap extends TestCase {
+  private static final Text COLUMN = new Text("colfamily:qualifier");
+
+  /**
+   * Of readers whose current keys are equal, the one with the lower index --
+   * the newer file -- must come out first, whatever order they were added in.
+   */
+  public void testTiesGoToNewerFile() {
+    HStoreKey [] keys = new HStoreKey[9];
+    for (int i = 0; i < keys.length; i++) {
+      keys[i] = key("row", 10L);
+    }
+    HStore.MergeHeap heap = new HStore.MergeHeap(keys);
+    for (int i = keys.length - 1; i >= 0; i--) {
+      heap.add(i);
+    }
+    for (int i = 0; i < keys.length; i++) {
+      assertFalse(heap.isEmpty());
+      assertEquals(i, heap.peek());
+      assertEquals(i, heap.poll());
+    }
+    assertTrue(heap.isEmpty());
+  }
+
+  /**
+   * A reader whose key is moved on to one equal to another reader's must
+   * still only win the tie if it is the newer file.
+   */
+  public void testTopChangedKeepsTieBreak() {
+    HStoreKey [] keys = new HStoreKey[] {
+      key("a", 10L), key("b", 10L), key("c", 10L)};
+    HStore.MergeHeap heap = new HStore.MergeHeap(keys);
+    heap.add(2);
+    heap.add(1);
+    heap.add(0);
+    assertEquals(0, heap.peek());
+    // The newest file moves on to the key the middle one is at: it wins.
+    keys[0] = key("b", 10L);
+    heap.topChanged();
+    assertEquals(0, heap.poll());
+    assertEquals(1, heap.peek());
+    // The middle file moves on to the key the oldest is at: the oldest is
+    // the older file, so the middle one still comes first.
+    keys[1] = key("c", 10L);
+    heap.topChanged();
+    assertEquals(1, heap.poll());
+    assertEquals(2, heap.poll());
+    assertTrue(heap.isEmpty());
+  }
+
+  /**
+   * Merges many sorted readers with keys in common, as a compaction does,
+   * and checks every cell comes out ordered by key and then by file.
+   */
+  public void testMergeOrder() {
+    Random rand = new Random(8116L);
+    for (int readers = 1; readers <= 64; readers *= 2) {
+      List<List<HStoreKey>> files = new ArrayList<List<HStoreKey>>();
+      List<Cell> expected = new ArrayList<Cell>();
+      for (int i = 0; i < readers; i++) {
+        List<HStoreKey> file = new ArrayList<HStoreKey>();
+        int cells = rand.nextInt(50);
+        for (int j = 0; j < cells; j++) {
+          // Few rows and timestamps so many keys turn up in several files.
+          HStoreKey k = key("row" + rand.nextInt(20), rand.nextInt(3));
+          file.add(k);
+          expected.add(new Cell(k, i));
+        }
+        Collections.sort(file);
+        files.add(file);
+      }
+      Collections.sort(expected);
+
+      HStoreKey [] keys = new HStoreKey[readers];
+      int [] next = new int[readers];
+      HStore.MergeHeap heap = new HStore.MergeHeap(keys);
+      for (int i = 0; i < readers; i++) {
+        if (!files.get(i).isEmpty()) {
+          keys[i] = files.get(i).get(next[i]++);
+          heap.add(i);
+        }
+      }
+      List<Cell> merged = new ArrayList<Cell>();
+      while (!heap.isEmpty()) {
+        int top = heap.peek();
+        merged.add(new Cell(keys[top], top));
+        if (next[top] < files.get(top).size()) {
+          keys[top] = files.get(top).get(next[top]++);
+          heap.topChanged();
+        } else {
+          heap.poll();
+        }
+      }
+      assertEquals("merge of " + readers + " readers", expected, merged);
+    }
+  }
+
+  private static HStoreKey key(final String row, final long timestamp) {
+    return new HStoreKey(new Text(row), COLUMN, timestamp);
+  }
+
+  /*
+   * A key and the index of the reader it came from, ordered as the merge
+   * must give them out.
+   */
+  private static class Cell implements Comparable<Cell> {
+    private final HStoreKey key;
+    private final int index;
+
+    Cell(final HStoreKey key, final int index) {
+      this.key = key;
+      this.index = index;
+    }
+
+    public int compareTo(final Cell o) {
+      int c = this.key.compareTo(o.key);
+      if (c != 0) {
+        return c;
+      }
+      return this.index < o.index? -1: this.index == o.index? 0: 1;
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+      return o instanceof Cell && compareTo((Cell)o) == 0;
+    }
+
+    @Override
+    public int hashCode() {
+      return this.key.hashCode() ^ this.index;
+    }
+
+    @Override
+    public String toString() {
+      return this.key + "@" + this.index;
+    }
+  }
+}